@@ -0,0 +1,102 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.api.base;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Read-only tags of a single record. The keys are taken from the shared {@link TagDictionary}, the record only holds
+ * the array of values.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public final class DictionaryTags extends ImmutableTags {
+    private static final long serialVersionUID = 2287464021871532043L;
+
+    private final TagDictionary dictionary;
+    private final String[] values;
+
+
+    DictionaryTags(final TagDictionary dictionary, final String[] values) {
+        this.dictionary = dictionary;
+        this.values = values;
+    }
+
+
+    public TagDictionary getDictionary() {
+        return dictionary;
+    }
+
+    @Override
+    public int size() {
+        return values.length;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return dictionary.indexOf(key) >= 0;
+    }
+
+    @Override
+    public String get(final Object key) {
+        int position = dictionary.indexOf(key);
+
+        return position >= 0 ? values[position] : null;
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<Entry<String, String>>() {
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new Iterator<Entry<String, String>>() {
+                    private int position = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return position < values.length;
+                    }
+
+                    @Override
+                    public Entry<String, String> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+
+                        Entry<String, String> result = new SimpleImmutableEntry<>(
+                                dictionary.getKey(position),
+                                values[position]
+                        );
+
+                        position++;
+                        return result;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return values.length;
+            }
+        };
+    }
+}
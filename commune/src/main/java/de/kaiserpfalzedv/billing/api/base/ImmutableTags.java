@@ -0,0 +1,112 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.api.base;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read-only tags that can be shared between records. The builders of all pipeline stages keep instances of this class
+ * by reference, so the tags of a record are copied at most once on the way from import to call data record.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public abstract class ImmutableTags extends AbstractMap<String, String> implements Serializable {
+    private static final long serialVersionUID = -2012839614577283925L;
+
+    /** Tags without any entry. */
+    public static final ImmutableTags EMPTY = new CopiedTags(Collections.<String, String>emptyMap());
+
+
+    ImmutableTags() {}
+
+
+    /**
+     * @param tags The tags to share.
+     *
+     * @return the tags itself if they are already immutable, an immutable copy otherwise.
+     */
+    public static ImmutableTags of(final Map<String, String> tags) {
+        if (tags instanceof ImmutableTags) {
+            return (ImmutableTags) tags;
+        }
+
+        if (tags == null || tags.isEmpty()) {
+            return EMPTY;
+        }
+
+        return new CopiedTags(tags);
+    }
+
+
+    @Override
+    public final String put(final String key, final String value) {
+        throw new UnsupportedOperationException("Tags are read-only!");
+    }
+
+    @Override
+    public final String remove(final Object key) {
+        throw new UnsupportedOperationException("Tags are read-only!");
+    }
+
+    @Override
+    public final void putAll(final Map<? extends String, ? extends String> m) {
+        throw new UnsupportedOperationException("Tags are read-only!");
+    }
+
+    @Override
+    public final void clear() {
+        throw new UnsupportedOperationException("Tags are read-only!");
+    }
+
+
+    private static final class CopiedTags extends ImmutableTags {
+        private static final long serialVersionUID = 6340118905731529876L;
+
+        private final Map<String, String> tags;
+
+        private CopiedTags(final Map<String, String> tags) {
+            this.tags = Collections.unmodifiableMap(new HashMap<>(tags));
+        }
+
+        @Override
+        public int size() {
+            return tags.size();
+        }
+
+        @Override
+        public boolean containsKey(final Object key) {
+            return tags.containsKey(key);
+        }
+
+        @Override
+        public String get(final Object key) {
+            return tags.get(key);
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return tags.entrySet();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.api.base;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.validation.constraints.NotNull;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+
+/**
+ * The tag keys shared by all records of an import. The records only hold the values as {@link DictionaryTags}, the
+ * keys are stored once per dictionary.
+ *
+ * The dictionary deduplicates the tag values, since cluster, project and product names repeat for many records. Every
+ * key has its own pool limited to {@link #MAX_POOLED_VALUES_PER_KEY} values, so a key with many distinct values (like
+ * pod names) only stops pooling its own values. Values beyond that limit are kept as given. The pools are not
+ * serialized, a deserialized dictionary starts with empty pools. The dictionary is thread safe.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class TagDictionary implements Serializable {
+    private static final long serialVersionUID = -4627218355480417362L;
+
+    /** Maximum number of distinct values pooled per key of a dictionary. */
+    public static final int MAX_POOLED_VALUES_PER_KEY = 16 * 1024;
+
+    private final String[] keys;
+    private final HashMap<String, Integer> index;
+    private transient ConcurrentHashMap<String, String>[] pools;
+
+
+    public TagDictionary(@NotNull final String... keys) {
+        this.keys = keys.clone();
+        this.index = new HashMap<>(keys.length * 2);
+
+        for (int i = 0; i < keys.length; i++) {
+            if (index.put(keys[i], i) != null) {
+                throw new IllegalArgumentException("Tag key '" + keys[i] + "' is given twice!");
+            }
+        }
+
+        createPools();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void createPools() {
+        pools = new ConcurrentHashMap[keys.length];
+
+        for (int i = 0; i < keys.length; i++) {
+            pools[i] = new ConcurrentHashMap<>();
+        }
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+
+        createPools();
+    }
+
+
+    /**
+     * Creates the tags for a single record.
+     *
+     * @param values The values in the order of the keys of this dictionary. The array is owned by the tags afterwards.
+     *
+     * @return the read-only tags.
+     */
+    public Map<String, String> createTags(@NotNull final String... values) {
+        if (values.length != keys.length) {
+            throw new IllegalArgumentException(
+                    "Expected " + keys.length + " tag values but " + values.length + " were given!"
+            );
+        }
+
+        for (int i = 0; i < values.length; i++) {
+            values[i] = deduplicate(i, values[i]);
+        }
+
+        return new DictionaryTags(this, values);
+    }
+
+    /**
+     * @param position The position of the key the value belongs to.
+     * @param value The value to deduplicate.
+     *
+     * @return the pooled instance of an equal value or the value itself.
+     */
+    public String deduplicate(final int position, final String value) {
+        if (value == null) {
+            return null;
+        }
+
+        ConcurrentHashMap<String, String> pool = pools[position];
+        String result = pool.get(value);
+        if (result == null) {
+            if (pool.size() >= MAX_POOLED_VALUES_PER_KEY) {
+                return value;
+            }
+
+            result = pool.putIfAbsent(value, value);
+            if (result == null) {
+                result = value;
+            }
+        }
+
+        return result;
+    }
+
+
+    public int size() {
+        return keys.length;
+    }
+
+    public String getKey(final int position) {
+        return keys[position];
+    }
+
+    /**
+     * @param key The key to look up.
+     *
+     * @return the position of the key or -1 if the key is not part of this dictionary.
+     */
+    public int indexOf(final Object key) {
+        Integer result = index.get(key);
+
+        return result != null ? result : -1;
+    }
+
+
+    /**
+     * @param position The position of the key.
+     *
+     * @return the number of values pooled for the key.
+     */
+    public int getPooledValues(final int position) {
+        return pools[position].size();
+    }
+
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append("keys", keys)
+                .toString();
+    }
+}
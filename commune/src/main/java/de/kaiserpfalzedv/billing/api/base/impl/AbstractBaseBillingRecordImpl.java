@@ -18,12 +18,11 @@ package de.kaiserpfalzedv.billing.api.base.impl;
 
 import java.time.Duration;
 import java.time.OffsetDateTime;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
 
 import de.kaiserpfalzedv.billing.api.base.BaseBillingRecord;
+import de.kaiserpfalzedv.billing.api.base.ImmutableTags;
 import de.kaiserpfalzedv.billing.api.common.impl.IdentifiableImpl;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.commons.lang3.builder.ToStringStyle;
@@ -69,9 +68,9 @@ public abstract class AbstractBaseBillingRecordImpl extends IdentifiableImpl imp
     private final Duration meteredDuration;
 
     /**
-     * Tags on this record.
+     * Tags on this record. {@link ImmutableTags} are kept as given, all other maps are copied.
      */
-    private final HashMap<String, String> tags = new HashMap<>();
+    private final Map<String, String> tags;
 
 
     protected AbstractBaseBillingRecordImpl(
@@ -95,9 +94,7 @@ public abstract class AbstractBaseBillingRecordImpl extends IdentifiableImpl imp
         this.meteredTimestamp = meteredTimestamp;
         this.meteredDuration = meteredDuration;
 
-        if (tags != null) {
-            this.tags.putAll(tags);
-        }
+        this.tags = ImmutableTags.of(tags);
     }
 
     @Override
@@ -132,7 +129,7 @@ public abstract class AbstractBaseBillingRecordImpl extends IdentifiableImpl imp
 
     @Override
     public Map<String, String> getTags() {
-        return Collections.unmodifiableMap(tags);
+        return tags;
     }
 
 
@@ -0,0 +1,232 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.api.common;
+
+import java.math.BigDecimal;
+
+import javax.money.CurrencyUnit;
+import javax.money.MonetaryAmount;
+import javax.money.MonetaryException;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.javamoney.moneta.Money;
+
+/**
+ * A running sum of monetary amounts of a single currency. As long as the amounts have at most 18 digits and
+ * {@link #MAX_COMPACT_SCALE} decimal places, the sum is kept as a scaled long and added with long arithmetic. Only a
+ * short-lived {@link BigDecimal} per amount is created to read its unscaled value, no sum is materialised.
+ * Amounts beyond these limits and sums overflowing the long are added to a {@link BigDecimal} instead, so the sum
+ * is always exact. The amount is materialised only by {@link #getAmount()}.
+ *
+ * The sum is not thread-safe. Sums of different threads may be combined by {@link #add(MonetarySum)}.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public final class MonetarySum {
+    /**
+     * The maximum number of decimal places kept in the scaled long.
+     */
+    public static final int MAX_COMPACT_SCALE = 18;
+
+    private static final int MAX_COMPACT_PRECISION = 18;
+
+    private static final long[] POWERS_OF_TEN = new long[MAX_COMPACT_SCALE + 1];
+
+    /**
+     * The largest absolute values which may be multiplied by the power of ten of the same index without overflow.
+     */
+    private static final long[] MULTIPLY_LIMITS = new long[MAX_COMPACT_SCALE + 1];
+    static {
+        POWERS_OF_TEN[0] = 1L;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10L;
+        }
+
+        for (int i = 0; i < MULTIPLY_LIMITS.length; i++) {
+            MULTIPLY_LIMITS[i] = Long.MAX_VALUE / POWERS_OF_TEN[i];
+        }
+    }
+
+    private final CurrencyUnit currency;
+
+    /**
+     * The compact part of the sum, scaled by {@link #scale}.
+     */
+    private long compact;
+    private int scale;
+
+    /**
+     * The part of the sum not fitting into {@link #compact}. Null as long as everything fits.
+     */
+    private BigDecimal inflated;
+
+    private long count;
+
+
+    public MonetarySum(final CurrencyUnit currency) {
+        if (currency == null) {
+            throw new IllegalArgumentException("Can't sum amounts without currency!");
+        }
+
+        this.currency = currency;
+    }
+
+
+    /**
+     * @param amount the amount to add.
+     * @return this sum.
+     * @throws MonetaryException if the amount has another currency, as {@link MonetaryAmount#add(MonetaryAmount)}.
+     */
+    public MonetarySum add(final MonetaryAmount amount) {
+        CurrencyUnit other = amount.getCurrency();
+        if (other != currency && !currency.equals(other)) {
+            throw new MonetaryException(
+                    "Currency mismatch: can't add " + other.getCurrencyCode() + " to " + currency.getCurrencyCode());
+        }
+
+        return add(amount.getNumber().numberValue(BigDecimal.class));
+    }
+
+    /**
+     * @param value the value to add in the currency of this sum.
+     * @return this sum.
+     */
+    public MonetarySum add(final BigDecimal value) {
+        count++;
+
+        int valueScale = value.scale();
+        if (valueScale < 0 || valueScale > MAX_COMPACT_SCALE || value.precision() > MAX_COMPACT_PRECISION) {
+            inflate(value);
+        } else {
+            // the unscaled value without creating a BigInteger, at the cost of a short-lived BigDecimal
+            addCompact(value.scaleByPowerOfTen(valueScale).longValue(), valueScale);
+        }
+
+        return this;
+    }
+
+    /**
+     * Adds another sum of the same currency. The other sum is not changed.
+     *
+     * @param other the sum to add.
+     * @return this sum.
+     * @throws MonetaryException if the other sum has another currency.
+     */
+    public MonetarySum add(final MonetarySum other) {
+        if (other.currency != currency && !currency.equals(other.currency)) {
+            throw new MonetaryException(
+                    "Currency mismatch: can't add " + other.currency.getCurrencyCode() + " to " + currency.getCurrencyCode());
+        }
+
+        if (other.inflated != null) {
+            inflate(other.inflated);
+        }
+        addCompact(other.compact, other.scale);
+
+        count += other.count;
+        return this;
+    }
+
+    private void addCompact(final long unscaled, final int valueScale) {
+        if (valueScale > scale) {
+            rescale(valueScale);
+        }
+
+        long aligned = unscaled;
+        if (valueScale < scale) {
+            int shift = scale - valueScale;
+
+            if (unscaled > MULTIPLY_LIMITS[shift] || unscaled < -MULTIPLY_LIMITS[shift]) {
+                inflate(BigDecimal.valueOf(unscaled, valueScale));
+                return;
+            }
+
+            aligned = unscaled * POWERS_OF_TEN[shift];
+        }
+
+        long result = compact + aligned;
+        if (((compact ^ result) & (aligned ^ result)) < 0) {
+            // overflow, the compact sum is moved to the inflated one
+            inflate(BigDecimal.valueOf(compact, scale));
+            compact = aligned;
+        } else {
+            compact = result;
+        }
+    }
+
+    /**
+     * Scales the compact sum to more decimal places. If that overflows, the compact sum is moved to the inflated one.
+     */
+    private void rescale(final int newScale) {
+        int shift = newScale - scale;
+
+        if (compact > MULTIPLY_LIMITS[shift] || compact < -MULTIPLY_LIMITS[shift]) {
+            inflate(BigDecimal.valueOf(compact, scale));
+            compact = 0L;
+        } else {
+            compact *= POWERS_OF_TEN[shift];
+        }
+
+        scale = newScale;
+    }
+
+    private void inflate(final BigDecimal value) {
+        inflated = inflated == null ? value : inflated.add(value);
+    }
+
+
+    /**
+     * @return the sum as monetary amount. A new amount is created on every call.
+     */
+    public MonetaryAmount getAmount() {
+        return Money.of(getNumber(), currency);
+    }
+
+    /**
+     * @return the exact value of the sum.
+     */
+    public BigDecimal getNumber() {
+        BigDecimal result = BigDecimal.valueOf(compact, scale);
+
+        return inflated == null ? result : result.add(inflated);
+    }
+
+    public CurrencyUnit getCurrency() {
+        return currency;
+    }
+
+    /**
+     * @return the number of values added.
+     */
+    public long getCount() {
+        return count;
+    }
+
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append(System.identityHashCode(this))
+                .append("currency", currency)
+                .append("sum", getNumber())
+                .append("count", count)
+                .toString();
+    }
+}
@@ -16,6 +16,10 @@
 
 package de.kaiserpfalzedv.billing.api.guided;
 
+import java.util.List;
+import java.util.function.Consumer;
+
+import de.kaiserpfalzedv.billing.api.imported.RawBaseRecord;
 import de.kaiserpfalzedv.billing.api.imported.RawMeteredRecord;
 import de.kaiserpfalzedv.billing.api.imported.RawTimedRecord;
 
@@ -30,4 +34,22 @@ public interface GuidingExecutor {
 
     GuidedTimedRecord executeTimedRecord(RawTimedRecord record, ProductGuide productGuide, CustomerGuide customerGuide)
             throws GuidingBusinessException;
+
+    /**
+     * Guides all records of an import transaction. Customer and product are only looked up once for every distinct
+     * guide key within the batch. A record that can't be guided is handed to the failure consumer and skipped, the
+     * batch is not aborted.
+     *
+     * @param records       the records to guide. Metered and timed records may be mixed.
+     * @param productGuide  the guide to look up the products with.
+     * @param customerGuide the guide to look up the customers with.
+     * @param failures      the consumer receiving a failure for every record that could not be guided.
+     * @return the guided records in the order of the given records, without the failed ones.
+     */
+    List<GuidedBaseRecord> executeRecords(
+            List<? extends RawBaseRecord> records,
+            ProductGuide productGuide,
+            CustomerGuide customerGuide,
+            Consumer<? super GuidingBusinessException> failures
+    );
 }
@@ -17,7 +17,9 @@
 package de.kaiserpfalzedv.billing.api.imported;
 
 import java.io.Reader;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
@@ -38,4 +40,54 @@ public interface ImporterService {
      */
     List<? extends RawBaseRecord> execute(Reader reader)
             throws ImportingException;
+
+    /**
+     * Imports a stream containing CSV data and hands every record to the consumer as soon as it is read. The records
+     * are not collected, so the memory needed does not grow with the size of the stream.
+     *
+     * The completeness of the stream can only be checked after the last record has been read. So the consumer may
+     * already have received all records when an {@link IncompleteImportDataException} is thrown.
+     *
+     * @param reader   The stream containing the CSV data.
+     * @param consumer The consumer receiving the records in the order of the stream.
+     *
+     * @return the number of records handed to the consumer.
+     *
+     * @throws IncompatibleImportDataException If at least one of the records did not match the specification.
+     * @throws IncompleteImportDataException   If the stream is not complete. A stream is complete if it contains exactly
+     *                                         the defined number of records.
+     */
+    int execute(Reader reader, Consumer<? super RawBaseRecord> consumer)
+            throws ImportingException;
+
+    /**
+     * Imports a local file containing CSV data. Implementations may read the file directly instead of decoding it
+     * through a {@link Reader}.
+     *
+     * @param file The file containing the CSV data.
+     *
+     * @return a list of the records contained in the file.
+     *
+     * @throws IncompatibleImportDataException If at least one of the records did not match the specification.
+     * @throws IncompleteImportDataException   If the file is not complete. A file is complete if it contains exactly
+     *                                         the defined number of records.
+     */
+    List<? extends RawBaseRecord> execute(Path file)
+            throws ImportingException;
+
+    /**
+     * Imports a local file containing CSV data and hands every record to the consumer as soon as it is read. The same
+     * rules as for {@link #execute(Reader, Consumer)} apply.
+     *
+     * @param file     The file containing the CSV data.
+     * @param consumer The consumer receiving the records in the order of the file.
+     *
+     * @return the number of records handed to the consumer.
+     *
+     * @throws IncompatibleImportDataException If at least one of the records did not match the specification.
+     * @throws IncompleteImportDataException   If the file is not complete. A file is complete if it contains exactly
+     *                                         the defined number of records.
+     */
+    int execute(Path file, Consumer<? super RawBaseRecord> consumer)
+            throws ImportingException;
 }
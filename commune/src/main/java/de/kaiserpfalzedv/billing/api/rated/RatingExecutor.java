@@ -16,6 +16,9 @@
 
 package de.kaiserpfalzedv.billing.api.rated;
 
+import java.util.List;
+import java.util.stream.Stream;
+
 import de.kaiserpfalzedv.billing.api.guided.GuidedMeteredRecord;
 import de.kaiserpfalzedv.billing.api.guided.GuidedTimedRecord;
 
@@ -30,4 +33,60 @@ public interface RatingExecutor {
 
     RatedTimedRecord executeTimedRecord(final GuidedTimedRecord record, final TarifingGuide tarifingGuide)
             throws RatingBusinessExeption;
+
+    /**
+     * Rates a batch of metered records. The tarif of every distinct pair of customer and product is only resolved
+     * once per batch via the tarifing guide.
+     *
+     * @param records       the records to rate.
+     * @param tarifingGuide the guide to resolve the tarifs with.
+     * @return the rated records in the order of the given records.
+     * @throws RatingBusinessExeption if any record could not be rated.
+     */
+    List<RatedMeteredRecord> executeMeteredRecords(
+            final List<? extends GuidedMeteredRecord> records,
+            final TarifingGuide tarifingGuide
+    ) throws RatingBusinessExeption;
+
+    /**
+     * Rates a stream of metered records as a single batch.
+     *
+     * @param records       the records to rate.
+     * @param tarifingGuide the guide to resolve the tarifs with.
+     * @return the rated records in the order of the given stream.
+     * @throws RatingBusinessExeption if any record could not be rated.
+     * @see #executeMeteredRecords(List, TarifingGuide)
+     */
+    List<RatedMeteredRecord> executeMeteredRecords(
+            final Stream<? extends GuidedMeteredRecord> records,
+            final TarifingGuide tarifingGuide
+    ) throws RatingBusinessExeption;
+
+    /**
+     * Rates a batch of timed records. The tarif of every distinct pair of customer and product is only resolved
+     * once per batch via the tarifing guide.
+     *
+     * @param records       the records to rate.
+     * @param tarifingGuide the guide to resolve the tarifs with.
+     * @return the rated records in the order of the given records.
+     * @throws RatingBusinessExeption if any record could not be rated.
+     */
+    List<RatedTimedRecord> executeTimedRecords(
+            final List<? extends GuidedTimedRecord> records,
+            final TarifingGuide tarifingGuide
+    ) throws RatingBusinessExeption;
+
+    /**
+     * Rates a stream of timed records as a single batch.
+     *
+     * @param records       the records to rate.
+     * @param tarifingGuide the guide to resolve the tarifs with.
+     * @return the rated records in the order of the given stream.
+     * @throws RatingBusinessExeption if any record could not be rated.
+     * @see #executeTimedRecords(List, TarifingGuide)
+     */
+    List<RatedTimedRecord> executeTimedRecords(
+            final Stream<? extends GuidedTimedRecord> records,
+            final TarifingGuide tarifingGuide
+    ) throws RatingBusinessExeption;
 }
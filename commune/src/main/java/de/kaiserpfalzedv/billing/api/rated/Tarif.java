@@ -18,6 +18,11 @@ package de.kaiserpfalzedv.billing.api.rated;
 
 import java.io.Serializable;
 import java.math.BigDecimal;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
@@ -32,14 +37,53 @@ import javax.money.MonetaryAmount;
 public interface Tarif extends Serializable {
     UUID getId();
 
+    /**
+     * @return the version of this tarif. Every change of the tarif has to result in a new version, since derived
+     * data (like the compiled rate plans) are cached per version.
+     */
+    Long getVersion();
+
     String getName();
 
+    /**
+     * @return the first moment this tarif is valid at (inclusive). Null if the tarif is valid since ever.
+     */
+    OffsetDateTime getValidFrom();
+
+    /**
+     * @return the moment this tarif is no longer valid at (exclusive). Null if the tarif is valid forever.
+     */
+    OffsetDateTime getValidTo();
+
     String getUnit();
 
     BigDecimal getUnitDivisor();
 
     MonetaryAmount getRate();
 
+    /**
+     * @return the tiers of this tarif ordered by their thresholds. Empty if the tarif has a flat rate. The usage is
+     * accumulated per customer, tarif and billing period.
+     */
+    default List<? extends TarifTier> getTiers() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * @return the time windows of this tarif in the order of their precedence. Empty if the rate does not depend on
+     * the time of day. Only timed records are split across the windows.
+     */
+    default List<? extends TarifWindow> getWindows() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * @return the zone the time windows are given in.
+     */
+    default ZoneId getZone() {
+        return ZoneOffset.UTC;
+    }
+
     CurrencyUnit getCurrency();
 
     Map<String, String> getTags();
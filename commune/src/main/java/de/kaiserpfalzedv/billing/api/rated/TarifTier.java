@@ -0,0 +1,40 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.api.rated;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+
+import javax.money.MonetaryAmount;
+
+/**
+ * A tier of a tiered tarif: the rate applying to the usage of a customer within the billing period beyond the given
+ * threshold. The usage below the first tier is rated with the rate of the tarif itself.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public interface TarifTier extends Serializable {
+    /**
+     * @return the usage (in units of the tarif, i.e. the metered value divided by the unit divisor) from which on
+     * this tier applies.
+     */
+    BigDecimal getFrom();
+
+    MonetaryAmount getRate();
+}
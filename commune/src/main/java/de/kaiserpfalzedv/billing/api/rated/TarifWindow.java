@@ -0,0 +1,49 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.api.rated;
+
+import java.io.Serializable;
+import java.time.DayOfWeek;
+import java.time.LocalTime;
+import java.util.Set;
+
+import javax.money.MonetaryAmount;
+
+/**
+ * A time window of a calendar tarif, e.g. the off-peak hours of the working days or the weekend. The window repeats
+ * every week on the given days and is given in the zone of the tarif. The time outside all windows is rated with
+ * the rate of the tarif itself. If windows overlap, the window listed first wins.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public interface TarifWindow extends Serializable {
+    Set<DayOfWeek> getDays();
+
+    /**
+     * @return the start of the window on every day (inclusive).
+     */
+    LocalTime getStart();
+
+    /**
+     * @return the end of the window on every day (exclusive). {@link LocalTime#MIDNIGHT} is the end of the day.
+     */
+    LocalTime getEnd();
+
+    MonetaryAmount getRate();
+}
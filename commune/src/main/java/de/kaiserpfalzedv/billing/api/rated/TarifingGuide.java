@@ -16,6 +16,9 @@
 
 package de.kaiserpfalzedv.billing.api.rated;
 
+import java.util.Collections;
+import java.util.List;
+
 import de.kaiserpfalzedv.billing.api.guided.GuidedBaseRecord;
 
 /**
@@ -24,5 +27,23 @@ import de.kaiserpfalzedv.billing.api.guided.GuidedBaseRecord;
  * @since 2018-02-16
  */
 public interface TarifingGuide {
+    /**
+     * @param record the record to rate.
+     * @return the tarif valid at the value date of the record.
+     * @throws TarifingException if there is no tarif for the record.
+     */
     Tarif getTarif(final GuidedBaseRecord record) throws TarifingException;
+
+    /**
+     * Returns all versions of the tarif of the customer and product of this record, so records with other value
+     * dates can be rated without asking the guide again. Guides without tarif versions only return the tarif of the
+     * record.
+     *
+     * @param record the record to rate.
+     * @return all versions of the tarif for the customer and product of the record.
+     * @throws TarifingException if there is no tarif for the record.
+     */
+    default List<? extends Tarif> getTarifVersions(final GuidedBaseRecord record) throws TarifingException {
+        return Collections.singletonList(getTarif(record));
+    }
 }
@@ -16,6 +16,8 @@
 
 package de.kaiserpfalzedv.billing.api.rated;
 
+import java.util.List;
+
 import de.kaiserpfalzedv.billing.api.guided.Customer;
 import de.kaiserpfalzedv.billing.api.guided.ProductRecordInfo;
 
@@ -26,4 +28,16 @@ import de.kaiserpfalzedv.billing.api.guided.ProductRecordInfo;
  */
 public interface TarifingRepository {
     Tarif retrieveTarif(final Customer customer, final ProductRecordInfo product) throws NoTarifFoundException;
+
+    /**
+     * Retrieves all versions of the tarif for the customer and product. Every version is a tarif of its own with its
+     * own id and validity period, see {@link Tarif#getValidFrom()} and {@link Tarif#getValidTo()}.
+     *
+     * @param customer the customer of the records to rate.
+     * @param product  the product of the records to rate.
+     * @return all versions of the tarif.
+     * @throws NoTarifFoundException if there is no tarif at all.
+     */
+    List<? extends Tarif> retrieveTarifVersions(final Customer customer, final ProductRecordInfo product)
+            throws NoTarifFoundException;
 }
@@ -0,0 +1,100 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.api.base;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class ImmutableTagsTest {
+    private static final Logger LOG = LoggerFactory.getLogger(ImmutableTagsTest.class);
+
+    @BeforeClass
+    public static void setUpClass() {
+        MDC.put("test", "ImmutableTagsTest");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        MDC.remove("test");
+        MDC.remove("id");
+    }
+
+    @Test
+    public void shouldCopyOnceWhenCalledWithMutableMap() {
+        logMethod("copy-mutable", "Testing the copy of mutable tags");
+
+        HashMap<String, String> tags = new HashMap<>();
+        tags.put("cluster", "abbot1");
+
+        ImmutableTags result = ImmutableTags.of(tags);
+        tags.put("cluster", "changed");
+        LOG.debug("result: {}", result);
+
+        assertNotSame("Mutable tags have to be copied", tags, result);
+        assertEquals("Copy should not follow changes of the original", "abbot1", result.get("cluster"));
+        assertSame("Immutable tags should be shared", result, ImmutableTags.of(result));
+    }
+
+    @Test
+    public void shouldShareDictionaryTags() {
+        logMethod("share-dictionary", "Testing the sharing of dictionary tags");
+
+        Map<String, String> tags = new TagDictionary("cluster").createTags("abbot1");
+
+        assertSame("Dictionary tags should be shared", tags, ImmutableTags.of(tags));
+    }
+
+    @Test
+    public void shouldReturnEmptyTagsWhenCalledWithNull() {
+        logMethod("null-tags", "Testing the empty tags");
+
+        assertSame("Null should result in empty tags", ImmutableTags.EMPTY, ImmutableTags.of(null));
+        assertEquals("Empty tags should have no entries", 0, ImmutableTags.EMPTY.size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void shouldFailWhenTagsAreModified() {
+        logMethod("read-only", "Testing the read-only tags");
+
+        HashMap<String, String> tags = new HashMap<>();
+        tags.put("cluster", "abbot1");
+
+        ImmutableTags.of(tags).remove("cluster");
+    }
+
+    private void logMethod(final String method, final String message, final Object... parameter) {
+        MDC.put("id", method);
+
+        LOG.debug(message, parameter);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.api.base;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class TagDictionaryTest {
+    private static final Logger LOG = LoggerFactory.getLogger(TagDictionaryTest.class);
+
+    private TagDictionary service;
+
+    @BeforeClass
+    public static void setUpClass() {
+        MDC.put("test", "TagDictionaryTest");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        MDC.remove("test");
+        MDC.remove("id");
+    }
+
+    @Test
+    public void shouldBehaveLikeHashMapWhenTagsAreCreated() {
+        logMethod("map-view", "Testing the map view of dictionary tags");
+
+        Map<String, String> result = service.createTags("abbot1", "billing", "CPU");
+        LOG.debug("result: {}", result);
+
+        HashMap<String, String> expected = new HashMap<>();
+        expected.put("cluster", "abbot1");
+        expected.put("project", "billing");
+        expected.put("product", "CPU");
+
+        assertEquals("Wrong tags", expected, result);
+        assertEquals("Wrong hash code", expected.hashCode(), result.hashCode());
+        assertEquals("Wrong size", 3, result.size());
+        assertEquals("Wrong value", "billing", result.get("project"));
+        assertTrue("Key should be contained", result.containsKey("product"));
+        assertFalse("Key should not be contained", result.containsKey("pod"));
+        assertNull("Unknown key should have no value", result.get("pod"));
+    }
+
+    @Test
+    public void shouldShareValuesWhenEqualValuesAreGiven() {
+        logMethod("deduplication", "Testing the deduplication of tag values");
+
+        Map<String, String> first = service.createTags(new String("abbot1"), "billing", "CPU");
+        Map<String, String> second = service.createTags(new String("abbot1"), "billing", "POD");
+
+        assertSame("Values should be deduplicated", first.get("cluster"), second.get("cluster"));
+        assertSame("Both tags should share the dictionary",
+                   ((DictionaryTags) first).getDictionary(), ((DictionaryTags) second).getDictionary());
+    }
+
+    @Test
+    public void shouldKeepPoolingOtherKeysWhenOneKeyHasManyValues() {
+        logMethod("pool-per-key", "Testing the pools of a key with many distinct values");
+
+        for (int i = 0; i <= TagDictionary.MAX_POOLED_VALUES_PER_KEY; i++) {
+            service.createTags("abbot1", "project-" + i, "CPU");
+        }
+
+        Map<String, String> first = service.createTags(new String("abbot2"), "billing", "CPU");
+        Map<String, String> second = service.createTags(new String("abbot2"), "billing", "CPU");
+
+        assertEquals("Wrong number of pooled projects",
+                     TagDictionary.MAX_POOLED_VALUES_PER_KEY, service.getPooledValues(1));
+        assertSame("Values should be deduplicated", first.get("cluster"), second.get("cluster"));
+    }
+
+    @Test
+    public void shouldNotSerializePoolWhenTagsAreSerialized() throws IOException, ClassNotFoundException {
+        logMethod("serialization", "Testing the serialization of dictionary tags");
+
+        for (int i = 0; i < 100; i++) {
+            service.createTags("abbot1", "project-" + i, "CPU");
+        }
+        Map<String, String> tags = service.createTags("abbot1", "billing", "CPU");
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(data)) {
+            out.writeObject(tags);
+        }
+
+        DictionaryTags result;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data.toByteArray()))) {
+            result = (DictionaryTags) in.readObject();
+        }
+
+        assertEquals("Wrong tags", tags, result);
+        assertEquals("Pool should not be serialized", 0, result.getDictionary().getPooledValues(1));
+
+        result.getDictionary().createTags("abbot1", "billing", "CPU");
+        assertEquals("Pool should be usable after deserialization", 1, result.getDictionary().getPooledValues(1));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void shouldFailWhenTagsAreModified() {
+        logMethod("read-only", "Testing the read-only tags");
+
+        service.createTags("abbot1", "billing", "CPU").put("pod", "libellum");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldFailWhenNumberOfValuesDoesNotMatch() {
+        logMethod("wrong-size", "Testing tags with the wrong number of values");
+
+        service.createTags("abbot1", "billing");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldFailWhenKeyIsGivenTwice() {
+        logMethod("duplicate-key", "Testing a dictionary with duplicate keys");
+
+        new TagDictionary("cluster", "cluster");
+    }
+
+    private void logMethod(final String method, final String message, final Object... parameter) {
+        MDC.put("id", method);
+
+        LOG.debug(message, parameter);
+    }
+
+    @Before
+    public void setUp() {
+        service = new TagDictionary("cluster", "project", "product");
+    }
+}
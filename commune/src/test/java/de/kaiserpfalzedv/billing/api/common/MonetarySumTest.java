@@ -0,0 +1,206 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.api.common;
+
+import java.math.BigDecimal;
+import java.util.Random;
+
+import javax.money.CurrencyUnit;
+import javax.money.Monetary;
+import javax.money.MonetaryAmount;
+import javax.money.MonetaryException;
+
+import org.javamoney.moneta.Money;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the sum against {@link BigDecimal#add(BigDecimal)}. The random generator is seeded, so failures can be
+ * reproduced.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class MonetarySumTest {
+    private static final Logger LOG = LoggerFactory.getLogger(MonetarySumTest.class);
+
+    private static final CurrencyUnit CURRENCY = Monetary.getCurrency("EUR");
+    private static final long SEED = 20180218L;
+
+    private MonetarySum service;
+
+    @BeforeClass
+    public static void setUpClass() {
+        MDC.put("test", "MonetarySumTest");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        MDC.remove("test");
+        MDC.remove("id");
+    }
+
+    @Test
+    public void emptySumIsZero() {
+        logMethod("empty", "An empty sum has to be zero");
+
+        assertEquals("The sum does not match", Money.of(0L, CURRENCY), service.getAmount());
+        assertEquals("The count does not match", 0L, service.getCount());
+    }
+
+    @Test
+    public void sumMatchesBigDecimalAddition() {
+        logMethod("random", "The sum has to match the addition of big decimals");
+
+        Random random = new Random(SEED);
+        BigDecimal expected = BigDecimal.ZERO;
+
+        for (int i = 0; i < 100000; i++) {
+            BigDecimal value = BigDecimal.valueOf(random.nextLong() % 1000000000L, random.nextInt(8));
+
+            service.add(Money.of(value, CURRENCY));
+            expected = expected.add(value);
+        }
+
+        assertEquals("The sum does not match", 0, expected.compareTo(service.getNumber()));
+        assertEquals("The count does not match", 100000L, service.getCount());
+    }
+
+    @Test
+    public void overflowingSumsStayExact() {
+        logMethod("overflow", "Sums overflowing the scaled long have to stay exact");
+
+        Random random = new Random(SEED);
+        BigDecimal expected = BigDecimal.ZERO;
+
+        for (int i = 0; i < 10000; i++) {
+            BigDecimal value;
+            switch (i % 4) {
+                case 0:
+                    value = BigDecimal.valueOf(Long.MAX_VALUE - random.nextInt(1000), random.nextInt(3));
+                    break;
+                case 1:
+                    value = BigDecimal.valueOf(999999999999999999L, 2);
+                    break;
+                case 2:
+                    value = new BigDecimal("1E+5");
+                    break;
+                default:
+                    value = BigDecimal.valueOf(random.nextLong() % 1000L, 18);
+            }
+
+            service.add(value);
+            expected = expected.add(value);
+        }
+
+        assertEquals("The sum does not match", 0, expected.compareTo(service.getNumber()));
+    }
+
+    @Test
+    public void sumsOfSlicesAreCombined() {
+        logMethod("combine", "Sums of slices have to be combined into the total sum");
+
+        Random random = new Random(SEED);
+        MonetarySum other = new MonetarySum(CURRENCY);
+        BigDecimal expected = BigDecimal.ZERO;
+
+        for (int i = 0; i < 1000; i++) {
+            BigDecimal value = BigDecimal.valueOf(random.nextLong() % 1000000L, random.nextInt(4));
+
+            (i % 2 == 0 ? service : other).add(value);
+            expected = expected.add(value);
+        }
+        other.add(BigDecimal.valueOf(Long.MAX_VALUE));
+        expected = expected.add(BigDecimal.valueOf(Long.MAX_VALUE));
+
+        service.add(other);
+
+        assertEquals("The sum does not match", 0, expected.compareTo(service.getNumber()));
+        assertEquals("The count does not match", 1001L, service.getCount());
+    }
+
+    @Test(expected = MonetaryException.class)
+    public void otherCurrenciesAreRejected() {
+        logMethod("currency", "Amounts of other currencies have to be rejected");
+
+        service.add(Money.of(1L, Monetary.getCurrency("USD")));
+    }
+
+    @Test(timeout = 30000L)
+    public void runtimeTest() {
+        logMethod("runtime-verification", "checking the throughput of the monetary sum ...");
+
+        Random random = new Random(SEED);
+        MonetaryAmount[] amounts = new MonetaryAmount[100000];
+        for (int i = 0; i < amounts.length; i++) {
+            amounts[i] = Money.of(BigDecimal.valueOf(random.nextInt(1000000), 4), CURRENCY);
+        }
+
+        long summed = 0L;
+        long added = 0L;
+        MonetaryAmount chained = null;
+        // the last of three measurements is logged, the others warm up the compiler
+        for (int measurement = 0; measurement < 3; measurement++) {
+            service = new MonetarySum(CURRENCY);
+            long start = System.nanoTime();
+            for (int round = 0; round < 10; round++) {
+                for (MonetaryAmount amount : amounts) {
+                    service.add(amount);
+                }
+            }
+            summed = System.nanoTime() - start;
+
+            chained = Money.of(0L, CURRENCY);
+            start = System.nanoTime();
+            for (int round = 0; round < 10; round++) {
+                for (MonetaryAmount amount : amounts) {
+                    chained = chained.add(amount);
+                }
+            }
+            added = System.nanoTime() - start;
+        }
+
+        assertEquals("The sums do not match", chained, service.getAmount());
+        LOG.info("Summed {} amounts: MonetarySum {} ns/amount, Money.add {} ns/amount",
+                 service.getCount(), summed / service.getCount(), added / service.getCount());
+    }
+
+    private void logMethod(final String method, final String message, final Object... parameter) {
+        MDC.put("id", method);
+
+        LOG.debug(message, parameter);
+    }
+
+    @Before
+    public void setUp() {
+        service = new MonetarySum(CURRENCY);
+    }
+
+    @After
+    public void tearDown() {
+        MDC.remove("id");
+    }
+}
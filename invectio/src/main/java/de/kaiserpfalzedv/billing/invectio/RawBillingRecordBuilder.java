@@ -19,12 +19,12 @@ package de.kaiserpfalzedv.billing.invectio;
 import java.math.BigDecimal;
 import java.time.Duration;
 import java.time.OffsetDateTime;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
 
 import javax.validation.constraints.NotNull;
 
+import de.kaiserpfalzedv.billing.api.base.ImmutableTags;
 import de.kaiserpfalzedv.billing.api.imported.RawBaseRecord;
 import de.kaiserpfalzedv.billing.api.imported.RawMeteredRecord;
 import org.apache.commons.lang3.builder.Builder;
@@ -79,7 +79,10 @@ public class RawBillingRecordBuilder<T extends RawBaseRecord> implements Builder
      */
     private Duration meteredDuration;
 
-    private final HashMap<String, String> tags = new HashMap<>();
+    /**
+     * The tags of this record. {@link ImmutableTags} are kept as given, all other maps are copied.
+     */
+    private Map<String, String> tags;
 
 
     @SuppressWarnings({"unchecked", "deprecation"})
@@ -158,7 +161,7 @@ public class RawBillingRecordBuilder<T extends RawBaseRecord> implements Builder
         this.meteredTimestamp = null;
         this.meteredDuration = null;
 
-        this.tags.clear();
+        this.tags = null;
     }
 
 
@@ -203,11 +206,7 @@ public class RawBillingRecordBuilder<T extends RawBaseRecord> implements Builder
     }
 
     public RawBillingRecordBuilder<T> setTags(@NotNull final Map<String, String> tags) {
-        this.tags.clear();
-
-        if (tags != null) {
-            this.tags.putAll(tags);
-        }
+        this.tags = ImmutableTags.of(tags);
 
         return this;
     }
@@ -222,8 +221,7 @@ public class RawBillingRecordBuilder<T extends RawBaseRecord> implements Builder
         this.meteredTimestamp = orig.getMeteredTimestamp();
         this.meteredDuration = orig.getMeteredDuration();
 
-        this.tags.clear();
-        this.tags.putAll(orig.getTags());
+        setTags(orig.getTags());
 
         if (RawMeteredRecord.class.isAssignableFrom(orig.getClass())) {
             this.meteredValue = ((RawMeteredRecord) orig).getMeteredValue();
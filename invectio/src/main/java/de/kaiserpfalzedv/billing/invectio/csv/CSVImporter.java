@@ -19,18 +19,19 @@ package de.kaiserpfalzedv.billing.invectio.csv;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
-import java.math.BigDecimal;
+import java.nio.file.Path;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.time.Duration;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
+import java.util.function.Consumer;
 
+import de.kaiserpfalzedv.billing.api.base.TagDictionary;
 import de.kaiserpfalzedv.billing.api.imported.ImporterService;
 import de.kaiserpfalzedv.billing.api.imported.ImportingException;
 import de.kaiserpfalzedv.billing.api.imported.IncompatibleImportDataException;
@@ -54,17 +55,53 @@ import static org.apache.commons.lang3.StringUtils.isNotBlank;
 public class CSVImporter implements ImporterService {
     private static final Logger LOG = LoggerFactory.getLogger(CSVImporter.class);
 
+    private static final DecimalParser DECIMALS = new DecimalParser();
+
+    /** Default size of the file window mapped into memory by the file based import. */
+    public static final long DEFAULT_MAPPING_WINDOW_SIZE = 256L * 1024L * 1024L;
+
+    private final long mappingWindowSize;
+
+
+    public CSVImporter() {
+        this(DEFAULT_MAPPING_WINDOW_SIZE);
+    }
+
+    /**
+     * @param mappingWindowSize The size of the file window mapped into memory by the file based import. Every record
+     *                          has to fit into this window. A single mapping is limited to {@link Integer#MAX_VALUE}
+     *                          bytes.
+     * @throws IllegalArgumentException if the size is not positive or larger than {@link Integer#MAX_VALUE}.
+     */
+    public CSVImporter(final long mappingWindowSize) {
+        if (mappingWindowSize <= 0 || mappingWindowSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(
+                    "The mapping window size has to be between 1 and " + Integer.MAX_VALUE + " bytes!");
+        }
+
+        this.mappingWindowSize = mappingWindowSize;
+    }
 
     @Override
     public List<? extends RawBaseRecord> execute(Reader reader)
             throws ImportingException {
-        List<? extends RawBaseRecord> result;
+        ArrayList<RawBaseRecord> result = new ArrayList<>();
+
+        execute(reader, result::add);
+
+        return result;
+    }
+
+    @Override
+    public int execute(Reader reader, Consumer<? super RawBaseRecord> consumer)
+            throws ImportingException {
+        int result;
 
         BufferedReader br = new BufferedReader(reader);
 
         try (CSVParser csvParser = new CSVParser(br, CSVFormat.DEFAULT)) {
             CSVHeader header = readHeader(csvParser);
-            result = readData(header);
+            result = readData(header, consumer);
 
             checkCompleteDataSet(header, result);
         } catch (IOException e) {
@@ -75,30 +112,77 @@ public class CSVImporter implements ImporterService {
         return result;
     }
 
-    private CSVHeader readHeader(CSVParser parser) throws ImportingException {
+    @Override
+    public List<? extends RawBaseRecord> execute(Path file)
+            throws ImportingException {
+        ArrayList<RawBaseRecord> result = new ArrayList<>();
+
+        execute(file, result::add);
+
+        return result;
+    }
+
+    @Override
+    public int execute(Path file, Consumer<? super RawBaseRecord> consumer)
+            throws ImportingException {
+        int result;
+
+        try (MappedCSVReader reader = new MappedCSVReader(file, mappingWindowSize)) {
+            CSVHeader header = readHeader(reader);
+            result = readData(reader, header, consumer);
+
+            checkCompleteDataSet(header, result);
+        } catch (IOException e) {
+            throw new ImportingException("Can't read data file '" + file + "'.", e);
+        }
+
+        return result;
+    }
+
+    CSVHeader readHeader(CSVParser parser) throws ImportingException {
         CSVHeader result = new CSVHeader();
 
         try {
             parseCSVFile(parser, result);
 
-            readBaseDataFromHeader(result);
-            readTagTitlesFromHeader(result);
-        } catch (IOException e) {
+            readBaseDataFromHeader(result, result.records.hasNext() ? toFields(result.records.next()) : null);
+            readTagTitlesFromHeader(result, result.records.hasNext() ? toFields(result.records.next()) : null);
+        } catch (IllegalStateException e) {
             throw new ImportingException("IO Error while reading the CSV header.", e);
         }
 
         return result;
     }
 
-    private void parseCSVFile(CSVParser parser, CSVHeader result) throws IOException {
-        Iterable<CSVRecord> csvRecords = parser.getRecords();
+    private CSVHeader readHeader(MappedCSVReader reader) throws ImportingException, IOException {
+        CSVHeader result = new CSVHeader();
+
+        readBaseDataFromHeader(result, reader.next());
+        readTagTitlesFromHeader(result, reader.next());
+
+        return result;
+    }
 
-        result.records = csvRecords.iterator();
+    private void parseCSVFile(CSVParser parser, CSVHeader result) {
+        result.records = parser.iterator();
     }
 
-    private void readBaseDataFromHeader(CSVHeader result) throws ImportingException {
-        if (result.records.hasNext()) {
-            CSVRecord transactionLine = result.records.next();
+    private String[] toFields(final CSVRecord record) {
+        String[] result = new String[record.size()];
+
+        for (int i = 0; i < result.length; i++) {
+            result[i] = record.get(i);
+        }
+
+        return result;
+    }
+
+    private void readBaseDataFromHeader(CSVHeader result, final String[] transactionLine) throws ImportingException {
+        if (transactionLine != null) {
+            if (transactionLine.length < 3) {
+                throw new ImportingException("Transaction line needs timestamp, number of records and transaction id!");
+            }
+
             result.timestamp = readTimestampFromHeader(transactionLine);
             result.numberOfRecordsInTransaction = readNumberOfRecordsFromHeader(transactionLine);
             result.transactionId = readTransactionFromHeader(transactionLine);
@@ -107,41 +191,39 @@ public class CSVImporter implements ImporterService {
         }
     }
 
-    private OffsetDateTime readTimestampFromHeader(final CSVRecord transactionLine) throws ImportingException {
+    private OffsetDateTime readTimestampFromHeader(final String[] transactionLine) throws ImportingException {
         try {
-            return OffsetDateTime.parse(transactionLine.get(0));
+            return OffsetDateTime.parse(transactionLine[0]);
         } catch (DateTimeParseException e) {
             throw new ImportingException("No valid timestamp for the data set given!", e);
         }
     }
 
-    private int readNumberOfRecordsFromHeader(final CSVRecord transactionLine) throws ImportingException {
+    private int readNumberOfRecordsFromHeader(final String[] transactionLine) throws ImportingException {
         try {
-            return Integer.parseInt(transactionLine.get(1));
+            return Integer.parseInt(transactionLine[1]);
         } catch (NumberFormatException e) {
             throw new ImportingException("No valid number of records in data set given!", e);
         }
     }
 
-    private UUID readTransactionFromHeader(final CSVRecord transactionLine) throws ImportingException {
+    private UUID readTransactionFromHeader(final String[] transactionLine) throws ImportingException {
         try {
-            return UUID.fromString(transactionLine.get(2));
+            return UUID.fromString(transactionLine[2]);
         } catch (IllegalArgumentException e) {
             throw new ImportingException("Transaction id is no valid UUID!", e);
         }
     }
 
-    private void readTagTitlesFromHeader(CSVHeader result) {
-        if (result.records.hasNext()) {
-            CSVRecord headerLine = result.records.next();
-
+    private void readTagTitlesFromHeader(CSVHeader result, final String[] headerLine) throws ImportingException {
+        if (headerLine != null) {
             result.metadata = readColumnsFromHeader(headerLine);
 
             readTagTitles(result);
         }
     }
 
-    private void readTagTitles(CSVHeader result) {
+    private void readTagTitles(CSVHeader result) throws ImportingException {
         result.tags = new String[result.metadata.getColumnCount() - 3];
         LOG.debug("CSV data contains {} tag columns.", result.metadata.getColumnCount() - 3);
 
@@ -150,34 +232,81 @@ public class CSVImporter implements ImporterService {
             
             LOG.trace("New tag title: {}", result.tags[i-3]);
         }
+
+        try {
+            result.dictionary = new TagDictionary(result.tags);
+        } catch (IllegalArgumentException e) {
+            throw new ImportingException("Tag columns of the data set are not unique!", e);
+        }
     }
 
 
-    private CSVResultSetMetaData readColumnsFromHeader(final CSVRecord record) {
-        return new CSVResultSetMetaData(record);
+    private CSVResultSetMetaData readColumnsFromHeader(final String[] headerLine) {
+        return new CSVResultSetMetaData(headerLine);
     }
 
     
     
-    private List<RawBaseRecord> readData(final CSVHeader header) throws ImportingException  {
-        final ArrayList<RawBaseRecord> result = new ArrayList<>();
+    private int readData(final CSVHeader header, final Consumer<? super RawBaseRecord> consumer)
+            throws ImportingException  {
+        IsoOffsetDateTimeParser timestamps = new IsoOffsetDateTimeParser();
+        int result = 0;
 
-        while (header.records.hasNext()) {
-            readRecord(result, header.records.next(), header);
+        CSVRecord record;
+        while ((record = nextRecord(header)) != null) {
+            consumer.accept(readRecord(record, header, timestamps));
+            result++;
+        }
+
+        return result;
+    }
+
+    /**
+     * Reads the next record. Only the reading is guarded, exceptions of the consumer are passed on unchanged.
+     *
+     * @return the next record or null if there are no more records.
+     */
+    private CSVRecord nextRecord(final CSVHeader header) throws ImportingException {
+        try {
+            return header.records.hasNext() ? header.records.next() : null;
+        } catch (IllegalStateException e) {
+            throw new ImportingException("IO Error while reading the CSV data.", e);
+        }
+    }
+
+    private int readData(final MappedCSVReader reader, final CSVHeader header,
+                         final Consumer<? super RawBaseRecord> consumer) throws ImportingException, IOException {
+        IsoOffsetDateTimeParser timestamps = new IsoOffsetDateTimeParser();
+        int result = 0;
+
+        String[] fields;
+        while ((fields = reader.next()) != null) {
+            consumer.accept(readRecord(fields, reader.getRecordNumber(), header, timestamps));
+            result++;
         }
 
         return result;
     }
     
-    private void readRecord(List<RawBaseRecord> result, final CSVRecord record, final CSVHeader header)
+    RawBaseRecord readRecord(final CSVRecord record, final CSVHeader header, final IsoOffsetDateTimeParser timestamps)
+            throws IncompatibleImportDataException {
+        return readRecord(toFields(record), record.getRecordNumber(), header, timestamps);
+    }
+
+    private RawBaseRecord readRecord(final String[] fields, final long recordNumber, final CSVHeader header,
+                                     final IsoOffsetDateTimeParser timestamps)
             throws IncompatibleImportDataException {
+        if (fields.length < header.tags.length + 3) {
+            throw new IncompatibleImportDataException(header.transactionId, (int) recordNumber);
+        }
+
         RawBillingRecordBuilder<RawBaseRecord> data = new RawBillingRecordBuilder<>();
 
         readBaseData(header, data);
-        readMeteringData(record, header, data);
-        readTags(record, header, data);
+        readMeteringData(fields, recordNumber, header, timestamps, data);
+        readTags(fields, header, data);
 
-        result.add(data.build());
+        return data.build();
     }
 
     private void readBaseData(final CSVHeader header, RawBillingRecordBuilder<RawBaseRecord> data) {
@@ -186,65 +315,64 @@ public class CSVImporter implements ImporterService {
                 .setImportedDate(header.importedDate);
     }
 
-    private void readMeteringData(final CSVRecord record, final CSVHeader header, RawBillingRecordBuilder<RawBaseRecord> data)
+    private void readMeteringData(final String[] fields, final long recordNumber, final CSVHeader header,
+                                  final IsoOffsetDateTimeParser timestamps, RawBillingRecordBuilder<RawBaseRecord> data)
             throws IncompatibleImportDataException {
-        String meteredValue = record.get(0);
+        String meteredValue = fields[0];
 
         try {
             if (isNotBlank(meteredValue)) {
-                data.setMeteredValue(BigDecimal.valueOf(Double.parseDouble(record.get(0))));
+                data.setMeteredValue(DECIMALS.parse(meteredValue));
             }
             
-            OffsetDateTime meteredStart = OffsetDateTime.parse(record.get(1));
-            OffsetDateTime meteredEnd   = OffsetDateTime.parse(record.get(2));
+            OffsetDateTime meteredStart = timestamps.parse(fields[1]);
+            OffsetDateTime meteredEnd   = timestamps.parse(fields[2]);
             data.setMeteredTimestamp(meteredStart);
             data.setMeteredDuration(Duration.between(meteredStart, meteredEnd));
             data.setValueDate(meteredStart);
         } catch (NumberFormatException | DateTimeParseException e) {
-            throw new IncompatibleImportDataException(header.transactionId, (int) record.getRecordNumber());
+            throw new IncompatibleImportDataException(header.transactionId, (int) recordNumber);
         }
     }
 
-    private void readTags(final CSVRecord record, final CSVHeader header, RawBillingRecordBuilder<RawBaseRecord> data) {
-        HashMap<String, String> tags = new HashMap<>(header.tags.length);
+    private void readTags(final String[] fields, final CSVHeader header, RawBillingRecordBuilder<RawBaseRecord> data) {
+        String[] values = new String[header.tags.length];
+        System.arraycopy(fields, 3, values, 0, values.length);
 
-        for (int i = 0; i < header.tags.length ; i++) {
-            tags.put(header.tags[i], record.get(i + 3));
-        }
-        
-        data.setTags(tags);
+        data.setTags(header.dictionary.createTags(values));
     }
 
 
-    private void checkCompleteDataSet(CSVHeader header, List<? extends RawBaseRecord> data) throws ImportingException {
-        if (header.numberOfRecordsInTransaction != data.size()) {
+    private void checkCompleteDataSet(CSVHeader header, int received) throws ImportingException {
+        if (header.numberOfRecordsInTransaction != received) {
             throw new  IncompleteImportDataException(header.transactionId, header.numberOfRecordsInTransaction,
-                                                     data.size());
+                                                     received);
         }
     }
 
-    private class CSVHeader {
+    static class CSVHeader {
         OffsetDateTime timestamp;
         int numberOfRecordsInTransaction;
         UUID transactionId;
         CSVResultSetMetaData metadata;
         String[] tags;
+        TagDictionary dictionary;
         OffsetDateTime importedDate = OffsetDateTime.now(UTC);
 
         Iterator<CSVRecord> records;
     }
     
-    private class CSVResultSetMetaData implements ResultSetMetaData {
+    private static class CSVResultSetMetaData implements ResultSetMetaData {
 
-        private CSVRecord record;
+        private String[] columns;
 
-        private CSVResultSetMetaData(final CSVRecord record) {
-            this.record = record;
+        private CSVResultSetMetaData(final String[] columns) {
+            this.columns = columns;
         }
 
         @Override
         public int getColumnCount() {
-            return record.size();
+            return columns.length;
         }
 
         @Override
@@ -289,7 +417,7 @@ public class CSVImporter implements ImporterService {
 
         @Override
         public String getColumnName(int column) {
-            return record.get(column);
+            return columns[column];
         }
 
         @Override
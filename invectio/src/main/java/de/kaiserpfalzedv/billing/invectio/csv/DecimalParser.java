@@ -0,0 +1,102 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.invectio.csv;
+
+import java.math.BigDecimal;
+
+/**
+ * Parses decimal numbers like {@code -12.345} directly into {@link BigDecimal}. The value keeps the digits given in
+ * the text, there is no detour over {@code double}. Numbers with up to 18 digits are collected into a {@code long};
+ * longer numbers and numbers with exponent are handed to {@link BigDecimal#BigDecimal(String)}.
+ *
+ * The parser has no state and may be shared between threads.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class DecimalParser {
+    private static final int MAXIMUM_LONG_DIGITS = 18;
+
+
+    /**
+     * @param text The number to parse. Leading and trailing whitespace is ignored.
+     *
+     * @return the parsed number.
+     *
+     * @throws NumberFormatException If the text is no valid decimal number.
+     */
+    public BigDecimal parse(final String text) {
+        int start = 0;
+        int end = text.length();
+
+        while (start < end && Character.isWhitespace(text.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+
+        BigDecimal result = parseFast(text, start, end);
+        if (result == null) {
+            result = new BigDecimal(text.substring(start, end));
+        }
+
+        return result;
+    }
+
+
+    private BigDecimal parseFast(final String text, final int start, final int end) {
+        int position = start;
+        boolean negative = false;
+
+        if (position < end && (text.charAt(position) == '-' || text.charAt(position) == '+')) {
+            negative = text.charAt(position) == '-';
+            position++;
+        }
+
+        long unscaled = 0L;
+        int digits = 0;
+        int scale = -1;
+
+        for (; position < end; position++) {
+            char c = text.charAt(position);
+
+            if (c >= '0' && c <= '9') {
+                if (++digits > MAXIMUM_LONG_DIGITS) {
+                    return null;
+                }
+
+                unscaled = unscaled * 10L + (c - '0');
+
+                if (scale >= 0) {
+                    scale++;
+                }
+            } else if (c == '.' && scale < 0) {
+                scale = 0;
+            } else {
+                return null;
+            }
+        }
+
+        if (digits == 0) {
+            return null;
+        }
+
+        return BigDecimal.valueOf(negative ? -unscaled : unscaled, scale < 0 ? 0 : scale);
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.invectio.csv;
+
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Parses ISO-8601 timestamps with offset like {@link OffsetDateTime#parse(CharSequence)} does. The common form
+ * {@code yyyy-MM-ddTHH:mm:ss[.fraction](Z|+HH:MM|-HH:MM)} is decoded directly from the characters. Every other form is
+ * handed to {@link OffsetDateTime#parse(CharSequence)}, so the results and failures are the same as with the JDK
+ * parser.
+ *
+ * The parser remembers the date and offset of the last timestamp. Metering data contains many timestamps of the same
+ * day, so an instance should be reused for all rows of an import. Instances are not thread safe.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class IsoOffsetDateTimeParser {
+    private static final int DATE_LENGTH = 10;
+    private static final int MINIMUM_LENGTH = 20;
+
+    private final char[] lastDateText = new char[DATE_LENGTH];
+    private LocalDate lastDate;
+
+    private int lastOffsetSeconds;
+    private ZoneOffset lastOffset = ZoneOffset.UTC;
+
+
+    /**
+     * @param text The timestamp to parse.
+     *
+     * @return the parsed timestamp.
+     *
+     * @throws DateTimeParseException If the text is no valid ISO-8601 timestamp with offset.
+     */
+    public OffsetDateTime parse(final CharSequence text) {
+        OffsetDateTime result = parseFast(text);
+
+        if (result == null) {
+            result = OffsetDateTime.parse(text);
+        }
+
+        return result;
+    }
+
+
+    private OffsetDateTime parseFast(final CharSequence text) {
+        int length = text.length();
+        if (length < MINIMUM_LENGTH
+                || text.charAt(4) != '-' || text.charAt(7) != '-' || text.charAt(10) != 'T'
+                || text.charAt(13) != ':' || text.charAt(16) != ':') {
+            return null;
+        }
+
+        int hour = digits(text, 11);
+        int minute = digits(text, 14);
+        int second = digits(text, 17);
+        if (hour < 0 || minute < 0 || second < 0 || hour > 23 || minute > 59 || second > 59) {
+            return null;
+        }
+
+        int position = 19;
+        int nanos = 0;
+        if (text.charAt(position) == '.') {
+            position++;
+
+            int fractionDigits = 0;
+            while (position < length && isDigit(text.charAt(position))) {
+                if (++fractionDigits > 9) {
+                    return null;
+                }
+
+                nanos = nanos * 10 + (text.charAt(position) - '0');
+                position++;
+            }
+
+            if (fractionDigits == 0) {
+                return null;
+            }
+
+            for (int i = fractionDigits; i < 9; i++) {
+                nanos *= 10;
+            }
+        }
+
+        ZoneOffset offset = parseOffset(text, position);
+        LocalDate date = parseDate(text);
+        if (offset == null || date == null) {
+            return null;
+        }
+
+        return OffsetDateTime.of(LocalDateTime.of(date, LocalTime.of(hour, minute, second, nanos)), offset);
+    }
+
+    private LocalDate parseDate(final CharSequence text) {
+        if (lastDate != null && sameDate(text)) {
+            return lastDate;
+        }
+
+        int century = digits(text, 0);
+        int yearOfCentury = digits(text, 2);
+        int month = digits(text, 5);
+        int day = digits(text, 8);
+        if (century < 0 || yearOfCentury < 0 || month < 0 || day < 0) {
+            return null;
+        }
+
+        try {
+            lastDate = LocalDate.of(century * 100 + yearOfCentury, month, day);
+        } catch (DateTimeException e) {
+            lastDate = null;
+            return null;
+        }
+
+        for (int i = 0; i < DATE_LENGTH; i++) {
+            lastDateText[i] = text.charAt(i);
+        }
+
+        return lastDate;
+    }
+
+    private boolean sameDate(final CharSequence text) {
+        for (int i = DATE_LENGTH - 1; i >= 0; i--) {
+            if (lastDateText[i] != text.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private ZoneOffset parseOffset(final CharSequence text, final int position) {
+        int length = text.length();
+
+        if (position == length - 1 && text.charAt(position) == 'Z') {
+            return ZoneOffset.UTC;
+        }
+
+        if (position != length - 6 || text.charAt(position + 3) != ':') {
+            return null;
+        }
+
+        char sign = text.charAt(position);
+        int hours = digits(text, position + 1);
+        int minutes = digits(text, position + 4);
+        if ((sign != '+' && sign != '-') || hours < 0 || minutes < 0 || hours > 18 || minutes > 59) {
+            return null;
+        }
+
+        int seconds = (hours * 3600 + minutes * 60) * (sign == '-' ? -1 : 1);
+        if (seconds != lastOffsetSeconds) {
+            try {
+                lastOffset = ZoneOffset.ofTotalSeconds(seconds);
+            } catch (DateTimeException e) {
+                return null;
+            }
+
+            lastOffsetSeconds = seconds;
+        }
+
+        return lastOffset;
+    }
+
+    /**
+     * @return the value of the two digits at the position or -1 if they are no digits.
+     */
+    private static int digits(final CharSequence text, final int position) {
+        char high = text.charAt(position);
+        char low = text.charAt(position + 1);
+
+        if (!isDigit(high) || !isDigit(low)) {
+            return -1;
+        }
+
+        return (high - '0') * 10 + (low - '0');
+    }
+
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+}
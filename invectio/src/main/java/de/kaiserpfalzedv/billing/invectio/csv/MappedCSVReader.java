@@ -0,0 +1,196 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.invectio.csv;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Reads CSV records directly from a memory mapped file. The file is mapped in windows, so files larger than 2 GB can be
+ * read. The fields are decoded straight from the mapped bytes without building a string for the whole line.
+ *
+ * The reader follows {@link org.apache.commons.csv.CSVFormat#DEFAULT}: comma separated fields, optional double quotes
+ * with doubled quotes as escape and empty lines are skipped.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+class MappedCSVReader implements Closeable {
+    private static final byte SEPARATOR = ',';
+    private static final byte QUOTE = '"';
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    private final FileChannel channel;
+    private final long size;
+    private final long windowSize;
+
+    private MappedByteBuffer buffer;
+    private long bufferStart;
+    private long position;
+    private long recordNumber;
+
+    private final ArrayList<String> fields = new ArrayList<>();
+    private byte[] field = new byte[256];
+    private int fieldLength;
+
+
+    MappedCSVReader(final Path file, final long windowSize) throws IOException {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("The mapping window size has to be positive!");
+        }
+
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.windowSize = windowSize;
+    }
+
+
+    /**
+     * @return the fields of the next record or null if the end of the file has been reached.
+     *
+     * @throws IOException If the file could not be mapped or a record is larger than the mapping window.
+     */
+    String[] next() throws IOException {
+        while (position < size) {
+            if (buffer == null || position >= bufferStart + buffer.limit()) {
+                map(position);
+            }
+
+            long end = readRecord();
+            if (end < 0) {
+                if (bufferStart == position) {
+                    throw new IOException("Record at byte " + position + " is larger than the mapping window.");
+                }
+
+                map(position);
+                continue;
+            }
+
+            position = end;
+
+            if (! fields.isEmpty()) {
+                recordNumber++;
+                return fields.toArray(new String[0]);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the number of the last record returned by {@link #next()}, counting from 1.
+     */
+    long getRecordNumber() {
+        return recordNumber;
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer = null;
+        channel.close();
+    }
+
+
+    private void map(final long start) throws IOException {
+        bufferStart = start;
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, size - start));
+    }
+
+    /**
+     * Reads the record starting at the current position into {@link #fields}. Empty lines leave the fields empty.
+     *
+     * @return the file position after the record or -1 if the record does not end within the mapped window.
+     */
+    private long readRecord() {
+        fields.clear();
+        fieldLength = 0;
+
+        int limit = buffer.limit();
+        boolean endOfFile = bufferStart + limit >= size;
+        boolean quoted = false;
+        boolean content = false;
+
+        int i = (int) (position - bufferStart);
+        while (true) {
+            if (i >= limit) {
+                if (! endOfFile) {
+                    return -1;
+                }
+
+                if (content) {
+                    addField();
+                }
+                return bufferStart + i;
+            }
+
+            byte b = buffer.get(i++);
+
+            if (quoted) {
+                if (b == QUOTE) {
+                    if (i >= limit && ! endOfFile) {
+                        return -1;
+                    }
+
+                    if (i < limit && buffer.get(i) == QUOTE) {
+                        append(QUOTE);
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    append(b);
+                }
+            } else if (b == SEPARATOR) {
+                addField();
+                content = true;
+            } else if (b == LF) {
+                if (content) {
+                    addField();
+                }
+                return bufferStart + i;
+            } else if (b == QUOTE && fieldLength == 0) {
+                quoted = true;
+                content = true;
+            } else if (b != CR) {
+                append(b);
+                content = true;
+            }
+        }
+    }
+
+    private void append(final byte b) {
+        if (fieldLength == field.length) {
+            field = Arrays.copyOf(field, field.length * 2);
+        }
+
+        field[fieldLength++] = b;
+    }
+
+    private void addField() {
+        fields.add(new String(field, 0, fieldLength, StandardCharsets.UTF_8));
+        fieldLength = 0;
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.invectio.csv;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import de.kaiserpfalzedv.billing.api.imported.ImportingException;
+import de.kaiserpfalzedv.billing.api.imported.IncompatibleImportDataException;
+import de.kaiserpfalzedv.billing.api.imported.IncompleteImportDataException;
+import de.kaiserpfalzedv.billing.api.imported.RawBaseRecord;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Imports a CSV file in parallel. The data section after the two header lines is split into byte ranges ending on
+ * line boundaries. Every chunk is parsed on the fork-join pool by the record reading of the {@link CSVImporter}.
+ *
+ * The records are returned in file order. If records are not valid, the first invalid record of the file is reported
+ * with the same record number the {@link CSVImporter} would report. Since the chunks are cut at every line feed, the
+ * data lines may not contain quoted line breaks.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class ParallelCSVImporter {
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelCSVImporter.class);
+
+    /** Default size of a chunk in bytes. */
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    /** Number of lines before the data section. */
+    private static final int HEADER_LINES = 2;
+
+    /** Size of the buffer used to search for line ends. */
+    private static final int SCAN_BUFFER_SIZE = 8 * 1024;
+
+    private final CSVImporter importer = new CSVImporter();
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+
+
+    public ParallelCSVImporter() {
+        this(ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+    }
+
+    public ParallelCSVImporter(final ForkJoinPool pool, final int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("The chunk size has to be positive!");
+        }
+
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+    }
+
+
+    /**
+     * Imports the CSV file.
+     *
+     * @param file The file containing the CSV data.
+     *
+     * @return a list of the records contained in the file in file order.
+     *
+     * @throws IncompatibleImportDataException If at least one of the records did not match the specification.
+     * @throws IncompleteImportDataException   If the file is not complete. A file is complete if it contains exactly
+     *                                         the defined number of records.
+     */
+    public List<? extends RawBaseRecord> execute(final Path file) throws ImportingException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long dataStart = 0L;
+            for (int i = 0; i < HEADER_LINES; i++) {
+                dataStart = findNextLineStart(channel, dataStart);
+            }
+
+            CSVImporter.CSVHeader header = readHeader(channel, dataStart);
+            List<ChunkTask> chunks = createChunks(channel, dataStart, header);
+            LOG.debug("Importing '{}' in {} chunks.", file, chunks.size());
+
+            ArrayList<RawBaseRecord> result = collectChunks(chunks, header);
+
+            if (header.numberOfRecordsInTransaction != result.size()) {
+                throw new IncompleteImportDataException(header.transactionId, header.numberOfRecordsInTransaction,
+                                                        result.size());
+            }
+
+            return result;
+        } catch (IOException e) {
+            throw new ImportingException("Can't read data file '" + file + "'.", e);
+        }
+    }
+
+    private CSVImporter.CSVHeader readHeader(final FileChannel channel, final long dataStart)
+            throws IOException, ImportingException {
+        try (CSVParser parser = new CSVParser(new StringReader(read(channel, 0L, dataStart)), CSVFormat.DEFAULT)) {
+            return importer.readHeader(parser);
+        }
+    }
+
+    private List<ChunkTask> createChunks(final FileChannel channel, final long dataStart,
+                                         final CSVImporter.CSVHeader header) throws IOException {
+        ArrayList<ChunkTask> result = new ArrayList<>();
+
+        long size = channel.size();
+        long start = dataStart;
+        while (start < size) {
+            long end = findNextLineStart(channel, Math.min(start + chunkSize, size) - 1);
+
+            result.add(new ChunkTask(channel, start, end, header));
+            start = end;
+        }
+
+        return result;
+    }
+
+    private ArrayList<RawBaseRecord> collectChunks(final List<ChunkTask> chunks, final CSVImporter.CSVHeader header)
+            throws ImportingException {
+        for (ChunkTask chunk : chunks) {
+            pool.execute(chunk);
+        }
+
+        ArrayList<RawBaseRecord> result = new ArrayList<>(header.numberOfRecordsInTransaction);
+        for (ChunkTask chunk : chunks) {
+            ChunkResult data = join(chunk);
+
+            if (data.failedRecord > 0) {
+                cancel(chunks);
+
+                throw new IncompatibleImportDataException(
+                        header.transactionId,
+                        (int) (HEADER_LINES + result.size() + data.failedRecord)
+                );
+            }
+
+            result.addAll(data.records);
+        }
+
+        return result;
+    }
+
+    private ChunkResult join(final ChunkTask chunk) throws ImportingException {
+        try {
+            return chunk.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ImportingException("Import has been interrupted.", e);
+        } catch (ExecutionException e) {
+            throw new ImportingException("Can't read data chunk.", e.getCause());
+        }
+    }
+
+    private void cancel(final List<ChunkTask> chunks) {
+        for (ChunkTask chunk : chunks) {
+            chunk.cancel(false);
+        }
+    }
+
+
+    /**
+     * @param channel  The channel to search.
+     * @param position The position to start the search at.
+     *
+     * @return the position after the next line feed at or after the given position or the size of the channel.
+     */
+    private static long findNextLineStart(final FileChannel channel, final long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        long size = channel.size();
+
+        long current = position;
+        while (current < size) {
+            buffer.clear();
+            int read = channel.read(buffer, current);
+            if (read <= 0) {
+                break;
+            }
+
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return current + i + 1;
+                }
+            }
+
+            current += read;
+        }
+
+        return size;
+    }
+
+    private static String read(final FileChannel channel, final long start, final long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                break;
+            }
+        }
+
+        buffer.flip();
+        return StandardCharsets.UTF_8.decode(buffer).toString();
+    }
+
+
+    private static class ChunkResult {
+        final ArrayList<RawBaseRecord> records = new ArrayList<>();
+
+        /** The number of the first invalid record within the chunk (1-based) or 0 if all records are valid. */
+        long failedRecord;
+    }
+
+    private class ChunkTask extends RecursiveTask<ChunkResult> {
+        private static final long serialVersionUID = 4386225094155432561L;
+
+        private final transient FileChannel channel;
+        private final long start;
+        private final long end;
+        private final transient CSVImporter.CSVHeader header;
+
+        ChunkTask(final FileChannel channel, final long start, final long end, final CSVImporter.CSVHeader header) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.header = header;
+        }
+
+        @Override
+        protected ChunkResult compute() {
+            ChunkResult result = new ChunkResult();
+            IsoOffsetDateTimeParser timestamps = new IsoOffsetDateTimeParser();
+
+            try (CSVParser parser = new CSVParser(new StringReader(read(channel, start, end)), CSVFormat.DEFAULT)) {
+                for (CSVRecord record : parser) {
+                    try {
+                        result.records.add(importer.readRecord(record, header, timestamps));
+                    } catch (IncompatibleImportDataException e) {
+                        result.failedRecord = record.getRecordNumber();
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Can't read bytes " + start + " to " + end + " of the data file.", e);
+            }
+
+            LOG.trace("Read {} records from bytes {} to {}.", result.records.size(), start, end);
+            return result;
+        }
+    }
+}
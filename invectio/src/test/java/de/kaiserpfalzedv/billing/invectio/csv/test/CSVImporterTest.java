@@ -19,10 +19,19 @@ package de.kaiserpfalzedv.billing.invectio.csv.test;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import de.kaiserpfalzedv.billing.api.imported.ImportingException;
+import de.kaiserpfalzedv.billing.api.imported.IncompleteImportDataException;
 import de.kaiserpfalzedv.billing.api.imported.RawBaseRecord;
 import de.kaiserpfalzedv.billing.invectio.csv.CSVImporter;
 import org.junit.AfterClass;
@@ -60,7 +69,123 @@ public class CSVImporterTest {
         Assert.assertEquals("Wrong number of records!", 8, result.size());
     }
 
+    @Test
+    public void shouldStreamEightEntriesWhenCalledWithFileLibellumAndConsumer() throws ImportingException {
+        logMethod("stream-read", "Stream simple file without errors: {}", CSV_FILE_NAME);
+
+        ArrayList<RawBaseRecord> result = new ArrayList<>();
+        int count = service.execute(csvFile, result::add);
+        LOG.trace("Result: {}", result);
+
+        Assert.assertEquals("Wrong number of records reported!", 8, count);
+        Assert.assertEquals("Wrong number of records consumed!", 8, result.size());
+    }
+
+    @Test(expected = IncompleteImportDataException.class)
+    public void shouldFailAtEndOfStreamWhenRecordsAreMissing() throws ImportingException {
+        logMethod("stream-incomplete", "Stream with fewer records than announced in the header");
+
+        Reader data = new StringReader(
+                "2017-02-14T07:01:37.000000Z,2,8b920084-0ae0-4fdc-8e10-a0ea4fdcc3c5\n"
+                        + "value,start,end,cluster,project,pod,product\n"
+                        + "1.0,2017-02-13T00:00:00Z,2017-02-13T01:00:00Z,c1,p1,pod1,CPU\n"
+        );
+
+        service.execute(data, r -> LOG.trace("Record: {}", r));
+    }
+
+    @Test(expected = ImportingException.class)
+    public void shouldFailWhenTagColumnIsGivenTwice() throws ImportingException {
+        logMethod("duplicate-tag-column", "Stream with a tag column given twice in the header");
+
+        Reader data = new StringReader(
+                "2017-02-14T07:01:37.000000Z,1,8b920084-0ae0-4fdc-8e10-a0ea4fdcc3c5\n"
+                        + "value,start,end,cluster,project,cluster\n"
+                        + "1.0,2017-02-13T00:00:00Z,2017-02-13T01:00:00Z,c1,p1,c2\n"
+        );
+
+        service.execute(data, r -> LOG.trace("Record: {}", r));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldPassOnConsumerExceptionWhenConsumerFails() throws ImportingException {
+        logMethod("stream-consumer-failure", "Exception of the consumer is not reported as IO error");
+
+        service.execute(csvFile, r -> {
+            throw new IllegalStateException("consumer failed");
+        });
+    }
+
+
+
+    @Test
+    public void shouldReturnSameRecordsWhenReadingMappedFile() throws ImportingException {
+        logMethod("mapped-read", "Read mapped file without errors: {}", CSV_FILE_NAME);
+
+        List<? extends RawBaseRecord> expected = service.execute(csvFile);
+        List<? extends RawBaseRecord> result = service.execute(Paths.get(CSV_FILE_NAME));
+        LOG.trace("Result: {}", result);
 
+        assertSameRecords(expected, result);
+    }
+
+    @Test
+    public void shouldReturnSameRecordsWhenMappingWindowIsSmallerThanFile() throws ImportingException {
+        logMethod("mapped-window", "Read mapped file in windows smaller than the file: {}", CSV_FILE_NAME);
+
+        List<? extends RawBaseRecord> expected = service.execute(csvFile);
+        List<? extends RawBaseRecord> result = new CSVImporter(150L).execute(Paths.get(CSV_FILE_NAME));
+
+        assertSameRecords(expected, result);
+    }
+
+    @Test
+    public void shouldReadQuotedFieldsWhenReadingMappedFile() throws ImportingException, IOException {
+        logMethod("mapped-quoted", "Read quoted fields from a mapped file");
+
+        Path file = Files.createTempFile("mapped-import-", ".csv");
+        try {
+            Files.write(file, Arrays.asList(
+                    "2017-02-14T07:01:37.000000Z,1,8b920084-e403-44b9-8fe9-b5b8ac2d9fb7",
+                    "value,start,end,cluster,project",
+                    "",
+                    "\"1.5\",2017-02-14T01:00:00Z,2017-02-14T01:59:59Z,\"abbot, \"\"1\"\"\",billing\r"
+            ), StandardCharsets.UTF_8);
+
+            List<? extends RawBaseRecord> result = service.execute(file);
+
+            Assert.assertEquals("Wrong number of records!", 1, result.size());
+            Assert.assertEquals("Wrong quoted tag!", "abbot, \"1\"", result.get(0).getTags().get("cluster"));
+            Assert.assertEquals("Wrong last tag!", "billing", result.get(0).getTags().get("project"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldFailWhenMappingWindowIsLargerThanASingleMapping() {
+        logMethod("mapping-window-size", "Mapping windows beyond 2 GB can't be mapped");
+
+        new CSVImporter(Integer.MAX_VALUE + 1L);
+    }
+
+    @Test(expected = ImportingException.class)
+    public void shouldFailWhenRecordIsLargerThanMappingWindow() throws ImportingException {
+        logMethod("mapped-too-large", "Fail when a record does not fit into the mapping window");
+
+        new CSVImporter(16L).execute(Paths.get(CSV_FILE_NAME));
+    }
+
+
+    private void assertSameRecords(final List<? extends RawBaseRecord> expected, final List<? extends RawBaseRecord> result) {
+        Assert.assertEquals("Wrong number of records!", expected.size(), result.size());
+
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertEquals("Wrong tags!", expected.get(i).getTags(), result.get(i).getTags());
+            Assert.assertEquals("Wrong metered timestamp!", expected.get(i).getMeteredTimestamp(), result.get(i).getMeteredTimestamp());
+            Assert.assertEquals("Wrong metering id!", expected.get(i).getMeteringId(), result.get(i).getMeteringId());
+        }
+    }
 
     private void logMethod(final String method, final String message, final Object... paramater) {
         MDC.put("id", method);
@@ -0,0 +1,152 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.invectio.csv.test;
+
+import java.math.BigDecimal;
+import java.util.Random;
+
+import de.kaiserpfalzedv.billing.invectio.csv.DecimalParser;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class DecimalParserTest {
+    private static final Logger LOG = LoggerFactory.getLogger(DecimalParserTest.class);
+
+    private static final String[] NUMBERS = {
+            "0", "1", "-1", "+1", "1.", ".5", "2.4235435235", "-0.000001", " 17.25 ",
+            "123456789012345678", "1234567890123456789", "12345678901234567890.123456789", "1E3", "-2.5e-3"
+    };
+
+    private static final String[] INVALID_NUMBERS = {"", "-", ".", "1.2.3", "1,5", "abc", "NaN", "Infinity", "0x10"};
+
+    private static final int ITERATIONS = 100000;
+
+    private DecimalParser service;
+
+
+    @Test
+    public void shouldReturnSameResultAsBigDecimalWhenCalledWithValidNumbers() {
+        logMethod("valid-numbers", "Should parse valid numbers like BigDecimal does");
+
+        for (String number : NUMBERS) {
+            assertEquals("Wrong number for '" + number + "'!", new BigDecimal(number.trim()), service.parse(number));
+        }
+    }
+
+    @Test
+    public void shouldKeepAllDigitsWhenCalledWithNumberNotRepresentableAsDouble() {
+        logMethod("precision", "Should keep all digits of the number");
+
+        assertEquals(new BigDecimal("0.10000000000000001"), service.parse("0.10000000000000001"));
+    }
+
+    @Test
+    public void shouldFailWhenCalledWithInvalidNumbers() {
+        logMethod("invalid-numbers", "Should fail on invalid numbers");
+
+        for (String number : INVALID_NUMBERS) {
+            try {
+                service.parse(number);
+                throw new AssertionError("Invalid number '" + number + "' has been accepted!");
+            } catch (NumberFormatException e) {
+                LOG.trace("Rejected '{}': {}", number, e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void shouldReturnSameResultAsBigDecimalWhenCalledWithRandomNumbers() {
+        logMethod("random-numbers", "Should parse random numbers like BigDecimal does");
+
+        Random random = new Random(4711L);
+        for (int i = 0; i < 10000; i++) {
+            String number = BigDecimal.valueOf(random.nextLong() % 1000000000000L, random.nextInt(12)).toPlainString();
+
+            assertEquals("Wrong number for '" + number + "'!", new BigDecimal(number), service.parse(number));
+        }
+    }
+
+    @Test(timeout = 2000L)
+    public void shouldNotExceedTimeLimitWhenComparedToDoubleDetour() {
+        logMethod("runtime-comparison", "Compare runtime with the double detour for {} iterations", ITERATIONS);
+
+        String[] numbers = {"1", "2.4235435235", "0.25", "1024.5"};
+
+        long doubleStart = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            BigDecimal.valueOf(Double.parseDouble(numbers[i & 3]));
+        }
+        long detour = System.nanoTime() - doubleStart;
+
+        BigDecimal[] results = new BigDecimal[numbers.length];
+        long fastStart = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            results[i & 3] = service.parse(numbers[i & 3]);
+        }
+        long fast = System.nanoTime() - fastStart;
+
+        LOG.info("Parsing {} numbers: double detour={} ms, direct={} ms", ITERATIONS, detour / 1000000L, fast / 1000000L);
+
+        for (int i = 0; i < numbers.length; i++) {
+            assertEquals("Wrong number for '" + numbers[i] + "'!", new BigDecimal(numbers[i]), results[i]);
+        }
+    }
+
+
+    private void logMethod(final String method, final String message, final Object... paramater) {
+        MDC.put("id", method);
+
+        LOG.debug(message, paramater);
+    }
+
+    @Before
+    public void setUp() {
+        service = new DecimalParser();
+    }
+
+    @BeforeClass
+    public static void setUpMDC() {
+        MDC.put("test", DecimalParser.class.getSimpleName());
+
+        if (!SLF4JBridgeHandler.isInstalled()) {
+            SLF4JBridgeHandler.install();
+        }
+    }
+
+    @AfterClass
+    public static void tearDownMDC() {
+        MDC.remove("id");
+        MDC.remove("test");
+
+        if (SLF4JBridgeHandler.isInstalled()) {
+            SLF4JBridgeHandler.uninstall();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.invectio.csv.test;
+
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Random;
+
+import de.kaiserpfalzedv.billing.invectio.csv.IsoOffsetDateTimeParser;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class IsoOffsetDateTimeParserTest {
+    private static final Logger LOG = LoggerFactory.getLogger(IsoOffsetDateTimeParserTest.class);
+
+    private static final String[] TIMESTAMPS = {
+            "2017-02-14T01:00:00.000000Z",
+            "2017-02-14T01:59:59.999999Z",
+            "2017-02-14T01:59:59Z",
+            "2017-02-14T23:59:59.1Z",
+            "2017-02-14T23:59:59.123456789Z",
+            "2016-02-29T12:00:00+01:00",
+            "2016-02-29T12:00:00.5-05:30",
+            "2017-02-14T01:00Z",
+            "2017-02-14t01:00:00Z",
+            "2017-02-14T01:00:00+01:00:30",
+            "2017-02-14T01:00:00.Z",
+            "+12017-02-14T01:00:00Z",
+    };
+
+    private static final String[] INVALID_TIMESTAMPS = {
+            "",
+            "2017-02-14",
+            "2017-02-30T01:00:00Z",
+            "2017-13-14T01:00:00Z",
+            "2017-02-14T24:00:00Z",
+            "2017-02-14T01:00:00",
+            "2017-02-14T01:00:00.1234567890Z",
+            "2017-02-14T01:00:00+19:00",
+            "20x7-02-14T01:00:00Z",
+    };
+
+    private static final int ITERATIONS = 100000;
+
+    private IsoOffsetDateTimeParser service;
+
+
+    @Test
+    public void shouldReturnSameResultAsJdkParserWhenCalledWithValidTimestamps() {
+        logMethod("valid-timestamps", "Should parse valid timestamps like the JDK parser");
+
+        for (String timestamp : TIMESTAMPS) {
+            assertEquals("Wrong timestamp for '" + timestamp + "'!", OffsetDateTime.parse(timestamp), service.parse(timestamp));
+        }
+    }
+
+    @Test
+    public void shouldFailLikeJdkParserWhenCalledWithInvalidTimestamps() {
+        logMethod("invalid-timestamps", "Should fail on invalid timestamps like the JDK parser");
+
+        for (String timestamp : INVALID_TIMESTAMPS) {
+            try {
+                service.parse(timestamp);
+                throw new AssertionError("Invalid timestamp '" + timestamp + "' has been accepted!");
+            } catch (DateTimeParseException e) {
+                LOG.trace("Rejected '{}': {}", timestamp, e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void shouldReturnSameResultAsJdkParserWhenCalledWithRandomTimestamps() {
+        logMethod("random-timestamps", "Should parse random timestamps like the JDK parser");
+
+        Random random = new Random(4711L);
+        OffsetDateTime start = OffsetDateTime.parse("2017-01-01T00:00:00Z");
+
+        for (int i = 0; i < 10000; i++) {
+            String timestamp = start
+                    .plusSeconds(random.nextInt(366 * 24 * 3600))
+                    .plusNanos(random.nextInt(1000000) * 1000L)
+                    .toString();
+
+            assertEquals("Wrong timestamp for '" + timestamp + "'!", OffsetDateTime.parse(timestamp), service.parse(timestamp));
+        }
+    }
+
+    @Test(timeout = 2000L)
+    public void shouldBeFasterThanJdkParserWhenCalledWithMeteringTimestamps() {
+        logMethod("runtime-comparison", "Compare runtime with the JDK parser for {} iterations", ITERATIONS);
+
+        String[] timestamps = {"2017-02-14T01:00:00.000000Z", "2017-02-14T01:59:59.999999Z"};
+
+        long jdkStart = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            OffsetDateTime.parse(timestamps[i & 1]);
+        }
+        long jdk = System.nanoTime() - jdkStart;
+
+        long fastStart = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            service.parse(timestamps[i & 1]);
+        }
+        long fast = System.nanoTime() - fastStart;
+
+        LOG.info("Parsing {} timestamps: jdk={} ms, fast path={} ms", ITERATIONS, jdk / 1000000L, fast / 1000000L);
+    }
+
+
+    private void logMethod(final String method, final String message, final Object... paramater) {
+        MDC.put("id", method);
+
+        LOG.debug(message, paramater);
+    }
+
+    @Before
+    public void setUp() {
+        service = new IsoOffsetDateTimeParser();
+    }
+
+    @BeforeClass
+    public static void setUpMDC() {
+        MDC.put("test", IsoOffsetDateTimeParser.class.getSimpleName());
+
+        if (!SLF4JBridgeHandler.isInstalled()) {
+            SLF4JBridgeHandler.install();
+        }
+    }
+
+    @AfterClass
+    public static void tearDownMDC() {
+        MDC.remove("id");
+        MDC.remove("test");
+
+        if (SLF4JBridgeHandler.isInstalled()) {
+            SLF4JBridgeHandler.uninstall();
+        }
+    }
+}
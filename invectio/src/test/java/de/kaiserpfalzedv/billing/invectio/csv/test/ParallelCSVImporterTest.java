@@ -0,0 +1,194 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.invectio.csv.test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import de.kaiserpfalzedv.billing.api.imported.ImportingException;
+import de.kaiserpfalzedv.billing.api.imported.IncompatibleImportDataException;
+import de.kaiserpfalzedv.billing.api.imported.IncompleteImportDataException;
+import de.kaiserpfalzedv.billing.api.imported.RawBaseRecord;
+import de.kaiserpfalzedv.billing.invectio.csv.CSVImporter;
+import de.kaiserpfalzedv.billing.invectio.csv.ParallelCSVImporter;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class ParallelCSVImporterTest {
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelCSVImporterTest.class);
+
+    private static final String CSV_FILE_NAME = "./target/test-classes/libellum-9xfd3.csv";
+    private static final String TRANSACTION_HEADER = "2017-02-14T07:01:37.000000Z,%d,8b920084-e403-44b9-8fe9-b5b8ac2d9fb7";
+    private static final String COLUMN_HEADER = "value,start,end,cluster,project,pod,product";
+    private static final String VALID_LINE = "1,2017-02-14T01:00:00.000000Z,2017-02-14T01:59:59.999999Z,abbot1,billing,pod-%d,POD";
+    private static final String INVALID_LINE = "x,2017-02-14T01:00:00.000000Z,2017-02-14T01:59:59.999999Z,abbot1,billing,pod-%d,POD";
+
+    private static ForkJoinPool pool;
+
+    private ParallelCSVImporter service;
+
+
+    @Test
+    public void shouldReturnSameRecordsAsSequentialImportWhenSplitIntoManyChunks() throws ImportingException, FileNotFoundException {
+        logMethod("parallel-read", "Read file in small chunks: {}", CSV_FILE_NAME);
+
+        List<? extends RawBaseRecord> expected = new CSVImporter().execute(new FileReader(new File(CSV_FILE_NAME)));
+        List<? extends RawBaseRecord> result = service.execute(Paths.get(CSV_FILE_NAME));
+        LOG.trace("Result: {}", result);
+
+        assertEquals("Wrong number of records!", expected.size(), result.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals("Wrong order of records!", expected.get(i).getTags(), result.get(i).getTags());
+            assertEquals("Wrong metered timestamp!", expected.get(i).getMeteredTimestamp(), result.get(i).getMeteredTimestamp());
+        }
+    }
+
+    @Test
+    public void shouldKeepFileOrderWhenReadingManyRecords() throws ImportingException, IOException {
+        logMethod("parallel-order", "Read a larger file and keep the record order");
+
+        Path file = createFile(500, -1);
+        try {
+            List<? extends RawBaseRecord> result = service.execute(file);
+
+            assertEquals("Wrong number of records!", 500, result.size());
+            for (int i = 0; i < result.size(); i++) {
+                assertEquals("Wrong order of records!", "pod-" + i, result.get(i).getTags().get("pod"));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void shouldReportFirstInvalidRecordNumberLikeSequentialImport() throws ImportingException, IOException {
+        logMethod("parallel-incompatible", "Report the record number of the first invalid record");
+
+        Path file = createFile(500, 317);
+        try {
+            int expected = readSequentialFailure(file);
+
+            try {
+                service.execute(file);
+                fail("Invalid record has not been detected!");
+            } catch (IncompatibleImportDataException e) {
+                assertEquals("Wrong record number reported!", expected, e.getRecordNumber());
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test(expected = IncompleteImportDataException.class)
+    public void shouldFailWhenRecordsAreMissing() throws ImportingException, IOException {
+        logMethod("parallel-incomplete", "Fail when the file contains fewer records than announced");
+
+        Path file = createFile(20, -1, 21);
+        try {
+            service.execute(file);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+
+    private int readSequentialFailure(final Path file) throws IOException, ImportingException {
+        try {
+            new CSVImporter().execute(Files.newBufferedReader(file, StandardCharsets.UTF_8));
+        } catch (IncompatibleImportDataException e) {
+            return e.getRecordNumber();
+        }
+
+        fail("Sequential import did not detect the invalid record!");
+        return -1;
+    }
+
+    private Path createFile(final int records, final int invalidRecord) throws IOException {
+        return createFile(records, invalidRecord, records);
+    }
+
+    private Path createFile(final int records, final int invalidRecord, final int announcedRecords) throws IOException {
+        ArrayList<String> lines = new ArrayList<>(records + 2);
+        lines.add(String.format(TRANSACTION_HEADER, announcedRecords));
+        lines.add(COLUMN_HEADER);
+
+        for (int i = 0; i < records; i++) {
+            lines.add(String.format(i == invalidRecord ? INVALID_LINE : VALID_LINE, i));
+        }
+
+        Path result = Files.createTempFile("parallel-import-", ".csv");
+        Files.write(result, lines, StandardCharsets.UTF_8);
+        return result;
+    }
+
+    private void logMethod(final String method, final String message, final Object... paramater) {
+        MDC.put("id", method);
+
+        LOG.debug(message, paramater);
+    }
+
+    @Before
+    public void setUp() {
+        service = new ParallelCSVImporter(pool, 256);
+    }
+
+    @BeforeClass
+    public static void setUpMDC() {
+        MDC.put("test", ParallelCSVImporter.class.getSimpleName());
+
+        if (!SLF4JBridgeHandler.isInstalled()) {
+            SLF4JBridgeHandler.install();
+        }
+
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterClass
+    public static void tearDownMDC() {
+        pool.shutdown();
+
+        MDC.remove("id");
+        MDC.remove("test");
+
+        if (SLF4JBridgeHandler.isInstalled()) {
+            SLF4JBridgeHandler.uninstall();
+        }
+    }
+}
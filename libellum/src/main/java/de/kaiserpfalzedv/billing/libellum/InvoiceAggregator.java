@@ -0,0 +1,187 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.libellum;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import de.kaiserpfalzedv.billing.api.billed.Invoice;
+import de.kaiserpfalzedv.billing.api.guided.Customer;
+import de.kaiserpfalzedv.billing.api.rated.RatedBaseRecord;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Turns rated records into invoices in a single pass. Every customer gets one invoice with one part per product
+ * and one item per tarif of that product. Only the running sums of the customer currently aggregated are held in
+ * memory, the records themselves are dropped as soon as their amount has been added.
+ *
+ * The records have to be grouped by customer, e.g. by sorting them with {@link #CUSTOMER_ORDER} using the
+ * {@link Sorter}. The invoice of a customer is emitted as soon as the first record of the next customer is read.
+ * A customer showing up again after its invoice has been emitted is rejected.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class InvoiceAggregator {
+    private static final Logger LOG = LoggerFactory.getLogger(InvoiceAggregator.class);
+
+    /**
+     * An order grouping the records by customer as needed by the aggregator.
+     */
+    public static final Comparator<RatedBaseRecord> CUSTOMER_ORDER
+            = Comparator.comparing(record -> record.getCustomer().getId());
+
+    /**
+     * The date of all invoices created. Null to use the date of the invoice creation.
+     */
+    private final LocalDate invoiceDate;
+
+
+    public InvoiceAggregator() {
+        this(null);
+    }
+
+    /**
+     * @param invoiceDate the date of the invoices created. Null to use the current date.
+     */
+    public InvoiceAggregator(final LocalDate invoiceDate) {
+        this.invoiceDate = invoiceDate;
+    }
+
+
+    /**
+     * Aggregates the records into a list of invoices.
+     *
+     * @param records the rated records grouped by customer.
+     * @return the invoices in the order of their customers in the stream.
+     * @throws IllegalArgumentException if the records are not grouped by customer.
+     */
+    public List<Invoice> aggregate(final Stream<? extends RatedBaseRecord> records) {
+        ArrayList<Invoice> result = new ArrayList<>();
+
+        aggregate(records, result::add);
+
+        return result;
+    }
+
+    /**
+     * Aggregates the records and hands every invoice to the consumer as soon as its customer is complete.
+     *
+     * @param records  the rated records grouped by customer.
+     * @param invoices the consumer of the invoices. It is called on the thread consuming the stream.
+     * @return the number of invoices created.
+     * @throws IllegalArgumentException if the records are not grouped by customer.
+     */
+    public long aggregate(final Stream<? extends RatedBaseRecord> records, final Consumer<? super Invoice> invoices) {
+        Aggregation aggregation = new Aggregation(invoices);
+
+        records.sequential().forEachOrdered(aggregation::add);
+        aggregation.complete();
+
+        LOG.debug("Aggregated {} records into {} invoices.", aggregation.records, aggregation.invoices);
+        return aggregation.invoices;
+    }
+
+
+    public LocalDate getInvoiceDate() {
+        return invoiceDate;
+    }
+
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append(System.identityHashCode(this))
+                .append("invoiceDate", invoiceDate)
+                .toString();
+    }
+
+
+    /**
+     * The state of a single aggregation run. The builders are reused for all invoices of the run.
+     */
+    private class Aggregation {
+        private final Consumer<? super Invoice> consumer;
+
+        private final InvoiceBuilder invoiceBuilder = new InvoiceBuilder();
+        private final InvoiceItemBuilder itemBuilder = new InvoiceItemBuilder();
+
+        /**
+         * The customers already invoiced. Only their ids are kept to detect records not grouped by customer.
+         */
+        private final HashSet<UUID> completed = new HashSet<>();
+
+        /**
+         * The sums of the current customer. Null before the first record and after completing a customer.
+         */
+        private InvoiceSums current;
+
+        private long records;
+        private long invoices;
+
+        Aggregation(final Consumer<? super Invoice> consumer) {
+            this.consumer = consumer;
+        }
+
+        void add(final RatedBaseRecord record) {
+            Customer customer = record.getCustomer();
+
+            if (current == null || !current.getCustomer().getId().equals(customer.getId())) {
+                complete();
+
+                if (completed.contains(customer.getId())) {
+                    throw new IllegalArgumentException(
+                            "The records are not grouped by customer. Customer '" + customer.getName()
+                                    + "' has already been invoiced.");
+                }
+
+                current = new InvoiceSums(customer, record.getAmount().getCurrency());
+            }
+
+            current.add(record);
+            records++;
+        }
+
+        /**
+         * Emits the invoice of the current customer, if there is one.
+         */
+        void complete() {
+            if (current == null) {
+                return;
+            }
+
+            Invoice invoice = current.build(invoiceBuilder, itemBuilder, invoiceDate);
+
+            completed.add(current.getCustomer().getId());
+            current = null;
+            invoices++;
+
+            LOG.trace("Created invoice for customer '{}': {}", invoice.getCustomer().getName(), invoice);
+            consumer.accept(invoice);
+        }
+    }
+}
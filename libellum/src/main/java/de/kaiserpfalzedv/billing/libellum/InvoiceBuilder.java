@@ -25,6 +25,7 @@ import java.util.UUID;
 import javax.money.CurrencyUnit;
 import javax.money.MonetaryAmount;
 
+import de.kaiserpfalzedv.billing.api.common.MonetarySum;
 import de.kaiserpfalzedv.billing.api.common.impl.DefaultCurrencyProvider;
 import de.kaiserpfalzedv.billing.api.billed.Attachment;
 import de.kaiserpfalzedv.billing.api.billed.Invoice;
@@ -32,7 +33,6 @@ import de.kaiserpfalzedv.billing.api.billed.InvoiceItem;
 import de.kaiserpfalzedv.billing.api.billed.InvoicePart;
 import de.kaiserpfalzedv.billing.api.guided.Customer;
 import org.apache.commons.lang3.builder.Builder;
-import org.javamoney.moneta.Money;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -122,11 +122,13 @@ public class InvoiceBuilder implements Builder<Invoice> {
     }
 
     private void calculateAmount() {
-        amount = Money.of(0L, currency);
+        MonetarySum sum = new MonetarySum(currency);
 
         for (InvoicePart part : parts) {
-            amount.add(part.getAmount());
+            sum.add(part.getAmount());
         }
+
+        amount = sum.getAmount();
     }
 
     public InvoiceBuilder setId(final UUID id) {
@@ -26,8 +26,8 @@ import javax.validation.constraints.NotNull;
 
 import de.kaiserpfalzedv.billing.api.billed.InvoiceItem;
 import de.kaiserpfalzedv.billing.api.billed.InvoicePart;
+import de.kaiserpfalzedv.billing.api.common.MonetarySum;
 import org.apache.commons.lang3.builder.Builder;
-import org.javamoney.moneta.Money;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -94,11 +94,13 @@ public class InvoicePartBuilder implements Builder<InvoicePart> {
     }
 
     private void calculateAmount() {
-        amount = Money.of(0L, currency);
+        MonetarySum sum = new MonetarySum(currency);
 
         for (InvoiceItem item : items) {
-            amount = amount.add(item.getAmount());
+            sum.add(item.getAmount());
         }
+
+        amount = sum.getAmount();
     }
 
     public InvoicePartBuilder setCurrency(final CurrencyUnit currency) {
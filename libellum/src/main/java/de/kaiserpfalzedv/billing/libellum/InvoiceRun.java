@@ -0,0 +1,345 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.libellum;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.kaiserpfalzedv.billing.api.billed.Invoice;
+import de.kaiserpfalzedv.billing.api.guided.Customer;
+import de.kaiserpfalzedv.billing.api.rated.RatedBaseRecord;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the invoices of many customers in parallel. The work is balanced by the number of records, not customers:
+ * the records are cut into slices of about the same size, customers with many records get several slices. The
+ * slices are processed largest first by one worker per thread of the pool. The sums of the slices of a customer are
+ * merged by the worker completing the last slice, which creates the invoice.
+ *
+ * Every worker owns its {@link InvoiceBuilder}, the stateful builders are never shared between threads.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class InvoiceRun {
+    private static final Logger LOG = LoggerFactory.getLogger(InvoiceRun.class);
+
+    /**
+     * The number of slices per worker aimed at. More slices balance better but split more customers.
+     */
+    public static final int SLICES_PER_WORKER = 4;
+
+    /**
+     * Customers with fewer records are never split.
+     */
+    public static final int MINIMUM_SLICE_SIZE = 4096;
+
+    private static final InvoiceRunListener NO_LISTENER = (invoice, records, duration) -> {};
+
+    private final ForkJoinPool pool;
+
+    /**
+     * The date of all invoices created. Null to use the date of the invoice creation.
+     */
+    private final LocalDate invoiceDate;
+
+
+    public InvoiceRun() {
+        this(null, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param invoiceDate the date of the invoices created. Null to use the current date.
+     * @param pool        the pool to run the workers on.
+     */
+    public InvoiceRun(final LocalDate invoiceDate, final ForkJoinPool pool) {
+        this.invoiceDate = invoiceDate;
+        this.pool = pool;
+    }
+
+
+    public List<Invoice> execute(final Map<Customer, ? extends List<? extends RatedBaseRecord>> records) {
+        return execute(records, NO_LISTENER);
+    }
+
+    /**
+     * Creates the invoices of all customers. Customers without records don't get an invoice.
+     *
+     * @param records  the records by customer. The lists must not be changed during the run.
+     * @param listener the listener to report the progress to.
+     * @return the invoices in the iteration order of the customers.
+     */
+    public List<Invoice> execute(
+            final Map<Customer, ? extends List<? extends RatedBaseRecord>> records,
+            final InvoiceRunListener listener
+    ) {
+        long start = System.nanoTime();
+
+        ArrayList<CustomerJob> jobs = new ArrayList<>(records.size());
+        long totalRecords = 0L;
+        for (Map.Entry<Customer, ? extends List<? extends RatedBaseRecord>> entry : records.entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                LOG.debug("No records for customer '{}', skipping invoice.", entry.getKey().getName());
+                continue;
+            }
+
+            jobs.add(new CustomerJob(jobs.size(), entry.getKey(), entry.getValue()));
+            totalRecords += entry.getValue().size();
+        }
+
+        Slice[] slices = slice(jobs, totalRecords);
+        Invoice[] invoices = new Invoice[jobs.size()];
+
+        Worker[] workers = new Worker[Math.min(pool.getParallelism(), slices.length)];
+        Progress progress = new Progress(slices, invoices, totalRecords, listener);
+        LOG.info("Invoicing {} records of {} customers in {} slices on {} workers ...",
+                 totalRecords, jobs.size(), slices.length, workers.length);
+
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(progress);
+            pool.execute(workers[i]);
+        }
+
+        RuntimeException failure = null;
+        for (Worker worker : workers) {
+            try {
+                worker.join();
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+
+        long duration = System.nanoTime() - start;
+        LOG.info("Invoiced {} records of {} customers in {} ms ({} records/s).",
+                 totalRecords, jobs.size(), duration / 1000000L, totalRecords * 1000000000L / Math.max(duration, 1L));
+        return Arrays.asList(invoices);
+    }
+
+    /**
+     * Cuts the records into slices, the largest first.
+     */
+    private Slice[] slice(final List<CustomerJob> jobs, final long totalRecords) {
+        long target = totalRecords / ((long) pool.getParallelism() * SLICES_PER_WORKER);
+        int sliceSize = (int) Math.min(Integer.MAX_VALUE, Math.max(MINIMUM_SLICE_SIZE, target));
+
+        ArrayList<Slice> result = new ArrayList<>(jobs.size());
+        for (CustomerJob job : jobs) {
+            int size = job.records.size();
+            int count = (size + sliceSize - 1) / sliceSize;
+
+            job.prepare(count);
+            for (int i = 0; i < count; i++) {
+                // spreads the records evenly instead of leaving a small last slice
+                result.add(new Slice(job, i, (int) ((long) size * i / count), (int) ((long) size * (i + 1) / count)));
+            }
+        }
+
+        result.sort(Comparator.comparingInt(Slice::size).reversed());
+        return result.toArray(new Slice[0]);
+    }
+
+
+    public LocalDate getInvoiceDate() {
+        return invoiceDate;
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append(System.identityHashCode(this))
+                .append("invoiceDate", invoiceDate)
+                .append("parallelism", pool.getParallelism())
+                .toString();
+    }
+
+
+    /**
+     * The records of a single customer and the sums of its slices.
+     */
+    private static final class CustomerJob {
+        private final int index;
+        private final Customer customer;
+        private final List<? extends RatedBaseRecord> records;
+
+        /**
+         * The sums by slice number. Published to the merging worker by decrementing {@link #remaining}.
+         */
+        private InvoiceSums[] sums;
+        private AtomicInteger remaining;
+        private final AtomicLong nanos = new AtomicLong();
+
+        CustomerJob(final int index, final Customer customer, final List<? extends RatedBaseRecord> records) {
+            this.index = index;
+            this.customer = customer;
+            this.records = records;
+        }
+
+        void prepare(final int slices) {
+            sums = new InvoiceSums[slices];
+            remaining = new AtomicInteger(slices);
+        }
+    }
+
+    /**
+     * A consecutive part of the records of a customer.
+     */
+    private static final class Slice {
+        private final CustomerJob job;
+        private final int number;
+        private final int from;
+        private final int to;
+
+        Slice(final CustomerJob job, final int number, final int from, final int to) {
+            this.job = job;
+            this.number = number;
+            this.from = from;
+            this.to = to;
+        }
+
+        int size() {
+            return to - from;
+        }
+
+        InvoiceSums sum() {
+            List<? extends RatedBaseRecord> records = job.records.subList(from, to);
+            InvoiceSums result = new InvoiceSums(job.customer, records.get(0).getAmount().getCurrency());
+
+            for (RatedBaseRecord record : records) {
+                result.add(record);
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * The state of a run shared by all workers.
+     */
+    private static final class Progress {
+        private final Slice[] slices;
+        private final Invoice[] invoices;
+        private final long totalRecords;
+        private final InvoiceRunListener listener;
+
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicLong completedRecords = new AtomicLong();
+
+        /**
+         * Set by a failing worker to stop the others from taking further slices.
+         */
+        private volatile boolean failed;
+
+        Progress(final Slice[] slices, final Invoice[] invoices, final long totalRecords, final InvoiceRunListener listener) {
+            this.slices = slices;
+            this.invoices = invoices;
+            this.totalRecords = totalRecords;
+            this.listener = listener;
+        }
+
+        Slice next() {
+            if (failed) {
+                return null;
+            }
+
+            int index = next.getAndIncrement();
+            return index < slices.length ? slices[index] : null;
+        }
+    }
+
+    /**
+     * Takes slices until all are taken. The builders are confined to the thread running the worker.
+     */
+    private final class Worker extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Progress progress;
+
+        Worker(final Progress progress) {
+            this.progress = progress;
+        }
+
+        @Override
+        protected void compute() {
+            InvoiceBuilder invoiceBuilder = new InvoiceBuilder();
+            InvoiceItemBuilder itemBuilder = new InvoiceItemBuilder();
+
+            try {
+                for (Slice slice = progress.next(); slice != null; slice = progress.next()) {
+                    process(slice, invoiceBuilder, itemBuilder);
+                }
+            } catch (RuntimeException | Error e) {
+                progress.failed = true;
+                throw e;
+            }
+        }
+
+        private void process(final Slice slice, final InvoiceBuilder invoiceBuilder, final InvoiceItemBuilder itemBuilder) {
+            long start = System.nanoTime();
+            CustomerJob job = slice.job;
+
+            job.sums[slice.number] = slice.sum();
+            job.nanos.addAndGet(System.nanoTime() - start);
+
+            if (job.remaining.decrementAndGet() == 0) {
+                // all other slices added their sums and time before decrementing
+                start = System.nanoTime();
+
+                InvoiceSums sums = job.sums[0];
+                for (int i = 1; i < job.sums.length; i++) {
+                    sums.add(job.sums[i]);
+                }
+
+                Invoice invoice = sums.build(invoiceBuilder, itemBuilder, invoiceDate);
+                progress.invoices[job.index] = invoice;
+
+                long nanos = job.nanos.addAndGet(System.nanoTime() - start);
+                LOG.debug("Invoiced customer '{}': {} records in {} slices, {} ms.",
+                          job.customer.getName(), sums.getRecords(), job.sums.length, nanos / 1000000L);
+                job.sums = null;
+
+                progress.listener.invoiced(invoice, sums.getRecords(), Duration.ofNanos(nanos));
+            }
+
+            progress.listener.progress(progress.completedRecords.addAndGet(slice.size()), progress.totalRecords);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.libellum;
+
+import java.time.Duration;
+
+import de.kaiserpfalzedv.billing.api.billed.Invoice;
+
+/**
+ * Receives the progress of an {@link InvoiceRun}. The methods are called by the worker threads of the run, often
+ * concurrently, so implementations have to be thread-safe.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+@FunctionalInterface
+public interface InvoiceRunListener {
+    /**
+     * Called when the invoice of a customer is complete.
+     *
+     * @param invoice  the invoice created.
+     * @param records  the number of records of the customer.
+     * @param duration the processing time spent on the customer, summed over all workers involved.
+     */
+    void invoiced(Invoice invoice, long records, Duration duration);
+
+    /**
+     * Called whenever a slice of records has been aggregated.
+     *
+     * @param completedRecords the number of records aggregated so far.
+     * @param totalRecords     the number of records of the run.
+     */
+    default void progress(long completedRecords, long totalRecords) {}
+}
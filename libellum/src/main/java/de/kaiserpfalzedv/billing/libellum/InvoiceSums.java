@@ -0,0 +1,212 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.libellum;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.money.CurrencyUnit;
+
+import de.kaiserpfalzedv.billing.api.billed.Invoice;
+import de.kaiserpfalzedv.billing.api.billed.InvoiceItem;
+import de.kaiserpfalzedv.billing.api.common.MonetarySum;
+import de.kaiserpfalzedv.billing.api.guided.Customer;
+import de.kaiserpfalzedv.billing.api.rated.RatedBaseRecord;
+import de.kaiserpfalzedv.billing.api.rated.Tarif;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+
+/**
+ * The running sums of the invoice of a single customer: one part per product and one item per tarif of that
+ * product. Parts and items keep the order of their first record. Sums of different slices of the records of a
+ * customer may be merged, so a customer can be aggregated by several threads. The sums are not thread-safe.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+final class InvoiceSums {
+    private final Customer customer;
+    private final CurrencyUnit currency;
+
+    /**
+     * The parts by product name.
+     */
+    private final LinkedHashMap<String, PartSum> parts = new LinkedHashMap<>();
+
+    private long records;
+
+    /**
+     * @param customer the customer to be invoiced.
+     * @param currency the currency of the invoice.
+     */
+    InvoiceSums(final Customer customer, final CurrencyUnit currency) {
+        this.customer = customer;
+        this.currency = currency;
+    }
+
+
+    /**
+     * Adds the amount of the record to the item of its product and tarif.
+     *
+     * @param record the record of the customer.
+     */
+    void add(final RatedBaseRecord record) {
+        PartSum part = parts.get(record.getProductName());
+        if (part == null) {
+            part = new PartSum();
+            parts.put(record.getProductName(), part);
+        }
+
+        part.item(record.getTarif()).add(record.getAmount());
+        records++;
+    }
+
+    /**
+     * Adds the sums of another slice of the records of the same customer. The parts and items not known yet are
+     * appended.
+     *
+     * @param other the sums of the other slice.
+     */
+    void add(final InvoiceSums other) {
+        if (!customer.getId().equals(other.customer.getId())) {
+            throw new IllegalArgumentException(
+                    "Can't add the sums of customer '" + other.customer.getName()
+                            + "' to the invoice of customer '" + customer.getName() + "'!");
+        }
+
+        for (Map.Entry<String, PartSum> entry : other.parts.entrySet()) {
+            PartSum part = parts.get(entry.getKey());
+            if (part == null) {
+                part = new PartSum();
+                parts.put(entry.getKey(), part);
+            }
+
+            for (ItemSum item : entry.getValue().items.values()) {
+                part.add(item.tarif, item.sum);
+            }
+        }
+
+        records += other.records;
+    }
+
+    /**
+     * Creates the invoice. The builders are reset by building, so they may be reused by the calling thread.
+     *
+     * @param invoiceBuilder the builder of the invoice.
+     * @param itemBuilder    the builder of the items.
+     * @param invoiceDate    the date of the invoice. Null to use the current date.
+     * @return the invoice with the summed amounts.
+     */
+    Invoice build(final InvoiceBuilder invoiceBuilder, final InvoiceItemBuilder itemBuilder, final LocalDate invoiceDate) {
+        MonetarySum total = new MonetarySum(currency);
+
+        invoiceBuilder
+                .setCustomer(customer)
+                .setCurrency(currency);
+        for (Map.Entry<String, PartSum> part : parts.entrySet()) {
+            ArrayList<InvoiceItem> items = new ArrayList<>(part.getValue().items.size());
+
+            for (ItemSum item : part.getValue().items.values()) {
+                items.add(
+                        itemBuilder
+                                .setItemId(item.tarif.getId().toString())
+                                .setTitle(item.tarif.getName())
+                                .setAmount(item.sum.getAmount())
+                                .build()
+                );
+
+                total.add(item.sum);
+            }
+
+            invoiceBuilder.addPart(part.getKey(), items);
+        }
+        if (invoiceDate != null) {
+            invoiceBuilder.setInvoiceDate(invoiceDate);
+        }
+
+        return invoiceBuilder
+                .setAmount(total.getAmount())
+                .build();
+    }
+
+
+    Customer getCustomer() {
+        return customer;
+    }
+
+    /**
+     * @return the number of records added.
+     */
+    long getRecords() {
+        return records;
+    }
+
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append(System.identityHashCode(this))
+                .append("customer", customer.getName())
+                .append("currency", currency)
+                .append("parts", parts.size())
+                .append("records", records)
+                .toString();
+    }
+
+
+    /**
+     * The running sums of a single product.
+     */
+    private final class PartSum {
+        /**
+         * The items of the part by tarif id.
+         */
+        private final LinkedHashMap<UUID, ItemSum> items = new LinkedHashMap<>();
+
+        MonetarySum item(final Tarif tarif) {
+            ItemSum item = items.get(tarif.getId());
+
+            if (item == null) {
+                item = new ItemSum(tarif, new MonetarySum(currency));
+                items.put(tarif.getId(), item);
+            }
+
+            return item.sum;
+        }
+
+        void add(final Tarif tarif, final MonetarySum sum) {
+            item(tarif).add(sum);
+        }
+    }
+
+    /**
+     * The running sum of a single tarif.
+     */
+    private static class ItemSum {
+        private final Tarif tarif;
+        private final MonetarySum sum;
+
+        ItemSum(final Tarif tarif, final MonetarySum sum) {
+            this.tarif = tarif;
+            this.sum = sum;
+        }
+    }
+}
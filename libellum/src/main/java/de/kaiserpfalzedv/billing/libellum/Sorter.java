@@ -17,6 +17,7 @@
 package de.kaiserpfalzedv.billing.libellum;
 
 import java.util.Comparator;
+import java.util.stream.Stream;
 
 import de.kaiserpfalzedv.billing.api.rated.RatedBaseRecord;
 
@@ -26,5 +27,22 @@ import de.kaiserpfalzedv.billing.api.rated.RatedBaseRecord;
  * @since 2018-02-11
  */
 public interface Sorter {
+    /**
+     * Sorts records held in memory.
+     *
+     * @param unsortedData the records to sort. The array is not changed.
+     * @param comparator   the order of the records.
+     * @return a new array with the sorted records.
+     */
     RatedBaseRecord[] sort(RatedBaseRecord[] unsortedData, Comparator<RatedBaseRecord> comparator);
+
+    /**
+     * Sorts records that may not fit into memory. The records are read from the stream before this method returns.
+     * The returned stream may be backed by temporary files and has to be closed to remove them.
+     *
+     * @param unsortedData the records to sort.
+     * @param comparator   the order of the records.
+     * @return the sorted records.
+     */
+    Stream<RatedBaseRecord> sort(Stream<? extends RatedBaseRecord> unsortedData, Comparator<RatedBaseRecord> comparator);
 }
@@ -16,14 +16,44 @@
 
 package de.kaiserpfalzedv.billing.libellum;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import de.kaiserpfalzedv.billing.api.rated.RatedBaseRecord;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Sorts rated records for the itemised bills. Records in memory are sorted by {@link Arrays#parallelSort(Object[],
+ * Comparator)}.
+ *
+ * Streams of records are sorted in runs of at most {@link #getRunSize()} records. As long as all records fit into a
+ * single run they are sorted in memory. Otherwise every full run is sorted and spilled to a temporary file and the
+ * runs are merged while the sorted stream is read. At most {@link #getMergeWidth()} runs are merged at once, more
+ * runs are merged into larger runs before, in passes over all runs. So only a single run and the current record of
+ * every run are held in memory. Both sorts are stable.
+ *
  * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
  * @version 1.0.0
  * @since 2018-02-11
@@ -31,8 +61,396 @@ import org.slf4j.LoggerFactory;
 public class SorterImpl implements Sorter {
     private static final Logger LOG = LoggerFactory.getLogger(SorterImpl.class);
 
+    /** Default number of records sorted in memory. */
+    public static final int DEFAULT_RUN_SIZE = 500000;
+
+    /** Default number of runs merged at once. */
+    public static final int DEFAULT_MERGE_WIDTH = 64;
+
+    /**
+     * Number of records written before the object stream forgets the objects written. Records of a run share their
+     * customers, products and tarifs, which are only written once within this interval.
+     */
+    private static final int RESET_INTERVAL = 1000;
+
+    private static final int BUFFER_SIZE = 65536;
+
+
+    private final int runSize;
+    private final int mergeWidth;
+    private final Path tempDirectory;
+
+
+    public SorterImpl() {
+        this(DEFAULT_RUN_SIZE, DEFAULT_MERGE_WIDTH, Paths.get(System.getProperty("java.io.tmpdir")));
+    }
+
+    /**
+     * @param runSize       the maximum number of records sorted in memory.
+     * @param mergeWidth    the maximum number of runs merged at once.
+     * @param tempDirectory the directory for the spilled runs.
+     */
+    public SorterImpl(final int runSize, final int mergeWidth, final Path tempDirectory) {
+        if (runSize <= 0) {
+            throw new IllegalArgumentException("The run size has to be positive!");
+        }
+
+        if (mergeWidth < 2) {
+            throw new IllegalArgumentException("At least two runs have to be merged at once!");
+        }
+
+        this.runSize = runSize;
+        this.mergeWidth = mergeWidth;
+        this.tempDirectory = tempDirectory;
+    }
+
+
     @Override
     public RatedBaseRecord[] sort(RatedBaseRecord[] unsortedData, Comparator<RatedBaseRecord> comparator) {
-        return (RatedBaseRecord[]) Arrays.stream(unsortedData).sorted(comparator).toArray();
+        RatedBaseRecord[] result = Arrays.copyOf(unsortedData, unsortedData.length, RatedBaseRecord[].class);
+
+        Arrays.parallelSort(result, comparator);
+        return result;
+    }
+
+    @Override
+    public Stream<RatedBaseRecord> sort(
+            final Stream<? extends RatedBaseRecord> unsortedData,
+            final Comparator<RatedBaseRecord> comparator
+    ) {
+        ArrayList<Path> runs = new ArrayList<>();
+        ArrayList<RatedBaseRecord> buffer = new ArrayList<>(Math.min(runSize, 1024));
+        long records = 0L;
+
+        try {
+            Iterator<? extends RatedBaseRecord> iterator = unsortedData.iterator();
+            while (iterator.hasNext()) {
+                buffer.add(iterator.next());
+                records++;
+
+                if (buffer.size() == runSize && iterator.hasNext()) {
+                    runs.add(spill(sortRun(buffer, comparator)));
+                    buffer.clear();
+                }
+            }
+
+            RatedBaseRecord[] last = sortRun(buffer, comparator);
+            buffer = null;
+
+            if (runs.isEmpty()) {
+                LOG.debug("Sorted {} records in memory", records);
+                return Arrays.stream(last);
+            }
+
+            LOG.debug("Sorting {} records in {} spilled runs and one run in memory", records, runs.size());
+            while (runs.size() >= mergeWidth) {
+                runs = mergePass(runs, comparator);
+            }
+
+            Merger merger = new Merger(openRuns(runs, last), comparator, runs);
+            return StreamSupport
+                    .stream(Spliterators.spliteratorUnknownSize(merger, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                    .onClose(merger::close);
+        } catch (IOException e) {
+            delete(runs);
+
+            throw new UncheckedIOException("Can't spill the sorted runs to " + tempDirectory, e);
+        } catch (RuntimeException | Error e) {
+            delete(runs);
+
+            throw e;
+        }
+    }
+
+    private static RatedBaseRecord[] sortRun(
+            final List<RatedBaseRecord> buffer,
+            final Comparator<RatedBaseRecord> comparator
+    ) {
+        RatedBaseRecord[] result = buffer.toArray(new RatedBaseRecord[buffer.size()]);
+
+        Arrays.parallelSort(result, comparator);
+        return result;
+    }
+
+    private Path spill(final RatedBaseRecord[] run) throws IOException {
+        Path result = Files.createTempFile(tempDirectory, "libellum-run-", ".bin");
+
+        try (RunWriter writer = new RunWriter(result)) {
+            for (RatedBaseRecord record : run) {
+                writer.write(record);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(result);
+            throw e;
+        }
+
+        LOG.trace("Spilled run of {} records to {}", run.length, result);
+        return result;
+    }
+
+    /**
+     * Merges the runs in groups of {@link #getMergeWidth()} consecutive runs. Every merged run takes the place of the
+     * runs it has been merged from, so the order of equal records is kept. Every pass divides the number of runs by
+     * the merge width, so every record is written only once per pass.
+     */
+    private ArrayList<Path> mergePass(
+            final List<Path> runs,
+            final Comparator<RatedBaseRecord> comparator
+    ) throws IOException {
+        ArrayList<Path> result = new ArrayList<>((runs.size() + mergeWidth - 1) / mergeWidth);
+
+        try {
+            for (int from = 0; from < runs.size(); from += mergeWidth) {
+                List<Path> group = runs.subList(from, Math.min(from + mergeWidth, runs.size()));
+
+                result.add(group.size() > 1 ? mergeRuns(group, comparator) : group.get(0));
+            }
+        } catch (IOException | RuntimeException e) {
+            delete(result);
+            throw e;
+        }
+
+        LOG.trace("Merged {} runs into {} runs", runs.size(), result.size());
+        return result;
+    }
+
+    /**
+     * Merges the runs into a single run. The merged runs are deleted.
+     */
+    private Path mergeRuns(
+            final List<Path> runs,
+            final Comparator<RatedBaseRecord> comparator
+    ) throws IOException {
+        Path result = Files.createTempFile(tempDirectory, "libellum-run-", ".bin");
+
+        long records = 0L;
+        try (Merger merger = new Merger(openRuns(runs, null), comparator, runs);
+             RunWriter writer = new RunWriter(result)) {
+            while (merger.hasNext()) {
+                writer.write(merger.next());
+                records++;
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(result);
+            throw e;
+        }
+
+        LOG.trace("Merged {} runs with {} records into {}", runs.size(), records, result);
+        return result;
+    }
+
+    private static List<Source> openRuns(final List<Path> runs, final RatedBaseRecord[] last) throws IOException {
+        ArrayList<Source> result = new ArrayList<>(runs.size() + 1);
+
+        try {
+            for (Path run : runs) {
+                result.add(new RunReader(run));
+            }
+        } catch (IOException e) {
+            for (Source source : result) {
+                source.close();
+            }
+
+            throw e;
+        }
+
+        if (last != null && last.length > 0) {
+            result.add(new ArraySource(last));
+        }
+
+        return result;
+    }
+
+    private static void delete(final List<Path> runs) {
+        for (Path run : runs) {
+            try {
+                Files.deleteIfExists(run);
+            } catch (IOException e) {
+                LOG.warn("Can't delete the sorted run {}: {}", run, e.getMessage());
+            }
+        }
+    }
+
+
+    public int getRunSize() {
+        return runSize;
+    }
+
+    public int getMergeWidth() {
+        return mergeWidth;
+    }
+
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append(System.identityHashCode(this))
+                .append("runSize", runSize)
+                .append("mergeWidth", mergeWidth)
+                .append("tempDirectory", tempDirectory)
+                .toString();
+    }
+
+
+    /**
+     * A sorted run being merged.
+     */
+    private abstract static class Source implements Closeable {
+        RatedBaseRecord head;
+
+        /** The position of the run within the merge, deciding between equal records. */
+        int index;
+
+        /**
+         * Reads the next record into {@link #head}.
+         *
+         * @return false if the run is exhausted.
+         */
+        abstract boolean advance() throws IOException;
+
+        @Override
+        public void close() throws IOException {
+            // nothing to close.
+        }
+    }
+
+    private static final class ArraySource extends Source {
+        private final RatedBaseRecord[] records;
+        private int next;
+
+        ArraySource(final RatedBaseRecord[] records) {
+            this.records = records;
+        }
+
+        @Override
+        boolean advance() {
+            if (next == records.length) {
+                head = null;
+                return false;
+            }
+
+            // the merged records are released as they are read.
+            head = records[next];
+            records[next++] = null;
+            return true;
+        }
+    }
+
+    private static final class RunReader extends Source {
+        private final ObjectInputStream input;
+
+        RunReader(final Path run) throws IOException {
+            this.input = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(run), BUFFER_SIZE));
+        }
+
+        @Override
+        boolean advance() throws IOException {
+            try {
+                head = (RatedBaseRecord) input.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Can't read the sorted run: " + e.getMessage(), e);
+            }
+
+            return head != null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+
+    private static final class RunWriter implements Closeable {
+        private final ObjectOutputStream output;
+        private int written;
+
+        RunWriter(final Path run) throws IOException {
+            this.output = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(run), BUFFER_SIZE));
+        }
+
+        void write(final RatedBaseRecord record) throws IOException {
+            output.writeObject(record);
+
+            if (++written % RESET_INTERVAL == 0) {
+                output.reset();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            output.writeObject(null);
+            output.close();
+        }
+    }
+
+    /**
+     * Merges sorted runs. Equal records are taken from the earlier run first.
+     */
+    private static final class Merger implements Iterator<RatedBaseRecord>, Closeable {
+        private final List<Source> sources;
+        private final PriorityQueue<Source> queue;
+
+        /** The files of the runs, deleted on close. */
+        private final List<Path> runs;
+
+        Merger(final List<Source> sources, final Comparator<RatedBaseRecord> comparator, final List<Path> runs)
+                throws IOException {
+            this.sources = sources;
+            this.runs = new ArrayList<>(runs);
+
+            Comparator<Source> byHead = (a, b) -> comparator.compare(a.head, b.head);
+            this.queue = new PriorityQueue<>(Math.max(1, sources.size()), byHead.thenComparingInt(s -> s.index));
+
+            try {
+                for (int i = 0; i < sources.size(); i++) {
+                    Source source = sources.get(i);
+
+                    source.index = i;
+                    if (source.advance()) {
+                        queue.add(source);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public RatedBaseRecord next() {
+            Source source = queue.poll();
+            if (source == null) {
+                throw new NoSuchElementException();
+            }
+
+            RatedBaseRecord result = source.head;
+            try {
+                if (source.advance()) {
+                    queue.add(source);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            return result;
+        }
+
+        @Override
+        public void close() {
+            for (Source source : sources) {
+                try {
+                    source.close();
+                } catch (IOException e) {
+                    LOG.warn("Can't close the sorted run: {}", e.getMessage());
+                }
+            }
+
+            delete(runs);
+        }
     }
 }
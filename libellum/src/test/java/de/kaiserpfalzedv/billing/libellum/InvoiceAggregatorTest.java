@@ -0,0 +1,324 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.libellum;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import javax.money.CurrencyUnit;
+import javax.money.Monetary;
+import javax.money.MonetaryAmount;
+
+import ch.qos.logback.classic.Level;
+import de.kaiserpfalzedv.billing.api.billed.Invoice;
+import de.kaiserpfalzedv.billing.api.billed.InvoiceItem;
+import de.kaiserpfalzedv.billing.api.billed.InvoicePart;
+import de.kaiserpfalzedv.billing.api.guided.Customer;
+import de.kaiserpfalzedv.billing.api.guided.ProductInfo;
+import de.kaiserpfalzedv.billing.api.guided.ProductRecordInfo;
+import de.kaiserpfalzedv.billing.api.rated.RatedBaseRecord;
+import de.kaiserpfalzedv.billing.api.rated.RatedMeteredRecord;
+import de.kaiserpfalzedv.billing.api.rated.Tarif;
+import de.kaiserpfalzedv.billing.princeps.api.CustomerBuilder;
+import de.kaiserpfalzedv.billing.princeps.api.ProductInfoBuilder;
+import de.kaiserpfalzedv.billing.princeps.api.ProductRecordInfoBuilder;
+import de.kaiserpfalzedv.billing.ratio.RatedRecordBuilder;
+import de.kaiserpfalzedv.billing.ratio.api.TarifBuilder;
+import org.javamoney.moneta.Money;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+import static java.time.ZoneOffset.UTC;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the aggregated invoices against sums calculated from all records held in memory. The random generator is
+ * seeded, so failures can be reproduced.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class InvoiceAggregatorTest {
+    private static final Logger LOG = LoggerFactory.getLogger(InvoiceAggregatorTest.class);
+
+    private static final CurrencyUnit CURRENCY = Monetary.getCurrency("EUR");
+
+    private static final long SEED = 20180218L;
+    private static final OffsetDateTime MONTH = OffsetDateTime.of(2018, 2, 1, 0, 0, 0, 0, UTC);
+    private static final LocalDate INVOICE_DATE = LocalDate.of(2018, 3, 1);
+
+    private static final Map<String, String> TAGS = new HashMap<>(4);
+    static {
+        TAGS.put("cluster", "abbot1");
+        TAGS.put("project", "billing");
+    }
+
+    private List<Customer> customers;
+    private List<ProductRecordInfo> products;
+    private List<Tarif> tarifs;
+
+    private InvoiceAggregator service;
+
+    @BeforeClass
+    public static void setUpMDC() {
+        MDC.put("test", InvoiceAggregator.class.getSimpleName());
+
+        if (!SLF4JBridgeHandler.isInstalled()) {
+            SLF4JBridgeHandler.install();
+        }
+    }
+
+    @AfterClass
+    public static void tearDownMDC() {
+        MDC.remove("id");
+        MDC.remove("test");
+
+        if (SLF4JBridgeHandler.isInstalled()) {
+            SLF4JBridgeHandler.uninstall();
+        }
+    }
+
+    @Test
+    public void everyCustomerGetsOneInvoice() {
+        logMethod("customers", "Every customer has to get exactly one invoice");
+
+        List<RatedMeteredRecord> records = createRecords(1000);
+
+        List<Invoice> result = service.aggregate(records.stream());
+
+        assertEquals("The number of invoices does not match", customers.size(), result.size());
+        for (int i = 0; i < result.size(); i++) {
+            assertEquals("The customer does not match", customers.get(i), result.get(i).getCustomer());
+            assertEquals("The invoice date does not match", INVOICE_DATE, result.get(i).getInvoiceDate());
+        }
+    }
+
+    @Test
+    public void itemsSumTheAmountsPerProductAndTarif() {
+        logMethod("sums", "The items have to sum the amounts of their product and tarif");
+
+        List<RatedMeteredRecord> records = createRecords(1000);
+
+        for (Invoice invoice : service.aggregate(records.stream())) {
+            MonetaryAmount total = Money.of(0L, CURRENCY);
+
+            for (InvoicePart part : invoice.getParts()) {
+                for (InvoiceItem item : part.getItems()) {
+                    MonetaryAmount expected = records.stream()
+                            .filter(r -> r.getCustomer().equals(invoice.getCustomer()))
+                            .filter(r -> r.getProductName().equals(part.getTitle()))
+                            .filter(r -> r.getTarif().getId().toString().equals(item.getItemId()))
+                            .map(RatedBaseRecord::getAmount)
+                            .reduce(Money.of(0L, CURRENCY), MonetaryAmount::add);
+
+                    assertEquals("The amount of the item does not match", expected, item.getAmount());
+                }
+
+                total = total.add(part.getAmount());
+            }
+
+            assertEquals("The amount of the invoice does not match", total, invoice.getAmount());
+        }
+    }
+
+    @Test
+    public void partsAndItemsFollowTheRecordOrder() {
+        logMethod("order", "The parts and items have to be created in the order of their first record");
+
+        List<RatedMeteredRecord> records = createRecords(1000);
+
+        Invoice invoice = service.aggregate(records.stream()).get(0);
+
+        List<String> expected = records.stream()
+                .filter(r -> r.getCustomer().equals(invoice.getCustomer()))
+                .map(RatedBaseRecord::getProductName)
+                .distinct()
+                .collect(Collectors.toList());
+        List<String> result = invoice.getParts().stream()
+                .map(InvoicePart::getTitle)
+                .collect(Collectors.toList());
+        assertEquals("The parts do not match", expected, result);
+    }
+
+    @Test
+    public void invoicesAreEmittedWhenTheCustomerIsComplete() {
+        logMethod("streaming", "Invoices have to be emitted as soon as the customer is complete");
+
+        List<RatedMeteredRecord> records = createRecords(1000);
+        ArrayList<Integer> emittedAt = new ArrayList<>();
+        int[] read = new int[1];
+
+        long count = service.aggregate(records.stream().peek(r -> read[0]++), i -> emittedAt.add(read[0]));
+
+        assertEquals("The number of invoices does not match", customers.size(), count);
+        for (int i = 0; i < emittedAt.size() - 1; i++) {
+            assertEquals("The invoice has not been emitted with the first record of the next customer",
+                         records.size() / customers.size() * (i + 1) + 1, (int) emittedAt.get(i));
+        }
+        assertEquals("The last invoice has not been emitted at the end", records.size(), (int) emittedAt.get(emittedAt.size() - 1));
+    }
+
+    @Test
+    public void recordsNotGroupedByCustomerAreRejected() {
+        logMethod("ungrouped", "Records not grouped by customer have to be rejected");
+
+        List<RatedMeteredRecord> records = createRecords(100);
+        Collections.shuffle(records, new Random(SEED));
+
+        try {
+            service.aggregate(records.stream());
+
+            fail("Records not grouped by customer have been aggregated");
+        } catch (IllegalArgumentException e) {
+            LOG.debug("Caught expected exception: {}", e.getMessage());
+        }
+    }
+
+    @Test
+    public void sortedRecordsAreAggregated() {
+        logMethod("sorted", "Records sorted by the customer order have to be aggregated");
+
+        List<RatedMeteredRecord> records = createRecords(1000);
+        Collections.shuffle(records, new Random(SEED));
+
+        RatedBaseRecord[] sorted = new SorterImpl().sort(records.toArray(new RatedBaseRecord[0]), InvoiceAggregator.CUSTOMER_ORDER);
+        List<Invoice> result = service.aggregate(Arrays.stream(sorted));
+
+        assertEquals("The number of invoices does not match", customers.size(), result.size());
+    }
+
+    @Test(timeout = 30000L)
+    public void runtimeTest() {
+        logMethod("runtime-verification", "checking the throughput of the aggregator ...");
+
+        List<RatedMeteredRecord> records = createRecords(200000);
+
+        ch.qos.logback.classic.Logger libellum = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger("de.kaiserpfalzedv.billing.libellum");
+        Level level = libellum.getLevel();
+        libellum.setLevel(Level.INFO);
+        try {
+            long start = System.nanoTime();
+            long count = service.aggregate(records.stream(), i -> {});
+            long duration = System.nanoTime() - start;
+
+            LOG.info("Aggregated {} records into {} invoices: {} records/s",
+                     records.size(), count, records.size() * 1000000000L / Math.max(duration, 1L));
+        } finally {
+            libellum.setLevel(level);
+        }
+    }
+
+
+    /**
+     * Creates the records grouped by customer, every customer gets the same number of records.
+     */
+    private List<RatedMeteredRecord> createRecords(final int count) {
+        RatedRecordBuilder<RatedMeteredRecord> builder = new RatedRecordBuilder<>();
+        Random random = new Random(SEED);
+        ArrayList<RatedMeteredRecord> result = new ArrayList<>(count);
+
+        int perCustomer = count / customers.size();
+        for (Customer customer : customers) {
+            for (int i = 0; i < perCustomer; i++) {
+                result.add(
+                        builder
+                                .setCustomer(customer)
+                                .setProductInfo(products.get(random.nextInt(products.size())))
+                                .setTarif(tarifs.get(random.nextInt(tarifs.size())))
+                                .setValueDate(MONTH.plusHours(random.nextInt(28 * 24)))
+                                .setMeteredValue(BigDecimal.valueOf(random.nextInt(1000)))
+                                .setTags(TAGS)
+                                .build()
+                );
+            }
+        }
+
+        return result;
+    }
+
+    private void logMethod(final String method, final String message, final Object... paramater) {
+        MDC.put("id", method);
+
+        LOG.debug(message, paramater);
+    }
+
+    @Before
+    public void setUp() {
+        customers = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            customers.add(
+                    new CustomerBuilder()
+                            .setId(UUID.randomUUID())
+                            .setName("Customer " + i)
+                            .setCostReference("10101" + i)
+                            .build()
+            );
+        }
+
+        products = new ArrayList<>();
+        for (String name : new String[]{"Cluster CPU Usage", "Cluster Memory Usage", "Cluster Storage"}) {
+            ProductInfo info = new ProductInfoBuilder()
+                    .setName(name)
+                    .build();
+
+            products.add(
+                    new ProductRecordInfoBuilder()
+                            .setProductInfo(info)
+                            .setTags(TAGS)
+                            .build()
+            );
+        }
+
+        tarifs = new ArrayList<>();
+        for (int i = 1; i <= 2; i++) {
+            tarifs.add(
+                    new TarifBuilder()
+                            .withName("Tarif " + i)
+                            .withUnit("EUR/unit")
+                            .withRate(Money.of(BigDecimal.valueOf(i), CURRENCY))
+                            .withUnitDivisor(BigDecimal.valueOf(1000L))
+                            .build()
+            );
+        }
+
+        service = new InvoiceAggregator(INVOICE_DATE);
+    }
+
+    @After
+    public void tearDown() {
+        MDC.remove("id");
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.libellum;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.money.CurrencyUnit;
+import javax.money.Monetary;
+
+import ch.qos.logback.classic.Level;
+import de.kaiserpfalzedv.billing.api.billed.Invoice;
+import de.kaiserpfalzedv.billing.api.billed.InvoiceItem;
+import de.kaiserpfalzedv.billing.api.billed.InvoicePart;
+import de.kaiserpfalzedv.billing.api.guided.Customer;
+import de.kaiserpfalzedv.billing.api.guided.ProductInfo;
+import de.kaiserpfalzedv.billing.api.guided.ProductRecordInfo;
+import de.kaiserpfalzedv.billing.api.rated.RatedBaseRecord;
+import de.kaiserpfalzedv.billing.api.rated.RatedMeteredRecord;
+import de.kaiserpfalzedv.billing.api.rated.Tarif;
+import de.kaiserpfalzedv.billing.princeps.api.CustomerBuilder;
+import de.kaiserpfalzedv.billing.princeps.api.ProductInfoBuilder;
+import de.kaiserpfalzedv.billing.princeps.api.ProductRecordInfoBuilder;
+import de.kaiserpfalzedv.billing.ratio.RatedRecordBuilder;
+import de.kaiserpfalzedv.billing.ratio.api.TarifBuilder;
+import org.javamoney.moneta.Money;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+import static java.time.ZoneOffset.UTC;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the parallel invoice run against the {@link InvoiceAggregator} processing all records in a single thread.
+ * The random generator is seeded, so failures can be reproduced.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class InvoiceRunTest {
+    private static final Logger LOG = LoggerFactory.getLogger(InvoiceRunTest.class);
+
+    private static final CurrencyUnit CURRENCY = Monetary.getCurrency("EUR");
+
+    private static final long SEED = 20180218L;
+    private static final OffsetDateTime MONTH = OffsetDateTime.of(2018, 2, 1, 0, 0, 0, 0, UTC);
+    private static final LocalDate INVOICE_DATE = LocalDate.of(2018, 3, 1);
+
+    private static final Map<String, String> TAGS = new HashMap<>(4);
+    static {
+        TAGS.put("cluster", "abbot1");
+        TAGS.put("project", "billing");
+    }
+
+    private static ForkJoinPool pool;
+
+    private List<ProductRecordInfo> products;
+    private List<Tarif> tarifs;
+    private Random random;
+
+    private InvoiceRun service;
+
+    @BeforeClass
+    public static void setUpMDC() {
+        MDC.put("test", InvoiceRun.class.getSimpleName());
+
+        if (!SLF4JBridgeHandler.isInstalled()) {
+            SLF4JBridgeHandler.install();
+        }
+
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterClass
+    public static void tearDownMDC() {
+        MDC.remove("id");
+        MDC.remove("test");
+
+        if (SLF4JBridgeHandler.isInstalled()) {
+            SLF4JBridgeHandler.uninstall();
+        }
+
+        pool.shutdown();
+    }
+
+    @Test
+    public void invoicesMatchTheSerialAggregation() {
+        logMethod("serial", "The invoices have to match the ones of the serial aggregation");
+
+        Map<Customer, List<RatedMeteredRecord>> records = createCustomers(20, 500);
+        records.putAll(createCustomers(1, 50000));
+
+        List<Invoice> result = service.execute(records);
+
+        assertEquals("The number of invoices does not match", records.size(), result.size());
+
+        ArrayList<RatedBaseRecord> all = new ArrayList<>();
+        records.values().forEach(all::addAll);
+        List<Invoice> expected = new InvoiceAggregator(INVOICE_DATE).aggregate(all.stream());
+        for (int i = 0; i < expected.size(); i++) {
+            assertInvoice(expected.get(i), result.get(i));
+        }
+    }
+
+    @Test
+    public void hugeCustomersAreSplitIntoSlices() {
+        logMethod("huge", "Customers with many records have to be spread over several slices");
+
+        Map<Customer, List<RatedMeteredRecord>> records = createCustomers(1, 50000);
+        AtomicInteger slices = new AtomicInteger();
+        AtomicLong completed = new AtomicLong();
+        ConcurrentHashMap<UUID, Long> invoiced = new ConcurrentHashMap<>();
+
+        service.execute(records, new InvoiceRunListener() {
+            @Override
+            public void invoiced(final Invoice invoice, final long records, final Duration duration) {
+                invoiced.put(invoice.getCustomer().getId(), records);
+            }
+
+            @Override
+            public void progress(final long completedRecords, final long totalRecords) {
+                slices.incrementAndGet();
+                completed.accumulateAndGet(completedRecords, Math::max);
+            }
+        });
+
+        assertEquals("The customer has not been split", (50000 + InvoiceRun.MINIMUM_SLICE_SIZE - 1) / InvoiceRun.MINIMUM_SLICE_SIZE, slices.get());
+        assertEquals("The progress is not complete", 50000L, completed.get());
+        assertEquals("The records of the customer do not match", 50000L, (long) invoiced.values().iterator().next());
+    }
+
+    @Test
+    public void everyCustomerIsTimed() {
+        logMethod("timing", "Every customer has to be reported with its timing");
+
+        Map<Customer, List<RatedMeteredRecord>> records = createCustomers(50, 100);
+        ConcurrentHashMap<UUID, Duration> durations = new ConcurrentHashMap<>();
+
+        service.execute(records, (invoice, count, duration) -> durations.put(invoice.getCustomer().getId(), duration));
+
+        assertEquals("The number of customers reported does not match", records.size(), durations.size());
+        for (Duration duration : durations.values()) {
+            assertTrue("The duration is not positive", !duration.isNegative() && !duration.isZero());
+        }
+    }
+
+    @Test
+    public void customersWithoutRecordsAreSkipped() {
+        logMethod("empty", "Customers without records must not be invoiced");
+
+        Map<Customer, List<RatedMeteredRecord>> records = createCustomers(3, 10);
+        Customer empty = new CustomerBuilder()
+                .setId(UUID.randomUUID())
+                .setName("Empty Customer")
+                .setCostReference("0")
+                .build();
+        records.put(empty, Collections.emptyList());
+
+        List<Invoice> result = service.execute(records);
+
+        assertEquals("The number of invoices does not match", 3, result.size());
+    }
+
+    @Test
+    public void failuresAreRethrown() {
+        logMethod("failure", "Failures of the workers have to be rethrown");
+
+        Map<Customer, List<? extends RatedBaseRecord>> records = new LinkedHashMap<>(createCustomers(10, 100));
+        records.put(createCustomer(99), new AbstractList<RatedBaseRecord>() {
+            @Override
+            public RatedBaseRecord get(final int index) {
+                throw new IllegalStateException("Can't read record " + index);
+            }
+
+            @Override
+            public int size() {
+                return 100;
+            }
+        });
+
+        try {
+            service.execute(records);
+
+            fail("The failure of the worker has not been rethrown");
+        } catch (IllegalStateException e) {
+            LOG.debug("Caught expected exception: {}", e.getMessage());
+        }
+    }
+
+    @Test(timeout = 60000L)
+    public void runtimeTest() {
+        logMethod("runtime-verification", "checking the throughput of the invoice run ...");
+
+        Map<Customer, List<RatedMeteredRecord>> records = createCustomers(100, 1000);
+        records.putAll(createCustomers(1, 100000));
+
+        ch.qos.logback.classic.Logger libellum = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger("de.kaiserpfalzedv.billing.libellum");
+        Level level = libellum.getLevel();
+        libellum.setLevel(Level.INFO);
+        try {
+            long start = System.nanoTime();
+            List<Invoice> result = service.execute(records);
+            long duration = System.nanoTime() - start;
+
+            LOG.info("Invoiced {} customers on {} workers: {} records/s",
+                     result.size(), service.getParallelism(), 200000L * 1000000000L / Math.max(duration, 1L));
+        } finally {
+            libellum.setLevel(level);
+        }
+    }
+
+
+    private static void assertInvoice(final Invoice expected, final Invoice result) {
+        assertEquals("The customer does not match", expected.getCustomer(), result.getCustomer());
+        assertEquals("The amount does not match", expected.getAmount(), result.getAmount());
+        assertEquals("The number of parts does not match", expected.getParts().size(), result.getParts().size());
+
+        for (int i = 0; i < expected.getParts().size(); i++) {
+            InvoicePart expectedPart = expected.getParts().get(i);
+            InvoicePart resultPart = result.getParts().get(i);
+
+            assertEquals("The part does not match", expectedPart.getTitle(), resultPart.getTitle());
+            assertEquals("The amount of the part does not match", expectedPart.getAmount(), resultPart.getAmount());
+            assertEquals("The number of items does not match", expectedPart.getItems().length, resultPart.getItems().length);
+
+            for (int j = 0; j < expectedPart.getItems().length; j++) {
+                InvoiceItem expectedItem = expectedPart.getItems()[j];
+                InvoiceItem resultItem = resultPart.getItems()[j];
+
+                assertEquals("The item does not match", expectedItem.getItemId(), resultItem.getItemId());
+                assertEquals("The amount of the item does not match", expectedItem.getAmount(), resultItem.getAmount());
+            }
+        }
+    }
+
+    private Map<Customer, List<RatedMeteredRecord>> createCustomers(final int count, final int records) {
+        LinkedHashMap<Customer, List<RatedMeteredRecord>> result = new LinkedHashMap<>(count);
+
+        for (int i = 0; i < count; i++) {
+            Customer customer = createCustomer(random.nextInt());
+            result.put(customer, createRecords(customer, records));
+        }
+
+        return result;
+    }
+
+    private Customer createCustomer(final int number) {
+        return new CustomerBuilder()
+                .setId(UUID.randomUUID())
+                .setName("Customer " + number)
+                .setCostReference(Integer.toString(number))
+                .build();
+    }
+
+    private List<RatedMeteredRecord> createRecords(final Customer customer, final int count) {
+        RatedRecordBuilder<RatedMeteredRecord> builder = new RatedRecordBuilder<>();
+        ArrayList<RatedMeteredRecord> result = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            result.add(
+                    builder
+                            .setCustomer(customer)
+                            .setProductInfo(products.get(random.nextInt(products.size())))
+                            .setTarif(tarifs.get(random.nextInt(tarifs.size())))
+                            .setValueDate(MONTH.plusHours(random.nextInt(28 * 24)))
+                            .setMeteredValue(BigDecimal.valueOf(random.nextInt(1000)))
+                            .setTags(TAGS)
+                            .build()
+            );
+        }
+
+        return result;
+    }
+
+    private void logMethod(final String method, final String message, final Object... paramater) {
+        MDC.put("id", method);
+
+        LOG.debug(message, paramater);
+    }
+
+    @Before
+    public void setUp() {
+        random = new Random(SEED);
+
+        products = new ArrayList<>();
+        for (String name : new String[]{"Cluster CPU Usage", "Cluster Memory Usage", "Cluster Storage"}) {
+            ProductInfo info = new ProductInfoBuilder()
+                    .setName(name)
+                    .build();
+
+            products.add(
+                    new ProductRecordInfoBuilder()
+                            .setProductInfo(info)
+                            .setTags(TAGS)
+                            .build()
+            );
+        }
+
+        tarifs = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            tarifs.add(
+                    new TarifBuilder()
+                            .withName("Tarif " + i)
+                            .withUnit("EUR/unit")
+                            .withRate(Money.of(BigDecimal.valueOf(i), CURRENCY))
+                            .withUnitDivisor(BigDecimal.valueOf(1000L))
+                            .build()
+            );
+        }
+
+        service = new InvoiceRun(INVOICE_DATE, pool);
+    }
+
+    @After
+    public void tearDown() {
+        MDC.remove("id");
+    }
+}
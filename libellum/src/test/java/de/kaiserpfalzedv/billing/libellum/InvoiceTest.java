@@ -25,6 +25,7 @@ import javax.money.Monetary;
 import javax.money.MonetaryAmount;
 
 import de.kaiserpfalzedv.billing.api.billed.Invoice;
+import de.kaiserpfalzedv.billing.api.billed.InvoiceItem;
 import de.kaiserpfalzedv.billing.api.guided.Customer;
 import de.kaiserpfalzedv.billing.princeps.api.CustomerBuilder;
 import org.javamoney.moneta.Money;
@@ -137,6 +138,25 @@ public class InvoiceTest {
         assertEquals("The amount does not match!", AMOUNT, result.getAmount());
     }
 
+    @Test
+    public void shouldSumThePartsWhenNoAmountIsGiven() {
+        logMethod("calculated-amount", "Should sum the amounts of the parts when no amount is given");
+
+        ArrayList<InvoiceItem> items = new ArrayList<>();
+        items.add(new InvoiceItemBuilder().setTitle("Item 1").setAmount(Money.of(1000L, CURRENCY)).build());
+        items.add(new InvoiceItemBuilder().setTitle("Item 2").setAmount(Money.of(0.5D, CURRENCY)).build());
+
+        Invoice result = service
+                .setCustomer(CUSTOMER)
+                .setCurrency(CURRENCY)
+                .addPart("Test", items)
+                .addPart("Test 2", items)
+                .build();
+        LOG.debug("Result: {}", result);
+
+        assertEquals("The amount does not match!", Money.of(2001L, CURRENCY), result.getAmount());
+    }
+
     @Test(timeout = 1500L)
     public void shouldNotExceedTimeLimitWhenCalled1000Times() {
         logMethod("runtime-validation",
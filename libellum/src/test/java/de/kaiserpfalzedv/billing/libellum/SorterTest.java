@@ -0,0 +1,308 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.libellum;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.money.CurrencyUnit;
+import javax.money.Monetary;
+
+import ch.qos.logback.classic.Level;
+import de.kaiserpfalzedv.billing.api.guided.Customer;
+import de.kaiserpfalzedv.billing.api.guided.ProductInfo;
+import de.kaiserpfalzedv.billing.api.guided.ProductRecordInfo;
+import de.kaiserpfalzedv.billing.api.rated.RatedBaseRecord;
+import de.kaiserpfalzedv.billing.api.rated.RatedMeteredRecord;
+import de.kaiserpfalzedv.billing.api.rated.Tarif;
+import de.kaiserpfalzedv.billing.princeps.api.CustomerBuilder;
+import de.kaiserpfalzedv.billing.princeps.api.ProductInfoBuilder;
+import de.kaiserpfalzedv.billing.princeps.api.ProductRecordInfoBuilder;
+import de.kaiserpfalzedv.billing.ratio.RatedRecordBuilder;
+import de.kaiserpfalzedv.billing.ratio.api.TarifBuilder;
+import org.javamoney.moneta.Money;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+import static java.time.ZoneOffset.UTC;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the sorter against {@link List#sort(Comparator)} with randomly generated records. The random generator is
+ * seeded, so failures can be reproduced.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class SorterTest {
+    private static final Logger LOG = LoggerFactory.getLogger(SorterTest.class);
+
+    private static final CurrencyUnit CURRENCY = Monetary.getCurrency("EUR");
+
+    private static final long SEED = 20180218L;
+    private static final OffsetDateTime MONTH = OffsetDateTime.of(2018, 2, 1, 0, 0, 0, 0, UTC);
+
+    /**
+     * Sorts by the value date only, so records with the same value date show whether the sort is stable.
+     */
+    private static final Comparator<RatedBaseRecord> BY_VALUE_DATE = Comparator.comparing(RatedBaseRecord::getValueDate);
+
+    private static final Map<String, String> TAGS = new HashMap<>(4);
+    static {
+        TAGS.put("cluster", "abbot1");
+        TAGS.put("project", "billing");
+    }
+
+    private static final Customer CUSTOMER = new CustomerBuilder()
+            .setName("TestCustomer")
+            .setCostReference("101010")
+            .build();
+
+    private static final Tarif TARIF = new TarifBuilder()
+            .withName("CPU usage")
+            .withUnit("EUR/mCores h")
+            .withRate(Money.of(BigDecimal.TEN, CURRENCY))
+            .withUnitDivisor(BigDecimal.valueOf(1000L))
+            .build();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ProductRecordInfo product;
+    private SorterImpl service;
+
+    @BeforeClass
+    public static void setUpMDC() {
+        MDC.put("test", Sorter.class.getSimpleName());
+
+        if (!SLF4JBridgeHandler.isInstalled()) {
+            SLF4JBridgeHandler.install();
+        }
+    }
+
+    @AfterClass
+    public static void tearDownMDC() {
+        MDC.remove("id");
+        MDC.remove("test");
+
+        if (SLF4JBridgeHandler.isInstalled()) {
+            SLF4JBridgeHandler.uninstall();
+        }
+    }
+
+    @Test
+    public void arraysAreSortedIntoNewArray() {
+        logMethod("array", "Arrays have to be sorted into a new array");
+
+        List<RatedMeteredRecord> records = createRecords(1000);
+        RatedBaseRecord[] unsorted = records.toArray(new RatedMeteredRecord[0]);
+
+        RatedBaseRecord[] result = service.sort(unsorted, BY_VALUE_DATE);
+
+        assertArrayEquals("The records are not sorted", expected(records).toArray(), result);
+        assertArrayEquals("The unsorted records have been changed", records.toArray(), unsorted);
+    }
+
+    @Test
+    public void smallStreamsAreSortedInMemory() throws IOException {
+        logMethod("in-memory", "Streams fitting into a run have to be sorted in memory");
+
+        List<RatedMeteredRecord> records = createRecords(100);
+
+        try (Stream<RatedBaseRecord> result = service.sort(records.stream(), BY_VALUE_DATE)) {
+            assertEquals("The records are not sorted", expected(records), result.collect(Collectors.toList()));
+        }
+
+        assertEquals("Runs have been spilled", 0, listRuns().length);
+    }
+
+    @Test
+    public void largeStreamsAreSpilledAndMerged() throws IOException {
+        logMethod("external", "Streams larger than a run have to be spilled and merged");
+
+        List<RatedMeteredRecord> records = createRecords(2000);
+
+        try (Stream<RatedBaseRecord> result = service.sort(records.stream(), BY_VALUE_DATE)) {
+            assertEquals("The runs have not been spilled", 19, listRuns().length);
+
+            List<RatedBaseRecord> sorted = result.collect(Collectors.toList());
+            List<RatedMeteredRecord> expected = expected(records);
+
+            assertEquals("The number of records does not match", records.size(), sorted.size());
+            for (int i = 0; i < sorted.size(); i++) {
+                assertEquals("The record at " + i + " does not match", expected.get(i).getId(), sorted.get(i).getId());
+            }
+        }
+
+        assertEquals("The runs have not been removed", 0, listRuns().length);
+    }
+
+    @Test
+    public void manyRunsAreMergedInSeveralPasses() throws IOException {
+        logMethod("passes", "More runs than the merge width have to be merged in several passes");
+
+        service = new SorterImpl(10, 4, folder.getRoot().toPath());
+        List<RatedMeteredRecord> records = createRecords(1000);
+
+        try (Stream<RatedBaseRecord> result = service.sort(records.stream(), BY_VALUE_DATE)) {
+            assertEquals("The runs have not been merged", 2, listRuns().length);
+
+            List<RatedBaseRecord> sorted = result.collect(Collectors.toList());
+            List<RatedMeteredRecord> expected = expected(records);
+            for (int i = 0; i < sorted.size(); i++) {
+                assertEquals("The record at " + i + " does not match", expected.get(i).getId(), sorted.get(i).getId());
+            }
+        }
+
+        assertEquals("The runs have not been removed", 0, listRuns().length);
+    }
+
+    @Test
+    public void farMoreRunsThanTheMergeWidthAreMergedInBalancedPasses() throws IOException {
+        logMethod("balanced-passes", "Far more runs than the merge width have to be merged stable in balanced passes");
+
+        service = new SorterImpl(10, 2, folder.getRoot().toPath());
+        List<RatedMeteredRecord> records = createRecords(2000);
+
+        try (Stream<RatedBaseRecord> result = service.sort(records.stream(), BY_VALUE_DATE)) {
+            // 199 spilled runs are merged to 100, 50, 25, 13, 7, 4, 2 and finally 1 run.
+            assertEquals("The runs have not been merged", 1, listRuns().length);
+
+            List<RatedBaseRecord> sorted = result.collect(Collectors.toList());
+            List<RatedMeteredRecord> expected = expected(records);
+
+            assertEquals("The number of records does not match", records.size(), sorted.size());
+            for (int i = 0; i < sorted.size(); i++) {
+                assertEquals("The record at " + i + " does not match", expected.get(i).getId(), sorted.get(i).getId());
+            }
+        }
+
+        assertEquals("The runs have not been removed", 0, listRuns().length);
+    }
+
+    @Test(timeout = 60000L)
+    public void runtimeTest() throws IOException {
+        logMethod("runtime-verification", "checking the throughput of the sorter ...");
+
+        List<RatedMeteredRecord> records = createRecords(200000);
+
+        ch.qos.logback.classic.Logger libellum = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger("de.kaiserpfalzedv.billing.libellum");
+        Level level = libellum.getLevel();
+        libellum.setLevel(Level.INFO);
+        try {
+            long start = System.nanoTime();
+            service.sort(records.toArray(new RatedBaseRecord[0]), BY_VALUE_DATE);
+            long inMemory = System.nanoTime() - start;
+
+            service = new SorterImpl(20000, SorterImpl.DEFAULT_MERGE_WIDTH, folder.getRoot().toPath());
+            start = System.nanoTime();
+            long count;
+            try (Stream<RatedBaseRecord> result = service.sort(records.stream(), BY_VALUE_DATE)) {
+                count = result.count();
+            }
+            long external = System.nanoTime() - start;
+
+            LOG.info("Sorted {} records: in memory {} records/s, external (10 runs) {} records/s",
+                     count, recordsPerSecond(records.size(), inMemory), recordsPerSecond(records.size(), external));
+        } finally {
+            libellum.setLevel(level);
+        }
+    }
+
+    private static long recordsPerSecond(final int records, final long nanos) {
+        return records * 1000000000L / Math.max(nanos, 1L);
+    }
+
+    private static <T extends RatedBaseRecord> List<T> expected(final List<T> records) {
+        ArrayList<T> result = new ArrayList<>(records);
+
+        result.sort(BY_VALUE_DATE);
+        return result;
+    }
+
+    private File[] listRuns() {
+        return folder.getRoot().listFiles((dir, name) -> name.startsWith("libellum-run-"));
+    }
+
+    private List<RatedMeteredRecord> createRecords(final int count) {
+        RatedRecordBuilder<RatedMeteredRecord> builder = new RatedRecordBuilder<>();
+        Random random = new Random(SEED);
+        ArrayList<RatedMeteredRecord> result = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            result.add(
+                    builder
+                            .setCustomer(CUSTOMER)
+                            .setProductInfo(product)
+                            .setTarif(TARIF)
+                            .setValueDate(MONTH.plusHours(random.nextInt(28 * 24)))
+                            .setMeteredValue(BigDecimal.valueOf(random.nextInt(1000)))
+                            .setTags(TAGS)
+                            .build()
+            );
+        }
+
+        return result;
+    }
+
+    private void logMethod(final String method, final String message, final Object... paramater) {
+        MDC.put("id", method);
+
+        LOG.debug(message, paramater);
+    }
+
+    @Before
+    public void setUp() {
+        ProductInfo info = new ProductInfoBuilder()
+                .setName("Cluster CPU Usage")
+                .build();
+
+        product = new ProductRecordInfoBuilder()
+                .setProductInfo(info)
+                .setTags(TAGS)
+                .build();
+
+        service = new SorterImpl(100, SorterImpl.DEFAULT_MERGE_WIDTH, folder.getRoot().toPath());
+    }
+
+    @After
+    public void tearDown() {
+        MDC.remove("id");
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package de.kaiserpfalzedv.billing.notitia.jpa.customer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import de.kaiserpfalzedv.billing.api.guided.Customer;
+import de.kaiserpfalzedv.billing.api.guided.NoCustomerFoundException;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-memory inverted index from the tags of the customers to the customers. Customers are grouped by the tag
+ * keys they define; within every group the tag values point to the customers. A record belongs to a customer if
+ * the record carries all tags of the customer. All other tags of the record (like the pod name) are ignored.
+ *
+ * If a record matches several customers, the customer with the most tags wins. If there are several of them, the
+ * record is ambiguous and no customer is found.
+ *
+ * Lookups work on an immutable snapshot and don't block. Updates are serialized and replace the snapshot.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+@ApplicationScoped
+public class CustomerTagIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(CustomerTagIndex.class);
+
+    /**
+     * Marks tag values shared by more than one customer.
+     */
+    private static final Object AMBIGUOUS = new Object();
+
+    /**
+     * All indexed customers. Only modified while holding the lock of this index.
+     */
+    private final HashMap<UUID, IndexedCustomer> customers = new HashMap<>();
+
+    private volatile Snapshot snapshot = new Snapshot(Collections.emptyMap());
+
+    /**
+     * Timestamp (in ms since epoch) of the last update.
+     */
+    private volatile long lastUpdate;
+
+    /**
+     * Held by the single thread reloading the index from the database.
+     */
+    private final ReentrantLock refreshLock = new ReentrantLock();
+
+
+    /**
+     * Retrieves the customer of the record with the given tags.
+     *
+     * @param tags the tags of the record.
+     * @return the customer.
+     * @throws NoCustomerFoundException if no customer or more than one customer matches the tags.
+     */
+    public Customer retrieve(final Map<String, String> tags) throws NoCustomerFoundException {
+        Customer result = snapshot.retrieve(tags);
+
+        if (result == null) {
+            throw new NoCustomerFoundException(tags);
+        }
+
+        return result;
+    }
+
+    /**
+     * Adds or replaces the given customers and removes the customers with the given ids. The new state is visible
+     * to lookups when this method returns.
+     *
+     * @param changed the new or changed customers.
+     * @param removed the ids of the removed customers.
+     */
+    public synchronized void update(final Collection<JPACustomer> changed, final Collection<UUID> removed) {
+        for (UUID id : removed) {
+            customers.remove(id);
+        }
+
+        for (JPACustomer customer : changed) {
+            customers.put(customer.getId(), new IndexedCustomer(customer));
+        }
+
+        snapshot = new Snapshot(customers);
+        lastUpdate = System.currentTimeMillis();
+
+        LOG.debug("Updated customer tag index: changed={}, removed={}, customers={}, signatures={}",
+                  changed.size(), removed.size(), customers.size(), snapshot.signatures.length);
+    }
+
+    /**
+     * @return the indexed version of every customer.
+     */
+    public Map<UUID, Long> getVersions() {
+        return snapshot.versions;
+    }
+
+    /**
+     * @return all tag keys any customer is identified by. Other tags of a record are irrelevant.
+     */
+    public Set<String> getIndexedKeys() {
+        return snapshot.keys;
+    }
+
+    public long getLastUpdate() {
+        return lastUpdate;
+    }
+
+    public ReentrantLock getRefreshLock() {
+        return refreshLock;
+    }
+
+    public int size() {
+        return snapshot.versions.size();
+    }
+
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append(System.identityHashCode(this))
+                .append("customers", size())
+                .append("signatures", snapshot.signatures.length)
+                .append("lastUpdate", lastUpdate)
+                .toString();
+    }
+
+
+    private static final class IndexedCustomer {
+        private final Customer customer;
+        private final Long version;
+        private final String[] keys;
+        private final List<String> values;
+
+        IndexedCustomer(final JPACustomer customer) {
+            this.customer = customer;
+            this.version = customer.getVersion();
+
+            Map<String, String> tags = customer.getTags();
+            this.keys = tags.keySet().toArray(new String[tags.size()]);
+            Arrays.sort(keys);
+
+            String[] values = new String[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                values[i] = tags.get(keys[i]);
+            }
+            this.values = Arrays.asList(values);
+        }
+    }
+
+    /**
+     * All customers defining the same set of tag keys.
+     */
+    private static final class Signature {
+        private final String[] keys;
+
+        /**
+         * The customers by their tag values (in the order of the {@link #keys}). The value is either a
+         * {@link Customer} or {@link #AMBIGUOUS}.
+         */
+        private final HashMap<List<String>, Object> customers = new HashMap<>();
+
+        Signature(final String[] keys) {
+            this.keys = keys;
+        }
+
+        /**
+         * @return the customer of the tags, {@link #AMBIGUOUS} or null if the tags don't match.
+         */
+        Object retrieve(final Map<String, String> tags) {
+            String[] values = new String[keys.length];
+
+            for (int i = 0; i < keys.length; i++) {
+                values[i] = tags.get(keys[i]);
+
+                if (values[i] == null) {
+                    return null;
+                }
+            }
+
+            return customers.get(Arrays.asList(values));
+        }
+    }
+
+    private static final class Snapshot {
+        /**
+         * Signatures ordered by the number of keys, the most specific first.
+         */
+        private final Signature[] signatures;
+        private final Map<UUID, Long> versions;
+        private final Set<String> keys;
+
+        Snapshot(final Map<UUID, IndexedCustomer> customers) {
+            HashMap<List<String>, Signature> signatures = new HashMap<>();
+            HashMap<UUID, Long> versions = new HashMap<>(customers.size());
+            TreeSet<String> keys = new TreeSet<>();
+
+            for (IndexedCustomer customer : customers.values()) {
+                versions.put(customer.customer.getId(), customer.version);
+
+                if (customer.keys.length == 0) {
+                    // customers without tags can't be identified by the tags of a record.
+                    continue;
+                }
+
+                keys.addAll(Arrays.asList(customer.keys));
+
+                Signature signature = signatures.computeIfAbsent(
+                        Arrays.asList(customer.keys), k -> new Signature(customer.keys)
+                );
+                signature.customers.merge(customer.values, customer.customer, (a, b) -> AMBIGUOUS);
+            }
+
+            ArrayList<Signature> ordered = new ArrayList<>(signatures.values());
+            ordered.sort(Comparator.comparingInt((Signature s) -> s.keys.length).reversed());
+
+            this.signatures = ordered.toArray(new Signature[ordered.size()]);
+            this.versions = Collections.unmodifiableMap(versions);
+            this.keys = Collections.unmodifiableSet(keys);
+        }
+
+        Customer retrieve(final Map<String, String> tags) {
+            Object result = null;
+            int specificity = -1;
+
+            for (Signature signature : signatures) {
+                if (signature.keys.length < specificity) {
+                    break;
+                }
+
+                Object match = signature.retrieve(tags);
+                if (match != null) {
+                    result = (result == null) ? match : AMBIGUOUS;
+                    specificity = signature.keys.length;
+                }
+            }
+
+            return (result instanceof Customer) ? (Customer) result : null;
+        }
+    }
+}
@@ -16,10 +16,14 @@
 
 package de.kaiserpfalzedv.billing.notitia.jpa.customer;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
 
-import javax.cache.annotation.CacheResult;
+import javax.inject.Inject;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 
@@ -30,6 +34,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Retrieves the customers via the {@link CustomerTagIndex}. The index is loaded from the database on first use
+ * and refreshed every {@link #REFRESH_INTERVAL} ms. Only customers with a changed version are read again.
+ *
+ * Only one thread refreshes the index, the other threads keep using the current index meanwhile. Only the first load
+ * blocks all callers, since there is no index to use before.
+ *
  * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
  * @version 1.0.0
  * @since 2018-02-17
@@ -37,21 +47,90 @@ import org.slf4j.LoggerFactory;
 public class JPACustomerRepository implements CustomerRepository {
     private static final Logger LOG = LoggerFactory.getLogger(JPACustomerRepository.class);
 
+    /**
+     * Time in ms after which the index is checked for changed customers.
+     */
+    public static final long REFRESH_INTERVAL = 60000L;
+
+    /**
+     * Maximum number of customer ids given to a single query (Oracle allows at most 1000 values in an IN list).
+     */
+    public static final int MAX_IDS_PER_QUERY = 1000;
+
     @PersistenceContext(name = "notitia")
     private EntityManager em;
 
-    @CacheResult
+    @Inject
+    private CustomerTagIndex index;
+
     @Override
     public Customer retrieve(final Map<String, String> tags) throws NoCustomerFoundException {
-        List<JPACustomer> customers = em
-                .createQuery("select c from Customers c where c.tags=:tags", JPACustomer.class)
-                .setParameter("tags", tags)
+        long lastUpdate = index.getLastUpdate();
+        if (System.currentTimeMillis() - lastUpdate > REFRESH_INTERVAL) {
+            refreshOnce(lastUpdate == 0L);
+        }
+
+        return index.retrieve(tags);
+    }
+
+    private void refreshOnce(final boolean waitForRefresh) {
+        ReentrantLock lock = index.getRefreshLock();
+
+        if (waitForRefresh) {
+            lock.lock();
+        } else if (!lock.tryLock()) {
+            LOG.trace("Customer tag index is refreshed by another thread.");
+            return;
+        }
+
+        try {
+            // the index may have been refreshed while waiting for the lock
+            if (System.currentTimeMillis() - index.getLastUpdate() > REFRESH_INTERVAL) {
+                refresh();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Updates the index with all new, changed and removed customers. Changes are detected by the version of the
+     * customers.
+     */
+    public void refresh() {
+        Map<UUID, Long> indexed = index.getVersions();
+        HashSet<UUID> removed = new HashSet<>(indexed.keySet());
+        ArrayList<UUID> changed = new ArrayList<>();
+
+        List<Object[]> versions = em
+                .createQuery("select c.id, c.version from Customers c", Object[].class)
                 .getResultList();
 
-        if (customers.size() == 1) {
-            return customers.get(0);
+        for (Object[] version : versions) {
+            UUID id = (UUID) version[0];
+
+            removed.remove(id);
+            if (!version[1].equals(indexed.get(id))) {
+                changed.add(id);
+            }
+        }
+
+        ArrayList<JPACustomer> customers = new ArrayList<>(changed.size());
+        for (int start = 0; start < changed.size(); start += MAX_IDS_PER_QUERY) {
+            List<UUID> ids = changed.subList(start, Math.min(start + MAX_IDS_PER_QUERY, changed.size()));
+
+            customers.addAll(
+                    em
+                            .createQuery(
+                                    "select distinct c from Customers c left join fetch c.tags where c.id in :ids",
+                                    JPACustomer.class
+                            )
+                            .setParameter("ids", ids)
+                            .getResultList()
+            );
         }
 
-        throw new NoCustomerFoundException(tags);
+        LOG.debug("Refreshing customer tag index: changed={}, removed={}", changed.size(), removed.size());
+        index.update(customers, removed);
     }
 }
@@ -17,6 +17,7 @@
 package de.kaiserpfalzedv.billing.notitia.jpa.tarif;
 
 import java.math.BigDecimal;
+import java.time.OffsetDateTime;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -59,6 +60,12 @@ public class JPATarif extends JPAIdentifiable implements Tarif {
     @Column(name = "NAME_")
     private String name;
 
+    @Column(name = "VALID_FROM_")
+    private OffsetDateTime validFrom;
+
+    @Column(name = "VALID_TO_")
+    private OffsetDateTime validTo;
+
     @Column(name = "UNIT_")
     private String unit;
 
@@ -86,6 +93,24 @@ public class JPATarif extends JPAIdentifiable implements Tarif {
         this.name = name;
     }
 
+    @Override
+    public OffsetDateTime getValidFrom() {
+        return validFrom;
+    }
+
+    public void setValidFrom(OffsetDateTime validFrom) {
+        this.validFrom = validFrom;
+    }
+
+    @Override
+    public OffsetDateTime getValidTo() {
+        return validTo;
+    }
+
+    public void setValidTo(OffsetDateTime validTo) {
+        this.validTo = validTo;
+    }
+
     @Override
     public String getUnit() {
         return unit;
@@ -143,6 +168,8 @@ public class JPATarif extends JPAIdentifiable implements Tarif {
         return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
                 .appendSuper(super.toString())
                 .append("name", name)
+                .append("validFrom", validFrom)
+                .append("validTo", validTo)
                 .append("unit", unit)
                 .append("unitDivisor", unitDivisor)
                 .append("rate", rate)
@@ -0,0 +1,206 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package de.kaiserpfalzedv.billing.notitia.jpa.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import de.kaiserpfalzedv.billing.api.guided.Customer;
+import de.kaiserpfalzedv.billing.api.guided.NoCustomerFoundException;
+import de.kaiserpfalzedv.billing.notitia.jpa.customer.CustomerTagIndex;
+import de.kaiserpfalzedv.billing.notitia.jpa.customer.JPACustomer;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class CustomerTagIndexTest {
+    private static final Logger LOG = LoggerFactory.getLogger(CustomerTagIndexTest.class);
+
+    private static final JPACustomer CLUSTER_CUSTOMER = createCustomer("cluster", 0L, "cluster", "abbot1");
+    private static final JPACustomer PROJECT_CUSTOMER
+            = createCustomer("project", 0L, "cluster", "abbot1", "project", "billing");
+    private static final JPACustomer OTHER_PROJECT_CUSTOMER
+            = createCustomer("other", 0L, "cluster", "abbot1", "project", "other");
+
+    private CustomerTagIndex service;
+
+
+    @BeforeClass
+    public static void setUpClass() {
+        MDC.put("test", CustomerTagIndex.class.getSimpleName());
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        MDC.remove("test");
+        MDC.remove("id");
+    }
+
+    @Test
+    public void recordTagsNotDefinedByCustomersAreIgnored() throws NoCustomerFoundException {
+        logMethod("ignore-tags", "Tags like the pod name have to be ignored");
+
+        Customer result = service.retrieve(createTags("cluster", "abbot1", "project", "billing", "pod", "p-8fdg2"));
+
+        assertEquals("The customer does not match", PROJECT_CUSTOMER, result);
+        assertEquals("The indexed keys do not match",
+                     Arrays.asList("cluster", "project"), new ArrayList<>(service.getIndexedKeys()));
+    }
+
+    @Test
+    public void lessSpecificCustomerMatchesIfNoOtherDoes() throws NoCustomerFoundException {
+        logMethod("less-specific", "The cluster customer has to match records of unknown projects");
+
+        Customer result = service.retrieve(createTags("cluster", "abbot1", "project", "unknown", "pod", "p-8fdg2"));
+
+        assertEquals("The customer does not match", CLUSTER_CUSTOMER, result);
+    }
+
+    @Test
+    public void ambiguousTagsFindNoCustomer() {
+        logMethod("ambiguous", "Customers with identical tags can't be told apart");
+
+        service.update(
+                Collections.singletonList(createCustomer("duplicate", 0L, "cluster", "abbot1", "project", "billing")),
+                Collections.emptyList()
+        );
+
+        try {
+            service.retrieve(createTags("cluster", "abbot1", "project", "billing"));
+
+            fail("An ambiguous customer has been found");
+        } catch (NoCustomerFoundException e) {
+            LOG.debug("Caught expected exception: {}", e.getMessage());
+        }
+    }
+
+    @Test
+    public void unknownTagsFindNoCustomer() {
+        logMethod("unknown", "Records of another cluster have no customer");
+
+        try {
+            service.retrieve(createTags("cluster", "abbot2", "project", "billing"));
+
+            fail("A customer has been found for an unknown cluster");
+        } catch (NoCustomerFoundException e) {
+            assertEquals("The tags of the exception do not match", "abbot2", e.getTags().get("cluster"));
+        }
+    }
+
+    @Test
+    public void updatesReplaceAndRemoveCustomers() throws NoCustomerFoundException {
+        logMethod("update", "Changed customers have to be re-indexed, removed ones dropped");
+
+        JPACustomer changed = createCustomer("changed", 1L, "cluster", "abbot1", "project", "moved");
+        changed.setId(PROJECT_CUSTOMER.getId());
+
+        service.update(Collections.singletonList(changed), Collections.singletonList(OTHER_PROJECT_CUSTOMER.getId()));
+
+        assertEquals("The customer count does not match", 2, service.size());
+        assertEquals("The version does not match", Long.valueOf(1L), service.getVersions().get(changed.getId()));
+        assertEquals("The changed customer does not match",
+                     "changed", service.retrieve(createTags("cluster", "abbot1", "project", "moved")).getName());
+        assertEquals("The old tags still match the changed customer",
+                     CLUSTER_CUSTOMER, service.retrieve(createTags("cluster", "abbot1", "project", "billing")));
+        assertEquals("The removed customer still matches",
+                     CLUSTER_CUSTOMER, service.retrieve(createTags("cluster", "abbot1", "project", "other")));
+    }
+
+    @Test(timeout = 10000L)
+    public void runtimeTest() throws NoCustomerFoundException {
+        logMethod("runtime-verification", "checking the runtime of the customer lookup ...");
+
+        ArrayList<JPACustomer> customers = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            customers.add(createCustomer("customer-" + i, 0L, "cluster", "abbot" + (i % 10), "project", "p-" + i));
+        }
+        service.update(customers, Collections.emptyList());
+
+        List<Map<String, String>> records = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            records.add(createTags("cluster", "abbot" + (i % 10), "project", "p-" + (i * 10 + i % 10),
+                                   "pod", "pod-" + i, "container", "c-" + i));
+        }
+
+        int lookups = 1000000;
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            service.retrieve(records.get(i % records.size()));
+        }
+        long time = System.nanoTime() - start;
+
+        LOG.info("{} lookups within {} customers: {} ns per lookup", lookups, service.size(), time / lookups);
+    }
+
+
+    private static JPACustomer createCustomer(final String name, final long version, final String... tags) {
+        JPACustomer result = new JPACustomer();
+        result.setId(UUID.randomUUID());
+        result.setVersion(version);
+        result.setName(name);
+        result.setCostReference(name);
+        result.setTags(createTags(tags));
+
+        return result;
+    }
+
+    private static Map<String, String> createTags(final String... tags) {
+        HashMap<String, String> result = new HashMap<>(tags.length);
+
+        for (int i = 0; i < tags.length; i += 2) {
+            result.put(tags[i], tags[i + 1]);
+        }
+
+        return result;
+    }
+
+    private void logMethod(final String method, final String message, final Object... paramater) {
+        MDC.put("id", method);
+
+        LOG.debug(message, paramater);
+    }
+
+    @Before
+    public void setUp() {
+        service = new CustomerTagIndex();
+        service.update(Arrays.asList(CLUSTER_CUSTOMER, PROJECT_CUSTOMER, OTHER_PROJECT_CUSTOMER), Collections.emptyList());
+    }
+
+    @After
+    public void tearDown() {
+        MDC.remove("id");
+    }
+}
@@ -19,12 +19,12 @@ package de.kaiserpfalzedv.billing.openshift;
 import java.math.BigDecimal;
 import java.time.Duration;
 import java.time.OffsetDateTime;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
 
 import javax.money.MonetaryAmount;
 
+import de.kaiserpfalzedv.billing.api.base.ImmutableTags;
 import de.kaiserpfalzedv.billing.api.cdr.CallDataRecord;
 import de.kaiserpfalzedv.billing.quod.CallDataRecordImpl;
 import org.apache.commons.lang3.builder.ToStringBuilder;
@@ -37,7 +37,7 @@ import org.apache.commons.lang3.builder.ToStringBuilder;
 public class OpenShiftCallDataRecordImpl extends CallDataRecordImpl implements CallDataRecord {
     private static final long serialVersionUID = 192375848696453311L;
 
-    private final HashMap<String, String> tags = new HashMap<>();
+    private final ImmutableTags tags;
 
     OpenShiftCallDataRecordImpl(
             final UUID id,
@@ -54,9 +54,7 @@ public class OpenShiftCallDataRecordImpl extends CallDataRecordImpl implements C
             ) {
         super(id, description, tarifName, tarifRate, tarifUnit, tarifUnitDivisor, meteredTimestamp, meteredDuration, meteredValue, amount);
 
-        if (tags != null) {
-            this.tags.putAll(tags);
-        }
+        this.tags = ImmutableTags.of(tags);
     }
 
     public String getCluster() {
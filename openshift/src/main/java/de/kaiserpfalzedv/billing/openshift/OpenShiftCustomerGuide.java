@@ -17,6 +17,9 @@
 package de.kaiserpfalzedv.billing.openshift;
 
 import java.io.Serializable;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
 
 import javax.inject.Inject;
 
@@ -26,6 +29,7 @@ import de.kaiserpfalzedv.billing.api.guided.CustomerRepository;
 import de.kaiserpfalzedv.billing.api.guided.GuidingBusinessException;
 import de.kaiserpfalzedv.billing.api.guided.NoCustomerFoundException;
 import de.kaiserpfalzedv.billing.api.imported.RawBaseRecord;
+import de.kaiserpfalzedv.billing.princeps.NegativeLookupCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,9 +41,17 @@ import org.slf4j.LoggerFactory;
 public class OpenShiftCustomerGuide implements CustomerGuide, Serializable {
     private static final Logger LOG = LoggerFactory.getLogger(OpenShiftCustomerGuide.class);
 
+    /** Projects without customer are not looked up again for this time. */
+    private static final Duration NEGATIVE_TIME_TO_LIVE = Duration.ofMinutes(5L);
+    private static final List<String> NEGATIVE_KEY_TAGS = Arrays.asList("cluster", "project");
+    private static final int NEGATIVE_CACHE_SIZE = 10000;
+
     /** The repository to retrieve customer data from. */
     private CustomerRepository customerRepository;
 
+    /** The projects without customer. Not serialized, created again on first use. */
+    private transient volatile NegativeLookupCache failures;
+
 
     @Inject
     public OpenShiftCustomerGuide(
@@ -51,10 +63,30 @@ public class OpenShiftCustomerGuide implements CustomerGuide, Serializable {
     
     @Override
     public Customer getCustomer(final RawBaseRecord record) throws GuidingBusinessException {
+        failures().check(record);
+
         try {
             return customerRepository.retrieve(record.getTags());
         } catch (NoCustomerFoundException e) {
-            throw new GuidingBusinessException(record, e.getMessage(), e);
+            LOG.debug("No customer for record {}: {}", record.getId(), e.getMessage());
+            throw failures().remember(record, e.getMessage(), e);
         }
     }
+
+    private NegativeLookupCache failures() {
+        NegativeLookupCache result = failures;
+
+        if (result == null) {
+            synchronized (this) {
+                result = failures;
+
+                if (result == null) {
+                    result = new NegativeLookupCache(NEGATIVE_KEY_TAGS, NEGATIVE_CACHE_SIZE, NEGATIVE_TIME_TO_LIVE);
+                    failures = result;
+                }
+            }
+        }
+
+        return result;
+    }
 }
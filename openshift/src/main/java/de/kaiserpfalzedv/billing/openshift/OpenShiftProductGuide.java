@@ -17,6 +17,8 @@
 package de.kaiserpfalzedv.billing.openshift;
 
 import java.io.Serializable;
+import java.time.Duration;
+import java.util.List;
 import java.util.Map;
 
 import javax.inject.Inject;
@@ -28,6 +30,7 @@ import de.kaiserpfalzedv.billing.api.guided.ProductInfo;
 import de.kaiserpfalzedv.billing.api.guided.ProductRecordInfo;
 import de.kaiserpfalzedv.billing.api.guided.ProductRepository;
 import de.kaiserpfalzedv.billing.api.imported.RawBaseRecord;
+import de.kaiserpfalzedv.billing.princeps.NegativeLookupCache;
 import de.kaiserpfalzedv.billing.princeps.api.ProductRecordInfoBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,9 +43,18 @@ import org.slf4j.LoggerFactory;
 public class OpenShiftProductGuide implements ProductGuide, Serializable {
     private static final Logger LOG = LoggerFactory.getLogger(OpenShiftProductGuide.class);
 
+    /** Unknown products are not looked up again for this time. */
+    private static final Duration NEGATIVE_TIME_TO_LIVE = Duration.ofMinutes(5L);
+    /** Unknown products are remembered by the same tags the products are found by. */
+    private static final List<String> NEGATIVE_KEY_TAGS = OpenShiftProductRepository.getKeys();
+    private static final int NEGATIVE_CACHE_SIZE = 1000;
+
     /** The repository to retrieve the product data from. */
     private ProductRepository productRepository;
 
+    /** The unknown products. Not serialized, created again on first use. */
+    private transient volatile NegativeLookupCache failures;
+
 
     @Inject
     public OpenShiftProductGuide(
@@ -58,10 +70,13 @@ public class OpenShiftProductGuide implements ProductGuide, Serializable {
 
         Map<String, String> tags = record.getTags();
 
+        failures().check(record);
+
         try {
             product = productRepository.retrieveProduct(tags);
         } catch (NoProductFoundException e) {
-            throw new GuidingBusinessException(record, e.getMessage(), e);
+            LOG.debug("No product for record {}: {}", record.getId(), e.getMessage());
+            throw failures().remember(record, e.getMessage(), e);
         }
 
         return new ProductRecordInfoBuilder()
@@ -69,4 +84,21 @@ public class OpenShiftProductGuide implements ProductGuide, Serializable {
                 .setTags(tags)
                 .build();
     }
+
+    private NegativeLookupCache failures() {
+        NegativeLookupCache result = failures;
+
+        if (result == null) {
+            synchronized (this) {
+                result = failures;
+
+                if (result == null) {
+                    result = new NegativeLookupCache(NEGATIVE_KEY_TAGS, NEGATIVE_CACHE_SIZE, NEGATIVE_TIME_TO_LIVE);
+                    failures = result;
+                }
+            }
+        }
+
+        return result;
+    }
 }
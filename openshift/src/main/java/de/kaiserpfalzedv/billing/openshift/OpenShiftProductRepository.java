@@ -17,7 +17,9 @@
 package de.kaiserpfalzedv.billing.openshift;
 
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
@@ -26,9 +28,9 @@ import javax.enterprise.inject.Default;
 import de.kaiserpfalzedv.billing.api.guided.NoProductFoundException;
 import de.kaiserpfalzedv.billing.api.guided.ProductInfo;
 import de.kaiserpfalzedv.billing.api.guided.ProductRepository;
+import de.kaiserpfalzedv.billing.princeps.IndexedProductRepository;
+import de.kaiserpfalzedv.billing.princeps.IndexedProductRepositoryBuilder;
 import de.kaiserpfalzedv.billing.princeps.api.ProductInfoBuilder;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 /**
  * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
@@ -37,15 +39,16 @@ import org.slf4j.LoggerFactory;
  */
 @Default
 public class OpenShiftProductRepository implements ProductRepository {
-    private static final Logger LOG = LoggerFactory.getLogger(OpenShiftProductRepository.class);
-
-    private static final HashMap<String, ProductInfo> products = new HashMap<>();
+    /**
+     * The products in the order their rules are added to the index.
+     */
+    private static final LinkedHashMap<String, ProductInfo> products = new LinkedHashMap<>();
     static {
         products.put("POD",
                 new ProductInfoBuilder()
                         .setId(UUID.fromString("11493085-2cb6-4c34-adf9-f80fb798ff90"))
                         .setName("POD")
-                        .setTags(Arrays.asList("cluster","project", "pod"))
+                        .setTags(Collections.singletonMap("product", "POD"))
                         .build()
         );
 
@@ -53,7 +56,7 @@ public class OpenShiftProductRepository implements ProductRepository {
                      new ProductInfoBuilder()
                              .setId(UUID.fromString("cf24d806-f303-4c69-85c7-67f5f93a8416"))
                              .setName("CPU Usage")
-                             .setTags(Arrays.asList("cluster","project", "pod"))
+                             .setTags(Collections.singletonMap("product", "CPU"))
                              .build()
         );
 
@@ -61,7 +64,7 @@ public class OpenShiftProductRepository implements ProductRepository {
                      new ProductInfoBuilder()
                              .setId(UUID.fromString("79b8b0d3-45d2-465f-b147-3a9ed13e5970"))
                              .setName("RAM Usage")
-                             .setTags(Arrays.asList("cluster","project", "pod"))
+                             .setTags(Collections.singletonMap("product", "Memory"))
                              .build()
         );
 
@@ -69,7 +72,7 @@ public class OpenShiftProductRepository implements ProductRepository {
                      new ProductInfoBuilder()
                              .setId(UUID.fromString("4ebd7650-7424-4fa0-980b-0e930cbe7866"))
                              .setName("Network Usage")
-                             .setTags(Arrays.asList("cluster","project", "pod"))
+                             .setTags(Collections.singletonMap("product", "Network"))
                              .build()
         );
 
@@ -77,19 +80,36 @@ public class OpenShiftProductRepository implements ProductRepository {
                      new ProductInfoBuilder()
                              .setId(UUID.fromString("1016848d-cf44-4cb1-b214-1d78cec2d3db"))
                              .setName("Storage Usage")
-                             .setTags(Arrays.asList("cluster","project", "pod"))
+                             .setTags(Collections.singletonMap("product", "Storage"))
                              .build()
         );
     }
 
+    /**
+     * The products indexed by their tags. Every product is a rule over its own tags, so further tags of a product are
+     * part of the rules and of the {@link #getKeys() keys} the unknown products are remembered by.
+     */
+    private static final IndexedProductRepository index;
+    static {
+        IndexedProductRepositoryBuilder builder = new IndexedProductRepositoryBuilder();
+
+        for (ProductInfo product : products.values()) {
+            builder.addRule(product, product.getTags());
+        }
+
+        index = builder.build();
+    }
+
     @Override
     public ProductInfo retrieveProduct(Map<String, String> tags) throws NoProductFoundException {
-        if (! products.containsKey(tags.get("product"))) {
-            throw new NoProductFoundException(tags);
-        }
+        return index.retrieveProduct(tags);
+    }
 
-        ProductInfo result = products.get(tags.get("product"));
-        LOG.trace("Guided to product: {}", result);
-        return result;
+    /**
+     * @return the tag keys used by the rules of this repository. Records with the same values for these keys get the
+     * same product.
+     */
+    public static List<String> getKeys() {
+        return Collections.unmodifiableList(Arrays.asList(index.getKeys()));
     }
 }
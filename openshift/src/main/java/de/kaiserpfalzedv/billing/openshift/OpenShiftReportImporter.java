@@ -17,6 +17,7 @@
 package de.kaiserpfalzedv.billing.openshift;
 
 import java.io.StringReader;
+import java.nio.file.Path;
 import java.util.List;
 
 import javax.inject.Inject;
@@ -55,4 +56,12 @@ public class OpenShiftReportImporter {
         LOG.info("Importing {} billing records.", result.size());
         return result;
     }
+
+    public List<? extends RawBaseRecord> execute(final Path report) throws ImportingException {
+        List<? extends RawBaseRecord> result = importer.execute(report);
+
+
+        LOG.info("Importing {} billing records from '{}'.", result.size(), report);
+        return result;
+    }
 }
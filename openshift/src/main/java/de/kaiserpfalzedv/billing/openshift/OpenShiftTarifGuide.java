@@ -17,6 +17,11 @@
 package de.kaiserpfalzedv.billing.openshift;
 
 import java.io.Serializable;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 
@@ -26,10 +31,15 @@ import de.kaiserpfalzedv.billing.api.rated.Tarif;
 import de.kaiserpfalzedv.billing.api.rated.TarifingException;
 import de.kaiserpfalzedv.billing.api.rated.TarifingGuide;
 import de.kaiserpfalzedv.billing.api.rated.TarifingRepository;
+import de.kaiserpfalzedv.billing.ratio.TarifVersions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * The tarif guide for OpenShift records. The versions of a tarif are kept per customer and product for the time to
+ * live, so rating a record only has to find the version valid at its value date. Changed tarifs are seen after the
+ * time to live or after {@link #invalidateAll()}.
+ *
  * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
  * @version 1.0.0
  * @since 2018-02-17
@@ -37,24 +47,109 @@ import org.slf4j.LoggerFactory;
 public class OpenShiftTarifGuide implements TarifingGuide, Serializable {
     private static final Logger LOG = LoggerFactory.getLogger(OpenShiftTarifGuide.class);
 
+    /** The tarif versions are retrieved again after this time. */
+    private static final Duration TIME_TO_LIVE = Duration.ofMinutes(5L);
+
     /** The repository to retrieve the tarif from. */
     private TarifingRepository tarifingRepository;
 
+    private final long timeToLive;
+    private final Clock clock;
+
+    /** The tarif versions by customer id and product name. Not serialized, created again on first use. */
+    private transient volatile ConcurrentHashMap<List<Object>, CachedVersions> versions;
+
 
     @Inject
     public OpenShiftTarifGuide(
             final TarifingRepository tarifingRepository
+    ) {
+        this(tarifingRepository, TIME_TO_LIVE, Clock.systemUTC());
+    }
+
+    /**
+     * @param tarifingRepository the repository to retrieve the tarif from.
+     * @param timeToLive the time the versions of a tarif are kept.
+     * @param clock the clock to check the expiry against.
+     */
+    public OpenShiftTarifGuide(
+            final TarifingRepository tarifingRepository,
+            final Duration timeToLive,
+            final Clock clock
     ) {
         this.tarifingRepository = tarifingRepository;
+        this.timeToLive = timeToLive.toMillis();
+        this.clock = clock;
     }
 
     
     @Override
     public Tarif getTarif(final GuidedBaseRecord record) throws TarifingException {
+        Tarif result = getCachedVersions(record).find(record.getValueDate());
+
+        if (result == null) {
+            throw new TarifingException(record, "No tarif valid at " + record.getValueDate());
+        }
+
+        return result;
+    }
+
+    private TarifVersions<Tarif> getCachedVersions(final GuidedBaseRecord record) throws TarifingException {
+        List<Object> key = Arrays.asList(record.getCustomer().getId(), record.getProductName());
+        long now = clock.millis();
+
+        CachedVersions result = versions().get(key);
+        if (result == null || result.expires <= now) {
+            LOG.trace("Retrieving tarif versions for customer {} and product {}", key.get(0), key.get(1));
+
+            result = new CachedVersions(TarifVersions.of(getTarifVersions(record)), now + timeToLive);
+            versions().put(key, result);
+        }
+
+        return result.tarifs;
+    }
+
+    @Override
+    public List<? extends Tarif> getTarifVersions(final GuidedBaseRecord record) throws TarifingException {
         try {
-            return tarifingRepository.retrieveTarif(record.getCustomer(), record.getProductInfo());
+            return tarifingRepository.retrieveTarifVersions(record.getCustomer(), record.getProductInfo());
         } catch (NoTarifFoundException e) {
             throw new TarifingException(record, e.getMessage(), e);
         }
     }
+
+    /**
+     * Removes all kept tarif versions, e.g. after the tarifs have been changed.
+     */
+    public void invalidateAll() {
+        versions().clear();
+    }
+
+    private ConcurrentHashMap<List<Object>, CachedVersions> versions() {
+        ConcurrentHashMap<List<Object>, CachedVersions> result = versions;
+
+        if (result == null) {
+            synchronized (this) {
+                result = versions;
+
+                if (result == null) {
+                    result = new ConcurrentHashMap<>();
+                    versions = result;
+                }
+            }
+        }
+
+        return result;
+    }
+
+
+    private static final class CachedVersions {
+        private final TarifVersions<Tarif> tarifs;
+        private final long expires;
+
+        CachedVersions(final TarifVersions<Tarif> tarifs, final long expires) {
+            this.tarifs = tarifs;
+            this.expires = expires;
+        }
+    }
 }
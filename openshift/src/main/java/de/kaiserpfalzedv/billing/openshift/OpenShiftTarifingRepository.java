@@ -18,7 +18,9 @@ package de.kaiserpfalzedv.billing.openshift;
 
 import java.io.Serializable;
 import java.math.BigDecimal;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.UUID;
 
 import javax.annotation.PostConstruct;
@@ -125,4 +127,12 @@ public class OpenShiftTarifingRepository implements TarifingRepository, Serializ
         
         return tarifs.get(product.getProductName());
     }
+
+    @Override
+    public List<? extends Tarif> retrieveTarifVersions(
+            @NotNull final Customer customer,
+            @NotNull final ProductRecordInfo product
+    ) throws NoTarifFoundException {
+        return Collections.singletonList(retrieveTarif(customer, product));
+    }
 }
@@ -16,6 +16,7 @@
 
 package de.kaiserpfalzedv.billing.openshift.test;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.UUID;
 
@@ -146,6 +147,34 @@ public class OpenShiftProductRepositoryTest {
     }
 
 
+    @Test
+    public void shouldIgnoreFurtherTagsWhenCalledWithRecordTags() throws NoProductFoundException {
+        logMethod("product-record-tags", "Calling with all tags of a record");
+
+        tags.put("cluster", "abbot1");
+        tags.put("project", "billing");
+        tags.put("pod", "libellum-1");
+        tags.put("product", "Storage");
+
+        ProductInfo result = service.retrieveProduct(tags);
+        LOG.trace("Result: {}", result);
+
+        assertEquals("Product Id does not match!",
+                     UUID.fromString("1016848d-cf44-4cb1-b214-1d78cec2d3db"),
+                     result.getId());
+        assertEquals("Product tags do not match the rule!", Collections.singletonMap("product", "Storage"),
+                     result.getTags());
+    }
+
+
+    @Test
+    public void shouldUseRuleTagsAsKeys() {
+        logMethod("rule-keys", "The keys of the repository are the tags of the rules");
+
+        assertEquals("Keys do not match!", Collections.singletonList("product"), OpenShiftProductRepository.getKeys());
+    }
+
+
     private void logMethod(final String method, final String message, final Object... paramater) {
         MDC.put("id", method);
 
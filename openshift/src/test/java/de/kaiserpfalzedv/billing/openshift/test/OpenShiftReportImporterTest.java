@@ -17,11 +17,13 @@
 package de.kaiserpfalzedv.billing.openshift.test;
 
 import java.io.Reader;
+import java.nio.file.Path;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.function.Consumer;
 
 import de.kaiserpfalzedv.billing.api.imported.ImporterService;
 import de.kaiserpfalzedv.billing.api.imported.ImportingException;
@@ -92,5 +94,20 @@ public class OpenShiftReportImporterTest {
         public List<? extends RawBaseRecord> execute(Reader reader) throws ImportingException {
             return new ArrayList<>();
         }
+
+        @Override
+        public int execute(Reader reader, Consumer<? super RawBaseRecord> consumer) throws ImportingException {
+            return 0;
+        }
+
+        @Override
+        public List<? extends RawBaseRecord> execute(Path file) throws ImportingException {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public int execute(Path file, Consumer<? super RawBaseRecord> consumer) throws ImportingException {
+            return 0;
+        }
     }
 }
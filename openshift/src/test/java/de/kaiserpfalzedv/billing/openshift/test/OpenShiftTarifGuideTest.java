@@ -0,0 +1,228 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.openshift.test;
+
+import java.math.BigDecimal;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.money.CurrencyUnit;
+import javax.money.Monetary;
+
+import de.kaiserpfalzedv.billing.api.guided.Customer;
+import de.kaiserpfalzedv.billing.api.guided.GuidedMeteredRecord;
+import de.kaiserpfalzedv.billing.api.guided.ProductRecordInfo;
+import de.kaiserpfalzedv.billing.api.rated.NoTarifFoundException;
+import de.kaiserpfalzedv.billing.api.rated.Tarif;
+import de.kaiserpfalzedv.billing.api.rated.TarifingException;
+import de.kaiserpfalzedv.billing.api.rated.TarifingRepository;
+import de.kaiserpfalzedv.billing.openshift.OpenShiftTarifGuide;
+import de.kaiserpfalzedv.billing.princeps.GuidedRecordBuilder;
+import de.kaiserpfalzedv.billing.princeps.api.CustomerBuilder;
+import de.kaiserpfalzedv.billing.princeps.api.ProductInfoBuilder;
+import de.kaiserpfalzedv.billing.princeps.api.ProductRecordInfoBuilder;
+import de.kaiserpfalzedv.billing.ratio.api.TarifBuilder;
+import org.javamoney.moneta.Money;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import static java.time.ZoneOffset.UTC;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class OpenShiftTarifGuideTest {
+    private static final Logger LOG = LoggerFactory.getLogger(OpenShiftTarifGuideTest.class);
+
+    private static final Duration TIME_TO_LIVE = Duration.ofMinutes(5L);
+    private static final CurrencyUnit EUR = Monetary.getCurrency("EUR");
+    private static final OffsetDateTime SWITCH_DATE = OffsetDateTime.of(2018, 3, 1, 0, 0, 0, 0, UTC);
+
+    private static final Customer CUSTOMER = new CustomerBuilder()
+            .setName("CUSTOMER")
+            .setCostReference("COST-REFERENCE")
+            .build();
+
+    private static final Tarif OLD_TARIF = createTarif(null, SWITCH_DATE, BigDecimal.ONE);
+    private static final Tarif NEW_TARIF = createTarif(SWITCH_DATE, null, BigDecimal.TEN);
+
+    private CountingTarifingRepository repository;
+    private TestClock clock;
+    private OpenShiftTarifGuide service;
+
+
+    @Test
+    public void shouldRetrieveTheVersionsOncePerCustomerAndProduct() throws TarifingException {
+        logMethod("cached-versions", "The tarif versions have to be retrieved once per customer and product");
+
+        assertSame("The old tarif has not been found",
+                   OLD_TARIF, service.getTarif(createRecord(CUSTOMER, "CPU", SWITCH_DATE.minusDays(1L))));
+        assertSame("The new tarif has not been found",
+                   NEW_TARIF, service.getTarif(createRecord(CUSTOMER, "CPU", SWITCH_DATE)));
+        assertEquals("The number of retrievals does not match", 1, repository.calls);
+
+        service.getTarif(createRecord(CUSTOMER, "Memory", SWITCH_DATE));
+        assertEquals("The versions of another product have not been retrieved", 2, repository.calls);
+    }
+
+    @Test
+    public void shouldRetrieveTheVersionsAgainAfterTheTimeToLive() throws TarifingException {
+        logMethod("expired-versions", "The tarif versions have to be retrieved again after the time to live");
+
+        service.getTarif(createRecord(CUSTOMER, "CPU", SWITCH_DATE));
+        clock.advance(TIME_TO_LIVE.minusSeconds(1L));
+        service.getTarif(createRecord(CUSTOMER, "CPU", SWITCH_DATE));
+        assertEquals("The versions have been retrieved before the time to live", 1, repository.calls);
+
+        clock.advance(Duration.ofSeconds(1L));
+        service.getTarif(createRecord(CUSTOMER, "CPU", SWITCH_DATE));
+        assertEquals("The versions have not been retrieved after the time to live", 2, repository.calls);
+    }
+
+    @Test
+    public void shouldRetrieveTheVersionsAgainAfterInvalidation() throws TarifingException {
+        logMethod("invalidated-versions", "The tarif versions have to be retrieved again after the invalidation");
+
+        service.getTarif(createRecord(CUSTOMER, "CPU", SWITCH_DATE));
+        service.invalidateAll();
+        service.getTarif(createRecord(CUSTOMER, "CPU", SWITCH_DATE));
+
+        assertEquals("The versions have not been retrieved after the invalidation", 2, repository.calls);
+    }
+
+
+    private static GuidedMeteredRecord createRecord(
+            final Customer customer,
+            final String product,
+            final OffsetDateTime valueDate
+    ) {
+        ProductRecordInfo productInfo = new ProductRecordInfoBuilder()
+                .setProductInfo(new ProductInfoBuilder()
+                                        .setName(product)
+                                        .build())
+                .setTags(Collections.emptyMap())
+                .build();
+
+        return new GuidedRecordBuilder<GuidedMeteredRecord>()
+                .setCustomer(customer)
+                .setProductInfo(productInfo)
+                .setValueDate(valueDate)
+                .setMeteredValue(BigDecimal.ONE)
+                .setTags(Collections.emptyMap())
+                .build();
+    }
+
+    private static Tarif createTarif(
+            final OffsetDateTime validFrom,
+            final OffsetDateTime validTo,
+            final BigDecimal rate
+    ) {
+        return new TarifBuilder()
+                .withName("Usage")
+                .withUnit("EUR/unit")
+                .withValidFrom(validFrom)
+                .withValidTo(validTo)
+                .withRate(Money.of(rate, EUR))
+                .build();
+    }
+
+    private void logMethod(final String method, final String message, final Object... paramater) {
+        MDC.put("id", method);
+
+        LOG.debug(message, paramater);
+    }
+
+    @Before
+    public void setUp() {
+        repository = new CountingTarifingRepository();
+        clock = new TestClock();
+        service = new OpenShiftTarifGuide(repository, TIME_TO_LIVE, clock);
+    }
+
+    @After
+    public void tearDownMethod() {
+        MDC.remove("id");
+    }
+
+    @BeforeClass
+    public static void setUpMDC() {
+        MDC.put("test", OpenShiftTarifGuide.class.getSimpleName());
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        MDC.remove("id");
+        MDC.remove("test");
+    }
+
+
+    private static class CountingTarifingRepository implements TarifingRepository {
+        private int calls;
+
+        @Override
+        public Tarif retrieveTarif(final Customer customer, final ProductRecordInfo product) {
+            return NEW_TARIF;
+        }
+
+        @Override
+        public List<? extends Tarif> retrieveTarifVersions(final Customer customer, final ProductRecordInfo product)
+                throws NoTarifFoundException {
+            calls++;
+
+            return Arrays.asList(OLD_TARIF, NEW_TARIF);
+        }
+    }
+
+    private static class TestClock extends Clock {
+        private Instant now = Instant.now();
+
+        void advance(final Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return UTC;
+        }
+
+        @Override
+        public Clock withZone(final ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package de.kaiserpfalzedv.billing.princeps;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+
+import de.kaiserpfalzedv.billing.api.guided.Customer;
+import de.kaiserpfalzedv.billing.api.guided.CustomerGuide;
+import de.kaiserpfalzedv.billing.api.guided.GuidingBusinessException;
+import de.kaiserpfalzedv.billing.api.imported.RawBaseRecord;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A customer guide remembering the customers found by another guide. The cache key is built from the values of
+ * the configured tag keys only, so all records sharing these tags (e.g. cluster and project) share one lookup.
+ * The customer must not depend on any other tag of the record.
+ *
+ * The cache holds at most {@link #getMaximumSize()} customers and evicts the least recently used one. Every entry
+ * expires after the configured time to live. Failed lookups are only remembered if a negative time to live is
+ * given, see {@link NegativeLookupCache}.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class CachingCustomerGuide implements CustomerGuide {
+    private static final Logger LOG = LoggerFactory.getLogger(CachingCustomerGuide.class);
+
+    private final CustomerGuide customerGuide;
+    private final ExpiringLruCache<Customer> cache;
+
+    /**
+     * The failed lookups. Null if failures are not cached.
+     */
+    private final NegativeLookupCache failures;
+
+
+    public CachingCustomerGuide(
+            final CustomerGuide customerGuide,
+            final Collection<String> keyTags,
+            final int maximumSize,
+            final Duration timeToLive
+    ) {
+        this(customerGuide, keyTags, maximumSize, timeToLive, Duration.ZERO, Clock.systemUTC());
+    }
+
+    public CachingCustomerGuide(
+            final CustomerGuide customerGuide,
+            final Collection<String> keyTags,
+            final int maximumSize,
+            final Duration timeToLive,
+            final Clock clock
+    ) {
+        this(customerGuide, keyTags, maximumSize, timeToLive, Duration.ZERO, clock);
+    }
+
+    public CachingCustomerGuide(
+            final CustomerGuide customerGuide,
+            final Collection<String> keyTags,
+            final int maximumSize,
+            final Duration timeToLive,
+            final Duration negativeTimeToLive
+    ) {
+        this(customerGuide, keyTags, maximumSize, timeToLive, negativeTimeToLive, Clock.systemUTC());
+    }
+
+    /**
+     * @param customerGuide the guide to ask for customers not cached.
+     * @param keyTags the tags building the cache key.
+     * @param maximumSize the maximum number of customers (and of failures) cached.
+     * @param timeToLive the time a customer is cached.
+     * @param negativeTimeToLive the time a failed lookup is cached. Failures are not cached if this is not positive.
+     * @param clock the clock to check the expiry against.
+     */
+    public CachingCustomerGuide(
+            final CustomerGuide customerGuide,
+            final Collection<String> keyTags,
+            final int maximumSize,
+            final Duration timeToLive,
+            final Duration negativeTimeToLive,
+            final Clock clock
+    ) {
+        this.customerGuide = customerGuide;
+        this.cache = new ExpiringLruCache<>(keyTags, maximumSize, timeToLive, clock);
+
+        if (negativeTimeToLive.isZero() || negativeTimeToLive.isNegative()) {
+            this.failures = null;
+        } else {
+            this.failures = new NegativeLookupCache(keyTags, maximumSize, negativeTimeToLive, clock);
+        }
+    }
+
+
+    @Override
+    public Customer getCustomer(final RawBaseRecord record) throws GuidingBusinessException {
+        List<String> key = cache.createKey(record.getTags());
+
+        Customer result = cache.get(key);
+        if (result != null) {
+            return result;
+        }
+
+        if (failures != null) {
+            failures.check(record);
+        }
+
+        try {
+            result = customerGuide.getCustomer(record);
+        } catch (GuidingBusinessException e) {
+            if (failures == null) {
+                throw e;
+            }
+
+            LOG.trace("Caching failed lookup for key {}: {}", key, e.getMessage());
+            failures.remember(record, e.getMessage(), e.getCause());
+            throw e;
+        }
+
+        LOG.trace("Caching customer for key {}: {}", key, result);
+        cache.put(key, result);
+
+        return result;
+    }
+
+    /**
+     * Removes all customers and failures from the cache. The counters are kept.
+     */
+    public void invalidateAll() {
+        cache.clear();
+
+        if (failures != null) {
+            failures.invalidateAll();
+        }
+    }
+
+
+    public int size() {
+        return cache.size();
+    }
+
+    public int getMaximumSize() {
+        return cache.getMaximumSize();
+    }
+
+    public long getHitCount() {
+        return cache.getHitCount();
+    }
+
+    public long getMissCount() {
+        return cache.getMissCount();
+    }
+
+    /**
+     * @return the number of customers removed due to size or age.
+     */
+    public long getEvictionCount() {
+        return cache.getEvictionCount();
+    }
+
+    /**
+     * @return the number of records rejected by a remembered failure.
+     */
+    public long getNegativeHitCount() {
+        return failures != null ? failures.getHitCount() : 0L;
+    }
+
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append(System.identityHashCode(this))
+                .append("customerGuide", customerGuide)
+                .append("keyTags", cache.getKeyTags())
+                .append("maximumSize", cache.getMaximumSize())
+                .append("timeToLive", cache.getTimeToLive())
+                .append("hits", cache.getHitCount())
+                .append("misses", cache.getMissCount())
+                .append("evictions", cache.getEvictionCount())
+                .append("failures", failures)
+                .toString();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package de.kaiserpfalzedv.billing.princeps;
+
+import java.util.Map;
+import java.util.UUID;
+
+import de.kaiserpfalzedv.billing.api.base.BaseBillingRecord;
+import org.slf4j.MDC;
+
+/**
+ * The diagnostic context of the pipeline. The batch id is put into the {@link MDC} once per batch (and once per
+ * partition on the worker threads). The ids of a single record are only put into the MDC for the few log statements
+ * that need them: sampled records and failures.
+ *
+ * The context is restored when it is closed, so it should be used with try-with-resources.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public final class DiagnosticContext implements AutoCloseable {
+    public static final String BATCH_ID = "batch-id";
+    public static final String RECORD_ID = "record-id";
+    public static final String METERING_ID = "metering-id";
+
+    /**
+     * The context to restore. Null if only the record ids have to be removed.
+     */
+    private final Map<String, String> previous;
+    private final boolean restore;
+
+
+    private DiagnosticContext(final Map<String, String> previous, final boolean restore) {
+        this.previous = previous;
+        this.restore = restore;
+    }
+
+
+    /**
+     * Opens the context of a batch on the current thread. A batch id already set by the caller is kept, otherwise a
+     * new one is generated.
+     *
+     * @return the context to close after the batch.
+     */
+    public static DiagnosticContext batch() {
+        DiagnosticContext result = new DiagnosticContext(MDC.getCopyOfContextMap(), true);
+
+        if (MDC.get(BATCH_ID) == null) {
+            MDC.put(BATCH_ID, UUID.randomUUID().toString());
+        }
+
+        return result;
+    }
+
+    /**
+     * Takes over the context of another thread, e.g. the one that opened the batch, on the current thread.
+     *
+     * @param context the context as returned by {@link MDC#getCopyOfContextMap()}. May be null.
+     * @return the context to close when the work for the other thread is done.
+     */
+    public static DiagnosticContext inherit(final Map<String, String> context) {
+        DiagnosticContext result = new DiagnosticContext(MDC.getCopyOfContextMap(), true);
+
+        if (context != null) {
+            MDC.setContextMap(context);
+        } else {
+            MDC.clear();
+        }
+
+        return result;
+    }
+
+    /**
+     * Adds the ids of the record to the context. Should only be used when a log statement about this record is
+     * actually written.
+     *
+     * @param record the record to log about.
+     * @return the context to close after logging.
+     */
+    public static DiagnosticContext record(final BaseBillingRecord record) {
+        MDC.put(RECORD_ID, String.valueOf(record.getId()));
+        MDC.put(METERING_ID, record.getMeteringId());
+
+        return new DiagnosticContext(null, false);
+    }
+
+    /**
+     * @param index the index of the record within the batch.
+     * @param rate  every rate-th record is sampled. Nothing is sampled if the rate is not positive.
+     * @return true if the record is sampled for detailed logging.
+     */
+    public static boolean isSampled(final int index, final int rate) {
+        return rate > 0 && index % rate == 0;
+    }
+
+
+    @Override
+    public void close() {
+        if (!restore) {
+            MDC.remove(RECORD_ID);
+            MDC.remove(METERING_ID);
+        } else if (previous != null) {
+            MDC.setContextMap(previous);
+        } else {
+            MDC.clear();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package de.kaiserpfalzedv.billing.princeps;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache keyed by the values of some tags of a record. It evicts the least recently used entry and every
+ * entry expires after the time to live. The cache may be shared between threads.
+ *
+ * Hits don't lock: they only stamp the entry with the current access tick. Hits between two insertions share one
+ * tick, so their order among each other is not kept. Insertions beyond the maximum size evict the oldest entries
+ * in one batch of about a sixteenth of the maximum size, other threads may exceed the maximum size briefly while the
+ * batch is evicted.
+ *
+ * @param <V> the type of the cached values.
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+final class ExpiringLruCache<V> {
+    private final String[] keyTags;
+    private final int maximumSize;
+    private final int evictionBatchSize;
+    private final long timeToLive;
+    private final Clock clock;
+
+    private final ConcurrentHashMap<List<String>, Entry<V>> cache = new ConcurrentHashMap<>();
+
+    /**
+     * The access tick. Insertions advance it by two, hits stamp their entry with the odd tick in between.
+     */
+    private final AtomicLong ticks = new AtomicLong();
+
+    /**
+     * Only one thread evicts at a time.
+     */
+    private final Object evictionLock = new Object();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+
+    ExpiringLruCache(
+            final Collection<String> keyTags,
+            final int maximumSize,
+            final Duration timeToLive,
+            final Clock clock
+    ) {
+        if (keyTags.isEmpty()) {
+            throw new IllegalArgumentException("Can't cache without any tag to build the key from");
+        }
+
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("The maximum size of the cache has to be positive");
+        }
+
+        this.keyTags = keyTags.toArray(new String[keyTags.size()]);
+        this.maximumSize = maximumSize;
+        this.evictionBatchSize = Math.max(1, maximumSize / 16);
+        this.timeToLive = timeToLive.toMillis();
+        this.clock = clock;
+    }
+
+
+    /**
+     * @param tags the tags of the record.
+     * @return the cache key: the values of the key tags.
+     */
+    List<String> createKey(final Map<String, String> tags) {
+        String[] result = new String[keyTags.length];
+
+        for (int i = 0; i < keyTags.length; i++) {
+            result[i] = tags.get(keyTags[i]);
+        }
+
+        return Arrays.asList(result);
+    }
+
+    /**
+     * @param key the cache key.
+     * @return the cached value or null if there is none or it has expired.
+     */
+    V get(final List<String> key) {
+        Entry<V> entry = cache.get(key);
+
+        if (entry != null) {
+            if (entry.expires > clock.millis()) {
+                long tick = ticks.get() | 1L;
+                if (entry.accessed != tick) {
+                    entry.accessed = tick;
+                }
+
+                hits.increment();
+                return entry.value;
+            }
+
+            if (cache.remove(key, entry)) {
+                evictions.increment();
+            }
+        }
+
+        misses.increment();
+        return null;
+    }
+
+    void put(final List<String> key, final V value) {
+        Entry<V> entry = new Entry<>(value, clock.millis() + timeToLive, ticks.addAndGet(2L));
+
+        cache.put(key, entry);
+
+        if (cache.size() > maximumSize) {
+            evict();
+        }
+    }
+
+    /**
+     * Removes the expired entries and then the least recently used ones until the cache has room for the next
+     * batch of insertions.
+     */
+    private void evict() {
+        synchronized (evictionLock) {
+            int size = cache.size();
+            if (size <= maximumSize) {
+                return;
+            }
+
+            long now = clock.millis();
+            ArrayList<Map.Entry<List<String>, Entry<V>>> candidates = new ArrayList<>(size);
+
+            for (Map.Entry<List<String>, Entry<V>> candidate : cache.entrySet()) {
+                if (candidate.getValue().expires <= now) {
+                    if (cache.remove(candidate.getKey(), candidate.getValue())) {
+                        evictions.increment();
+                        size--;
+                    }
+                } else {
+                    candidates.add(candidate);
+                }
+            }
+
+            int target = maximumSize - evictionBatchSize + 1;
+            if (size <= target) {
+                return;
+            }
+
+            candidates.sort(Comparator.comparingLong(e -> e.getValue().accessed));
+            for (int i = 0; i < candidates.size() && size > target; i++) {
+                Map.Entry<List<String>, Entry<V>> candidate = candidates.get(i);
+
+                if (cache.remove(candidate.getKey(), candidate.getValue())) {
+                    evictions.increment();
+                    size--;
+                }
+            }
+        }
+    }
+
+    void clear() {
+        cache.clear();
+    }
+
+
+    int size() {
+        return cache.size();
+    }
+
+    String[] getKeyTags() {
+        return keyTags;
+    }
+
+    int getMaximumSize() {
+        return maximumSize;
+    }
+
+    long getTimeToLive() {
+        return timeToLive;
+    }
+
+    long getHitCount() {
+        return hits.sum();
+    }
+
+    long getMissCount() {
+        return misses.sum();
+    }
+
+    long getEvictionCount() {
+        return evictions.sum();
+    }
+
+
+    private static final class Entry<V> {
+        private final V value;
+        private final long expires;
+
+        /**
+         * The access tick of the last insertion or hit. Written without lock, a lost update only ages the entry.
+         */
+        private volatile long accessed;
+
+        Entry(final V value, final long expires, final long accessed) {
+            this.value = value;
+            this.expires = expires;
+            this.accessed = accessed;
+        }
+    }
+}
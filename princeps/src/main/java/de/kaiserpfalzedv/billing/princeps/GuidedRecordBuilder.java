@@ -19,12 +19,12 @@ package de.kaiserpfalzedv.billing.princeps;
 import java.math.BigDecimal;
 import java.time.Duration;
 import java.time.OffsetDateTime;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
 
 import javax.validation.constraints.NotNull;
 
+import de.kaiserpfalzedv.billing.api.base.ImmutableTags;
 import de.kaiserpfalzedv.billing.api.guided.Customer;
 import de.kaiserpfalzedv.billing.api.guided.GuidedBaseRecord;
 import de.kaiserpfalzedv.billing.api.guided.GuidedMeteredRecord;
@@ -91,7 +91,10 @@ public class GuidedRecordBuilder<T extends GuidedBaseRecord> implements Builder<
      */
     private Customer customer;
 
-    private final HashMap<String, String> tags = new HashMap<>();
+    /**
+     * The tags of this record. {@link ImmutableTags} are kept as given, all other maps are copied.
+     */
+    private Map<String, String> tags = ImmutableTags.EMPTY;
 
 
     @SuppressWarnings("unchecked")
@@ -182,6 +185,8 @@ public class GuidedRecordBuilder<T extends GuidedBaseRecord> implements Builder<
         this.meteredValue = null;
         this.meteredTimestamp = null;
         this.meteredDuration = null;
+
+        this.tags = ImmutableTags.EMPTY;
     }
 
 
@@ -236,11 +241,7 @@ public class GuidedRecordBuilder<T extends GuidedBaseRecord> implements Builder<
     }
 
     public GuidedRecordBuilder<T> setTags(@NotNull final Map<String, String> tags) {
-        this.tags.clear();
-
-        if (tags != null) {
-            this.tags.putAll(tags);
-        }
+        this.tags = ImmutableTags.of(tags);
 
         return this;
     }
@@ -254,8 +255,7 @@ public class GuidedRecordBuilder<T extends GuidedBaseRecord> implements Builder<
         this.productInfo = orig.getProductInfo();
         this.customer = orig.getCustomer();
 
-        this.tags.clear();
-        this.tags.putAll(orig.getTags());
+        setTags(orig.getTags());
 
         this.meteredTimestamp = orig.getMeteredTimestamp();
         this.meteredDuration = orig.getMeteredDuration();
@@ -16,19 +16,39 @@
 
 package de.kaiserpfalzedv.billing.princeps;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import de.kaiserpfalzedv.billing.api.guided.Customer;
 import de.kaiserpfalzedv.billing.api.guided.CustomerGuide;
+import de.kaiserpfalzedv.billing.api.guided.GuidedBaseRecord;
 import de.kaiserpfalzedv.billing.api.guided.GuidedMeteredRecord;
 import de.kaiserpfalzedv.billing.api.guided.GuidedTimedRecord;
 import de.kaiserpfalzedv.billing.api.guided.GuidingBusinessException;
 import de.kaiserpfalzedv.billing.api.guided.GuidingExecutor;
 import de.kaiserpfalzedv.billing.api.guided.ProductGuide;
+import de.kaiserpfalzedv.billing.api.guided.ProductRecordInfo;
+import de.kaiserpfalzedv.billing.api.imported.RawBaseRecord;
 import de.kaiserpfalzedv.billing.api.imported.RawMeteredRecord;
 import de.kaiserpfalzedv.billing.api.imported.RawTimedRecord;
+import de.kaiserpfalzedv.billing.princeps.api.ProductRecordInfoBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.slf4j.MDC;
 
 /**
+ * Guides raw records by looking up their customer and product.
+ *
+ * Within a batch the customer and the product are looked up once per distinct guide key. The key is built from the
+ * values of the configured key tags. Without key tags, records only share a lookup if all of their tags are equal.
+ *
+ * The {@link DiagnosticContext} of a batch is set once. Only sampled and failed records are logged with their ids.
+ *
  * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
  * @version 1.0.0
  * @since 2018-02-16
@@ -36,18 +56,61 @@ import org.slf4j.MDC;
 public class GuidingExecutorImpl implements GuidingExecutor {
     private static final Logger LOG = LoggerFactory.getLogger(GuidingExecutorImpl.class);
 
+    /** Default rate of the records of a batch logged in detail. */
+    public static final int DEFAULT_SAMPLE_RATE = 1000;
+
+    /**
+     * The tags the customer of a record depends on. Empty if the customer may depend on all tags.
+     */
+    private final String[] customerKeyTags;
+
+    /**
+     * The tags the product of a record depends on. Empty if the product may depend on all tags.
+     */
+    private final String[] productKeyTags;
+
+    /**
+     * Every sample-rate-th record of a batch is logged in detail on debug level. No record is sampled if not
+     * positive.
+     */
+    private final int sampleRate;
+
+
+    public GuidingExecutorImpl() {
+        this(Collections.emptyList(), Collections.emptyList());
+    }
+
+    /**
+     * @param customerKeyTags the tags the customer of a record depends on (e.g. cluster and project).
+     * @param productKeyTags  the tags the product of a record depends on (e.g. product). The product record info
+     *                        found for the key is copied with the tags of every record.
+     */
+    public GuidingExecutorImpl(final Collection<String> customerKeyTags, final Collection<String> productKeyTags) {
+        this(customerKeyTags, productKeyTags, DEFAULT_SAMPLE_RATE);
+    }
+
+    /**
+     * @param customerKeyTags the tags the customer of a record depends on (e.g. cluster and project).
+     * @param productKeyTags  the tags the product of a record depends on (e.g. product).
+     * @param sampleRate      every sample-rate-th record of a batch is logged in detail on debug level.
+     */
+    public GuidingExecutorImpl(
+            final Collection<String> customerKeyTags,
+            final Collection<String> productKeyTags,
+            final int sampleRate
+    ) {
+        this.customerKeyTags = customerKeyTags.toArray(new String[customerKeyTags.size()]);
+        this.productKeyTags = productKeyTags.toArray(new String[productKeyTags.size()]);
+        this.sampleRate = sampleRate;
+    }
+
+
     @Override
     public GuidedMeteredRecord executeMeteredRecord(
             final RawMeteredRecord record,
             final ProductGuide productGuide,
             final CustomerGuide customerGuide
     ) throws GuidingBusinessException {
-        MDC.put("record-id", record.getId().toString());
-        MDC.put("metering-id", record.getMeteringId());
-
-        LOG.debug("Guiding record: {}", record);
-        LOG.trace("productGuide={}, customerGuide={}", productGuide, customerGuide);
-
         GuidedMeteredRecord result = new GuidedRecordBuilder<GuidedMeteredRecord>()
                 .setCustomer(customerGuide.getCustomer(record))
                 .setProductInfo(productGuide.getProduct(record))
@@ -59,11 +122,13 @@ public class GuidingExecutorImpl implements GuidingExecutor {
                 .setMeteredTimestamp(record.getMeteredTimestamp())
                 .setMeteredDuration(record.getMeteredDuration())
                 .setMeteredValue(record.getMeteredValue())
+                .setTags(record.getTags())
                 .build();
 
-        LOG.trace("GuidedMeteredRecord: {}", result);
-        MDC.remove("record-id");
-        MDC.remove("metering-id");
+        if (LOG.isDebugEnabled()) {
+            logRecord(record, result);
+        }
+
         return result;
     }
 
@@ -73,12 +138,6 @@ public class GuidingExecutorImpl implements GuidingExecutor {
             final ProductGuide productGuide,
             final CustomerGuide customerGuide
     ) throws GuidingBusinessException {
-        MDC.put("record-id", record.getId().toString());
-        MDC.put("metering-id", record.getMeteringId());
-
-        LOG.debug("Guiding record: {}", record);
-        LOG.trace("productGuide={}, customerGuide={}", productGuide, customerGuide);
-
         GuidedTimedRecord result = new GuidedRecordBuilder<GuidedTimedRecord>()
                 .setCustomer(customerGuide.getCustomer(record))
                 .setProductInfo(productGuide.getProduct(record))
@@ -89,11 +148,164 @@ public class GuidingExecutorImpl implements GuidingExecutor {
                 .setMeteringId(record.getMeteringId())
                 .setMeteredTimestamp(record.getMeteredTimestamp())
                 .setMeteredDuration(record.getMeteredDuration())
+                .setTags(record.getTags())
                 .build();
 
-        LOG.trace("GuidedTimedRecord: {}", result);
-        MDC.remove("record-id");
-        MDC.remove("metering-id");
+        if (LOG.isDebugEnabled()) {
+            logRecord(record, result);
+        }
+
         return result;
     }
+
+    @Override
+    public List<GuidedBaseRecord> executeRecords(
+            final List<? extends RawBaseRecord> records,
+            final ProductGuide productGuide,
+            final CustomerGuide customerGuide,
+            final Consumer<? super GuidingBusinessException> failures
+    ) {
+        try (DiagnosticContext context = DiagnosticContext.batch()) {
+            LOG.debug("Guiding batch of {} records", records.size());
+            LOG.trace("productGuide={}, customerGuide={}", productGuide, customerGuide);
+
+            return guide(records, productGuide, customerGuide, failures);
+        }
+    }
+
+    private List<GuidedBaseRecord> guide(
+            final List<? extends RawBaseRecord> records,
+            final ProductGuide productGuide,
+            final CustomerGuide customerGuide,
+            final Consumer<? super GuidingBusinessException> failures
+    ) {
+        ArrayList<GuidedBaseRecord> result = new ArrayList<>(records.size());
+        HashMap<Object, Object> customers = new HashMap<>();
+        HashMap<Object, Object> products = new HashMap<>();
+        GuidedRecordBuilder<GuidedBaseRecord> builder = new GuidedRecordBuilder<>();
+        ProductRecordInfoBuilder productBuilder = new ProductRecordInfoBuilder();
+        boolean debug = LOG.isDebugEnabled();
+        int index = 0;
+        int failed = 0;
+
+        for (RawBaseRecord record : records) {
+            GuidingBusinessException failure = null;
+
+            try {
+                Customer customer = lookup(
+                        customers, createKey(customerKeyTags, record), record, customerGuide::getCustomer);
+                ProductRecordInfo product = lookup(
+                        products, createKey(productKeyTags, record), record, productGuide::getProduct);
+
+                if (productKeyTags.length > 0 && product.getTags() != record.getTags()) {
+                    product = productBuilder
+                            .copy(product)
+                            .setTags(record.getTags())
+                            .build();
+                }
+
+                GuidedBaseRecord guided = builder
+                        .setCustomer(customer)
+                        .setProductInfo(product)
+                        .setId(record.getId())
+                        .setImportedDate(record.getImportedDate())
+                        .setRecordedDate(record.getRecordedDate())
+                        .setValueDate(record.getValueDate())
+                        .setMeteringId(record.getMeteringId())
+                        .setMeteredTimestamp(record.getMeteredTimestamp())
+                        .setMeteredDuration(record.getMeteredDuration())
+                        .setMeteredValue(
+                                record instanceof RawMeteredRecord
+                                        ? ((RawMeteredRecord) record).getMeteredValue()
+                                        : null
+                        )
+                        .setTags(record.getTags())
+                        .build();
+                result.add(guided);
+
+                if (debug && DiagnosticContext.isSampled(index, sampleRate)) {
+                    logRecord(record, guided);
+                }
+            } catch (GuidingBusinessException e) {
+                failure = e;
+            } catch (IllegalStateException e) {
+                failure = new GuidingBusinessException(record, e.getMessage(), e);
+            }
+
+            if (failure != null) {
+                failed++;
+
+                if (debug) {
+                    try (DiagnosticContext context = DiagnosticContext.record(record)) {
+                        LOG.debug("Record can't be guided: {}", failure.getMessage());
+                    }
+                }
+
+                failures.accept(failure);
+            }
+
+            index++;
+        }
+
+        LOG.debug("Guided batch: {} records guided, {} failed, {} customer keys, {} product keys",
+                  result.size(), failed, customers.size(), products.size());
+        return result;
+    }
+
+    private static void logRecord(final RawBaseRecord record, final GuidedBaseRecord result) {
+        try (DiagnosticContext context = DiagnosticContext.record(record)) {
+            LOG.debug("Guided record: {}", record);
+            LOG.trace("Guided result: {}", result);
+        }
+    }
+
+    private static Object createKey(final String[] keyTags, final RawBaseRecord record) {
+        if (keyTags.length == 0) {
+            return record.getTags();
+        }
+
+        String[] result = new String[keyTags.length];
+        for (int i = 0; i < keyTags.length; i++) {
+            result[i] = record.getTags().get(keyTags[i]);
+        }
+
+        return Arrays.asList(result);
+    }
+
+    /**
+     * Looks up the customer or product of the record once per key. A failed lookup is remembered and reported again
+     * for all records of the key without asking the guide (the failure gets no stack trace of its own).
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T lookup(
+            final Map<Object, Object> results,
+            final Object key,
+            final RawBaseRecord record,
+            final Lookup<T> guide
+    ) throws GuidingBusinessException {
+        Object result = results.get(key);
+
+        if (result == null) {
+            try {
+                result = guide.lookup(record);
+            } catch (GuidingBusinessException e) {
+                results.put(key, e);
+                throw e;
+            }
+
+            results.put(key, result);
+        } else if (result instanceof GuidingBusinessException) {
+            GuidingBusinessException failure = (GuidingBusinessException) result;
+
+            throw new GuidingBusinessException(record, failure.getMessage(), failure.getCause(), false, false);
+        }
+
+        return (T) result;
+    }
+
+
+    @FunctionalInterface
+    private interface Lookup<T> {
+        T lookup(RawBaseRecord record) throws GuidingBusinessException;
+    }
 }
@@ -0,0 +1,132 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package de.kaiserpfalzedv.billing.princeps;
+
+import java.util.Collections;
+import java.util.Map;
+
+import de.kaiserpfalzedv.billing.api.guided.NoProductFoundException;
+import de.kaiserpfalzedv.billing.api.guided.ProductInfo;
+import de.kaiserpfalzedv.billing.api.guided.ProductRepository;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A product repository finding the product by rules over several tags. The rules are compiled by the
+ * {@link IndexedProductRepositoryBuilder} into a decision tree testing one tag key per level. A lookup follows a
+ * single path through the tree, so it costs one hash lookup per tag key used by any rule, independent of the number
+ * of products.
+ *
+ * If several rules match, the most specific one (the one matching the most tags) wins. Rules of the same
+ * specificity are taken in the order they have been added.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class IndexedProductRepository implements ProductRepository {
+    private static final Logger LOG = LoggerFactory.getLogger(IndexedProductRepository.class);
+
+    private final Node root;
+    private final String[] keys;
+    private final int ruleCount;
+    private final int nodeCount;
+
+
+    IndexedProductRepository(final Node root, final String[] keys, final int ruleCount, final int nodeCount) {
+        this.root = root;
+        this.keys = keys;
+        this.ruleCount = ruleCount;
+        this.nodeCount = nodeCount;
+    }
+
+
+    @Override
+    public ProductInfo retrieveProduct(final Map<String, String> tags) throws NoProductFoundException {
+        Node node = root;
+
+        while (node.key != null) {
+            Node child = node.children.get(tags.get(node.key));
+
+            node = child != null ? child : node.otherwise;
+        }
+
+        if (node.product == null) {
+            throw new NoProductFoundException(tags);
+        }
+
+        LOG.trace("Guided to product: {}", node.product);
+        return node.product;
+    }
+
+
+    /**
+     * @return the tag keys tested by the decision tree in the order they are tested.
+     */
+    public String[] getKeys() {
+        return keys.clone();
+    }
+
+    public int getRuleCount() {
+        return ruleCount;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append(System.identityHashCode(this))
+                .append("keys", keys)
+                .append("rules", ruleCount)
+                .append("nodes", nodeCount)
+                .toString();
+    }
+
+
+    /**
+     * A node of the decision tree. Inner nodes test a tag key, leaves hold the product found (or null).
+     */
+    static final class Node {
+        static final Node NO_PRODUCT = new Node(null);
+
+        final String key;
+        final Map<String, Node> children;
+        final Node otherwise;
+        final ProductInfo product;
+
+        Node(final String key, final Map<String, Node> children, final Node otherwise) {
+            this.key = key;
+            this.children = children;
+            this.otherwise = otherwise;
+            this.product = null;
+        }
+
+        Node(final ProductInfo product) {
+            this.key = null;
+            this.children = Collections.emptyMap();
+            this.otherwise = null;
+            this.product = product;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package de.kaiserpfalzedv.billing.princeps;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.validation.constraints.NotNull;
+
+import de.kaiserpfalzedv.billing.api.guided.ProductInfo;
+import org.apache.commons.lang3.builder.Builder;
+
+/**
+ * Compiles product rules into an {@link IndexedProductRepository}. A rule matches a record if every tag of the rule
+ * has the same value within the tags of the record. A rule without tags matches every record.
+ *
+ * The tag keys are tested in the order of the number of rules using them, so the most selective keys are at the top
+ * of the tree. Rules not using the tested key are copied into every branch. Equal subtrees are shared.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class IndexedProductRepositoryBuilder implements Builder<IndexedProductRepository> {
+    private final ArrayList<Rule> rules = new ArrayList<>();
+
+
+    @Override
+    public IndexedProductRepository build() {
+        try {
+            String[] keys = orderKeys();
+            HashMap<Map.Entry<Integer, List<Rule>>, IndexedProductRepository.Node> nodes = new HashMap<>();
+
+            IndexedProductRepository.Node root = compile(keys, 0, rules, nodes);
+
+            return new IndexedProductRepository(root, keys, rules.size(), nodes.size());
+        } finally {
+            reset();
+        }
+    }
+
+    private String[] orderKeys() {
+        HashMap<String, Integer> usage = new HashMap<>();
+
+        for (Rule rule : rules) {
+            for (String key : rule.tags.keySet()) {
+                usage.merge(key, 1, Integer::sum);
+            }
+        }
+
+        ArrayList<String> result = new ArrayList<>(usage.keySet());
+        result.sort((a, b) -> {
+            int order = usage.get(b).compareTo(usage.get(a));
+
+            return order != 0 ? order : a.compareTo(b);
+        });
+
+        return result.toArray(new String[result.size()]);
+    }
+
+    private static IndexedProductRepository.Node compile(
+            final String[] keys,
+            final int level,
+            final List<Rule> candidates,
+            final Map<Map.Entry<Integer, List<Rule>>, IndexedProductRepository.Node> nodes
+    ) {
+        int current = level;
+        while (current < keys.length && !isUsed(keys[current], candidates)) {
+            current++;
+        }
+
+        if (current == keys.length) {
+            return leaf(candidates);
+        }
+
+        Map.Entry<Integer, List<Rule>> id = new AbstractMap.SimpleImmutableEntry<>(current, candidates);
+        IndexedProductRepository.Node result = nodes.get(id);
+        if (result != null) {
+            return result;
+        }
+
+        String key = keys[current];
+        ArrayList<Rule> unused = new ArrayList<>();
+        LinkedHashMap<String, ArrayList<Rule>> branches = new LinkedHashMap<>();
+
+        for (Rule rule : candidates) {
+            String value = rule.tags.get(key);
+
+            if (value == null) {
+                unused.add(rule);
+
+                for (ArrayList<Rule> branch : branches.values()) {
+                    branch.add(rule);
+                }
+            } else {
+                branches.computeIfAbsent(value, v -> new ArrayList<>(unused)).add(rule);
+            }
+        }
+
+        HashMap<String, IndexedProductRepository.Node> children = new HashMap<>(branches.size() * 2);
+        for (Map.Entry<String, ArrayList<Rule>> branch : branches.entrySet()) {
+            children.put(branch.getKey(), compile(keys, current + 1, branch.getValue(), nodes));
+        }
+
+        result = new IndexedProductRepository.Node(key, children, compile(keys, current + 1, unused, nodes));
+        nodes.put(id, result);
+        return result;
+    }
+
+    private static boolean isUsed(final String key, final List<Rule> candidates) {
+        for (Rule rule : candidates) {
+            if (rule.tags.containsKey(key)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @param candidates the rules matching all tags tested on the way to the leaf, in the order they have been added.
+     * @return the leaf holding the product of the most specific rule.
+     */
+    private static IndexedProductRepository.Node leaf(final List<Rule> candidates) {
+        Rule best = null;
+
+        for (Rule rule : candidates) {
+            if (best == null || rule.tags.size() > best.tags.size()) {
+                best = rule;
+            }
+        }
+
+        return best != null ? new IndexedProductRepository.Node(best.product) : IndexedProductRepository.Node.NO_PRODUCT;
+    }
+
+    private void reset() {
+        rules.clear();
+    }
+
+
+    /**
+     * Adds a rule.
+     *
+     * @param product the product of records matching the rule.
+     * @param tags    the tags a record has to match. An empty map matches all records.
+     * @return this builder.
+     */
+    public IndexedProductRepositoryBuilder addRule(@NotNull final ProductInfo product,
+                                                   @NotNull final Map<String, String> tags) {
+        if (product == null) {
+            throw new IllegalArgumentException("Can't add a product rule without product");
+        }
+
+        rules.add(new Rule(product, tags));
+        return this;
+    }
+
+
+    /**
+     * A rule is only equal to itself, so lists of rules can be used as keys of the compiled subtrees.
+     */
+    private static final class Rule {
+        private final ProductInfo product;
+        private final Map<String, String> tags;
+
+        Rule(final ProductInfo product, final Map<String, String> tags) {
+            this.product = product;
+            this.tags = Collections.unmodifiableMap(new HashMap<>(tags));
+        }
+    }
+}
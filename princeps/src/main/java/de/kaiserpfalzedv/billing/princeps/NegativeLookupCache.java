@@ -0,0 +1,144 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package de.kaiserpfalzedv.billing.princeps;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+
+import de.kaiserpfalzedv.billing.api.guided.GuidingBusinessException;
+import de.kaiserpfalzedv.billing.api.imported.RawBaseRecord;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+
+/**
+ * Remembers failed lookups of a guide for a bounded time. The key is built from the values of the configured tag
+ * keys, so a record without a customer or product fails only once per key and time to live.
+ *
+ * For every record with the same key a new {@link GuidingBusinessException} without stack trace is thrown. It
+ * references the record currently guided and carries message and cause of the first failure.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class NegativeLookupCache {
+    private final ExpiringLruCache<GuidingBusinessException> failures;
+
+
+    public NegativeLookupCache(
+            final Collection<String> keyTags,
+            final int maximumSize,
+            final Duration timeToLive
+    ) {
+        this(keyTags, maximumSize, timeToLive, Clock.systemUTC());
+    }
+
+    public NegativeLookupCache(
+            final Collection<String> keyTags,
+            final int maximumSize,
+            final Duration timeToLive,
+            final Clock clock
+    ) {
+        failures = new ExpiringLruCache<>(keyTags, maximumSize, timeToLive, clock);
+    }
+
+
+    /**
+     * Throws the remembered failure if the lookup for the tags of this record failed before.
+     *
+     * @param record the record to be guided.
+     * @throws GuidingBusinessException the remembered failure for this record.
+     */
+    public void check(final RawBaseRecord record) throws GuidingBusinessException {
+        GuidingBusinessException failure = failures.get(failures.createKey(record.getTags()));
+
+        if (failure != null) {
+            throw new GuidingBusinessException(record, failure.getMessage(), failure.getCause(), false, false);
+        }
+    }
+
+    /**
+     * Remembers the failed lookup for the tags of this record.
+     *
+     * @param record the record that could not be guided.
+     * @param message the message of the failure.
+     * @param cause the cause of the failure.
+     * @return the failure to be thrown.
+     */
+    public GuidingBusinessException remember(
+            final RawBaseRecord record,
+            final String message,
+            final Throwable cause
+    ) {
+        List<String> key = failures.createKey(record.getTags());
+        GuidingBusinessException result = new GuidingBusinessException(record, message, cause, false, false);
+
+        failures.put(key, result);
+        return result;
+    }
+
+    /**
+     * Removes all failures. The counters are kept.
+     */
+    public void invalidateAll() {
+        failures.clear();
+    }
+
+
+    public int size() {
+        return failures.size();
+    }
+
+    public int getMaximumSize() {
+        return failures.getMaximumSize();
+    }
+
+    /**
+     * @return the number of records rejected by a remembered failure.
+     */
+    public long getHitCount() {
+        return failures.getHitCount();
+    }
+
+    public long getMissCount() {
+        return failures.getMissCount();
+    }
+
+    /**
+     * @return the number of failures removed due to size or age.
+     */
+    public long getEvictionCount() {
+        return failures.getEvictionCount();
+    }
+
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append(System.identityHashCode(this))
+                .append("keyTags", failures.getKeyTags())
+                .append("maximumSize", failures.getMaximumSize())
+                .append("timeToLive", failures.getTimeToLive())
+                .append("hits", failures.getHitCount())
+                .append("misses", failures.getMissCount())
+                .append("evictions", failures.getEvictionCount())
+                .toString();
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package de.kaiserpfalzedv.billing.princeps;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import de.kaiserpfalzedv.billing.api.guided.CustomerGuide;
+import de.kaiserpfalzedv.billing.api.guided.GuidedBaseRecord;
+import de.kaiserpfalzedv.billing.api.guided.GuidedMeteredRecord;
+import de.kaiserpfalzedv.billing.api.guided.GuidedTimedRecord;
+import de.kaiserpfalzedv.billing.api.guided.GuidingBusinessException;
+import de.kaiserpfalzedv.billing.api.guided.GuidingExecutor;
+import de.kaiserpfalzedv.billing.api.guided.ProductGuide;
+import de.kaiserpfalzedv.billing.api.imported.RawBaseRecord;
+import de.kaiserpfalzedv.billing.api.imported.RawMeteredRecord;
+import de.kaiserpfalzedv.billing.api.imported.RawTimedRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+/**
+ * Guides a batch of records in parallel. The batch is split into partitions of consecutive records and every
+ * partition is guided on the fork-join pool by the batch guiding of the {@link GuidingExecutorImpl}. The builders
+ * live within the guiding of a single partition, so they never leave the thread.
+ *
+ * The guided records are returned and the failures are reported in the order of the batch. The failure consumer is
+ * only called by the thread calling {@link #executeRecords(List, ProductGuide, CustomerGuide, Consumer)}. The
+ * product and customer guides are called concurrently and have to be thread-safe. Lookups are shared within a
+ * partition only, so a caching guide like the {@link CachingCustomerGuide} helps with many partitions.
+ *
+ * The {@link DiagnosticContext} of the calling thread is taken over by the worker threads once per partition.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class ParallelGuidingExecutor implements GuidingExecutor {
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelGuidingExecutor.class);
+
+    /** Default number of records within a partition. */
+    public static final int DEFAULT_PARTITION_SIZE = 4096;
+
+    private final GuidingExecutorImpl executor;
+    private final ForkJoinPool pool;
+    private final int partitionSize;
+
+
+    public ParallelGuidingExecutor() {
+        this(new GuidingExecutorImpl(), ForkJoinPool.commonPool(), DEFAULT_PARTITION_SIZE);
+    }
+
+    public ParallelGuidingExecutor(final Collection<String> customerKeyTags, final Collection<String> productKeyTags) {
+        this(new GuidingExecutorImpl(customerKeyTags, productKeyTags), ForkJoinPool.commonPool(),
+             DEFAULT_PARTITION_SIZE);
+    }
+
+    public ParallelGuidingExecutor(
+            final GuidingExecutorImpl executor,
+            final ForkJoinPool pool,
+            final int partitionSize
+    ) {
+        if (partitionSize <= 0) {
+            throw new IllegalArgumentException("The partition size has to be positive!");
+        }
+
+        this.executor = executor;
+        this.pool = pool;
+        this.partitionSize = partitionSize;
+    }
+
+
+    @Override
+    public GuidedMeteredRecord executeMeteredRecord(
+            final RawMeteredRecord record,
+            final ProductGuide productGuide,
+            final CustomerGuide customerGuide
+    ) throws GuidingBusinessException {
+        return executor.executeMeteredRecord(record, productGuide, customerGuide);
+    }
+
+    @Override
+    public GuidedTimedRecord executeTimedRecord(
+            final RawTimedRecord record,
+            final ProductGuide productGuide,
+            final CustomerGuide customerGuide
+    ) throws GuidingBusinessException {
+        return executor.executeTimedRecord(record, productGuide, customerGuide);
+    }
+
+    @Override
+    public List<GuidedBaseRecord> executeRecords(
+            final List<? extends RawBaseRecord> records,
+            final ProductGuide productGuide,
+            final CustomerGuide customerGuide,
+            final Consumer<? super GuidingBusinessException> failures
+    ) {
+        if (records.size() <= partitionSize) {
+            return executor.executeRecords(records, productGuide, customerGuide, failures);
+        }
+
+        try (DiagnosticContext context = DiagnosticContext.batch()) {
+            return guide(records, productGuide, customerGuide, failures);
+        }
+    }
+
+    private List<GuidedBaseRecord> guide(
+            final List<? extends RawBaseRecord> records,
+            final ProductGuide productGuide,
+            final CustomerGuide customerGuide,
+            final Consumer<? super GuidingBusinessException> failures
+    ) {
+        long start = System.nanoTime();
+        List<PartitionTask> partitions = createPartitions(records, productGuide, customerGuide);
+        LOG.debug("Guiding {} records in {} partitions.", records.size(), partitions.size());
+
+        for (PartitionTask partition : partitions) {
+            pool.execute(partition);
+        }
+
+        ArrayList<GuidedBaseRecord> result = new ArrayList<>(records.size());
+        int failed = 0;
+        for (PartitionTask partition : partitions) {
+            PartitionResult data = partition.join();
+
+            result.addAll(data.records);
+            failed += data.failures.size();
+            data.failures.forEach(failures);
+        }
+
+        long duration = System.nanoTime() - start;
+        LOG.debug("Guided {} records ({} failed) in {} ms: {} records/s",
+                  records.size(), failed, TimeUnit.NANOSECONDS.toMillis(duration), throughput(records.size(), duration));
+        return result;
+    }
+
+    private List<PartitionTask> createPartitions(
+            final List<? extends RawBaseRecord> records,
+            final ProductGuide productGuide,
+            final CustomerGuide customerGuide
+    ) {
+        ArrayList<PartitionTask> result = new ArrayList<>(records.size() / partitionSize + 1);
+        Map<String, String> context = MDC.getCopyOfContextMap();
+
+        for (int start = 0; start < records.size(); start += partitionSize) {
+            int end = Math.min(start + partitionSize, records.size());
+
+            result.add(new PartitionTask(
+                    result.size(), records.subList(start, end), productGuide, customerGuide, context));
+        }
+
+        return result;
+    }
+
+    private static long throughput(final int records, final long nanos) {
+        return nanos > 0 ? records * TimeUnit.SECONDS.toNanos(1L) / nanos : 0L;
+    }
+
+
+    public int getPartitionSize() {
+        return partitionSize;
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+
+    private static class PartitionResult {
+        List<GuidedBaseRecord> records = Collections.emptyList();
+        final ArrayList<GuidingBusinessException> failures = new ArrayList<>();
+    }
+
+    private class PartitionTask extends RecursiveTask<PartitionResult> {
+        private static final long serialVersionUID = -2781958329567164027L;
+
+        private final int number;
+        private final transient List<? extends RawBaseRecord> records;
+        private final transient ProductGuide productGuide;
+        private final transient CustomerGuide customerGuide;
+
+        /** The diagnostic context of the thread that opened the batch. */
+        private final transient Map<String, String> context;
+
+        PartitionTask(
+                final int number,
+                final List<? extends RawBaseRecord> records,
+                final ProductGuide productGuide,
+                final CustomerGuide customerGuide,
+                final Map<String, String> context
+        ) {
+            this.number = number;
+            this.records = records;
+            this.productGuide = productGuide;
+            this.customerGuide = customerGuide;
+            this.context = context;
+        }
+
+        @Override
+        protected PartitionResult compute() {
+            try (DiagnosticContext diagnostics = DiagnosticContext.inherit(context)) {
+                return guide();
+            }
+        }
+
+        private PartitionResult guide() {
+            long start = System.nanoTime();
+            PartitionResult result = new PartitionResult();
+
+            result.records = executor.executeRecords(records, productGuide, customerGuide, result.failures::add);
+
+            long duration = System.nanoTime() - start;
+            LOG.debug("Guided partition {} ({} records, {} failed) on {} in {} ms: {} records/s",
+                      number, records.size(), result.failures.size(), Thread.currentThread().getName(),
+                      TimeUnit.NANOSECONDS.toMillis(duration), throughput(records.size(), duration));
+            return result;
+        }
+    }
+}
@@ -21,6 +21,7 @@ import java.util.Map;
 
 import javax.validation.constraints.NotNull;
 
+import de.kaiserpfalzedv.billing.api.base.ImmutableTags;
 import de.kaiserpfalzedv.billing.api.guided.ProductInfo;
 import de.kaiserpfalzedv.billing.api.guided.ProductRecordInfo;
 import org.apache.commons.lang3.builder.Builder;
@@ -32,7 +33,10 @@ import org.apache.commons.lang3.builder.Builder;
  */
 public class ProductRecordInfoBuilder implements Builder<ProductRecordInfo> {
 
-    private final HashMap<String,String> tags = new HashMap<>();
+    /**
+     * The tags of the product record. {@link ImmutableTags} are kept as given and only copied when they are changed.
+     */
+    private Map<String,String> tags = ImmutableTags.EMPTY;
     private ProductInfo productInfo;
 
     @Override
@@ -54,7 +58,7 @@ public class ProductRecordInfoBuilder implements Builder<ProductRecordInfo> {
 
     private void reset() {
         productInfo = null;
-        tags.clear();
+        tags = ImmutableTags.EMPTY;
     }
 
     public ProductRecordInfoBuilder setProductInfo(ProductInfo productInfo) {
@@ -63,36 +67,40 @@ public class ProductRecordInfoBuilder implements Builder<ProductRecordInfo> {
     }
 
     public ProductRecordInfoBuilder clearTags() {
-        this.tags.clear();
+        this.tags = ImmutableTags.EMPTY;
 
         return this;
     }
 
     public ProductRecordInfoBuilder addTag(@NotNull final String key, @NotNull final String value) {
-        this.tags.put(key, value);
+        mutableTags().put(key, value);
         return this;
     }
 
     public ProductRecordInfoBuilder removeTag(final String tag) {
-        this.tags.remove(tag);
+        mutableTags().remove(tag);
 
         return this;
     }
 
     public ProductRecordInfoBuilder copy(final ProductRecordInfo orig) {
         this.productInfo = orig.getProductInfo();
-        this.tags.putAll(orig.getTags());
+        this.tags = ImmutableTags.of(orig.getTags());
 
         return this;
     }
 
     public ProductRecordInfoBuilder setTags(@NotNull final Map<String, String> tags) {
-        this.tags.clear();
+        this.tags = ImmutableTags.of(tags);
 
-        if (tags != null) {
-            this.tags.putAll(tags);
+        return this;
+    }
+
+    private Map<String, String> mutableTags() {
+        if (tags instanceof ImmutableTags) {
+            tags = new HashMap<>(tags);
         }
 
-        return this;
+        return tags;
     }
 }
@@ -16,11 +16,11 @@
 
 package de.kaiserpfalzedv.billing.princeps.api;
 
-import java.util.HashMap;
 import java.util.Map;
 
 import javax.validation.constraints.NotNull;
 
+import de.kaiserpfalzedv.billing.api.base.ImmutableTags;
 import de.kaiserpfalzedv.billing.api.guided.ProductInfo;
 import de.kaiserpfalzedv.billing.api.guided.ProductRecordInfo;
 
@@ -33,15 +33,13 @@ public class ProductRecordInfoImpl implements ProductRecordInfo {
     private static final long serialVersionUID = -3240511233860563648L;
 
     private final ProductInfo productInfo;
-    private final HashMap<String, String> tags = new HashMap<>();
+    private final ImmutableTags tags;
 
 
     ProductRecordInfoImpl(@NotNull final ProductInfo productInfo, @NotNull Map<String, String> tags) {
         this.productInfo = productInfo;
 
-        if (tags != null) {
-            this.tags.putAll(tags);
-        }
+        this.tags = ImmutableTags.of(tags);
     }
 
     @Override
@@ -0,0 +1,344 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package de.kaiserpfalzedv.billing.princeps.test;
+
+import java.math.BigDecimal;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.kaiserpfalzedv.billing.api.guided.Customer;
+import de.kaiserpfalzedv.billing.api.guided.CustomerGuide;
+import de.kaiserpfalzedv.billing.api.guided.GuidingBusinessException;
+import de.kaiserpfalzedv.billing.api.imported.RawBaseRecord;
+import de.kaiserpfalzedv.billing.api.imported.RawMeteredRecord;
+import de.kaiserpfalzedv.billing.invectio.RawBillingRecordBuilder;
+import de.kaiserpfalzedv.billing.princeps.CachingCustomerGuide;
+import de.kaiserpfalzedv.billing.princeps.api.CustomerBuilder;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+import static java.time.ZoneOffset.UTC;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class CachingCustomerGuideTest {
+    private static final Logger LOG = LoggerFactory.getLogger(CachingCustomerGuideTest.class);
+
+    private static final Duration TIME_TO_LIVE = Duration.ofMinutes(5L);
+    private static final Duration NEGATIVE_TIME_TO_LIVE = Duration.ofMinutes(1L);
+
+    private TestCustomerGuide customerGuide;
+    private TestClock clock;
+    private CachingCustomerGuide service;
+
+
+    @BeforeClass
+    public static void setUpClass() {
+        MDC.put("test", CachingCustomerGuide.class.getSimpleName());
+
+        if (!SLF4JBridgeHandler.isInstalled()) {
+            SLF4JBridgeHandler.install();
+        }
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        MDC.remove("test");
+        MDC.remove("id");
+
+        SLF4JBridgeHandler.uninstall();
+    }
+
+    @Test
+    public void recordsOfTheSameProjectShareTheLookup() throws GuidingBusinessException {
+        logMethod("same-project", "Records differing in the pod only have to share the lookup");
+
+        Customer first = service.getCustomer(createRecord("billing", "pod-1"));
+        Customer second = service.getCustomer(createRecord("billing", "pod-2"));
+
+        assertSame("The customer has not been cached", first, second);
+        assertEquals("The number of lookups does not match", 1, customerGuide.calls.get());
+        assertEquals("The number of hits does not match", 1L, service.getHitCount());
+        assertEquals("The number of misses does not match", 1L, service.getMissCount());
+    }
+
+    @Test
+    public void recordsOfOtherProjectsAreLookedUp() throws GuidingBusinessException {
+        logMethod("other-project", "Records of other projects need their own lookup");
+
+        Customer first = service.getCustomer(createRecord("billing", "pod-1"));
+        Customer second = service.getCustomer(createRecord("other", "pod-1"));
+
+        assertNotSame("The customer of another project has been returned", first, second);
+        assertEquals("The number of lookups does not match", 2, customerGuide.calls.get());
+        assertEquals("The cache size does not match", 2, service.size());
+    }
+
+    @Test
+    public void leastRecentlyUsedCustomerIsEvicted() throws GuidingBusinessException {
+        logMethod("lru", "The least recently used customer has to be evicted");
+
+        service.getCustomer(createRecord("p1", "pod"));
+        service.getCustomer(createRecord("p2", "pod"));
+        service.getCustomer(createRecord("p1", "pod"));
+        service.getCustomer(createRecord("p3", "pod"));
+
+        assertEquals("The cache size does not match", 2, service.size());
+        assertEquals("The number of evictions does not match", 1L, service.getEvictionCount());
+
+        service.getCustomer(createRecord("p1", "pod"));
+        assertEquals("The recently used customer has been evicted", 3, customerGuide.calls.get());
+
+        service.getCustomer(createRecord("p2", "pod"));
+        assertEquals("The least recently used customer has not been evicted", 4, customerGuide.calls.get());
+    }
+
+    @Test
+    public void expiredCustomersAreLookedUpAgain() throws GuidingBusinessException {
+        logMethod("ttl", "Customers have to expire after the time to live");
+
+        service.getCustomer(createRecord("billing", "pod-1"));
+        clock.advance(TIME_TO_LIVE.minusSeconds(1L));
+        service.getCustomer(createRecord("billing", "pod-1"));
+        clock.advance(Duration.ofSeconds(1L));
+        service.getCustomer(createRecord("billing", "pod-1"));
+
+        assertEquals("The number of lookups does not match", 2, customerGuide.calls.get());
+        assertEquals("The number of evictions does not match", 1L, service.getEvictionCount());
+    }
+
+    @Test
+    public void failedLookupsAreNotCached() {
+        logMethod("failed", "Failed lookups must not be cached");
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                service.getCustomer(createRecord("unknown", "pod-1"));
+
+                fail("The customer of an unknown project has been found");
+            } catch (GuidingBusinessException e) {
+                LOG.debug("Caught expected exception: {}", e.getMessage());
+            }
+        }
+
+        assertEquals("The number of lookups does not match", 2, customerGuide.calls.get());
+        assertEquals("The cache size does not match", 0, service.size());
+    }
+
+    @Test
+    public void failedLookupsAreCachedForNegativeTimeToLive() {
+        logMethod("negative", "Failed lookups have to be remembered for the negative time to live");
+
+        service = new CachingCustomerGuide(
+                customerGuide, Arrays.asList("cluster", "project"), 2, TIME_TO_LIVE, NEGATIVE_TIME_TO_LIVE, clock);
+
+        GuidingBusinessException first = lookupUnknown("pod-1");
+        GuidingBusinessException second = lookupUnknown("pod-2");
+
+        assertNotSame("The remembered failure has been thrown again", first, second);
+        assertEquals("The failed lookup has not been rethrown", "pod-1", first.getBillingRecord().getTags().get("pod"));
+        assertNotEquals("The failed lookup lost its stack trace", 0, first.getStackTrace().length);
+        assertEquals("The remembered failure has not been thrown", first.getMessage(), second.getMessage());
+        assertEquals("The failure does not reference the current record",
+                     "pod-2", second.getBillingRecord().getTags().get("pod"));
+        assertEquals("The remembered failure has a stack trace", 0, second.getStackTrace().length);
+        assertEquals("The number of lookups does not match", 1, customerGuide.calls.get());
+        assertEquals("The number of negative hits does not match", 1L, service.getNegativeHitCount());
+        assertEquals("The cache size does not match", 0, service.size());
+
+        clock.advance(NEGATIVE_TIME_TO_LIVE);
+        lookupUnknown("pod-1");
+
+        assertEquals("The number of lookups does not match", 2, customerGuide.calls.get());
+    }
+
+    private GuidingBusinessException lookupUnknown(final String pod) {
+        try {
+            service.getCustomer(createRecord("unknown", pod));
+        } catch (GuidingBusinessException e) {
+            LOG.debug("Caught expected exception: {}", e.getMessage());
+            return e;
+        }
+
+        fail("The customer of an unknown project has been found");
+        return null;
+    }
+
+    @Test(timeout = 5000L)
+    public void runtimeTest() throws GuidingBusinessException {
+        logMethod("runtime-verification", "checking the hit rate of the cached customer guide ...");
+
+        service = new CachingCustomerGuide(customerGuide, Arrays.asList("cluster", "project"), 1000, TIME_TO_LIVE);
+
+        RawBaseRecord[] records = new RawBaseRecord[1000];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = createRecord("project-" + (i % 100), "pod-" + i);
+        }
+
+        for (int i = 0; i < 1000000; i++) {
+            service.getCustomer(records[i % records.length]);
+        }
+
+        LOG.info("Cached customer guide: {} lookups, {} hits, {} misses",
+                 customerGuide.calls.get(), service.getHitCount(), service.getMissCount());
+        assertEquals("The number of lookups does not match", 100, customerGuide.calls.get());
+    }
+
+    @Test(timeout = 10000L)
+    public void concurrentHitsAreServedFromTheCache() throws Exception {
+        logMethod("concurrent-hits", "Concurrent hits have to be served from the cache without lookups ...");
+
+        service = new CachingCustomerGuide(customerGuide, Arrays.asList("cluster", "project"), 1000, TIME_TO_LIVE);
+
+        RawBaseRecord[] records = new RawBaseRecord[1000];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = createRecord("project-" + (i % 100), "pod-" + i);
+            service.getCustomer(records[i]);
+        }
+
+        int threads = 4;
+        int iterations = 250000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            ArrayList<Future<?>> results = new ArrayList<>(threads);
+            for (int t = 0; t < threads; t++) {
+                final int offset = t;
+
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < iterations; i++) {
+                        service.getCustomer(records[(i + offset) % records.length]);
+                    }
+
+                    return null;
+                }));
+            }
+
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        LOG.info("Cached customer guide with {} threads: {} lookups, {} hits, {} misses",
+                 threads, customerGuide.calls.get(), service.getHitCount(), service.getMissCount());
+        assertEquals("The number of lookups does not match", 100, customerGuide.calls.get());
+        assertEquals("The number of hits does not match", 900L + threads * iterations, service.getHitCount());
+        assertEquals("The cache size does not match", 100, service.size());
+    }
+
+
+    private RawBaseRecord createRecord(final String project, final String pod) {
+        HashMap<String, String> tags = new HashMap<>();
+        tags.put("cluster", "abbot1");
+        tags.put("project", project);
+        tags.put("pod", pod);
+
+        return new RawBillingRecordBuilder<RawMeteredRecord>()
+                .setImportedDate(OffsetDateTime.now(UTC))
+                .setMeteredValue(BigDecimal.ONE)
+                .setTags(tags)
+                .build();
+    }
+
+    private void logMethod(final String method, final String message, final Object... paramater) {
+        MDC.put("id", method);
+
+        LOG.debug(message, paramater);
+    }
+
+    @Before
+    public void setUp() {
+        customerGuide = new TestCustomerGuide();
+        clock = new TestClock();
+        service = new CachingCustomerGuide(customerGuide, Arrays.asList("cluster", "project"), 2, TIME_TO_LIVE, clock);
+    }
+
+    @After
+    public void tearDown() {
+        MDC.remove("id");
+    }
+
+
+    private static class TestCustomerGuide implements CustomerGuide {
+        private final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public Customer getCustomer(final RawBaseRecord record) throws GuidingBusinessException {
+            calls.incrementAndGet();
+
+            String project = record.getTags().get("project");
+            if ("unknown".equals(project)) {
+                throw new GuidingBusinessException(record, "No customer for project " + project);
+            }
+
+            return new CustomerBuilder()
+                    .setName(project)
+                    .setCostReference(project)
+                    .build();
+        }
+    }
+
+    private static class TestClock extends Clock {
+        private Instant now = Instant.now();
+
+        void advance(final Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return UTC;
+        }
+
+        @Override
+        public Clock withZone(final ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
@@ -20,12 +20,18 @@ import java.io.FileNotFoundException;
 import java.math.BigDecimal;
 import java.time.Duration;
 import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import de.kaiserpfalzedv.billing.api.guided.Customer;
 import de.kaiserpfalzedv.billing.api.guided.CustomerGuide;
+import de.kaiserpfalzedv.billing.api.guided.GuidedBaseRecord;
 import de.kaiserpfalzedv.billing.api.guided.GuidedMeteredRecord;
 import de.kaiserpfalzedv.billing.api.guided.GuidedTimedRecord;
 import de.kaiserpfalzedv.billing.api.guided.GuidingBusinessException;
@@ -39,6 +45,7 @@ import de.kaiserpfalzedv.billing.api.imported.RawMeteredRecord;
 import de.kaiserpfalzedv.billing.api.imported.RawTimedRecord;
 import de.kaiserpfalzedv.billing.invectio.RawBillingRecordBuilder;
 import de.kaiserpfalzedv.billing.invectio.csv.CSVImporter;
+import de.kaiserpfalzedv.billing.princeps.DiagnosticContext;
 import de.kaiserpfalzedv.billing.princeps.GuidingExecutorImpl;
 import de.kaiserpfalzedv.billing.princeps.api.CustomerBuilder;
 import de.kaiserpfalzedv.billing.princeps.api.ProductInfoBuilder;
@@ -55,6 +62,9 @@ import org.slf4j.bridge.SLF4JBridgeHandler;
 import static java.time.ZoneOffset.UTC;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
@@ -96,6 +106,7 @@ public class GuidingExecutorTest {
         assertEquals("Metered value does not match!", record.getMeteredValue(), result.getMeteredValue());
         assertNotNull("No valid product added!", result.getProductInfo());
         assertNotNull("No valid customer added!", result.getCustomer());
+        assertSame("Tags should be shared with the raw record!", record.getTags(), result.getTags());
     }
 
     @Test
@@ -120,6 +131,174 @@ public class GuidingExecutorTest {
     }
 
 
+    @Test
+    public void shouldLookUpCustomerAndProductOncePerKeyInBatch() {
+        logMethod("batch-keys", "Records of a batch have to share the lookups of their guide keys");
+
+        service = new GuidingExecutorImpl(Arrays.asList("cluster", "project"), Collections.singletonList("product"));
+        CountingCustomerGuide countingGuide = new CountingCustomerGuide();
+
+        ArrayList<RawBaseRecord> records = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            records.add(createRecord("project-" + (i % 4), "pod-" + i, i % 2 == 0));
+        }
+
+        ArrayList<GuidingBusinessException> failures = new ArrayList<>();
+        List<GuidedBaseRecord> result = service.executeRecords(records, productGuide, countingGuide, failures::add);
+
+        assertEquals("Number of guided records does not match!", records.size(), result.size());
+        assertTrue("Failures have been reported!", failures.isEmpty());
+        assertEquals("Number of customer lookups does not match!", 4, countingGuide.calls.get());
+
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals("Order of the records does not match!", records.get(i).getId(), result.get(i).getId());
+            assertEquals("Metered and timed records are mixed up!",
+                         i % 2 == 0, result.get(i) instanceof GuidedMeteredRecord);
+            assertSame("Product info has not the tags of the record!",
+                       records.get(i).getTags(), result.get(i).getProductInfo().getTags());
+        }
+    }
+
+    @Test
+    public void shouldReportFailedRecordsOfBatchWithoutAborting() {
+        logMethod("batch-failures", "Records that can't be guided have to be reported to the side channel");
+
+        service = new GuidingExecutorImpl(Arrays.asList("cluster", "project"), Collections.singletonList("product"));
+        CountingCustomerGuide countingGuide = new CountingCustomerGuide();
+
+        List<RawBaseRecord> records = Arrays.asList(
+                createRecord("billing", "pod-1", true),
+                createRecord("unknown", "pod-2", true),
+                createRecord("billing", "pod-3", false),
+                createRecord("unknown", "pod-4", false)
+        );
+
+        ArrayList<GuidingBusinessException> failures = new ArrayList<>();
+        List<GuidedBaseRecord> result = service.executeRecords(records, productGuide, countingGuide, failures::add);
+
+        assertEquals("Number of guided records does not match!", 2, result.size());
+        assertEquals("Guided record does not match!", records.get(0).getId(), result.get(0).getId());
+        assertEquals("Guided record does not match!", records.get(2).getId(), result.get(1).getId());
+
+        assertEquals("Number of failures does not match!", 2, failures.size());
+        assertSame("Failed record does not match!", records.get(1), failures.get(0).getBillingRecord());
+        assertSame("Failed record does not match!", records.get(3), failures.get(1).getBillingRecord());
+        assertEquals("Number of customer lookups does not match!", 2, countingGuide.calls.get());
+    }
+
+    @Test
+    public void shouldShareLookupsOfRecordsWithEqualTagsByDefault() {
+        logMethod("batch-default", "Without key tags only records with equal tags share the lookup");
+
+        CountingCustomerGuide countingGuide = new CountingCustomerGuide();
+
+        List<RawBaseRecord> records = Arrays.asList(
+                createRecord("billing", "pod-1", true),
+                createRecord("billing", "pod-1", false),
+                createRecord("billing", "pod-2", true)
+        );
+
+        List<GuidedBaseRecord> result = service.executeRecords(records, productGuide, countingGuide, f -> {
+            throw new AssertionError("Unexpected failure", f);
+        });
+
+        assertEquals("Number of guided records does not match!", 3, result.size());
+        assertEquals("Number of customer lookups does not match!", 2, countingGuide.calls.get());
+    }
+
+    @Test
+    public void shouldRestoreTheDiagnosticContextAfterBatch() {
+        logMethod("batch-context", "The batch context has to be removed after the batch");
+
+        List<RawBaseRecord> records = Arrays.asList(
+                createRecord("billing", "pod-1", true),
+                createRecord("unknown", "pod-2", false)
+        );
+
+        ArrayList<String> batchIds = new ArrayList<>();
+        service.executeRecords(records, productGuide, new CountingCustomerGuide(), f -> {
+            batchIds.add(MDC.get(DiagnosticContext.BATCH_ID));
+        });
+
+        assertEquals("Number of failures does not match!", 1, batchIds.size());
+        assertNotNull("No batch id in the diagnostic context!", batchIds.get(0));
+        assertNull("The batch id is left in the diagnostic context!", MDC.get(DiagnosticContext.BATCH_ID));
+        assertNull("A record id is left in the diagnostic context!", MDC.get(DiagnosticContext.RECORD_ID));
+        assertEquals("The diagnostic context of the test is lost!", "batch-context", MDC.get("id"));
+    }
+
+    @Test
+    public void shouldKeepTheBatchIdOfTheCaller() {
+        logMethod("batch-id", "A batch id set by the caller has to be kept");
+
+        MDC.put(DiagnosticContext.BATCH_ID, "import-4711");
+        try {
+            ArrayList<String> batchIds = new ArrayList<>();
+            service.executeRecords(
+                    Collections.singletonList(createRecord("unknown", "pod-1", true)),
+                    productGuide, new CountingCustomerGuide(),
+                    f -> batchIds.add(MDC.get(DiagnosticContext.BATCH_ID))
+            );
+
+            assertEquals("The batch id has been changed!", Collections.singletonList("import-4711"), batchIds);
+            assertEquals("The batch id has been removed!", "import-4711", MDC.get(DiagnosticContext.BATCH_ID));
+        } finally {
+            MDC.remove(DiagnosticContext.BATCH_ID);
+        }
+    }
+
+    @Test(timeout = 10000L)
+    public void runtimeTest() throws GuidingBusinessException {
+        logMethod("runtime-verification", "checking the throughput of single record guiding on info level ...");
+
+        ch.qos.logback.classic.Logger logger
+                = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(GuidingExecutorImpl.class);
+        ch.qos.logback.classic.Level level = logger.getLevel();
+        logger.setLevel(ch.qos.logback.classic.Level.INFO);
+
+        try {
+            RawMeteredRecord record = new RawBillingRecordBuilder<RawMeteredRecord>()
+                    .setId(UUID.randomUUID())
+                    .setImportedDate(OffsetDateTime.now(UTC))
+                    .setMeteredDuration(Duration.ofMinutes(15L))
+                    .setMeteredValue(BigDecimal.TEN)
+                    .setTags(TAGS)
+                    .build();
+
+            for (int i = 0; i < 100000; i++) {
+                service.executeMeteredRecord(record, productGuide, customerGuide);
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < 1000000; i++) {
+                service.executeMeteredRecord(record, productGuide, customerGuide);
+            }
+            long duration = System.nanoTime() - start;
+
+            LOG.info("Guided 1000000 single records on info level: {} records/s", 1000000L * 1000000000L / duration);
+        } finally {
+            logger.setLevel(level);
+        }
+    }
+
+
+    private RawBaseRecord createRecord(final String project, final String pod, final boolean metered) {
+        HashMap<String, String> tags = new HashMap<>(TAGS);
+        tags.put("project", project);
+        tags.put("pod", pod);
+
+        RawBillingRecordBuilder<RawBaseRecord> builder = new RawBillingRecordBuilder<RawBaseRecord>()
+                .setId(UUID.randomUUID())
+                .setImportedDate(OffsetDateTime.now(UTC))
+                .setMeteredDuration(Duration.ofMinutes(15L))
+                .setTags(tags);
+
+        if (metered) {
+            builder.setMeteredValue(BigDecimal.TEN);
+        }
+
+        return builder.build();
+    }
 
     private void logMethod(final String method, final String message, final Object... paramater) {
         MDC.put("id", method);
@@ -183,5 +362,23 @@ public class GuidingExecutorTest {
             return customer;
         }
     }
-}
 
+    private static class CountingCustomerGuide implements CustomerGuide {
+        private final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public Customer getCustomer(RawBaseRecord record) throws GuidingBusinessException {
+            calls.incrementAndGet();
+
+            String project = record.getTags().get("project");
+            if ("unknown".equals(project)) {
+                throw new GuidingBusinessException(record, "No customer for project " + project);
+            }
+
+            return new CustomerBuilder()
+                    .setName(project)
+                    .setCostReference(project)
+                    .build();
+        }
+    }
+}
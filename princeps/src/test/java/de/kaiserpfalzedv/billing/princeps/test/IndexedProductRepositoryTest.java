@@ -0,0 +1,295 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package de.kaiserpfalzedv.billing.princeps.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import de.kaiserpfalzedv.billing.api.guided.NoProductFoundException;
+import de.kaiserpfalzedv.billing.api.guided.ProductInfo;
+import de.kaiserpfalzedv.billing.princeps.IndexedProductRepository;
+import de.kaiserpfalzedv.billing.princeps.IndexedProductRepositoryBuilder;
+import de.kaiserpfalzedv.billing.princeps.api.ProductInfoBuilder;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class IndexedProductRepositoryTest {
+    private static final Logger LOG = LoggerFactory.getLogger(IndexedProductRepositoryTest.class);
+
+    private static final String[] KEYS = {"product", "cluster", "storage-class", "project"};
+    private static final String[] VALUES = {"a", "b", "c", "d"};
+
+    private final ProductInfo storage = createProduct("Storage");
+    private final ProductInfo fastStorage = createProduct("Fast Storage");
+    private final ProductInfo fastStorageOnAbbot = createProduct("Fast Storage on abbot1");
+    private final ProductInfo fallback = createProduct("Fallback");
+
+
+    @BeforeClass
+    public static void setUpClass() {
+        MDC.put("test", IndexedProductRepository.class.getSimpleName());
+
+        if (!SLF4JBridgeHandler.isInstalled()) {
+            SLF4JBridgeHandler.install();
+        }
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        MDC.remove("test");
+        MDC.remove("id");
+
+        SLF4JBridgeHandler.uninstall();
+    }
+
+    @Test
+    public void shouldFindTheMostSpecificProduct() throws NoProductFoundException {
+        logMethod("specific", "The rule matching the most tags has to win");
+
+        IndexedProductRepository service = createStorageRepository(false);
+
+        assertSame(storage, service.retrieveProduct(tags("product", "Storage", "storage-class", "standard")));
+        assertSame(fastStorage, service.retrieveProduct(tags("product", "Storage", "storage-class", "ssd")));
+        assertSame(fastStorageOnAbbot, service.retrieveProduct(
+                tags("product", "Storage", "storage-class", "ssd", "cluster", "abbot1")));
+        assertSame(fastStorage, service.retrieveProduct(
+                tags("product", "Storage", "storage-class", "ssd", "cluster", "other")));
+
+        assertArrayEquals("Keys are not tested by selectivity!",
+                          new String[] {"product", "storage-class", "cluster"}, service.getKeys());
+    }
+
+    @Test
+    public void shouldFailWithoutMatchingRule() {
+        logMethod("no-match", "Records matching no rule have no product");
+
+        IndexedProductRepository service = createStorageRepository(false);
+
+        try {
+            service.retrieveProduct(tags("product", "CPU", "storage-class", "ssd"));
+
+            fail("A product has been found for records matching no rule");
+        } catch (NoProductFoundException e) {
+            LOG.debug("Caught expected exception: {}", e.getMessage());
+        }
+    }
+
+    @Test
+    public void shouldUseRuleWithoutTagsAsFallback() throws NoProductFoundException {
+        logMethod("fallback", "A rule without tags matches all records");
+
+        IndexedProductRepository service = createStorageRepository(true);
+
+        assertSame(fallback, service.retrieveProduct(tags("product", "CPU")));
+        assertSame(fallback, service.retrieveProduct(Collections.emptyMap()));
+        assertSame(fastStorage, service.retrieveProduct(tags("product", "Storage", "storage-class", "ssd")));
+    }
+
+    @Test
+    public void shouldMatchLinearScanOfRules() {
+        logMethod("linear-scan", "The index has to find the same products as a linear scan over all rules");
+
+        Random random = new Random(20180218L);
+
+        for (int run = 0; run < 50; run++) {
+            List<Map<String, String>> rules = new ArrayList<>();
+            List<ProductInfo> products = new ArrayList<>();
+            IndexedProductRepositoryBuilder builder = new IndexedProductRepositoryBuilder();
+
+            for (int i = 0; i < 1 + random.nextInt(40); i++) {
+                Map<String, String> rule = randomTags(random, 0.4);
+                ProductInfo product = createProduct("product-" + run + "-" + i);
+
+                rules.add(rule);
+                products.add(product);
+                builder.addRule(product, rule);
+            }
+
+            IndexedProductRepository service = builder.build();
+
+            for (int i = 0; i < 500; i++) {
+                Map<String, String> tags = randomTags(random, 0.8);
+
+                assertSame("Index does not match the linear scan for " + tags + " and rules " + rules,
+                           linearScan(rules, products, tags), retrieveOrNull(service, tags));
+            }
+        }
+    }
+
+    @Test(timeout = 10000L)
+    public void runtimeTest() throws NoProductFoundException {
+        logMethod("runtime-verification", "checking the lookup time of the product index ...");
+
+        Random random = new Random(4711L);
+        IndexedProductRepositoryBuilder builder = new IndexedProductRepositoryBuilder();
+        List<Map<String, String>> rules = new ArrayList<>();
+        List<ProductInfo> products = new ArrayList<>();
+
+        for (int i = 0; i < 1000; i++) {
+            Map<String, String> rule = tags(
+                    "product", "product-" + (i % 100),
+                    "cluster", "cluster-" + (i / 100),
+                    "storage-class", i % 2 == 0 ? "ssd" : "standard"
+            );
+            ProductInfo product = createProduct("product-" + i);
+
+            rules.add(rule);
+            products.add(product);
+            builder.addRule(product, rule);
+        }
+        IndexedProductRepository service = builder.build();
+
+        List<Map<String, String>> records = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            Map<String, String> rule = rules.get(random.nextInt(rules.size()));
+
+            records.add(tags("product", rule.get("product"), "cluster", rule.get("cluster"),
+                             "storage-class", rule.get("storage-class"), "pod", "pod-" + i));
+        }
+
+        ch.qos.logback.classic.Logger logger
+                = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(IndexedProductRepository.class);
+        ch.qos.logback.classic.Level level = logger.getLevel();
+        logger.setLevel(ch.qos.logback.classic.Level.INFO);
+
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < 1000000; i++) {
+                service.retrieveProduct(records.get(i % records.size()));
+            }
+        } finally {
+            logger.setLevel(level);
+        }
+        long indexed = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < 10000; i++) {
+            linearScan(rules, products, records.get(i % records.size()));
+        }
+        long scanned = System.nanoTime() - start;
+
+        LOG.info("Product lookup with {} rules ({} nodes): index {} ns, linear scan {} ns",
+                 rules.size(), service.getNodeCount(), indexed / 1000000L, scanned / 10000L);
+    }
+
+
+    private IndexedProductRepository createStorageRepository(final boolean withFallback) {
+        IndexedProductRepositoryBuilder builder = new IndexedProductRepositoryBuilder()
+                .addRule(storage, tags("product", "Storage"))
+                .addRule(fastStorage, tags("product", "Storage", "storage-class", "ssd"))
+                .addRule(fastStorageOnAbbot, tags("product", "Storage", "storage-class", "ssd", "cluster", "abbot1"));
+
+        if (withFallback) {
+            builder.addRule(fallback, Collections.emptyMap());
+        }
+
+        return builder.build();
+    }
+
+    private static ProductInfo linearScan(
+            final List<Map<String, String>> rules,
+            final List<ProductInfo> products,
+            final Map<String, String> tags
+    ) {
+        int best = -1;
+
+        for (int i = 0; i < rules.size(); i++) {
+            boolean matches = true;
+
+            for (Map.Entry<String, String> tag : rules.get(i).entrySet()) {
+                if (!tag.getValue().equals(tags.get(tag.getKey()))) {
+                    matches = false;
+                    break;
+                }
+            }
+
+            if (matches && (best == -1 || rules.get(i).size() > rules.get(best).size())) {
+                best = i;
+            }
+        }
+
+        return best != -1 ? products.get(best) : null;
+    }
+
+    private static ProductInfo retrieveOrNull(final IndexedProductRepository service, final Map<String, String> tags) {
+        try {
+            return service.retrieveProduct(tags);
+        } catch (NoProductFoundException e) {
+            return null;
+        }
+    }
+
+    private static Map<String, String> randomTags(final Random random, final double probability) {
+        HashMap<String, String> result = new HashMap<>();
+
+        for (String key : KEYS) {
+            if (random.nextDouble() < probability) {
+                result.put(key, VALUES[random.nextInt(VALUES.length)]);
+            }
+        }
+
+        return result;
+    }
+
+    private static Map<String, String> tags(final String... keysAndValues) {
+        HashMap<String, String> result = new HashMap<>();
+
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            result.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+
+        return result;
+    }
+
+    private static ProductInfo createProduct(final String name) {
+        return new ProductInfoBuilder()
+                .setName(name)
+                .build();
+    }
+
+    private void logMethod(final String method, final String message, final Object... paramater) {
+        MDC.put("id", method);
+
+        LOG.debug(message, paramater);
+    }
+
+    @After
+    public void tearDown() {
+        MDC.remove("id");
+    }
+}
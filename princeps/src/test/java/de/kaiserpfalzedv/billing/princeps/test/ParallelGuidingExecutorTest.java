@@ -0,0 +1,270 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package de.kaiserpfalzedv.billing.princeps.test;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+import de.kaiserpfalzedv.billing.api.guided.Customer;
+import de.kaiserpfalzedv.billing.api.guided.CustomerGuide;
+import de.kaiserpfalzedv.billing.api.guided.GuidedBaseRecord;
+import de.kaiserpfalzedv.billing.api.guided.GuidedMeteredRecord;
+import de.kaiserpfalzedv.billing.api.guided.GuidingBusinessException;
+import de.kaiserpfalzedv.billing.api.guided.ProductGuide;
+import de.kaiserpfalzedv.billing.api.guided.ProductInfo;
+import de.kaiserpfalzedv.billing.api.guided.ProductRecordInfo;
+import de.kaiserpfalzedv.billing.api.imported.RawBaseRecord;
+import de.kaiserpfalzedv.billing.invectio.RawBillingRecordBuilder;
+import de.kaiserpfalzedv.billing.princeps.GuidingExecutorImpl;
+import de.kaiserpfalzedv.billing.princeps.ParallelGuidingExecutor;
+import de.kaiserpfalzedv.billing.princeps.api.CustomerBuilder;
+import de.kaiserpfalzedv.billing.princeps.api.ProductInfoBuilder;
+import de.kaiserpfalzedv.billing.princeps.api.ProductRecordInfoBuilder;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+import static java.time.ZoneOffset.UTC;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class ParallelGuidingExecutorTest {
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelGuidingExecutorTest.class);
+
+    private static final List<String> CUSTOMER_KEY_TAGS = Arrays.asList("cluster", "project");
+    private static final List<String> PRODUCT_KEY_TAGS = Collections.singletonList("product");
+
+    private ForkJoinPool pool;
+    private ParallelGuidingExecutor service;
+
+    private final TestProductGuide productGuide = new TestProductGuide();
+    private final TestCustomerGuide customerGuide = new TestCustomerGuide();
+
+
+    @BeforeClass
+    public static void setUpClass() {
+        MDC.put("test", ParallelGuidingExecutor.class.getSimpleName());
+
+        if (!SLF4JBridgeHandler.isInstalled()) {
+            SLF4JBridgeHandler.install();
+        }
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        MDC.remove("test");
+        MDC.remove("id");
+
+        SLF4JBridgeHandler.uninstall();
+    }
+
+    @Test
+    public void shouldKeepTheOrderOfTheRecords() {
+        logMethod("order", "The guided records have to be in the order of the batch");
+
+        List<RawBaseRecord> records = createRecords(10000, 0);
+        ArrayList<GuidingBusinessException> failures = new ArrayList<>();
+
+        List<GuidedBaseRecord> result = service.executeRecords(records, productGuide, customerGuide, failures::add);
+
+        assertTrue("Failures have been reported!", failures.isEmpty());
+        assertEquals("Number of guided records does not match!", records.size(), result.size());
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals("Order of the records does not match!", records.get(i).getId(), result.get(i).getId());
+            assertEquals("Metered and timed records are mixed up!",
+                         i % 2 == 0, result.get(i) instanceof GuidedMeteredRecord);
+        }
+
+        LOG.debug("Partitions guided on {} threads", customerGuide.threads.size());
+    }
+
+    @Test
+    public void shouldReportFailuresInTheOrderOfTheRecords() {
+        logMethod("failures", "Failures have to be reported in the order of the batch");
+
+        List<RawBaseRecord> records = createRecords(10000, 7);
+        ArrayList<GuidingBusinessException> failures = new ArrayList<>();
+
+        List<GuidedBaseRecord> result = service.executeRecords(records, productGuide, customerGuide, failures::add);
+
+        int expectedFailures = 0;
+        for (int i = 0; i < records.size(); i++) {
+            if (i % 7 == 0) {
+                assertSame("Failed record does not match!",
+                           records.get(i), failures.get(expectedFailures).getBillingRecord());
+                expectedFailures++;
+            }
+        }
+
+        assertEquals("Number of failures does not match!", expectedFailures, failures.size());
+        assertEquals("Number of guided records does not match!",
+                     records.size() - expectedFailures, result.size());
+    }
+
+    @Test
+    public void shouldGuideSmallBatchesOnTheCallingThread() {
+        logMethod("small-batch", "Batches not larger than a partition are guided directly");
+
+        List<RawBaseRecord> records = createRecords(service.getPartitionSize(), 0);
+
+        List<GuidedBaseRecord> result = service.executeRecords(records, productGuide, customerGuide, f -> {
+            throw new AssertionError("Unexpected failure", f);
+        });
+
+        assertEquals("Number of guided records does not match!", records.size(), result.size());
+        assertEquals("Records have been guided on other threads!",
+                     Collections.singleton(Thread.currentThread().getName()), customerGuide.threads);
+    }
+
+    @Test(timeout = 30000L)
+    public void runtimeTest() {
+        logMethod("runtime-verification", "checking the throughput of the parallel guiding ...");
+
+        List<RawBaseRecord> records = createRecords(200000, 0);
+        GuidingExecutorImpl sequential = new GuidingExecutorImpl(CUSTOMER_KEY_TAGS, PRODUCT_KEY_TAGS);
+        ForkJoinPool processors = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        ParallelGuidingExecutor parallel = new ParallelGuidingExecutor(
+                new GuidingExecutorImpl(CUSTOMER_KEY_TAGS, PRODUCT_KEY_TAGS), processors,
+                ParallelGuidingExecutor.DEFAULT_PARTITION_SIZE);
+
+        for (int i = 0; i < 3; i++) {
+            sequential.executeRecords(records, productGuide, customerGuide, f -> { });
+            parallel.executeRecords(records, productGuide, customerGuide, f -> { });
+        }
+
+        long start = System.nanoTime();
+        sequential.executeRecords(records, productGuide, customerGuide, f -> { });
+        long sequentialTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        parallel.executeRecords(records, productGuide, customerGuide, f -> { });
+        long parallelTime = System.nanoTime() - start;
+
+        LOG.info("Guided {} records: sequential {} records/s, parallel ({} threads) {} records/s",
+                 records.size(),
+                 records.size() * 1000000000L / sequentialTime,
+                 parallel.getParallelism(),
+                 records.size() * 1000000000L / parallelTime);
+
+        processors.shutdown();
+    }
+
+
+    private List<RawBaseRecord> createRecords(final int number, final int failEvery) {
+        ArrayList<RawBaseRecord> result = new ArrayList<>(number);
+
+        for (int i = 0; i < number; i++) {
+            HashMap<String, String> tags = new HashMap<>();
+            tags.put("cluster", "abbot1");
+            tags.put("project", failEvery > 0 && i % failEvery == 0 ? "unknown" : "project-" + (i % 100));
+            tags.put("pod", "pod-" + i);
+            tags.put("product", "cpu");
+
+            RawBillingRecordBuilder<RawBaseRecord> builder = new RawBillingRecordBuilder<RawBaseRecord>()
+                    .setId(UUID.randomUUID())
+                    .setImportedDate(OffsetDateTime.now(UTC))
+                    .setMeteredDuration(Duration.ofMinutes(15L))
+                    .setTags(tags);
+
+            if (i % 2 == 0) {
+                builder.setMeteredValue(BigDecimal.TEN);
+            }
+
+            result.add(builder.build());
+        }
+
+        return result;
+    }
+
+    private void logMethod(final String method, final String message, final Object... paramater) {
+        MDC.put("id", method);
+
+        LOG.debug(message, paramater);
+    }
+
+    @Before
+    public void setUp() {
+        pool = new ForkJoinPool(4);
+        service = new ParallelGuidingExecutor(
+                new GuidingExecutorImpl(CUSTOMER_KEY_TAGS, PRODUCT_KEY_TAGS), pool, 500);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+
+        MDC.remove("id");
+    }
+
+
+    private static class TestProductGuide implements ProductGuide {
+        private final ProductInfo product = new ProductInfoBuilder()
+                .setName("cpu")
+                .setTags(Collections.singletonMap("product", "cpu"))
+                .build();
+
+        @Override
+        public ProductRecordInfo getProduct(final RawBaseRecord record) {
+            return new ProductRecordInfoBuilder()
+                    .setProductInfo(product)
+                    .setTags(record.getTags())
+                    .build();
+        }
+    }
+
+    private static class TestCustomerGuide implements CustomerGuide {
+        private final Set<String> threads = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public Customer getCustomer(final RawBaseRecord record) throws GuidingBusinessException {
+            threads.add(Thread.currentThread().getName());
+
+            String project = record.getTags().get("project");
+            if ("unknown".equals(project)) {
+                throw new GuidingBusinessException(record, "No customer for project " + project);
+            }
+
+            return new CustomerBuilder()
+                    .setName(project)
+                    .setCostReference(project)
+                    .build();
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.quod;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.UUID;
+
+import javax.money.CurrencyUnit;
+import javax.money.Monetary;
+import javax.money.MonetaryAmount;
+
+import de.kaiserpfalzedv.billing.api.cdr.CallDataRecord;
+import org.javamoney.moneta.Money;
+
+/**
+ * The compact binary form of {@link CallDataRecord}s. Numbers are written as variable length integers. Strings
+ * repeating for many records (tarif names, units, currencies and most descriptions) are pooled: the first
+ * {@link #MAX_POOLED_STRINGS} distinct strings are kept in a table and written as index only. The table is not part
+ * of the records written, the reading codec has to be created with the table of the writing one.
+ *
+ * A codec is not thread-safe.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+final class CallDataRecordCodec {
+    /**
+     * Maximum number of distinct strings pooled. Strings beyond that limit are written in full.
+     */
+    static final int MAX_POOLED_STRINGS = 4096;
+
+    private final ArrayList<String> strings;
+
+    /**
+     * The index of the pooled strings. Only used for writing.
+     */
+    private final HashMap<String, Integer> index = new HashMap<>();
+
+    /**
+     * The currencies already looked up. Only used for reading.
+     */
+    private final HashMap<String, CurrencyUnit> currencies = new HashMap<>();
+
+
+    /**
+     * Creates a codec for writing records.
+     */
+    CallDataRecordCodec() {
+        this.strings = new ArrayList<>();
+    }
+
+    /**
+     * Creates a codec for reading records.
+     *
+     * @param strings the string table of the codec having written the records.
+     */
+    CallDataRecordCodec(final String[] strings) {
+        this.strings = new ArrayList<>(strings.length);
+
+        for (String string : strings) {
+            this.strings.add(string);
+        }
+    }
+
+
+    void write(final DataOutput out, final CallDataRecord record) throws IOException {
+        out.writeLong(record.getId().getMostSignificantBits());
+        out.writeLong(record.getId().getLeastSignificantBits());
+        writeString(out, record.getDescription());
+
+        writeString(out, record.getTarifName());
+        writeAmount(out, record.getTarifRate());
+        writeString(out, record.getTarifUnit());
+        writeDecimal(out, record.getTarifUnitDivisor());
+
+        writeTimestamp(out, record.getMeteredTimestamp());
+        writeLong(out, record.getMeteredDuration().getSeconds());
+        writeLong(out, record.getMeteredDuration().getNano());
+        writeDecimal(out, record.getMeteredValue());
+
+        writeAmount(out, record.getAmount());
+    }
+
+    CallDataRecord read(final DataInput in) throws IOException {
+        UUID id = new UUID(in.readLong(), in.readLong());
+        String description = readString(in);
+
+        String tarifName = readString(in);
+        MonetaryAmount tarifRate = readAmount(in);
+        String tarifUnit = readString(in);
+        BigDecimal tarifUnitDivisor = readDecimal(in);
+
+        OffsetDateTime meteredTimestamp = readTimestamp(in);
+        Duration meteredDuration = Duration.ofSeconds(readLong(in), readLong(in));
+        BigDecimal meteredValue = readDecimal(in);
+
+        MonetaryAmount amount = readAmount(in);
+
+        return new CallDataRecordImpl(
+                id,
+                description,
+
+                tarifName,
+                tarifRate,
+                tarifUnit,
+                tarifUnitDivisor,
+
+                meteredTimestamp,
+                meteredDuration,
+                meteredValue,
+
+                amount
+        );
+    }
+
+
+    /**
+     * Strings are written as index into the table plus one, or as zero followed by the length of the UTF-8 bytes of
+     * the string and the bytes.
+     */
+    private void writeString(final DataOutput out, final String value) throws IOException {
+        Integer pooled = index.get(value);
+
+        if (pooled == null && strings.size() < MAX_POOLED_STRINGS) {
+            pooled = strings.size();
+            strings.add(value);
+            index.put(value, pooled);
+        }
+
+        if (pooled != null) {
+            writeLong(out, pooled + 1L);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+            writeLong(out, 0L);
+            writeLong(out, bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private String readString(final DataInput in) throws IOException {
+        int pooled = (int) readLong(in);
+
+        if (pooled > 0) {
+            return strings.get(pooled - 1);
+        }
+
+        byte[] bytes = new byte[(int) readLong(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void writeAmount(final DataOutput out, final MonetaryAmount amount) throws IOException {
+        writeString(out, amount.getCurrency().getCurrencyCode());
+        writeDecimal(out, amount.getNumber().numberValue(BigDecimal.class));
+    }
+
+    private MonetaryAmount readAmount(final DataInput in) throws IOException {
+        String code = readString(in);
+
+        CurrencyUnit currency = currencies.get(code);
+        if (currency == null) {
+            currency = Monetary.getCurrency(code);
+            currencies.put(code, currency);
+        }
+
+        return Money.of(readDecimal(in), currency);
+    }
+
+    /**
+     * Decimals are written as header and unscaled value. The header is twice the scale, plus one if the unscaled
+     * value exceeds a long and is written as its bytes.
+     */
+    private static void writeDecimal(final DataOutput out, final BigDecimal value) throws IOException {
+        BigInteger unscaled = value.unscaledValue();
+
+        if (unscaled.bitLength() < Long.SIZE) {
+            writeLong(out, 2L * value.scale());
+            writeLong(out, unscaled.longValue());
+        } else {
+            byte[] bytes = unscaled.toByteArray();
+
+            writeLong(out, 2L * value.scale() + 1L);
+            writeLong(out, bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static BigDecimal readDecimal(final DataInput in) throws IOException {
+        long header = readLong(in);
+        int scale = (int) (header >> 1);
+
+        if ((header & 1L) == 0L) {
+            return BigDecimal.valueOf(readLong(in), scale);
+        }
+
+        byte[] bytes = new byte[(int) readLong(in)];
+        in.readFully(bytes);
+        return new BigDecimal(new BigInteger(bytes), scale);
+    }
+
+    private static void writeTimestamp(final DataOutput out, final OffsetDateTime timestamp) throws IOException {
+        writeLong(out, timestamp.toEpochSecond());
+        writeLong(out, timestamp.getNano());
+        writeLong(out, timestamp.getOffset().getTotalSeconds());
+    }
+
+    private static OffsetDateTime readTimestamp(final DataInput in) throws IOException {
+        Instant instant = Instant.ofEpochSecond(readLong(in), readLong(in));
+        ZoneOffset offset = ZoneOffset.ofTotalSeconds((int) readLong(in));
+
+        return OffsetDateTime.ofInstant(instant, offset);
+    }
+
+    /**
+     * Writes a zig-zag encoded variable length long: 7 bits per byte, the high bit marks following bytes.
+     */
+    private static void writeLong(final DataOutput out, final long value) throws IOException {
+        long encoded = (value << 1) ^ (value >> 63);
+
+        while ((encoded & ~0x7FL) != 0L) {
+            out.writeByte((int) ((encoded & 0x7FL) | 0x80L));
+            encoded >>>= 7;
+        }
+        out.writeByte((int) encoded);
+    }
+
+    private static long readLong(final DataInput in) throws IOException {
+        long encoded = 0L;
+
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            int b = in.readUnsignedByte();
+
+            encoded |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (encoded >>> 1) ^ -(encoded & 1L);
+            }
+        }
+
+        throw new IOException("Malformed variable length number in call data record file");
+    }
+
+
+    /**
+     * @return the pooled strings, needed to read the records written by this codec.
+     */
+    String[] getStrings() {
+        return strings.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.quod;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.OffsetDateTime;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.UUID;
+
+import javax.validation.constraints.NotNull;
+
+import de.kaiserpfalzedv.billing.api.cdr.CallDataRecord;
+import de.kaiserpfalzedv.billing.api.cdr.CallDataRecordAttachment;
+import de.kaiserpfalzedv.billing.api.common.impl.IdentifiableImpl;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An attachment keeping its {@link CallDataRecord}s in a file written by the
+ * {@link FileCallDataRecordAttachmentBuilder}. The records are read in pages of {@link #PAGE_SIZE} records when
+ * accessed, only the byte offsets of the pages and the page read last are held in memory. So the number of records
+ * is not limited by the heap.
+ *
+ * The serialized form contains the path of the file, not the records. The file has to be readable wherever the
+ * attachment is deserialized. The file is opened on the first access to the records and kept open until
+ * {@link #close()} is called. A temporary file created by the builder is owned by the attachment and deleted on
+ * {@link #close()}, deserialized attachments never own their file. Reading is thread-safe.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class FileCallDataRecordAttachment extends IdentifiableImpl implements CallDataRecordAttachment, Closeable {
+    private static final long serialVersionUID = 4125863419617463251L;
+    private static final Logger LOG = LoggerFactory.getLogger(FileCallDataRecordAttachment.class);
+
+    /**
+     * The number of records read at once.
+     */
+    public static final int PAGE_SIZE = 1024;
+
+    /** The title of the CDR Attachment */
+    private final String title;
+
+    /** The timestamp of this attachment generation */
+    private final OffsetDateTime timestamp;
+
+    /** The file containing the CDRs. A string since paths are not serializable. */
+    private final String file;
+
+    /** The number of CDRs in the file */
+    private final int size;
+
+    /** The offset of every page in the file, followed by the length of the file */
+    private final long[] pageOffsets;
+
+    /** The string table of the codec having written the file */
+    private final String[] strings;
+
+    /** If the file is deleted on {@link #close()}. Not serialized, so copies never delete the file */
+    private final transient boolean ownsFile;
+
+    private transient volatile FileChannel channel;
+    private transient volatile Page page;
+
+
+    FileCallDataRecordAttachment(
+            @NotNull final UUID id,
+            @NotNull final String title,
+            @NotNull final OffsetDateTime timestamp,
+            @NotNull final Path file,
+            final boolean ownsFile,
+            final int size,
+            @NotNull final long[] pageOffsets,
+            @NotNull final String[] strings
+    ) {
+        super(id);
+
+        this.title = title;
+        this.timestamp = timestamp;
+        this.file = file.toString();
+        this.ownsFile = ownsFile;
+        this.size = size;
+        this.pageOffsets = pageOffsets;
+        this.strings = strings;
+    }
+
+    @Override
+    public String getTitle() {
+        return title;
+    }
+
+    @Override
+    public OffsetDateTime getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return a read-only view of the records. Every access outside of the page read last reads the file, so the
+     * records should be accessed in order.
+     * @throws UncheckedIOException if the file can't be read.
+     */
+    @Override
+    public List<CallDataRecord> getRecords() {
+        return new Records();
+    }
+
+    public Path getFile() {
+        return Paths.get(file);
+    }
+
+    /**
+     * @return true if the file is deleted on {@link #close()}.
+     */
+    public boolean isOwningFile() {
+        return ownsFile;
+    }
+
+    /**
+     * Closes the file. It is opened again when the records are accessed afterwards, unless the attachment owns the
+     * file: then the file is deleted and the records can't be read any more. Must not be called while other threads
+     * read records.
+     */
+    @Override
+    public void close() throws IOException {
+        FileChannel current = channel;
+
+        if (current != null) {
+            channel = null;
+            page = null;
+
+            current.close();
+        }
+
+        if (ownsFile && Files.deleteIfExists(Paths.get(file))) {
+            LOG.debug("Deleted CDR file {}", file);
+        }
+    }
+
+
+    private CallDataRecord get(final int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " is out of the " + size + " records");
+        }
+
+        int number = index / PAGE_SIZE;
+
+        Page current = page;
+        if (current == null || current.number != number) {
+            current = readPage(number);
+            page = current;
+        }
+
+        return current.records[index - number * PAGE_SIZE];
+    }
+
+    private Page readPage(final int number) {
+        long start = pageOffsets[number];
+        int length = (int) (pageOffsets[number + 1] - start);
+        int count = Math.min(PAGE_SIZE, size - number * PAGE_SIZE);
+
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            FileChannel reader = openChannel();
+            while (buffer.hasRemaining()) {
+                if (reader.read(buffer, start + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of call data record file " + file);
+                }
+            }
+
+            CallDataRecordCodec codec = new CallDataRecordCodec(strings);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.array()));
+            CallDataRecord[] records = new CallDataRecord[count];
+            for (int i = 0; i < count; i++) {
+                records[i] = codec.read(in);
+            }
+
+            LOG.trace("Read page {} of CDR file {}: {} records, {} bytes", number, file, count, length);
+            return new Page(number, records);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't read the call data records from " + file, e);
+        }
+    }
+
+    private FileChannel openChannel() throws IOException {
+        FileChannel result = channel;
+
+        if (result == null) {
+            synchronized (this) {
+                result = channel;
+
+                if (result == null) {
+                    result = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+                    channel = result;
+                }
+            }
+        }
+
+        return result;
+    }
+
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .appendSuper(super.toString())
+                .append("title", title)
+                .append("timestamp", timestamp)
+                .append("file", file)
+                .append("records", size)
+                .toString();
+    }
+
+
+    /**
+     * The records of a single page.
+     */
+    private static final class Page {
+        private final int number;
+        private final CallDataRecord[] records;
+
+        Page(final int number, final CallDataRecord[] records) {
+            this.number = number;
+            this.records = records;
+        }
+    }
+
+    /**
+     * The list view of the records.
+     */
+    private final class Records extends AbstractList<CallDataRecord> {
+        @Override
+        public CallDataRecord get(final int index) {
+            return FileCallDataRecordAttachment.this.get(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
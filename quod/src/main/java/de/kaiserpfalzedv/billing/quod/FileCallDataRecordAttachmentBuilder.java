@@ -0,0 +1,254 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.quod;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.util.Arrays;
+import java.util.UUID;
+
+import javax.validation.constraints.NotNull;
+
+import de.kaiserpfalzedv.billing.api.cdr.CallDataRecord;
+import org.apache.commons.lang3.builder.Builder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.time.ZoneOffset.UTC;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+/**
+ * Creates a {@link FileCallDataRecordAttachment}. Every record added is appended to the file at once, so the
+ * builder holds no records. The file is created with the first record, a temporary file is used if no file is
+ * given. The temporary file is owned by the attachment and deleted when the attachment is closed. Files of builds
+ * failed or abandoned by {@link #reset()} are deleted.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public final class FileCallDataRecordAttachmentBuilder implements Builder<FileCallDataRecordAttachment> {
+    private static final Logger LOG = LoggerFactory.getLogger(FileCallDataRecordAttachmentBuilder.class);
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private UUID id;
+    private String title;
+    private OffsetDateTime timestamp;
+    private Path file;
+
+    /** If the file is a temporary file created by this builder */
+    private boolean temporary;
+
+    /** The stream to the file. Null until the first record is added */
+    private OutputStream out;
+    private CallDataRecordCodec codec;
+
+    /** A single encoded record, to count the bytes written */
+    private final ByteArrayOutputStream encoded = new ByteArrayOutputStream(256);
+    private final DataOutputStream encoder = new DataOutputStream(encoded);
+
+    private int size;
+    private long position;
+    private long[] pageOffsets = new long[16];
+
+
+    /**
+     * @throws UncheckedIOException if the file can't be written.
+     */
+    @Override
+    public FileCallDataRecordAttachment build() {
+        defaults();
+
+        try {
+            open();
+            out.close();
+            out = null;
+
+            int pages = (size + FileCallDataRecordAttachment.PAGE_SIZE - 1) / FileCallDataRecordAttachment.PAGE_SIZE;
+            long[] offsets = Arrays.copyOf(pageOffsets, pages + 1);
+            offsets[pages] = position;
+
+            FileCallDataRecordAttachment result = new FileCallDataRecordAttachment(
+                    id, title, timestamp, file, temporary, size, offsets, codec.getStrings());
+            LOG.trace("Created CDR Attachment: {}", result);
+
+            return result;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't write the call data records to " + file, e);
+        } finally {
+            reset();
+        }
+    }
+
+    private void defaults() {
+        if (id == null) {
+            id = UUID.randomUUID();
+        }
+
+        if (timestamp == null) {
+            timestamp = OffsetDateTime.now(UTC);
+        }
+
+        if (isBlank(title)) {
+            title = "CDR Attachment " + id;
+        }
+
+        if (size == 0) {
+            LOG.info("Generating CallDataRecordAttachment without records.");
+        }
+    }
+
+    private void open() throws IOException {
+        if (out != null) {
+            return;
+        }
+
+        if (file == null) {
+            file = Files.createTempFile("quod-cdr-", ".bin");
+            temporary = true;
+        }
+
+        try {
+            out = new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE);
+        } catch (IOException e) {
+            if (temporary) {
+                Files.deleteIfExists(file);
+            }
+
+            throw e;
+        }
+        codec = new CallDataRecordCodec();
+        LOG.debug("Writing call data records to: {}", file);
+    }
+
+    /**
+     * Closes and deletes the partially written file if a build failed or has not been called.
+     */
+    public void reset() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOG.warn("Can't close the call data record file {}: {}", file, e.getMessage());
+            }
+
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                LOG.warn("Can't delete the call data record file {}: {}", file, e.getMessage());
+            }
+        }
+
+        id = null;
+        title = null;
+        timestamp = null;
+        file = null;
+        temporary = false;
+        out = null;
+        codec = null;
+        size = 0;
+        position = 0L;
+        pageOffsets = new long[16];
+
+        LOG.debug("Resetted builder: {}", this);
+    }
+
+
+    public FileCallDataRecordAttachmentBuilder withId(UUID id) {
+        this.id = id;
+        return this;
+    }
+
+    public FileCallDataRecordAttachmentBuilder withTitle(String title) {
+        this.title = title;
+        return this;
+    }
+
+    public FileCallDataRecordAttachmentBuilder withTimestamp(OffsetDateTime timestamp) {
+        this.timestamp = timestamp;
+        return this;
+    }
+
+    /**
+     * @param file the file to write the records to. An existing file is overwritten.
+     * @throws IllegalStateException if records have already been written.
+     */
+    public FileCallDataRecordAttachmentBuilder withFile(@NotNull final Path file) {
+        if (out != null) {
+            throw new IllegalStateException("Can't change the file after records have been written to " + this.file);
+        }
+
+        this.file = file;
+        return this;
+    }
+
+    /**
+     * Appends the record to the file.
+     *
+     * @param record the record to add.
+     * @throws UncheckedIOException if the file can't be written.
+     */
+    public FileCallDataRecordAttachmentBuilder addRecord(@NotNull final CallDataRecord record) {
+        if (size == Integer.MAX_VALUE) {
+            throw new IllegalStateException("Can't add more than " + Integer.MAX_VALUE + " records to an attachment");
+        }
+
+        try {
+            open();
+
+            if (size % FileCallDataRecordAttachment.PAGE_SIZE == 0) {
+                int page = size / FileCallDataRecordAttachment.PAGE_SIZE;
+
+                if (page + 1 >= pageOffsets.length) {
+                    pageOffsets = Arrays.copyOf(pageOffsets, pageOffsets.length * 2);
+                }
+                pageOffsets[page] = position;
+            }
+
+            encoded.reset();
+            codec.write(encoder, record);
+            encoded.writeTo(out);
+
+            position += encoded.size();
+            size++;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't write the call data record to " + file, e);
+        }
+
+        return this;
+    }
+
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append(System.identityHashCode(this))
+                .append("file", file)
+                .append("records", size)
+                .toString();
+    }
+}
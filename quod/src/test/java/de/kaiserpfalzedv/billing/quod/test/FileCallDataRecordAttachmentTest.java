@@ -0,0 +1,363 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.quod.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import javax.money.CurrencyUnit;
+import javax.money.Monetary;
+
+import ch.qos.logback.classic.Level;
+import de.kaiserpfalzedv.billing.api.cdr.CallDataRecord;
+import de.kaiserpfalzedv.billing.quod.CallDataRecordAttachmentBuilder;
+import de.kaiserpfalzedv.billing.quod.CallDataRecordBuilder;
+import de.kaiserpfalzedv.billing.quod.FileCallDataRecordAttachment;
+import de.kaiserpfalzedv.billing.quod.FileCallDataRecordAttachmentBuilder;
+import org.javamoney.moneta.Money;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the records read from the file against the records written. The random generator is seeded, so failures
+ * can be reproduced.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class FileCallDataRecordAttachmentTest {
+    private static final Logger LOG = LoggerFactory.getLogger(FileCallDataRecordAttachmentTest.class);
+
+    private static final CurrencyUnit CURRENCY = Monetary.getCurrency("EUR");
+    private static final long SEED = 20180218L;
+    private static final OffsetDateTime MONTH = OffsetDateTime.of(2018, 2, 1, 0, 0, 0, 0, ZoneOffset.ofHours(1));
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path file;
+    private FileCallDataRecordAttachmentBuilder service;
+
+
+    @Test
+    public void recordsAreReadAsWritten() throws IOException {
+        logMethod("round-trip", "The records read have to match the records written");
+
+        List<CallDataRecord> records = createRecords(5000, 10);
+
+        try (FileCallDataRecordAttachment result = build(records)) {
+            assertEquals("The number of records does not match", records.size(), result.getRecords().size());
+
+            Iterator<CallDataRecord> read = result.getRecords().iterator();
+            for (CallDataRecord expected : records) {
+                assertRecord(expected, read.next());
+            }
+            assertFalse("More records have been read than written", read.hasNext());
+        }
+    }
+
+    @Test
+    public void recordsAreReadByIndex() throws IOException {
+        logMethod("random-access", "Records have to be read by index across pages");
+
+        List<CallDataRecord> records = createRecords(5000, 10);
+
+        try (FileCallDataRecordAttachment result = build(records)) {
+            for (int index : new int[]{4999, 0, 1023, 1024, 2500, 4096}) {
+                assertRecord(records.get(index), result.getRecords().get(index));
+            }
+        }
+    }
+
+    @Test
+    public void uniqueDescriptionsAreWrittenInFull() throws IOException {
+        logMethod("unique-strings", "More distinct strings than pooled have to be written in full");
+
+        List<CallDataRecord> records = createRecords(10000, 10000);
+
+        try (FileCallDataRecordAttachment result = build(records)) {
+            for (int i = 0; i < records.size(); i += 97) {
+                assertRecord(records.get(i), result.getRecords().get(i));
+            }
+        }
+    }
+
+    @Test
+    public void longDescriptionsAreWrittenInFull() throws IOException {
+        logMethod("long-strings", "Strings longer than 65535 UTF-8 bytes have to be written in full");
+
+        List<CallDataRecord> records = createRecords(10000, 10000);
+
+        char[] euros = new char[30000];
+        Arrays.fill(euros, '\u20ac');
+        CallDataRecord template = records.get(0);
+        CallDataRecord longRecord = new CallDataRecordBuilder()
+                .withDescription(new String(euros))
+                .withTarifName(template.getTarifName())
+                .withTarifRate(template.getTarifRate())
+                .withTarifUnit(template.getTarifUnit())
+                .withTarifUnitDivisor(template.getTarifUnitDivisor())
+                .withMeteredTimestamp(template.getMeteredTimestamp())
+                .withMeteredDuration(template.getMeteredDuration())
+                .withMeteredValue(template.getMeteredValue())
+                .withAmount(template.getAmount())
+                .build();
+        records.add(longRecord);
+
+        try (FileCallDataRecordAttachment result = build(records)) {
+            assertRecord(longRecord, result.getRecords().get(records.size() - 1));
+        }
+    }
+
+    @Test
+    public void fileIsSmallerThanSerializedRecords() throws IOException {
+        logMethod("compact", "The file has to be smaller than the serialized records");
+
+        List<CallDataRecord> records = createRecords(1000, 10);
+
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(serialized)) {
+            out.writeObject(new CallDataRecordAttachmentBuilder().withRecords(records).build());
+        }
+
+        try (FileCallDataRecordAttachment result = build(records)) {
+            long written = Files.size(result.getFile());
+
+            LOG.info("CDR file: {} bytes/record, serialized attachment: {} bytes/record",
+                     written / records.size(), serialized.size() / records.size());
+            assertTrue("The file is not smaller than the serialized records", written < serialized.size());
+        }
+    }
+
+    @Test
+    public void serializedAttachmentReadsTheFile() throws IOException, ClassNotFoundException {
+        logMethod("serialization", "The deserialized attachment has to read the records from the file");
+
+        List<CallDataRecord> records = createRecords(2000, 10);
+
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        try (FileCallDataRecordAttachment attachment = build(records);
+             ObjectOutputStream out = new ObjectOutputStream(serialized)) {
+            attachment.getRecords().get(0);
+            out.writeObject(attachment);
+        }
+
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized.toByteArray()));
+             FileCallDataRecordAttachment result = (FileCallDataRecordAttachment) in.readObject()) {
+            assertTrue("The attachment contains the records", serialized.size() < 10000);
+            assertRecord(records.get(1999), result.getRecords().get(1999));
+        }
+    }
+
+    @Test
+    public void emptyAttachmentHasNoRecords() throws IOException {
+        logMethod("empty", "An attachment without records has to be empty");
+
+        try (FileCallDataRecordAttachment result = service.build()) {
+            assertTrue("The attachment is not empty", result.getRecords().isEmpty());
+        }
+    }
+
+    @Test
+    public void temporaryFileIsDeletedWhenClosed() throws IOException {
+        logMethod("temporary-file", "The temporary file has to be deleted with the attachment, a given file kept");
+
+        List<CallDataRecord> records = createRecords(10, 10);
+        for (CallDataRecord record : records) {
+            service.addRecord(record);
+        }
+        FileCallDataRecordAttachment temporary = service.build();
+        assertRecord(records.get(9), temporary.getRecords().get(9));
+        temporary.close();
+
+        assertTrue("The attachment does not own the temporary file", temporary.isOwningFile());
+        assertFalse("The temporary file has not been deleted", Files.exists(temporary.getFile()));
+
+        FileCallDataRecordAttachment given = build(records);
+        given.close();
+
+        assertFalse("The attachment owns the given file", given.isOwningFile());
+        assertTrue("The given file has been deleted", Files.exists(file));
+    }
+
+    @Test
+    public void partialFileIsDeletedOnReset() {
+        logMethod("reset", "The file of an abandoned build has to be deleted");
+
+        service.withFile(file);
+        service.addRecord(createRecords(1, 1).get(0));
+        assertTrue("The file has not been written", Files.exists(file));
+
+        service.reset();
+
+        assertFalse("The partial file has not been deleted", Files.exists(file));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void fileCanNotBeChangedAfterWriting() {
+        logMethod("change-file", "The file must not be changed after records have been written");
+
+        service.addRecord(createRecords(1, 1).get(0));
+        service.withFile(file);
+    }
+
+    @Test(timeout = 60000L)
+    public void runtimeTest() throws IOException {
+        logMethod("runtime-verification", "checking the throughput of the CDR file ...");
+
+        List<CallDataRecord> records = createRecords(200000, 100);
+
+        ch.qos.logback.classic.Logger quod = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger("de.kaiserpfalzedv.billing.quod");
+        Level level = quod.getLevel();
+        quod.setLevel(Level.INFO);
+        try {
+            long start = System.nanoTime();
+            try (FileCallDataRecordAttachment result = build(records)) {
+                long written = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                long count = 0;
+                for (CallDataRecord record : result.getRecords()) {
+                    count += record.getMeteredValue().signum() >= 0 ? 1 : 0;
+                }
+                long read = System.nanoTime() - start;
+
+                LOG.info("CDR file with {} records ({} bytes): written {} records/s, read {} records/s",
+                         count, Files.size(result.getFile()),
+                         records.size() * 1000000000L / Math.max(written, 1L), count * 1000000000L / Math.max(read, 1L));
+            }
+        } finally {
+            quod.setLevel(level);
+        }
+    }
+
+
+    private FileCallDataRecordAttachment build(final List<CallDataRecord> records) {
+        service.withFile(file);
+
+        for (CallDataRecord record : records) {
+            service.addRecord(record);
+        }
+
+        return service.build();
+    }
+
+    private static void assertRecord(final CallDataRecord expected, final CallDataRecord result) {
+        assertEquals("The id does not match", expected.getId(), result.getId());
+        assertEquals("The description does not match", expected.getDescription(), result.getDescription());
+        assertEquals("The tarif name does not match", expected.getTarifName(), result.getTarifName());
+        assertEquals("The tarif rate does not match", expected.getTarifRate(), result.getTarifRate());
+        assertEquals("The tarif unit does not match", expected.getTarifUnit(), result.getTarifUnit());
+        assertEquals("The tarif unit divisor does not match", expected.getTarifUnitDivisor(), result.getTarifUnitDivisor());
+        assertEquals("The timestamp does not match", expected.getMeteredTimestamp(), result.getMeteredTimestamp());
+        assertEquals("The duration does not match", expected.getMeteredDuration(), result.getMeteredDuration());
+        assertEquals("The metered value does not match", expected.getMeteredValue(), result.getMeteredValue());
+        assertEquals("The amount does not match", expected.getAmount(), result.getAmount());
+    }
+
+    private List<CallDataRecord> createRecords(final int count, final int descriptions) {
+        CallDataRecordBuilder builder = new CallDataRecordBuilder();
+        Random random = new Random(SEED);
+        ArrayList<CallDataRecord> result = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            BigDecimal value = i % 1000 == 0
+                    ? new BigDecimal("123456789012345678901234567890.123")
+                    : BigDecimal.valueOf(random.nextInt(100000), random.nextInt(4));
+
+            result.add(
+                    builder
+                            .withDescription("server-" + random.nextInt(descriptions) + ".example.com")
+                            .withTarifName("Tarif " + (i % 3))
+                            .withTarifRate(Money.of(BigDecimal.valueOf(i % 3 + 1, 2), CURRENCY))
+                            .withTarifUnit("EUR/GB h")
+                            .withTarifUnitDivisor(BigDecimal.valueOf(1000L))
+                            .withMeteredTimestamp(MONTH.plusSeconds(random.nextInt(28 * 24 * 3600)).plusNanos(i))
+                            .withMeteredDuration(Duration.ofSeconds(random.nextInt(3600)))
+                            .withMeteredValue(value)
+                            .withAmount(Money.of(value.multiply(BigDecimal.valueOf(-3L, 5)), CURRENCY))
+                            .build()
+            );
+        }
+
+        return result;
+    }
+
+    private void logMethod(final String method, final String message, final Object... paramater) {
+        MDC.put("id", method);
+
+        LOG.debug(message, paramater);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        file = folder.getRoot().toPath().resolve("cdr.bin");
+        service = new FileCallDataRecordAttachmentBuilder();
+    }
+
+    @After
+    public void tearDown() {
+        MDC.remove("id");
+    }
+
+    @BeforeClass
+    public static void setUpMDC() {
+        MDC.put("test", FileCallDataRecordAttachment.class.getSimpleName());
+
+        if (!SLF4JBridgeHandler.isInstalled()) {
+            SLF4JBridgeHandler.install();
+        }
+    }
+
+    @AfterClass
+    public static void tearDownMDC() {
+        MDC.remove("id");
+        MDC.remove("test");
+
+        if (SLF4JBridgeHandler.isInstalled()) {
+            SLF4JBridgeHandler.uninstall();
+        }
+    }
+}
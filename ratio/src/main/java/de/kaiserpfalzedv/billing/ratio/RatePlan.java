@@ -0,0 +1,465 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package de.kaiserpfalzedv.billing.ratio;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import javax.money.CurrencyUnit;
+import javax.money.MonetaryAmount;
+
+import de.kaiserpfalzedv.billing.api.rated.Tarif;
+import de.kaiserpfalzedv.billing.api.rated.TarifTier;
+import de.kaiserpfalzedv.billing.api.rated.TarifWindow;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.javamoney.moneta.Money;
+
+import static de.kaiserpfalzedv.billing.ratio.RatedRecordBuilder.PRECISION;
+import static java.math.RoundingMode.HALF_UP;
+
+/**
+ * The rate plan of a tarif version: the tarif precompiled into scaled longs. Rating is done with primitive long arithmetic and the
+ * {@link MonetaryAmount} is only created when the result is materialised. The results are identical to the
+ * {@link BigDecimal} calculation of the {@link RatedRecordBuilder}: the metered value is divided by the unit
+ * divisor with {@link RatedRecordBuilder#PRECISION} decimals rounded {@link java.math.RoundingMode#HALF_UP}
+ * and then multiplied by the rate. Whenever the long arithmetic would overflow, the {@link BigDecimal}
+ * calculation is used instead.
+ *
+ * Tiered tarifs are rated by {@link #rate(long, long)} with the usage of the customer within the billing period
+ * before the record, see {@link UsageAccumulators}. The usage is counted as scaled long with
+ * {@link RatedRecordBuilder#PRECISION} decimals, the very same quantity the flat rating multiplies the rate with.
+ * Timed records of tarifs with time windows are split across the windows by {@link #rate(OffsetDateTime, Duration)}.
+ *
+ * Rate plans are immutable and cached per tarif id by the {@link RatePlanCache}. The tarif version they have been
+ * compiled from is kept to detect outdated plans.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public final class RatePlan implements Serializable {
+    private static final long serialVersionUID = -1837209745716347829L;
+
+    /**
+     * Powers of ten that fit into a long.
+     */
+    private static final long[] POWERS_OF_TEN = new long[19];
+    static {
+        POWERS_OF_TEN[0] = 1L;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10L;
+        }
+    }
+
+
+    private final Tarif tarif;
+    private final UUID tarifId;
+    private final Long version;
+
+    /**
+     * If the tarif could be compiled. Tarifs with a rate or divisor not fitting into a long (or a divisor of 0)
+     * are always rated with {@link BigDecimal}. So are rates not given as {@link Money} since other amount types
+     * round their results on their own.
+     */
+    private final boolean compiled;
+
+    private final CurrencyUnit currency;
+
+    private final long rate;
+    private final int rateScale;
+
+    private final long divisor;
+    private final int divisorScale;
+
+    /**
+     * The thresholds of the tiers as scaled usage, ascending. Empty for flat tarifs.
+     */
+    private final long[] tierStarts;
+
+    /**
+     * The rates of the parts a record may be split into. Index 0 is the rate of the tarif applying below the first
+     * tier or outside all time windows, followed by the rates of the tiers or the time windows.
+     */
+    private final MonetaryAmount[] partRates;
+
+    /**
+     * The unscaled rates and their scales of the parts if they could be compiled like the rate, otherwise null.
+     */
+    private final long[] partUnscaledRates;
+    private final int[] partRateScales;
+
+    /**
+     * The time windows. Null if the tarif has none. Not serialized, compiled again from the tarif.
+     */
+    private transient TarifCalendar calendar;
+
+
+    public RatePlan(final Tarif tarif) {
+        this.tarif = tarif;
+        this.tarifId = tarif.getId();
+        this.version = tarif.getVersion();
+
+        BigDecimal rate = tarif.getRate().getNumber().numberValue(BigDecimal.class);
+        BigDecimal divisor = tarif.getUnitDivisor();
+
+        this.currency = tarif.getRate().getCurrency();
+        this.compiled = tarif.getRate() instanceof Money
+                && fitsLong(rate) && fitsLong(divisor) && divisor.signum() != 0;
+        if (compiled) {
+            this.rate = rate.unscaledValue().longValue();
+            this.rateScale = rate.scale();
+            this.divisor = divisor.unscaledValue().longValue();
+            this.divisorScale = divisor.scale();
+        } else {
+            this.rate = 0L;
+            this.rateScale = 0;
+            this.divisor = 0L;
+            this.divisorScale = 0;
+        }
+
+        List<? extends TarifTier> tiers = tarif.getTiers();
+        List<? extends TarifWindow> windows = tarif.getWindows();
+        this.tierStarts = new long[tiers.size()];
+        this.partRates = new MonetaryAmount[tiers.size() + windows.size() + 1];
+        this.partRates[0] = tarif.getRate();
+        for (int i = 0; i < tiers.size(); i++) {
+            this.tierStarts[i] = tiers.get(i).getFrom().setScale(PRECISION, HALF_UP).unscaledValue().longValueExact();
+            this.partRates[i + 1] = tiers.get(i).getRate();
+        }
+        for (int i = 0; i < windows.size(); i++) {
+            this.partRates[tiers.size() + i + 1] = windows.get(i).getRate();
+        }
+        this.calendar = createCalendar(tarif);
+
+        long[] unscaledRates = new long[partRates.length];
+        int[] rateScales = new int[partRates.length];
+        boolean partsCompiled = compiled;
+        for (int i = 0; i < partRates.length && partsCompiled; i++) {
+            BigDecimal partRate = partRates[i].getNumber().numberValue(BigDecimal.class);
+
+            partsCompiled = partRates[i] instanceof Money && fitsLong(partRate);
+            if (partsCompiled) {
+                unscaledRates[i] = partRate.unscaledValue().longValue();
+                rateScales[i] = partRate.scale();
+            }
+        }
+        this.partUnscaledRates = partsCompiled ? unscaledRates : null;
+        this.partRateScales = partsCompiled ? rateScales : null;
+    }
+
+    private static TarifCalendar createCalendar(final Tarif tarif) {
+        return tarif.getWindows().isEmpty() ? null : new TarifCalendar(tarif.getWindows(), tarif.getZone());
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+
+        calendar = createCalendar(tarif);
+    }
+
+    private static boolean fitsLong(final BigDecimal value) {
+        return value.unscaledValue().bitLength() < 64;
+    }
+
+
+    public Tarif getTarif() {
+        return tarif;
+    }
+
+    public UUID getTarifId() {
+        return tarifId;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public CurrencyUnit getCurrency() {
+        return currency;
+    }
+
+    public boolean isCompiled() {
+        return compiled;
+    }
+
+    /**
+     * @return true if the tarif has tiers and has to be rated by {@link #rate(long, long)}.
+     */
+    public boolean isTiered() {
+        return tierStarts.length > 0;
+    }
+
+    /**
+     * @return true if the tarif has time windows and timed records have to be rated by
+     * {@link #rate(OffsetDateTime, Duration)}.
+     */
+    public boolean isCalendar() {
+        return calendar != null;
+    }
+
+
+    /**
+     * Rates a metered value.
+     *
+     * @param value the metered value.
+     * @return the amount for the given value.
+     */
+    public MonetaryAmount rate(final BigDecimal value) {
+        if (compiled && fitsLong(value)) {
+            try {
+                return materialise(quotient(value.unscaledValue().longValue(), value.scale()));
+            } catch (ArithmeticException e) {
+                // overflow of the long arithmetic, fall through to BigDecimal.
+            }
+        }
+
+        return tarif.getRate().multiply(value.divide(tarif.getUnitDivisor(), PRECISION, HALF_UP));
+    }
+
+    /**
+     * Rates a metered integral value (e.g. the duration in seconds).
+     *
+     * @param value the metered value.
+     * @return the amount for the given value.
+     */
+    public MonetaryAmount rate(final long value) {
+        if (compiled) {
+            try {
+                return materialise(quotient(value, 0));
+            } catch (ArithmeticException e) {
+                // overflow of the long arithmetic, fall through to BigDecimal.
+            }
+        }
+
+        return tarif.getRate().multiply(BigDecimal.valueOf(value).divide(tarif.getUnitDivisor(), PRECISION, HALF_UP));
+    }
+
+    /**
+     * @param value the metered value.
+     * @return the metered value divided by the unit divisor as unscaled long with a scale of
+     * {@link RatedRecordBuilder#PRECISION}, rounded {@link java.math.RoundingMode#HALF_UP}.
+     * @throws ArithmeticException if the quantity does not fit into a long.
+     */
+    public long quantity(final BigDecimal value) {
+        if (compiled && fitsLong(value)) {
+            try {
+                return quotient(value.unscaledValue().longValue(), value.scale());
+            } catch (ArithmeticException e) {
+                // overflow of the long arithmetic, fall through to BigDecimal.
+            }
+        }
+
+        return value.divide(tarif.getUnitDivisor(), PRECISION, HALF_UP).unscaledValue().longValueExact();
+    }
+
+    /**
+     * @param value the metered integral value (e.g. the duration in seconds).
+     * @return the metered value divided by the unit divisor as unscaled long with a scale of
+     * {@link RatedRecordBuilder#PRECISION}, rounded {@link java.math.RoundingMode#HALF_UP}.
+     * @throws ArithmeticException if the quantity does not fit into a long.
+     */
+    public long quantity(final long value) {
+        if (compiled) {
+            try {
+                return quotient(value, 0);
+            } catch (ArithmeticException e) {
+                // overflow of the long arithmetic, fall through to BigDecimal.
+            }
+        }
+
+        return quantity(BigDecimal.valueOf(value));
+    }
+
+    /**
+     * Rates a quantity against the tiers. The quantity is split at the thresholds of the tiers it spans and every
+     * part is rated with the rate of its tier. Usually a record lies within a single tier, so this costs a binary
+     * search over the tiers and a single multiplication. Flat tarifs are rated with their rate regardless of the
+     * usage.
+     *
+     * @param quantity the quantity of the record as returned by {@link #quantity(BigDecimal)}.
+     * @param usage    the quantity used within the billing period before the record.
+     * @return the amount for the given quantity.
+     */
+    public MonetaryAmount rate(final long quantity, final long usage) {
+        int tier = Arrays.binarySearch(tierStarts, usage);
+        tier = tier >= 0 ? tier + 1 : -tier - 1;
+
+        long position = usage;
+        long remaining = quantity;
+        MonetaryAmount result = null;
+        do {
+            long end = tier < tierStarts.length ? tierStarts[tier] : Long.MAX_VALUE;
+            long part = Math.min(remaining, end - position);
+
+            MonetaryAmount amount = ratePart(tier, part);
+            result = result == null ? amount : result.add(amount);
+
+            position += part;
+            remaining -= part;
+            tier++;
+        } while (remaining > 0L);
+
+        return result;
+    }
+
+    /**
+     * Rates a timed record against the time windows. The duration is split into the seconds within every window by
+     * the precomputed tables of the calendar, so the costs do not depend on the number of window boundaries the
+     * record spans. Every part is rated like a record of its own. Tarifs without windows are rated with their rate.
+     *
+     * @param start    the start of the metered period.
+     * @param duration the duration of the metered period.
+     * @return the amount for the given period.
+     */
+    public MonetaryAmount rate(final OffsetDateTime start, final Duration duration) {
+        if (calendar == null) {
+            return rate(duration.getSeconds());
+        }
+
+        long from = start.toEpochSecond();
+        long[] seconds = new long[calendar.getRates()];
+        calendar.split(from, from + duration.getSeconds(), seconds);
+
+        int offset = tierStarts.length;
+        MonetaryAmount result = null;
+        for (int part = 0; part < seconds.length; part++) {
+            if (seconds[part] == 0L) {
+                continue;
+            }
+
+            MonetaryAmount amount = ratePart(part == 0 ? 0 : offset + part, quantity(seconds[part]));
+            result = result == null ? amount : result.add(amount);
+        }
+
+        return result != null ? result : ratePart(0, 0L);
+    }
+
+    private MonetaryAmount ratePart(final int tier, final long quantity) {
+        if (partUnscaledRates != null) {
+            try {
+                return materialise(quantity, partUnscaledRates[tier], partRateScales[tier]);
+            } catch (ArithmeticException e) {
+                // overflow of the long arithmetic, fall through to BigDecimal.
+            }
+        }
+
+        return partRates[tier].multiply(BigDecimal.valueOf(quantity, PRECISION));
+    }
+
+    /**
+     * Calculates the metered value divided by the unit divisor as unscaled long with a scale of
+     * {@link RatedRecordBuilder#PRECISION}, rounded {@link java.math.RoundingMode#HALF_UP}.
+     *
+     * @param value the unscaled metered value.
+     * @param scale the scale of the metered value.
+     * @return the unscaled quotient.
+     * @throws ArithmeticException if the calculation overflows the long range.
+     */
+    private long quotient(final long value, final int scale) {
+        // value / divisor * 10^PRECISION = value * 10^(divisorScale + PRECISION - scale) / divisor
+        int exponent = divisorScale + PRECISION - scale;
+
+        long numerator = value;
+        long denominator = divisor;
+        if (exponent >= 0) {
+            numerator = Math.multiplyExact(numerator, powerOfTen(exponent));
+        } else {
+            denominator = Math.multiplyExact(denominator, powerOfTen(-exponent));
+        }
+
+        return divideHalfUp(numerator, denominator);
+    }
+
+    private static long powerOfTen(final int exponent) {
+        if (exponent >= POWERS_OF_TEN.length) {
+            throw new ArithmeticException("10^" + exponent + " does not fit into a long");
+        }
+
+        return POWERS_OF_TEN[exponent];
+    }
+
+    private static long divideHalfUp(final long numerator, final long denominator) {
+        long quotient = numerator / denominator;
+        long remainder = Math.abs(numerator % denominator);
+
+        // remainder >= denominator / 2 without overflowing on 2 * remainder
+        if (remainder >= Math.abs(denominator) - remainder) {
+            quotient += (numerator < 0) == (denominator < 0) ? 1 : -1;
+        }
+
+        return quotient;
+    }
+
+    /**
+     * Multiplies the quotient with the rate and creates the amount. {@link Money#multiply(Number)} strips the
+     * trailing zeros of the multiplicand before multiplying, so does this method to get the very same number.
+     *
+     * @param quotient the unscaled quotient as calculated by {@link #quotient(long, int)}.
+     * @return the amount.
+     * @throws ArithmeticException if the calculation overflows the long range.
+     */
+    private MonetaryAmount materialise(final long quotient) {
+        return materialise(quotient, rate, rateScale);
+    }
+
+    /**
+     * @param quotient the unscaled quotient as calculated by {@link #quotient(long, int)}.
+     * @param rate the unscaled rate.
+     * @param rateScale the scale of the rate.
+     * @return the amount.
+     * @throws ArithmeticException if the calculation overflows the long range.
+     */
+    private MonetaryAmount materialise(long quotient, final long rate, final int rateScale) {
+        if (quotient == 0L) {
+            return Money.of(BigDecimal.ZERO, currency);
+        }
+
+        int scale = PRECISION;
+        while (quotient % 10L == 0L) {
+            quotient /= 10L;
+            scale--;
+        }
+
+        return Money.of(BigDecimal.valueOf(Math.multiplyExact(rate, quotient), rateScale + scale), currency);
+    }
+
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append(System.identityHashCode(this))
+                .append("tarifId", tarifId)
+                .append("version", version)
+                .append("compiled", compiled)
+                .append("rate", rate)
+                .append("rateScale", rateScale)
+                .append("divisor", divisor)
+                .append("divisorScale", divisorScale)
+                .append("tiers", tierStarts.length)
+                .append("windows", calendar != null ? calendar.getRates() - 1 : 0)
+                .toString();
+    }
+}
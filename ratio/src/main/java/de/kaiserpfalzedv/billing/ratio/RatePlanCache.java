@@ -0,0 +1,95 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package de.kaiserpfalzedv.billing.ratio;
+
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.kaiserpfalzedv.billing.api.rated.Tarif;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the compiled {@link RatePlan} of every tarif by the tarif id. A cached plan is only returned if it has
+ * been compiled from the same version as the requested tarif, otherwise the plan is compiled again and replaces
+ * the outdated one. The cache may be shared between threads.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class RatePlanCache {
+    private static final Logger LOG = LoggerFactory.getLogger(RatePlanCache.class);
+
+    private final ConcurrentHashMap<UUID, RatePlan> plans = new ConcurrentHashMap<>();
+
+
+    /**
+     * Returns the rate plan of the given tarif. The plan is compiled if there is none or the cached one belongs
+     * to another version of the tarif.
+     *
+     * @param tarif the tarif to retrieve the plan for.
+     * @return the rate plan of this tarif version.
+     */
+    public RatePlan getRatePlan(final Tarif tarif) {
+        RatePlan result = plans.get(tarif.getId());
+
+        if (result == null || !Objects.equals(result.getVersion(), tarif.getVersion())) {
+            result = plans.compute(tarif.getId(), (id, cached) -> {
+                if (cached != null && Objects.equals(cached.getVersion(), tarif.getVersion())) {
+                    return cached;
+                }
+
+                LOG.debug("Compiling rate plan for tarif '{}' (version {}, cached version {})",
+                          id, tarif.getVersion(), cached != null ? cached.getVersion() : null);
+                return new RatePlan(tarif);
+            });
+        }
+
+        return result;
+    }
+
+    /**
+     * Removes the rate plan of the given tarif from the cache.
+     *
+     * @param tarifId the id of the tarif.
+     */
+    public void invalidate(final UUID tarifId) {
+        plans.remove(tarifId);
+    }
+
+    public void clear() {
+        plans.clear();
+    }
+
+    public int size() {
+        return plans.size();
+    }
+
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append(System.identityHashCode(this))
+                .append("size", plans.size())
+                .toString();
+    }
+}
@@ -19,11 +19,12 @@ package de.kaiserpfalzedv.billing.ratio;
 import java.math.BigDecimal;
 import java.time.Duration;
 import java.time.OffsetDateTime;
-import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 
 import javax.money.MonetaryAmount;
 
+import de.kaiserpfalzedv.billing.api.base.ImmutableTags;
 import de.kaiserpfalzedv.billing.api.guided.Customer;
 import de.kaiserpfalzedv.billing.api.guided.ProductRecordInfo;
 import de.kaiserpfalzedv.billing.api.rated.RatedBaseRecord;
@@ -47,7 +48,7 @@ public class RatedRecordBuilder<T extends RatedBaseRecord> implements Builder<T>
     /**
      * precision of the rate calculations. We default to 5 decimals
      */
-    private static final int PRECISION = 5;
+    static final int PRECISION = 5;
 
 
     /**
@@ -98,12 +99,27 @@ public class RatedRecordBuilder<T extends RatedBaseRecord> implements Builder<T>
 
     private Tarif tarif;
 
+    /**
+     * The precompiled tarif. If set, the amount is calculated with long arithmetic. Compiled by the builder for
+     * tarifs with time windows, since the rate of the tarif alone would misrate them.
+     */
+    private RatePlan ratePlan;
+
+    /**
+     * The amount calculated outside of the builder (e.g. against the tiers of the tarif). Null if the amount is
+     * calculated by the builder.
+     */
+    private MonetaryAmount amount;
+
     /**
      * The customer for this record.
      */
     private Customer customer;
 
-    private final HashMap<String, String> tags = new HashMap<>();
+    /**
+     * The tags of this record. {@link ImmutableTags} are kept as given, all other maps are copied.
+     */
+    private Map<String, String> tags = ImmutableTags.EMPTY;
 
 
     @SuppressWarnings("unchecked")
@@ -114,10 +130,15 @@ public class RatedRecordBuilder<T extends RatedBaseRecord> implements Builder<T>
 
         try {
             if (meteredValue != null) {
-                MonetaryAmount amount = tarif.getRate()
-                                             .multiply(
-                                                     meteredValue.divide(tarif.getUnitDivisor(), PRECISION, HALF_UP)
-                                             );
+                MonetaryAmount amount = this.amount;
+                if (amount == null) {
+                    amount = ratePlan != null
+                            ? ratePlan.rate(meteredValue)
+                            : tarif.getRate()
+                                   .multiply(
+                                           meteredValue.divide(tarif.getUnitDivisor(), PRECISION, HALF_UP)
+                                   );
+                }
 
                 LOG.debug("Calculating metered value / tarif unit divisor * rate: {} / {} * {} = {}", meteredValue, tarif
                         .getUnitDivisor(), tarif.getRate(), amount);
@@ -138,12 +159,17 @@ public class RatedRecordBuilder<T extends RatedBaseRecord> implements Builder<T>
                         tags
                 );
             } else {
-                MonetaryAmount amount = tarif.getRate()
-                                             .multiply(
-                                                     BigDecimal
-                                                             .valueOf(meteredDuration.getSeconds())
-                                                             .divide(tarif.getUnitDivisor(), PRECISION, HALF_UP)
-                                             );
+                MonetaryAmount amount = this.amount;
+                if (amount == null) {
+                    amount = ratePlan != null
+                            ? ratePlan.rate(meteredStartDate, meteredDuration)
+                            : tarif.getRate()
+                                   .multiply(
+                                           BigDecimal
+                                                   .valueOf(meteredDuration.getSeconds())
+                                                   .divide(tarif.getUnitDivisor(), PRECISION, HALF_UP)
+                                   );
+                }
 
                 LOG.debug("Calculating duration (in s) / tarif unit divisor * rate: {} / {} * {} = {}", meteredDuration.getSeconds(), tarif
                         .getUnitDivisor(), tarif.getRate(), amount);
@@ -211,6 +237,10 @@ public class RatedRecordBuilder<T extends RatedBaseRecord> implements Builder<T>
         if (meteredValue == null && meteredDuration == null) {
             throw new IllegalStateException("You have to give either a duration or a metered value for a valid raw record!");
         }
+
+        if (amount == null && tarif != null && !tarif.getTiers().isEmpty()) {
+            throw new IllegalStateException("Tiered tarifs are rated against the usage of the billing period, the amount has to be given!");
+        }
     }
 
     private void reset() {
@@ -221,10 +251,13 @@ public class RatedRecordBuilder<T extends RatedBaseRecord> implements Builder<T>
         this.valueDate = null;
         this.productInfo = null;
         this.customer = null;
+        this.amount = null;
 
         this.meteredValue = null;
         this.meteredStartDate = null;
         this.meteredDuration = null;
+
+        this.tags = ImmutableTags.EMPTY;
     }
 
 
@@ -253,11 +286,49 @@ public class RatedRecordBuilder<T extends RatedBaseRecord> implements Builder<T>
         return this;
     }
 
+    /**
+     * Sets the tarif. Tarifs with time windows are compiled into a {@link RatePlan} to split timed records across the
+     * windows. Tiered tarifs need the amount to be given by {@link #setAmount(MonetaryAmount)}.
+     *
+     * @param tarif the tarif.
+     * @return the builder.
+     */
     public RatedRecordBuilder<T> setTarif(final Tarif tarif) {
+        if (tarif == null || tarif.getWindows().isEmpty()) {
+            this.ratePlan = null;
+        } else if (ratePlan == null || ratePlan.getTarif() != tarif) {
+            this.ratePlan = new RatePlan(tarif);
+        }
+
         this.tarif = tarif;
         return this;
     }
 
+    /**
+     * Opts into the fixed point rating: the amount is calculated with long arithmetic by the precompiled tarif. Timed
+     * records are split across the time windows of the tarif.
+     *
+     * @param tarif the precompiled tarif.
+     * @return the builder.
+     */
+    public RatedRecordBuilder<T> setTarif(final RatePlan tarif) {
+        this.tarif = tarif.getTarif();
+        this.ratePlan = tarif;
+        return this;
+    }
+
+    /**
+     * Sets the amount calculated outside of the builder, e.g. by {@link RatePlan#rate(long, long)} for tiered
+     * tarifs. The amount is not calculated by the builder then.
+     *
+     * @param amount the amount of the record.
+     * @return the builder.
+     */
+    public RatedRecordBuilder<T> setAmount(final MonetaryAmount amount) {
+        this.amount = amount;
+        return this;
+    }
+
     public RatedRecordBuilder<T> setCustomer(final Customer customer) {
         this.customer = customer;
         return this;
@@ -283,12 +354,8 @@ public class RatedRecordBuilder<T extends RatedBaseRecord> implements Builder<T>
         return this;
     }
 
-    public RatedRecordBuilder<T> setTags(final HashMap<String, String> tags) {
-        this.tags.clear();
-
-        if (tags != null) {
-            this.tags.putAll(tags);
-        }
+    public RatedRecordBuilder<T> setTags(final Map<String, String> tags) {
+        this.tags = ImmutableTags.of(tags);
 
         return this;
     }
@@ -301,12 +368,11 @@ public class RatedRecordBuilder<T extends RatedBaseRecord> implements Builder<T>
         this.valueDate = orig.getValueDate();
         this.productInfo = orig.getProductInfo();
         this.customer = orig.getCustomer();
-        this.tarif = orig.getTarif();
+        setTarif(orig.getTarif());
         this.meteredStartDate = orig.getMeteredTimestamp();
         this.meteredDuration = orig.getMeteredDuration();
 
-        this.tags.clear();
-        this.tags.putAll(orig.getTags());
+        setTags(orig.getTags());
 
         if (RatedMeteredRecord.class.isAssignableFrom(orig.getClass())) {
             this.meteredValue = ((RatedMeteredRecord) orig).getMeteredValue();
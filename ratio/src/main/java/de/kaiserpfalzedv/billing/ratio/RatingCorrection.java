@@ -0,0 +1,117 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.ratio;
+
+import java.util.UUID;
+
+import javax.money.MonetaryAmount;
+
+import de.kaiserpfalzedv.billing.api.rated.RatedBaseRecord;
+import de.kaiserpfalzedv.billing.api.rated.Tarif;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+
+/**
+ * The changed amount of a re-rated record. The record itself is kept as it has been rated before, the corrected
+ * record is only built on demand by {@link #rebuild(RatedRecordBuilder)}.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public final class RatingCorrection {
+    private final RatedBaseRecord record;
+    private final Tarif tarif;
+    private final MonetaryAmount amount;
+
+
+    /**
+     * @param record the record as rated before.
+     * @param tarif  the corrected tarif.
+     * @param amount the amount rated with the corrected tarif.
+     */
+    public RatingCorrection(final RatedBaseRecord record, final Tarif tarif, final MonetaryAmount amount) {
+        this.record = record;
+        this.tarif = tarif;
+        this.amount = amount;
+    }
+
+
+    public UUID getId() {
+        return record.getId();
+    }
+
+    /**
+     * @return the record as rated before.
+     */
+    public RatedBaseRecord getRecord() {
+        return record;
+    }
+
+    public Tarif getOldTarif() {
+        return record.getTarif();
+    }
+
+    public Tarif getNewTarif() {
+        return tarif;
+    }
+
+    public MonetaryAmount getOldAmount() {
+        return record.getAmount();
+    }
+
+    public MonetaryAmount getNewAmount() {
+        return amount;
+    }
+
+    /**
+     * @return the new amount minus the old amount.
+     * @throws javax.money.MonetaryException if the corrected tarif changed the currency.
+     */
+    public MonetaryAmount getDifference() {
+        return amount.subtract(record.getAmount());
+    }
+
+    /**
+     * Builds the record rated with the corrected tarif.
+     *
+     * @param builder the builder to use.
+     * @param <T>     the type of the rated record.
+     * @return the corrected record.
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends RatedBaseRecord> T rebuild(final RatedRecordBuilder<T> builder) {
+        return builder
+                .copy((T) record)
+                .setTarif(tarif)
+                .setAmount(amount)
+                .build();
+    }
+
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append(System.identityHashCode(this))
+                .append("id", record.getId())
+                .append("oldTarif", record.getTarif().getId())
+                .append("newTarif", tarif.getId())
+                .append("oldAmount", record.getAmount())
+                .append("newAmount", amount)
+                .toString();
+    }
+}
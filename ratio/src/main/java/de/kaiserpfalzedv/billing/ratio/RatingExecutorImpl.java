@@ -0,0 +1,487 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package de.kaiserpfalzedv.billing.ratio;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import javax.money.MonetaryAmount;
+
+import de.kaiserpfalzedv.billing.api.guided.GuidedBaseRecord;
+import de.kaiserpfalzedv.billing.api.guided.GuidedMeteredRecord;
+import de.kaiserpfalzedv.billing.api.guided.GuidedTimedRecord;
+import de.kaiserpfalzedv.billing.api.rated.RatedBaseRecord;
+import de.kaiserpfalzedv.billing.api.rated.RatedMeteredRecord;
+import de.kaiserpfalzedv.billing.api.rated.RatedTimedRecord;
+import de.kaiserpfalzedv.billing.api.rated.RatingBusinessExeption;
+import de.kaiserpfalzedv.billing.api.rated.RatingExecutor;
+import de.kaiserpfalzedv.billing.api.rated.Tarif;
+import de.kaiserpfalzedv.billing.api.rated.TarifingException;
+import de.kaiserpfalzedv.billing.api.rated.TarifingGuide;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The rating executor. Batches are rated with a single builder and the tarif versions are only resolved once per
+ * distinct pair of customer and product within the batch. The version valid at the value date of a record is found
+ * in the {@link TarifVersions}, so a batch spanning a price change needs no further lookup. The executor may be
+ * shared between threads.
+ *
+ * The tarifs are compiled into {@link RatePlan}s held in a {@link RatePlanCache}. If created with fixed point
+ * rating, the amounts are calculated with the long arithmetic of the rate plans.
+ *
+ * Tiered tarifs are always rated by their rate plans against the usage of the customer within the billing period,
+ * held in the {@link UsageAccumulators}. The accumulators live as long as the executor, so batches rated by the same
+ * executor (on any number of threads) share the usage. A record is only added to the usage after it has been built.
+ * If a batch fails, the usage added by its records is removed again, so the batch may be retried. Timed records of
+ * tarifs with time windows are always split across the windows by their rate plans.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class RatingExecutorImpl implements RatingExecutor {
+    private static final Logger LOG = LoggerFactory.getLogger(RatingExecutorImpl.class);
+
+    /**
+     * If the amounts should be calculated by the {@link RatePlan}s.
+     */
+    private final boolean fixedPoint;
+
+    private final RatePlanCache ratePlans;
+
+    private final UsageAccumulators usage;
+
+
+    public RatingExecutorImpl() {
+        this(false);
+    }
+
+    public RatingExecutorImpl(final boolean fixedPoint) {
+        this(fixedPoint, new RatePlanCache());
+    }
+
+    public RatingExecutorImpl(final boolean fixedPoint, final RatePlanCache ratePlans) {
+        this(fixedPoint, ratePlans, new UsageAccumulators());
+    }
+
+    public RatingExecutorImpl(
+            final boolean fixedPoint,
+            final RatePlanCache ratePlans,
+            final UsageAccumulators usage
+    ) {
+        this.fixedPoint = fixedPoint;
+        this.ratePlans = ratePlans;
+        this.usage = usage;
+    }
+
+
+    @Override
+    public RatedMeteredRecord executeMeteredRecord(
+            final GuidedMeteredRecord record,
+            final TarifingGuide tarifingGuide
+    ) throws RatingBusinessExeption {
+        ArrayList<AddedUsage> added = new ArrayList<>(1);
+        try {
+            return rateMeteredRecord(record, compile(retrieveTarif(record, tarifingGuide)), new RatedRecordBuilder<>(),
+                                     added);
+        } catch (RatingBusinessExeption | RuntimeException e) {
+            rollback(added);
+            throw e;
+        }
+    }
+
+    @Override
+    public RatedTimedRecord executeTimedRecord(
+            final GuidedTimedRecord record,
+            final TarifingGuide tarifingGuide
+    ) throws RatingBusinessExeption {
+        ArrayList<AddedUsage> added = new ArrayList<>(1);
+        try {
+            return rateTimedRecord(record, compile(retrieveTarif(record, tarifingGuide)), new RatedRecordBuilder<>(),
+                                   added);
+        } catch (RatingBusinessExeption | RuntimeException e) {
+            rollback(added);
+            throw e;
+        }
+    }
+
+    @Override
+    public List<RatedMeteredRecord> executeMeteredRecords(
+            final List<? extends GuidedMeteredRecord> records,
+            final TarifingGuide tarifingGuide
+    ) throws RatingBusinessExeption {
+        ArrayList<RatedMeteredRecord> result = new ArrayList<>(records.size());
+        rateMeteredRecords(records.iterator(), tarifingGuide, result);
+        return result;
+    }
+
+    @Override
+    public List<RatedMeteredRecord> executeMeteredRecords(
+            final Stream<? extends GuidedMeteredRecord> records,
+            final TarifingGuide tarifingGuide
+    ) throws RatingBusinessExeption {
+        ArrayList<RatedMeteredRecord> result = new ArrayList<>();
+        rateMeteredRecords(records.iterator(), tarifingGuide, result);
+        return result;
+    }
+
+    @Override
+    public List<RatedTimedRecord> executeTimedRecords(
+            final List<? extends GuidedTimedRecord> records,
+            final TarifingGuide tarifingGuide
+    ) throws RatingBusinessExeption {
+        ArrayList<RatedTimedRecord> result = new ArrayList<>(records.size());
+        rateTimedRecords(records.iterator(), tarifingGuide, result);
+        return result;
+    }
+
+    @Override
+    public List<RatedTimedRecord> executeTimedRecords(
+            final Stream<? extends GuidedTimedRecord> records,
+            final TarifingGuide tarifingGuide
+    ) throws RatingBusinessExeption {
+        ArrayList<RatedTimedRecord> result = new ArrayList<>();
+        rateTimedRecords(records.iterator(), tarifingGuide, result);
+        return result;
+    }
+
+
+    private void rateMeteredRecords(
+            final Iterator<? extends GuidedMeteredRecord> records,
+            final TarifingGuide tarifingGuide,
+            final List<RatedMeteredRecord> result
+    ) throws RatingBusinessExeption {
+        HashMap<TarifKey, TarifVersions<RatePlan>> tarifs = new HashMap<>();
+        RatedRecordBuilder<RatedMeteredRecord> builder = new RatedRecordBuilder<>();
+        ArrayList<AddedUsage> added = new ArrayList<>();
+
+        try {
+            while (records.hasNext()) {
+                GuidedMeteredRecord record = records.next();
+
+                result.add(rateMeteredRecord(record, retrieveTarif(record, tarifingGuide, tarifs), builder, added));
+            }
+        } catch (RatingBusinessExeption | RuntimeException e) {
+            rollback(added);
+            throw e;
+        }
+
+        LOG.debug("Rated {} metered records with {} distinct tarifs", result.size(), tarifs.size());
+    }
+
+    private void rateTimedRecords(
+            final Iterator<? extends GuidedTimedRecord> records,
+            final TarifingGuide tarifingGuide,
+            final List<RatedTimedRecord> result
+    ) throws RatingBusinessExeption {
+        HashMap<TarifKey, TarifVersions<RatePlan>> tarifs = new HashMap<>();
+        RatedRecordBuilder<RatedTimedRecord> builder = new RatedRecordBuilder<>();
+        ArrayList<AddedUsage> added = new ArrayList<>();
+
+        try {
+            while (records.hasNext()) {
+                GuidedTimedRecord record = records.next();
+
+                result.add(rateTimedRecord(record, retrieveTarif(record, tarifingGuide, tarifs), builder, added));
+            }
+        } catch (RatingBusinessExeption | RuntimeException e) {
+            rollback(added);
+            throw e;
+        }
+
+        LOG.debug("Rated {} timed records with {} distinct tarifs", result.size(), tarifs.size());
+    }
+
+    private RatedMeteredRecord rateMeteredRecord(
+            final GuidedMeteredRecord record,
+            final RatePlan tarif,
+            final RatedRecordBuilder<RatedMeteredRecord> builder,
+            final List<AddedUsage> added
+    ) throws RatingBusinessExeption {
+        try {
+            setTarif(builder, tarif);
+
+            long quantity = 0L;
+            long usageBefore = 0L;
+            if (tarif.isTiered()) {
+                quantity = tarif.quantity(record.getMeteredValue());
+                usageBefore = getUsage(record);
+                builder.setAmount(tarif.rate(quantity, usageBefore));
+            }
+
+            RatedMeteredRecord result = builder
+                    .setId(record.getId())
+                    .setMeteringId(record.getMeteringId())
+                    .setCustomer(record.getCustomer())
+                    .setProductInfo(record.getProductInfo())
+                    .setImportedDate(record.getImportedDate())
+                    .setRecordedDate(record.getRecordedDate())
+                    .setValueDate(record.getValueDate())
+                    .setMeteredStartDate(record.getMeteredTimestamp())
+                    .setMeteredValue(record.getMeteredValue())
+                    .setTags(record.getTags())
+                    .build();
+
+            if (tarif.isTiered()) {
+                result = addUsage(record, tarif, quantity, usageBefore, result, builder, added);
+            }
+
+            return result;
+        } catch (IllegalStateException | ArithmeticException e) {
+            throw new RatingBusinessExeption(record, e.getMessage(), e);
+        }
+    }
+
+    private RatedTimedRecord rateTimedRecord(
+            final GuidedTimedRecord record,
+            final RatePlan tarif,
+            final RatedRecordBuilder<RatedTimedRecord> builder,
+            final List<AddedUsage> added
+    ) throws RatingBusinessExeption {
+        try {
+            setTarif(builder, tarif);
+
+            long quantity = 0L;
+            long usageBefore = 0L;
+            if (tarif.isTiered()) {
+                quantity = tarif.quantity(record.getMeteredDuration().getSeconds());
+                usageBefore = getUsage(record);
+                builder.setAmount(tarif.rate(quantity, usageBefore));
+            } else if (tarif.isCalendar()) {
+                builder.setAmount(tarif.rate(record.getMeteredTimestamp(), record.getMeteredDuration()));
+            }
+
+            RatedTimedRecord result = builder
+                    .setId(record.getId())
+                    .setMeteringId(record.getMeteringId())
+                    .setCustomer(record.getCustomer())
+                    .setProductInfo(record.getProductInfo())
+                    .setImportedDate(record.getImportedDate())
+                    .setRecordedDate(record.getRecordedDate())
+                    .setValueDate(record.getValueDate())
+                    .setMeteredStartDate(record.getMeteredTimestamp())
+                    .setMeteredDuration(record.getMeteredDuration())
+                    .setTags(record.getTags())
+                    .build();
+
+            if (tarif.isTiered()) {
+                result = addUsage(record, tarif, quantity, usageBefore, result, builder, added);
+            }
+
+            return result;
+        } catch (IllegalStateException | ArithmeticException e) {
+            throw new RatingBusinessExeption(record, e.getMessage(), e);
+        }
+    }
+
+    private long getUsage(final GuidedBaseRecord record) {
+        return usage.getUsage(
+                record.getCustomer().getId(), record.getProductInfo().getProductName(), record.getValueDate());
+    }
+
+    /**
+     * Adds the built record to the usage of the customer. If another thread added to the usage since the record has
+     * been rated, the record is rated again against the tier the usage falls into now.
+     *
+     * @param usageBefore the usage the record has been rated against.
+     * @param rated       the built record.
+     * @return the record rated against the usage before it.
+     */
+    private <T extends RatedBaseRecord> T addUsage(
+            final GuidedBaseRecord record,
+            final RatePlan tarif,
+            final long quantity,
+            final long usageBefore,
+            final T rated,
+            final RatedRecordBuilder<T> builder,
+            final List<AddedUsage> added
+    ) {
+        AddedUsage entry = new AddedUsage(record, quantity);
+        long before = usage.add(entry.customer, entry.product, entry.valueDate, quantity);
+        added.add(entry);
+
+        if (before == usageBefore) {
+            return rated;
+        }
+
+        MonetaryAmount amount = tarif.rate(quantity, before);
+        if (amount.isEqualTo(rated.getAmount())) {
+            return rated;
+        }
+
+        return builder.copy(rated).setAmount(amount).build();
+    }
+
+    /**
+     * Removes the usage added by a failed batch, so the batch can be rated again.
+     */
+    private void rollback(final List<AddedUsage> added) {
+        for (AddedUsage entry : added) {
+            usage.add(entry.customer, entry.product, entry.valueDate, -entry.quantity);
+        }
+
+        if (!added.isEmpty()) {
+            LOG.debug("Removed the usage of {} records of a failed batch", added.size());
+        }
+    }
+
+    private void setTarif(final RatedRecordBuilder<?> builder, final RatePlan tarif) {
+        if (fixedPoint || tarif.isCalendar()) {
+            builder.setTarif(tarif);
+        } else {
+            builder.setTarif(tarif.getTarif());
+        }
+    }
+
+    private RatePlan retrieveTarif(
+            final GuidedBaseRecord record,
+            final TarifingGuide tarifingGuide,
+            final Map<TarifKey, TarifVersions<RatePlan>> tarifs
+    ) throws RatingBusinessExeption {
+        TarifKey key = new TarifKey(record);
+        TarifVersions<RatePlan> versions = tarifs.get(key);
+
+        RatePlan result = versions != null ? versions.find(record.getValueDate()) : null;
+        if (result == null) {
+            versions = retrieveTarifVersions(record, tarifingGuide, versions);
+            tarifs.put(key, versions);
+
+            result = versions.find(record.getValueDate());
+            if (result == null) {
+                throw new RatingBusinessExeption(record, "No tarif valid at " + record.getValueDate());
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Retrieves the tarif versions for the customer and product of the record. Versions already known for them are
+     * kept, since guides not knowing about tarif versions only return the version valid for the given record.
+     */
+    private TarifVersions<RatePlan> retrieveTarifVersions(
+            final GuidedBaseRecord record,
+            final TarifingGuide tarifingGuide,
+            final TarifVersions<RatePlan> known
+    ) throws RatingBusinessExeption {
+        List<? extends Tarif> tarifs;
+        try {
+            tarifs = tarifingGuide.getTarifVersions(record);
+        } catch (TarifingException e) {
+            throw new RatingBusinessExeption(record, e.getMessage(), e);
+        }
+
+        if (tarifs == null || tarifs.isEmpty()) {
+            throw new RatingBusinessExeption(record, "No tarif found for the record");
+        }
+
+        LinkedHashMap<UUID, RatePlan> result = new LinkedHashMap<>();
+        if (known != null) {
+            for (RatePlan plan : known.getVersions()) {
+                result.put(plan.getTarifId(), plan);
+            }
+        }
+
+        for (Tarif tarif : tarifs) {
+            result.put(tarif.getId(), compile(tarif));
+        }
+
+        LOG.trace("Tarif versions for customer '{}' and product '{}': {}",
+                  record.getCustomer().getName(), record.getProductInfo().getProductName(), tarifs);
+        return new TarifVersions<>(result.values(), RatePlan::getTarif);
+    }
+
+    private RatePlan compile(final Tarif tarif) {
+        return ratePlans.getRatePlan(tarif);
+    }
+
+    private Tarif retrieveTarif(final GuidedBaseRecord record, final TarifingGuide tarifingGuide)
+            throws RatingBusinessExeption {
+        Tarif result;
+        try {
+            result = tarifingGuide.getTarif(record);
+        } catch (TarifingException e) {
+            throw new RatingBusinessExeption(record, e.getMessage(), e);
+        }
+
+        if (result == null) {
+            throw new RatingBusinessExeption(record, "No tarif found for the record");
+        }
+
+        LOG.trace("Tarif for customer '{}' and product '{}': {}",
+                  record.getCustomer().getName(), record.getProductInfo().getProductName(), result);
+        return result;
+    }
+
+
+    /**
+     * A record added to the usage.
+     */
+    private static final class AddedUsage {
+        private final UUID customer;
+        private final String product;
+        private final OffsetDateTime valueDate;
+        private final long quantity;
+
+        AddedUsage(final GuidedBaseRecord record, final long quantity) {
+            this.customer = record.getCustomer().getId();
+            this.product = record.getProductInfo().getProductName();
+            this.valueDate = record.getValueDate();
+            this.quantity = quantity;
+        }
+    }
+
+    /**
+     * The key of the tarif cache within a batch: the customer and the product of the record.
+     */
+    private static final class TarifKey {
+        private final UUID customer;
+        private final String product;
+        private final int hashCode;
+
+        TarifKey(final GuidedBaseRecord record) {
+            this.customer = record.getCustomer().getId();
+            this.product = record.getProductInfo().getProductName();
+
+            this.hashCode = Objects.hash(customer, product);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            TarifKey other = (TarifKey) o;
+            return Objects.equals(customer, other.customer) && Objects.equals(product, other.product);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
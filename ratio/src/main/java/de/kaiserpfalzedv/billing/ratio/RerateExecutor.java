@@ -0,0 +1,266 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.ratio;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import javax.money.MonetaryAmount;
+
+import de.kaiserpfalzedv.billing.api.rated.RatedBaseRecord;
+import de.kaiserpfalzedv.billing.api.rated.RatedMeteredRecord;
+import de.kaiserpfalzedv.billing.api.rated.Tarif;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Re-rates already rated records after tarifs have been corrected. Only the records rated with a corrected tarif
+ * and a value date within the validity of the correction are re-rated, all other records are skipped without
+ * being touched. The amounts are calculated by the {@link RatePlan} of the corrections, no record is built. Only
+ * records whose amount changed are reported as {@link RatingCorrection}. The rate plans are compiled for every
+ * execution and not taken from a {@link RatePlanCache}, since a correction may keep the id and version of the
+ * tarif it corrects.
+ *
+ * The records are read from the stream by the calling thread and the affected ones are collected into partitions
+ * which are rated on the fork-join pool. The corrections are reported in the order of the stream and only by the
+ * calling thread. At most two partitions per thread of the pool are in flight, so the stream may be far larger
+ * than the memory.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class RerateExecutor {
+    private static final Logger LOG = LoggerFactory.getLogger(RerateExecutor.class);
+
+    /** Default number of affected records within a partition. */
+    public static final int DEFAULT_PARTITION_SIZE = 4096;
+
+    private final ForkJoinPool pool;
+    private final int partitionSize;
+
+
+    public RerateExecutor() {
+        this(ForkJoinPool.commonPool(), DEFAULT_PARTITION_SIZE);
+    }
+
+    public RerateExecutor(final ForkJoinPool pool, final int partitionSize) {
+        if (partitionSize <= 0) {
+            throw new IllegalArgumentException("The partition size has to be positive!");
+        }
+
+        this.pool = pool;
+        this.partitionSize = partitionSize;
+    }
+
+
+    /**
+     * @param records the rated records.
+     * @param delta   the corrected tarifs.
+     * @return the corrections of all records with a changed amount in the order of the records.
+     */
+    public List<RatingCorrection> execute(final Stream<? extends RatedBaseRecord> records, final TarifDelta delta) {
+        ArrayList<RatingCorrection> result = new ArrayList<>();
+
+        execute(records, delta, result::add);
+
+        return result;
+    }
+
+    /**
+     * @param records     the rated records.
+     * @param delta       the corrected tarifs.
+     * @param corrections receives the corrections of all records with a changed amount in the order of the records.
+     * @return the number of records re-rated.
+     * @throws IllegalArgumentException if a correction is a tiered tarif.
+     */
+    public long execute(
+            final Stream<? extends RatedBaseRecord> records,
+            final TarifDelta delta,
+            final Consumer<? super RatingCorrection> corrections
+    ) {
+        long start = System.nanoTime();
+        HashMap<UUID, RatePlan> plans = compile(delta);
+
+        ArrayDeque<PartitionTask> pending = new ArrayDeque<>();
+        int maxPending = 2 * pool.getParallelism();
+
+        long read = 0L;
+        long affected = 0L;
+        long changed = 0L;
+
+        ArrayList<RatedBaseRecord> partition = new ArrayList<>(partitionSize);
+        ArrayList<RatePlan> partitionPlans = new ArrayList<>(partitionSize);
+
+        try {
+            Iterator<? extends RatedBaseRecord> iterator = records.iterator();
+            while (iterator.hasNext()) {
+                RatedBaseRecord record = iterator.next();
+                read++;
+
+                RatePlan plan = plans.get(record.getTarif().getId());
+                if (plan == null || !TarifDelta.isValidAt(plan.getTarif(), record.getValueDate())) {
+                    continue;
+                }
+
+                partition.add(record);
+                partitionPlans.add(plan);
+                affected++;
+
+                if (partition.size() == partitionSize) {
+                    changed += submit(pending, new PartitionTask(partition, partitionPlans), maxPending, corrections);
+
+                    partition = new ArrayList<>(partitionSize);
+                    partitionPlans = new ArrayList<>(partitionSize);
+                }
+            }
+
+            if (!partition.isEmpty()) {
+                changed += submit(pending, new PartitionTask(partition, partitionPlans), maxPending, corrections);
+            }
+            while (!pending.isEmpty()) {
+                changed += report(pending.poll(), corrections);
+            }
+        } finally {
+            // Partitions not reported due to an exception are not needed anymore.
+            for (PartitionTask task : pending) {
+                task.cancel(false);
+            }
+        }
+
+        long duration = System.nanoTime() - start;
+        LOG.debug("Re-rated {} of {} records ({} changed) in {} ms: {} records/s",
+                  affected, read, changed, TimeUnit.NANOSECONDS.toMillis(duration), throughput(read, duration));
+        return affected;
+    }
+
+    private HashMap<UUID, RatePlan> compile(final TarifDelta delta) {
+        HashMap<UUID, RatePlan> result = new HashMap<>(delta.size());
+
+        for (Map.Entry<UUID, Tarif> correction : delta.getCorrections().entrySet()) {
+            RatePlan plan = new RatePlan(correction.getValue());
+
+            if (plan.isTiered()) {
+                throw new IllegalArgumentException("Tiered tarifs need the usage of the whole billing period and can't be re-rated record by record!");
+            }
+
+            result.put(correction.getKey(), plan);
+        }
+
+        return result;
+    }
+
+    private int submit(
+            final ArrayDeque<PartitionTask> pending,
+            final PartitionTask partition,
+            final int maxPending,
+            final Consumer<? super RatingCorrection> corrections
+    ) {
+        pool.execute(partition);
+        pending.add(partition);
+
+        int result = 0;
+        while (pending.size() > maxPending) {
+            result += report(pending.poll(), corrections);
+        }
+        return result;
+    }
+
+    private static int report(final PartitionTask partition, final Consumer<? super RatingCorrection> corrections) {
+        List<RatingCorrection> result = partition.join();
+
+        result.forEach(corrections);
+        return result.size();
+    }
+
+    private static long throughput(final long records, final long nanos) {
+        return nanos > 0 ? records * TimeUnit.SECONDS.toNanos(1L) / nanos : 0L;
+    }
+
+
+    public int getPartitionSize() {
+        return partitionSize;
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append(System.identityHashCode(this))
+                .append("parallelism", pool.getParallelism())
+                .append("partitionSize", partitionSize)
+                .toString();
+    }
+
+
+    private static class PartitionTask extends RecursiveTask<List<RatingCorrection>> {
+        private static final long serialVersionUID = 4113629402781195530L;
+
+        private final transient List<RatedBaseRecord> records;
+        private final transient List<RatePlan> plans;
+
+        PartitionTask(final List<RatedBaseRecord> records, final List<RatePlan> plans) {
+            this.records = records;
+            this.plans = plans;
+        }
+
+        @Override
+        protected List<RatingCorrection> compute() {
+            ArrayList<RatingCorrection> result = new ArrayList<>();
+
+            for (int i = 0; i < records.size(); i++) {
+                RatedBaseRecord record = records.get(i);
+                RatePlan plan = plans.get(i);
+
+                MonetaryAmount amount = rate(record, plan);
+                if (isChanged(record.getAmount(), amount)) {
+                    result.add(new RatingCorrection(record, plan.getTarif(), amount));
+                }
+            }
+
+            return result;
+        }
+
+        private static MonetaryAmount rate(final RatedBaseRecord record, final RatePlan plan) {
+            if (record instanceof RatedMeteredRecord) {
+                return plan.rate(((RatedMeteredRecord) record).getMeteredValue());
+            }
+
+            return plan.rate(record.getMeteredTimestamp(), record.getMeteredDuration());
+        }
+
+        private static boolean isChanged(final MonetaryAmount oldAmount, final MonetaryAmount newAmount) {
+            return !oldAmount.getCurrency().equals(newAmount.getCurrency()) || !oldAmount.isEqualTo(newAmount);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.ratio;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.kaiserpfalzedv.billing.api.rated.TarifWindow;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Splits periods of time across the time windows of a tarif. For every month the windows are resolved once into a
+ * table of the window boundaries as epoch seconds. The table holds the seconds every rate accumulated up to every
+ * boundary, so the seconds of every rate within a period are the difference of two table lookups regardless of the
+ * number of boundaries the period spans. A lookup starts at the first boundary of the hour and needs no date
+ * arithmetic.
+ *
+ * The rates are numbered like the windows of the tarif starting at 1, rate 0 is the rate of the tarif applying
+ * outside all windows. The tables are computed on first use and may be shared between threads.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+final class TarifCalendar {
+    private static final Logger LOG = LoggerFactory.getLogger(TarifCalendar.class);
+
+    private static final long SECONDS_PER_HOUR = 3600L;
+
+    private final TarifWindow[] windows;
+    private final ZoneId zone;
+
+    /**
+     * The tables by the number of the month since the epoch (year * 12 + month - 1).
+     */
+    private final ConcurrentHashMap<Integer, MonthTable> tables = new ConcurrentHashMap<>();
+
+    /**
+     * The table used last. Records are mostly rated month by month, so the month needs no date arithmetic.
+     */
+    private volatile MonthTable recent;
+
+
+    TarifCalendar(final List<? extends TarifWindow> windows, final ZoneId zone) {
+        this.windows = windows.toArray(new TarifWindow[0]);
+        this.zone = zone;
+    }
+
+
+    /**
+     * @return the number of rates including the rate of the tarif.
+     */
+    int getRates() {
+        return windows.length + 1;
+    }
+
+    /**
+     * Adds the seconds of every rate within the given period.
+     *
+     * @param start   the start of the period in epoch seconds (inclusive).
+     * @param end     the end of the period in epoch seconds (exclusive).
+     * @param seconds the seconds of every rate to add to.
+     */
+    void split(long start, final long end, final long[] seconds) {
+        MonthTable table = getTable(start);
+        while (true) {
+            long until = Math.min(end, table.end);
+
+            table.add(start, until, seconds);
+            if (until >= end) {
+                return;
+            }
+
+            // periods spanning into the next month keep the table of their start as the recent one.
+            start = until;
+            table = table.getNext();
+        }
+    }
+
+    private MonthTable getTable(final long epochSecond) {
+        MonthTable result = recent;
+        if (result != null && result.start <= epochSecond && epochSecond < result.end) {
+            return result;
+        }
+
+        result = lookupTable(epochSecond);
+        recent = result;
+
+        return result;
+    }
+
+    private MonthTable lookupTable(final long epochSecond) {
+        YearMonth month = YearMonth.from(Instant.ofEpochSecond(epochSecond).atZone(zone));
+        Integer key = month.getYear() * 12 + month.getMonthValue() - 1;
+
+        MonthTable result = tables.get(key);
+        if (result == null) {
+            result = tables.computeIfAbsent(key, k -> new MonthTable(month));
+        }
+
+        return result;
+    }
+
+    int size() {
+        return tables.size();
+    }
+
+
+    private final class MonthTable {
+        private final long start;
+        private final long end;
+
+        /**
+         * The starts of the segments followed by the end of the month.
+         */
+        private final long[] boundaries;
+
+        /**
+         * The rate of every segment.
+         */
+        private final int[] rates;
+
+        /**
+         * The seconds of every rate before every boundary: {@code prefix[rate][boundary]}.
+         */
+        private final long[][] prefix;
+
+        /**
+         * The segment every hour of the month starts in.
+         */
+        private final int[] hours;
+
+        /**
+         * The table of the following month, linked on first use.
+         */
+        private volatile MonthTable next;
+
+        MonthTable(final YearMonth month) {
+            this.start = month.atDay(1).atStartOfDay(zone).toEpochSecond();
+            this.end = month.plusMonths(1L).atDay(1).atStartOfDay(zone).toEpochSecond();
+
+            long[][] intervals = resolveIntervals(month);
+
+            TreeSet<Long> points = new TreeSet<>();
+            points.add(start);
+            points.add(end);
+            for (long[] interval : intervals) {
+                points.add(interval[0]);
+                points.add(interval[1]);
+            }
+
+            long[] elementary = points.stream().mapToLong(Long::longValue).toArray();
+            int[] painted = new int[elementary.length - 1];
+
+            // paint the windows in reverse order, so the window listed first wins.
+            for (int i = intervals.length - 1; i >= 0; i--) {
+                int segment = Arrays.binarySearch(elementary, intervals[i][0]);
+
+                while (segment < painted.length && elementary[segment] < intervals[i][1]) {
+                    painted[segment++] = (int) intervals[i][2];
+                }
+            }
+
+            int segments = 0;
+            long[] mergedBoundaries = new long[elementary.length];
+            int[] mergedRates = new int[painted.length];
+            for (int i = 0; i < painted.length; i++) {
+                if (segments == 0 || mergedRates[segments - 1] != painted[i]) {
+                    mergedBoundaries[segments] = elementary[i];
+                    mergedRates[segments] = painted[i];
+                    segments++;
+                }
+            }
+            mergedBoundaries[segments] = end;
+
+            this.boundaries = Arrays.copyOf(mergedBoundaries, segments + 1);
+            this.rates = Arrays.copyOf(mergedRates, segments);
+
+            this.prefix = new long[windows.length + 1][segments + 1];
+            for (int i = 0; i < segments; i++) {
+                for (int rate = 0; rate < prefix.length; rate++) {
+                    prefix[rate][i + 1] = prefix[rate][i];
+                }
+                prefix[rates[i]][i + 1] += boundaries[i + 1] - boundaries[i];
+            }
+
+            this.hours = new int[(int) ((end - start + SECONDS_PER_HOUR - 1) / SECONDS_PER_HOUR)];
+            int segment = 0;
+            for (int hour = 0; hour < hours.length; hour++) {
+                long time = start + hour * SECONDS_PER_HOUR;
+
+                while (boundaries[segment + 1] <= time) {
+                    segment++;
+                }
+                hours[hour] = segment;
+            }
+
+            LOG.debug("Calendar table for {} ({}): {} segments", month, zone, segments);
+        }
+
+        /**
+         * @return the intervals of all windows within the month as {start, end, rate}, ordered by the precedence of
+         * their windows.
+         */
+        private long[][] resolveIntervals(final YearMonth month) {
+            long[][] result = new long[month.lengthOfMonth() * windows.length][];
+            int count = 0;
+
+            for (int window = 0; window < windows.length; window++) {
+                for (LocalDate day = month.atDay(1); !day.isAfter(month.atEndOfMonth()); day = day.plusDays(1L)) {
+                    if (!windows[window].getDays().contains(day.getDayOfWeek())) {
+                        continue;
+                    }
+
+                    long from = day.atTime(windows[window].getStart()).atZone(zone).toEpochSecond();
+                    long to = LocalTime.MIDNIGHT.equals(windows[window].getEnd())
+                            ? day.plusDays(1L).atStartOfDay(zone).toEpochSecond()
+                            : day.atTime(windows[window].getEnd()).atZone(zone).toEpochSecond();
+
+                    if (from < to) {
+                        result[count++] = new long[]{from, Math.min(to, end), window + 1};
+                    }
+                }
+            }
+
+            return Arrays.copyOf(result, count);
+        }
+
+        MonthTable getNext() {
+            MonthTable result = next;
+            if (result == null) {
+                result = lookupTable(end);
+                next = result;
+            }
+
+            return result;
+        }
+
+        void add(final long from, final long to, final long[] seconds) {
+            int first = segment(from);
+            int last = segment(to);
+
+            for (int rate = 0; rate < seconds.length; rate++) {
+                seconds[rate] += secondsBefore(rate, last, to) - secondsBefore(rate, first, from);
+            }
+        }
+
+        private long secondsBefore(final int rate, final int segment, final long time) {
+            long result = prefix[rate][segment];
+
+            if (segment < rates.length && rates[segment] == rate) {
+                result += time - boundaries[segment];
+            }
+
+            return result;
+        }
+
+        /**
+         * @return the segment containing the given time, or the number of segments for the end of the month.
+         */
+        private int segment(final long time) {
+            if (time >= end) {
+                return rates.length;
+            }
+
+            int result = hours[(int) ((time - start) / SECONDS_PER_HOUR)];
+            while (boundaries[result + 1] <= time) {
+                result++;
+            }
+
+            return result;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.ratio;
+
+import java.time.OffsetDateTime;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import de.kaiserpfalzedv.billing.api.rated.Tarif;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+
+/**
+ * The corrections of tarifs to re-rate already rated records with. Every correction replaces the tarif with the
+ * given id. A correction is only applied to records whose value date lies within its validity, so a price change
+ * for a part of the month is given as a correction valid for this part only.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public final class TarifDelta {
+    private final Map<UUID, Tarif> corrections;
+
+
+    /**
+     * @param corrections the corrected tarifs by the id of the tarif they replace.
+     */
+    public TarifDelta(final Map<UUID, ? extends Tarif> corrections) {
+        if (corrections.containsKey(null) || corrections.containsValue(null)) {
+            throw new IllegalArgumentException("The tarif corrections must not contain null!");
+        }
+
+        this.corrections = Collections.unmodifiableMap(new HashMap<>(corrections));
+    }
+
+    /**
+     * @param corrections the corrected tarifs. Every tarif replaces the tarif with the same id.
+     * @return the delta of the given tarifs.
+     */
+    public static TarifDelta of(final Collection<? extends Tarif> corrections) {
+        HashMap<UUID, Tarif> result = new HashMap<>(corrections.size());
+
+        for (Tarif tarif : corrections) {
+            if (result.put(tarif.getId(), tarif) != null) {
+                throw new IllegalArgumentException("There is more than one correction of tarif '" + tarif.getId() + "'!");
+            }
+        }
+
+        return new TarifDelta(result);
+    }
+
+    public static TarifDelta of(final Tarif... corrections) {
+        return of(Arrays.asList(corrections));
+    }
+
+
+    /**
+     * @param tarifId the id of the tarif a record has been rated with.
+     * @return the correction of this tarif or null if the tarif has not been corrected.
+     */
+    public Tarif getCorrection(final UUID tarifId) {
+        return corrections.get(tarifId);
+    }
+
+    /**
+     * @return the corrected tarifs by the id of the tarif they replace.
+     */
+    public Map<UUID, Tarif> getCorrections() {
+        return corrections;
+    }
+
+    public boolean isEmpty() {
+        return corrections.isEmpty();
+    }
+
+    public int size() {
+        return corrections.size();
+    }
+
+    /**
+     * @param tarif     the tarif to check.
+     * @param valueDate the value date of a record.
+     * @return true if the tarif is valid at the given value date.
+     */
+    static boolean isValidAt(final Tarif tarif, final OffsetDateTime valueDate) {
+        return (tarif.getValidFrom() == null || !valueDate.isBefore(tarif.getValidFrom()))
+                && (tarif.getValidTo() == null || valueDate.isBefore(tarif.getValidTo()));
+    }
+
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append(System.identityHashCode(this))
+                .append("corrections", corrections.keySet())
+                .toString();
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package de.kaiserpfalzedv.billing.ratio;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+
+import de.kaiserpfalzedv.billing.api.rated.Tarif;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+
+/**
+ * The versions of a tarif, held in an interval tree over their validity periods. Finding the version valid at a date
+ * costs O(log n) and needs no access to the repository.
+ *
+ * Versions may overlap: a version starting later overrides the versions it overlaps with (e.g. a special offer
+ * within a long running tarif). Versions starting at the same moment are ordered by their version number.
+ *
+ * The versions are sorted by their start. The tree is a segment tree over the ends of the versions holding the
+ * latest end of every subtree. The version valid at a date is the last version starting before or at this date
+ * whose end is after the date. Validity periods are compared with millisecond precision.
+ *
+ * @param <T> the type of the versions, e.g. the tarifs or the rate plans compiled from them.
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public final class TarifVersions<T> {
+    private final Object[] versions;
+    private final long[] starts;
+
+    /**
+     * The segment tree of the ends. Leaf i is at index {@link #leaves} + i, inner node k holds the maximum of its
+     * children 2k and 2k + 1.
+     */
+    private final long[] ends;
+    private final int leaves;
+
+
+    /**
+     * @param versions the versions of the tarif.
+     * @param tarif    returns the tarif of a version.
+     */
+    public TarifVersions(final Collection<? extends T> versions, final Function<? super T, ? extends Tarif> tarif) {
+        ArrayList<T> sorted = new ArrayList<>(versions);
+        sorted.sort(Comparator
+                            .comparingLong((T version) -> start(tarif.apply(version)))
+                            .thenComparingLong(version -> number(tarif.apply(version))));
+
+        this.versions = sorted.toArray();
+        this.starts = new long[sorted.size()];
+
+        int size = 1;
+        while (size < sorted.size()) {
+            size <<= 1;
+        }
+        this.leaves = size;
+        this.ends = new long[2 * size];
+        Arrays.fill(ends, Long.MIN_VALUE);
+
+        for (int i = 0; i < sorted.size(); i++) {
+            Tarif version = tarif.apply(sorted.get(i));
+
+            starts[i] = start(version);
+            ends[size + i] = end(version);
+        }
+
+        for (int k = size - 1; k > 0; k--) {
+            ends[k] = Math.max(ends[2 * k], ends[2 * k + 1]);
+        }
+    }
+
+    /**
+     * @param tarifs the versions of the tarif.
+     * @return the versions of the tarifs.
+     */
+    public static TarifVersions<Tarif> of(final Collection<? extends Tarif> tarifs) {
+        return new TarifVersions<>(tarifs, Function.identity());
+    }
+
+
+    /**
+     * @param date the date to find the valid version for, normally the value date of a record.
+     * @return the version valid at the given date or null if no version is valid at this date.
+     */
+    @SuppressWarnings("unchecked")
+    public T find(final OffsetDateTime date) {
+        long time = date.toInstant().toEpochMilli();
+
+        int last = lastStartingAtOrBefore(time);
+        if (last < 0) {
+            return null;
+        }
+
+        int found = lastEndingAfter(1, 0, leaves - 1, last, time);
+        return found >= 0 ? (T) versions[found] : null;
+    }
+
+    private int lastStartingAtOrBefore(final long time) {
+        int low = 0;
+        int high = starts.length - 1;
+        int result = -1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+
+            if (starts[middle] <= time) {
+                result = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the last leaf index within [from, to] of the subtree and not after last whose end is after the time.
+     */
+    private int lastEndingAfter(final int node, final int from, final int to, final int last, final long time) {
+        if (from > last || ends[node] <= time) {
+            return -1;
+        }
+
+        if (from == to) {
+            return from;
+        }
+
+        int middle = (from + to) >>> 1;
+        int result = lastEndingAfter(2 * node + 1, middle + 1, to, last, time);
+
+        return result >= 0 ? result : lastEndingAfter(2 * node, from, middle, last, time);
+    }
+
+
+    /**
+     * @return all versions ordered by their start.
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> getVersions() {
+        ArrayList<T> result = new ArrayList<>(versions.length);
+
+        for (Object version : versions) {
+            result.add((T) version);
+        }
+
+        return Collections.unmodifiableList(result);
+    }
+
+    public int size() {
+        return versions.length;
+    }
+
+
+    private static long start(final Tarif tarif) {
+        return tarif.getValidFrom() != null ? tarif.getValidFrom().toInstant().toEpochMilli() : Long.MIN_VALUE;
+    }
+
+    private static long end(final Tarif tarif) {
+        return tarif.getValidTo() != null ? tarif.getValidTo().toInstant().toEpochMilli() : Long.MAX_VALUE;
+    }
+
+    private static long number(final Tarif tarif) {
+        return tarif.getVersion() != null ? tarif.getVersion() : 0L;
+    }
+
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append(System.identityHashCode(this))
+                .append("versions", versions.length)
+                .toString();
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.ratio;
+
+import java.time.OffsetDateTime;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The running usage of every customer per product and billing period (the calendar month of the value date). The
+ * usage is counted as scaled long as returned by {@link RatePlan#quantity(java.math.BigDecimal)}. The usage is kept
+ * per product and not per tarif, since every version of a tarif has an id of its own and a price change within the
+ * period must not start the tiers again.
+ *
+ * Every accumulator is a counter of its own, so threads rating different customers or products never contend. Adding
+ * to an accumulator returns the usage before the record in one atomic step, so every record is rated against the
+ * tier it falls into without looking at the history. Records of the same customer rated concurrently are rated in
+ * the order they hit the accumulator, but the total amount of the period is the same for every order.
+ *
+ * The accumulators are held in memory. Periods that have been invoiced should be removed by
+ * {@link #removeBefore(YearMonth)}.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class UsageAccumulators {
+    private static final Logger LOG = LoggerFactory.getLogger(UsageAccumulators.class);
+
+    private final ConcurrentHashMap<UsageKey, AtomicLong> accumulators = new ConcurrentHashMap<>();
+
+    /**
+     * The zone the billing periods are calculated in.
+     */
+    private final ZoneId zone;
+
+
+    public UsageAccumulators() {
+        this(ZoneOffset.UTC);
+    }
+
+    public UsageAccumulators(final ZoneId zone) {
+        this.zone = zone;
+    }
+
+
+    /**
+     * Adds the quantity of a record to the usage of the customer.
+     *
+     * @param customer  the id of the customer.
+     * @param product   the name of the product.
+     * @param valueDate the value date of the record.
+     * @param quantity  the scaled quantity of the record. A negative quantity removes a record from the usage.
+     * @return the usage before the record.
+     */
+    public long add(final UUID customer, final String product, final OffsetDateTime valueDate, final long quantity) {
+        UsageKey key = new UsageKey(customer, product, getPeriod(valueDate));
+
+        AtomicLong result = accumulators.get(key);
+        if (result == null) {
+            result = accumulators.computeIfAbsent(key, k -> new AtomicLong());
+        }
+
+        return result.getAndAdd(quantity);
+    }
+
+    /**
+     * @param customer  the id of the customer.
+     * @param product   the name of the product.
+     * @param valueDate the value date of a record.
+     * @return the scaled usage of the customer within the billing period of the record.
+     */
+    public long getUsage(final UUID customer, final String product, final OffsetDateTime valueDate) {
+        return getUsage(customer, product, getPeriod(valueDate));
+    }
+
+    /**
+     * @param customer the id of the customer.
+     * @param product  the name of the product.
+     * @param period   the billing period.
+     * @return the scaled usage of the customer within the billing period.
+     */
+    public long getUsage(final UUID customer, final String product, final YearMonth period) {
+        AtomicLong result = accumulators.get(new UsageKey(customer, product, period));
+
+        return result != null ? result.get() : 0L;
+    }
+
+    /**
+     * @param valueDate the value date of a record.
+     * @return the billing period of the record.
+     */
+    public YearMonth getPeriod(final OffsetDateTime valueDate) {
+        return YearMonth.from(valueDate.atZoneSameInstant(zone));
+    }
+
+    /**
+     * Removes the accumulators of all billing periods before the given one.
+     *
+     * @param period the first billing period to keep.
+     */
+    public void removeBefore(final YearMonth period) {
+        int before = accumulators.size();
+
+        accumulators.keySet().removeIf(key -> key.period.isBefore(period));
+
+        LOG.debug("Removed {} accumulators of billing periods before {}", before - accumulators.size(), period);
+    }
+
+    public void clear() {
+        accumulators.clear();
+    }
+
+    public int size() {
+        return accumulators.size();
+    }
+
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append(System.identityHashCode(this))
+                .append("zone", zone)
+                .append("size", accumulators.size())
+                .toString();
+    }
+
+
+    private static final class UsageKey {
+        private final UUID customer;
+        private final String product;
+        private final YearMonth period;
+        private final int hashCode;
+
+        UsageKey(final UUID customer, final String product, final YearMonth period) {
+            this.customer = customer;
+            this.product = product;
+            this.period = period;
+            this.hashCode = Objects.hash(customer, product, period);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (!(o instanceof UsageKey)) return false;
+
+            UsageKey other = (UsageKey) o;
+            return customer.equals(other.customer) && Objects.equals(product, other.product)
+                    && period.equals(other.period);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -17,7 +17,16 @@
 package de.kaiserpfalzedv.billing.ratio.api;
 
 import java.math.BigDecimal;
+import java.time.DayOfWeek;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Set;
 import java.util.Map;
 import java.util.UUID;
 
@@ -25,6 +34,8 @@ import javax.money.MonetaryAmount;
 import javax.validation.constraints.NotNull;
 
 import de.kaiserpfalzedv.billing.api.rated.Tarif;
+import de.kaiserpfalzedv.billing.api.rated.TarifTier;
+import de.kaiserpfalzedv.billing.api.rated.TarifWindow;
 import org.apache.commons.lang3.builder.Builder;
 
 import static org.apache.commons.lang3.StringUtils.isBlank;
@@ -36,12 +47,21 @@ import static org.apache.commons.lang3.StringUtils.isBlank;
  */
 public class TarifBuilder implements Builder<Tarif> {
     private UUID id = UUID.randomUUID();
+    private Long version;
     private String tarifName;
 
+    private OffsetDateTime validFrom;
+    private OffsetDateTime validTo;
+
     private String unit;
     private BigDecimal unitDivisor;
     private MonetaryAmount rate;
 
+    private final ArrayList<TarifTier> tiers = new ArrayList<>();
+
+    private final ArrayList<TarifWindow> windows = new ArrayList<>();
+    private ZoneId zone;
+
     private final HashMap<String, String> tags = new HashMap<>();
 
 
@@ -51,16 +71,28 @@ public class TarifBuilder implements Builder<Tarif> {
         validate();
 
         try {
-            return new TarifImpl(id, tarifName, unit, unitDivisor, rate, tags);
+            ArrayList<TarifTier> sortedTiers = new ArrayList<>(tiers);
+            sortedTiers.sort(Comparator.comparing(TarifTier::getFrom));
+
+            return new TarifImpl(id, version, tarifName, validFrom, validTo, unit, unitDivisor, rate,
+                                 sortedTiers, new ArrayList<>(windows), zone, tags);
         } finally {
             reset();
         }
     }
 
     private void defaults() {
+        if (version == null) {
+            version = 0L;
+        }
+
         if (unitDivisor == null) {
             unitDivisor = BigDecimal.ONE;
         }
+
+        if (zone == null) {
+            zone = ZoneOffset.UTC;
+        }
     }
 
     private void validate() {
@@ -75,14 +107,56 @@ public class TarifBuilder implements Builder<Tarif> {
         if (rate == null) {
             throw new IllegalStateException("Can't create a Tarif without defining the rate");
         }
+
+        if (validFrom != null && validTo != null && !validFrom.isBefore(validTo)) {
+            throw new IllegalStateException("Can't create a Tarif with a validity not ending after its start");
+        }
+
+        for (TarifTier tier : tiers) {
+            if (tier.getFrom().signum() <= 0) {
+                throw new IllegalStateException("Can't create a Tarif with a tier not starting after a usage of 0");
+            }
+
+            if (!rate.getCurrency().equals(tier.getRate().getCurrency())) {
+                throw new IllegalStateException("Can't create a Tarif with tiers in another currency than the rate");
+            }
+
+            if (tiers.stream().filter(t -> t.getFrom().compareTo(tier.getFrom()) == 0).count() > 1) {
+                throw new IllegalStateException("Can't create a Tarif with two tiers starting at " + tier.getFrom());
+            }
+        }
+
+        if (!tiers.isEmpty() && !windows.isEmpty()) {
+            throw new IllegalStateException("Can't create a Tarif with tiers and time windows");
+        }
+
+        for (TarifWindow window : windows) {
+            if (window.getDays().isEmpty()) {
+                throw new IllegalStateException("Can't create a Tarif with a time window without days");
+            }
+
+            if (!LocalTime.MIDNIGHT.equals(window.getEnd()) && !window.getStart().isBefore(window.getEnd())) {
+                throw new IllegalStateException("Can't create a Tarif with a time window not ending after its start");
+            }
+
+            if (!rate.getCurrency().equals(window.getRate().getCurrency())) {
+                throw new IllegalStateException("Can't create a Tarif with time windows in another currency than the rate");
+            }
+        }
     }
 
     private void reset() {
         id = UUID.randomUUID();
+        version = null;
         tarifName = null;
+        validFrom = null;
+        validTo = null;
         unit = null;
         unitDivisor = null;
         rate = null;
+        tiers.clear();
+        windows.clear();
+        zone = null;
         tags.clear();
     }
 
@@ -92,11 +166,34 @@ public class TarifBuilder implements Builder<Tarif> {
         return this;
     }
 
+    public TarifBuilder withVersion(Long version) {
+        this.version = version;
+        return this;
+    }
+
     public TarifBuilder withName(String tarifName) {
         this.tarifName = tarifName;
         return this;
     }
 
+    /**
+     * @param validFrom the first moment the tarif is valid at. Null if the tarif is valid since ever.
+     * @return this builder.
+     */
+    public TarifBuilder withValidFrom(OffsetDateTime validFrom) {
+        this.validFrom = validFrom;
+        return this;
+    }
+
+    /**
+     * @param validTo the moment the tarif is no longer valid at. Null if the tarif is valid forever.
+     * @return this builder.
+     */
+    public TarifBuilder withValidTo(OffsetDateTime validTo) {
+        this.validTo = validTo;
+        return this;
+    }
+
     public TarifBuilder withUnit(String unit) {
         this.unit = unit;
         return this;
@@ -112,6 +209,65 @@ public class TarifBuilder implements Builder<Tarif> {
         return this;
     }
 
+    /**
+     * Adds a tier to the tarif.
+     *
+     * @param from the usage within the billing period (in units of the tarif) from which on the rate applies.
+     * @param rate the rate of the tier.
+     * @return this builder.
+     */
+    public TarifBuilder withTier(BigDecimal from, MonetaryAmount rate) {
+        this.tiers.add(new TarifTierImpl(from, rate));
+        return this;
+    }
+
+    public TarifBuilder withTiers(@NotNull final Collection<? extends TarifTier> tiers) {
+        this.tiers.clear();
+
+        if (tiers != null) {
+            for (TarifTier tier : tiers) {
+                withTier(tier.getFrom(), tier.getRate());
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * Adds a time window to the tarif. Windows added first take precedence over later ones.
+     *
+     * @param days  the days of the week the window applies to.
+     * @param start the start of the window on every day (inclusive).
+     * @param end   the end of the window on every day (exclusive). {@link LocalTime#MIDNIGHT} is the end of the day.
+     * @param rate  the rate within the window.
+     * @return this builder.
+     */
+    public TarifBuilder withWindow(Set<DayOfWeek> days, LocalTime start, LocalTime end, MonetaryAmount rate) {
+        this.windows.add(new TarifWindowImpl(days, start, end, rate));
+        return this;
+    }
+
+    public TarifBuilder withWindows(@NotNull final Collection<? extends TarifWindow> windows) {
+        this.windows.clear();
+
+        if (windows != null) {
+            for (TarifWindow window : windows) {
+                withWindow(window.getDays(), window.getStart(), window.getEnd(), window.getRate());
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * @param zone the zone the time windows are given in. Defaults to UTC.
+     * @return this builder.
+     */
+    public TarifBuilder withZone(ZoneId zone) {
+        this.zone = zone;
+        return this;
+    }
+
     public TarifBuilder withTags(@NotNull final Map<String, String> tags) {
         this.tags.clear();
 
@@ -124,10 +280,16 @@ public class TarifBuilder implements Builder<Tarif> {
 
     public TarifBuilder copy(final Tarif orig) {
         this.id = orig.getId();
+        this.version = orig.getVersion();
         this.tarifName = orig.getName();
+        this.validFrom = orig.getValidFrom();
+        this.validTo = orig.getValidTo();
         this.unit = orig.getUnit();
         this.unitDivisor = orig.getUnitDivisor();
         this.rate = orig.getRate();
+        withTiers(orig.getTiers());
+        withWindows(orig.getWindows());
+        this.zone = orig.getZone();
         this.tags.putAll(orig.getTags());
 
         return this;
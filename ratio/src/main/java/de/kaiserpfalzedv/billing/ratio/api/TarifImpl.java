@@ -17,8 +17,11 @@
 package de.kaiserpfalzedv.billing.ratio.api;
 
 import java.math.BigDecimal;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
@@ -27,6 +30,8 @@ import javax.money.CurrencyUnit;
 import javax.money.MonetaryAmount;
 
 import de.kaiserpfalzedv.billing.api.rated.Tarif;
+import de.kaiserpfalzedv.billing.api.rated.TarifTier;
+import de.kaiserpfalzedv.billing.api.rated.TarifWindow;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.commons.lang3.builder.ToStringStyle;
 
@@ -40,28 +45,55 @@ public class TarifImpl implements Tarif {
 
 
     private final UUID id;
+    private final Long version;
     private final String tarifName;
 
+    private final OffsetDateTime validFrom;
+    private final OffsetDateTime validTo;
+
     private final String unit;
     private final BigDecimal unitDivisor;
     private final MonetaryAmount rate;
 
+    /**
+     * The tiers ordered by their thresholds.
+     */
+    private final List<TarifTier> tiers;
+
+    /**
+     * The time windows in the order of their precedence.
+     */
+    private final List<TarifWindow> windows;
+    private final ZoneId zone;
+
     private final HashMap<String, String> tags = new HashMap<>();
 
 
     TarifImpl(
             final UUID id,
+            final Long version,
             final String tarifName,
+            final OffsetDateTime validFrom,
+            final OffsetDateTime validTo,
             final String unit,
             final BigDecimal unitDivisor,
             final MonetaryAmount rate,
+            final List<TarifTier> tiers,
+            final List<TarifWindow> windows,
+            final ZoneId zone,
             final Map<String, String> tags
     ) {
         this.id = id;
+        this.version = version;
         this.tarifName = tarifName;
+        this.validFrom = validFrom;
+        this.validTo = validTo;
         this.unit = unit;
         this.unitDivisor = unitDivisor;
         this.rate = rate;
+        this.tiers = Collections.unmodifiableList(tiers);
+        this.windows = Collections.unmodifiableList(windows);
+        this.zone = zone;
 
         if (tags != null) {
             this.tags.putAll(tags);
@@ -87,10 +119,16 @@ public class TarifImpl implements Tarif {
     public String toString() {
         return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
                 .append("id", id)
+                .append("version", version)
                 .append("tarifName", tarifName)
+                .append("validFrom", validFrom)
+                .append("validTo", validTo)
                 .append("unit", unit)
                 .append("unitDivisor", unitDivisor)
                 .append("rate", rate)
+                .append("tiers", tiers)
+                .append("windows", windows)
+                .append("zone", zone)
                 .toString();
     }
 
@@ -99,11 +137,26 @@ public class TarifImpl implements Tarif {
         return id;
     }
 
+    @Override
+    public Long getVersion() {
+        return version;
+    }
+
     @Override
     public String getName() {
         return tarifName;
     }
 
+    @Override
+    public OffsetDateTime getValidFrom() {
+        return validFrom;
+    }
+
+    @Override
+    public OffsetDateTime getValidTo() {
+        return validTo;
+    }
+
     @Override
     public String getUnit() {
         return unit;
@@ -119,6 +172,21 @@ public class TarifImpl implements Tarif {
         return rate;
     }
 
+    @Override
+    public List<TarifTier> getTiers() {
+        return tiers;
+    }
+
+    @Override
+    public List<TarifWindow> getWindows() {
+        return windows;
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return zone;
+    }
+
     @Override
     public CurrencyUnit getCurrency() {
         return rate.getCurrency();
@@ -0,0 +1,78 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.ratio.api;
+
+import java.math.BigDecimal;
+import java.util.Objects;
+
+import javax.money.MonetaryAmount;
+
+import de.kaiserpfalzedv.billing.api.rated.TarifTier;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+
+/**
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class TarifTierImpl implements TarifTier {
+    private static final long serialVersionUID = 2951537463710862174L;
+
+
+    private final BigDecimal from;
+    private final MonetaryAmount rate;
+
+
+    TarifTierImpl(final BigDecimal from, final MonetaryAmount rate) {
+        this.from = from;
+        this.rate = rate;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(from, rate);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof TarifTier)) return false;
+
+        TarifTier tier = (TarifTier) o;
+
+        return from.compareTo(tier.getFrom()) == 0 && Objects.equals(rate, tier.getRate());
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append("from", from)
+                .append("rate", rate)
+                .toString();
+    }
+
+    @Override
+    public BigDecimal getFrom() {
+        return from;
+    }
+
+    @Override
+    public MonetaryAmount getRate() {
+        return rate;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.ratio.api;
+
+import java.time.DayOfWeek;
+import java.time.LocalTime;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Objects;
+import java.util.Set;
+
+import javax.money.MonetaryAmount;
+
+import de.kaiserpfalzedv.billing.api.rated.TarifWindow;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+
+/**
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class TarifWindowImpl implements TarifWindow {
+    private static final long serialVersionUID = -3416219542716287740L;
+
+
+    private final EnumSet<DayOfWeek> days;
+    private final LocalTime start;
+    private final LocalTime end;
+    private final MonetaryAmount rate;
+
+
+    TarifWindowImpl(final Set<DayOfWeek> days, final LocalTime start, final LocalTime end, final MonetaryAmount rate) {
+        this.days = days.isEmpty() ? EnumSet.noneOf(DayOfWeek.class) : EnumSet.copyOf(days);
+        this.start = start;
+        this.end = end;
+        this.rate = rate;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(days, start, end, rate);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof TarifWindow)) return false;
+
+        TarifWindow window = (TarifWindow) o;
+
+        return Objects.equals(days, window.getDays())
+                && Objects.equals(start, window.getStart())
+                && Objects.equals(end, window.getEnd())
+                && Objects.equals(rate, window.getRate());
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append("days", days)
+                .append("start", start)
+                .append("end", end)
+                .append("rate", rate)
+                .toString();
+    }
+
+    @Override
+    public Set<DayOfWeek> getDays() {
+        return Collections.unmodifiableSet(days);
+    }
+
+    @Override
+    public LocalTime getStart() {
+        return start;
+    }
+
+    @Override
+    public LocalTime getEnd() {
+        return end;
+    }
+
+    @Override
+    public MonetaryAmount getRate() {
+        return rate;
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.ratio.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.time.DayOfWeek;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.money.CurrencyUnit;
+import javax.money.Monetary;
+import javax.money.MonetaryAmount;
+
+import de.kaiserpfalzedv.billing.api.guided.Customer;
+import de.kaiserpfalzedv.billing.api.guided.GuidedTimedRecord;
+import de.kaiserpfalzedv.billing.api.guided.ProductInfo;
+import de.kaiserpfalzedv.billing.api.guided.ProductRecordInfo;
+import de.kaiserpfalzedv.billing.api.rated.RatedTimedRecord;
+import de.kaiserpfalzedv.billing.api.rated.RatingBusinessExeption;
+import de.kaiserpfalzedv.billing.api.rated.Tarif;
+import de.kaiserpfalzedv.billing.api.rated.TarifWindow;
+import de.kaiserpfalzedv.billing.princeps.GuidedRecordBuilder;
+import de.kaiserpfalzedv.billing.princeps.api.CustomerBuilder;
+import de.kaiserpfalzedv.billing.princeps.api.ProductInfoBuilder;
+import de.kaiserpfalzedv.billing.princeps.api.ProductRecordInfoBuilder;
+import de.kaiserpfalzedv.billing.ratio.RatePlan;
+import de.kaiserpfalzedv.billing.ratio.RatedRecordBuilder;
+import de.kaiserpfalzedv.billing.ratio.RatingExecutorImpl;
+import de.kaiserpfalzedv.billing.ratio.api.TarifBuilder;
+import org.javamoney.moneta.Money;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+import static java.math.RoundingMode.HALF_UP;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Calendar tarifs: 10 EUR per hour at peak times, 4 EUR per hour off-peak on working days (22:00 to 06:00) and
+ * 2 EUR per hour on weekends, all in the zone Europe/Berlin. The splitting is checked against a minute by minute
+ * walk through the calendar with randomly generated periods. The random generator is seeded, so failures can be
+ * reproduced.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class CalendarTarifTest {
+    private static final Logger LOG = LoggerFactory.getLogger(CalendarTarifTest.class);
+
+    private static final CurrencyUnit EUR = Monetary.getCurrency("EUR");
+    private static final ZoneId BERLIN = ZoneId.of("Europe/Berlin");
+
+    private static final long SEED = 20180218L;
+
+    private static final EnumSet<DayOfWeek> WORKING_DAYS = EnumSet.range(DayOfWeek.MONDAY, DayOfWeek.FRIDAY);
+    private static final EnumSet<DayOfWeek> WEEKEND = EnumSet.of(DayOfWeek.SATURDAY, DayOfWeek.SUNDAY);
+
+    private static final Map<String, String> TAGS = new HashMap<>(4);
+    static {
+        TAGS.put("cluster", "abbot1");
+        TAGS.put("project", "billing");
+    }
+
+    private static final Customer CUSTOMER = new CustomerBuilder()
+            .setName("customer-1")
+            .setCostReference("cost-1")
+            .build();
+
+    private static final ProductRecordInfo PRODUCT = createProduct("Cluster Pod Runtime");
+
+    private static final Tarif CALENDAR = new TarifBuilder()
+            .withName("Pod runtime")
+            .withUnit("EUR/h")
+            .withRate(Money.of(BigDecimal.TEN, EUR))
+            .withUnitDivisor(BigDecimal.valueOf(3600L))
+            .withZone(BERLIN)
+            .withWindow(WEEKEND, LocalTime.MIDNIGHT, LocalTime.MIDNIGHT, Money.of(BigDecimal.valueOf(2L), EUR))
+            .withWindow(WORKING_DAYS, LocalTime.MIDNIGHT, LocalTime.of(6, 0), Money.of(BigDecimal.valueOf(4L), EUR))
+            .withWindow(WORKING_DAYS, LocalTime.of(22, 0), LocalTime.MIDNIGHT, Money.of(BigDecimal.valueOf(4L), EUR))
+            .build();
+
+
+    private static ProductRecordInfo createProduct(final String name) {
+        ProductInfo product = new ProductInfoBuilder()
+                .setName(name)
+                .build();
+
+        return new ProductRecordInfoBuilder()
+                .setProductInfo(product)
+                .setTags(TAGS)
+                .build();
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+        MDC.put("test", CalendarTarifTest.class.getSimpleName());
+
+        if (!SLF4JBridgeHandler.isInstalled()) {
+            SLF4JBridgeHandler.install();
+        }
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        MDC.remove("test");
+        MDC.remove("id");
+
+        SLF4JBridgeHandler.uninstall();
+    }
+
+    @Test
+    public void periodsAreSplitAcrossWindows() {
+        logMethod("split", "Periods have to be split across the time windows");
+
+        RatePlan plan = new RatePlan(CALENDAR);
+
+        assertTrue("The plan has no calendar", plan.isCalendar());
+        assertAmount("The peak hour does not match", 10L,
+                     plan.rate(at(2018, 2, 14, 10), Duration.ofHours(1L)));
+        assertAmount("The evening run does not match", 18L,
+                     plan.rate(at(2018, 2, 14, 21), Duration.ofHours(3L)));
+        assertAmount("The run into the weekend does not match", 8L,
+                     plan.rate(at(2018, 2, 16, 23), Duration.ofHours(3L)));
+        assertAmount("The run into the next month does not match", 8L,
+                     plan.rate(at(2018, 2, 28, 23), Duration.ofHours(2L)));
+        assertAmount("The week does not match", 5 * (8 * 4 + 16 * 10) + 2 * 24 * 2,
+                     plan.rate(at(2018, 2, 12, 0), Duration.ofDays(7L)));
+    }
+
+    @Test
+    public void daylightSavingTimeIsRespected() {
+        logMethod("dst", "The windows have to follow the local time of the tarif");
+
+        RatePlan plan = new RatePlan(CALENDAR);
+
+        // 2018-03-25 02:00 CET is 03:00 CEST, the sunday has 23 hours.
+        assertAmount("The short sunday does not match", 46L,
+                     plan.rate(at(2018, 3, 25, 0), Duration.ofHours(23L)));
+        // monday 2018-03-26 starts after 23 hours of the sunday in local time.
+        assertAmount("The end of the short sunday does not match", 2L + 4L,
+                     plan.rate(at(2018, 3, 25, 23), Duration.ofHours(2L)));
+    }
+
+    @Test
+    public void splittingMatchesMinuteByMinuteWalk() {
+        logMethod("random", "The splitting has to match a walk through the calendar");
+
+        RatePlan plan = new RatePlan(CALENDAR);
+        Random random = new Random(SEED);
+        long year = Duration.ofDays(365L).toMinutes();
+
+        for (int i = 0; i < 200; i++) {
+            OffsetDateTime start = at(2018, 1, 1, 0).plusMinutes((long) (random.nextDouble() * year));
+            Duration duration = Duration.ofMinutes(random.nextInt(3 * 24 * 60));
+
+            assertEquals("The amount of " + duration + " at " + start + " does not match",
+                         0, walk(start, duration).compareTo(plan.rate(start, duration).getNumber().numberValue(BigDecimal.class)));
+        }
+    }
+
+    @Test
+    public void flatTarifsIgnoreTheCalendar() {
+        logMethod("flat", "Tarifs without windows are rated with their rate");
+
+        RatePlan plan = new RatePlan(new TarifBuilder().copy(CALENDAR).withWindows(Collections.emptyList()).build());
+
+        assertFalse("The plan has a calendar", plan.isCalendar());
+        assertAmount("The weekend does not match", 20L, plan.rate(at(2018, 2, 17, 10), Duration.ofHours(2L)));
+    }
+
+    @Test
+    public void timedRecordsAreRatedAgainstTheCalendar() throws RatingBusinessExeption {
+        logMethod("executor", "The executor has to rate timed records against the calendar");
+
+        List<GuidedTimedRecord> records = Arrays.asList(
+                createRecord(at(2018, 2, 14, 21), Duration.ofHours(3L)),
+                createRecord(at(2018, 2, 16, 23), Duration.ofHours(3L))
+        );
+
+        for (boolean fixedPoint : new boolean[]{false, true}) {
+            List<RatedTimedRecord> rated = new RatingExecutorImpl(fixedPoint).executeTimedRecords(records, record -> CALENDAR);
+
+            assertAmount("The evening run does not match", 18L, rated.get(0).getAmount());
+            assertAmount("The run into the weekend does not match", 8L, rated.get(1).getAmount());
+        }
+
+        RatedTimedRecord rebuilt = new RatedRecordBuilder<RatedTimedRecord>()
+                .setCustomer(CUSTOMER)
+                .setProductInfo(PRODUCT)
+                .setTarif(new RatePlan(CALENDAR))
+                .setMeteredStartDate(at(2018, 2, 14, 21))
+                .setValueDate(at(2018, 2, 15, 0))
+                .setMeteredDuration(Duration.ofHours(3L))
+                .build();
+        assertAmount("The record built with the rate plan does not match", 18L, rebuilt.getAmount());
+
+        RatedRecordBuilder<RatedTimedRecord> builder = new RatedRecordBuilder<>();
+        RatedTimedRecord flat = builder
+                .setCustomer(CUSTOMER)
+                .setProductInfo(PRODUCT)
+                .setTarif(CALENDAR)
+                .setMeteredStartDate(at(2018, 2, 14, 21))
+                .setValueDate(at(2018, 2, 15, 0))
+                .setMeteredDuration(Duration.ofHours(3L))
+                .build();
+        assertAmount("The record built with the tarif does not match", 18L, flat.getAmount());
+        assertAmount("The copied record does not match", 18L, builder.copy(rebuilt).build().getAmount());
+    }
+
+    @Test
+    public void ratePlanKeepsCalendarWhenSerialized() throws IOException, ClassNotFoundException {
+        logMethod("serialization", "The calendar of a deserialized rate plan has to be compiled again");
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(data)) {
+            out.writeObject(new RatePlan(CALENDAR));
+        }
+
+        RatePlan plan;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data.toByteArray()))) {
+            plan = (RatePlan) in.readObject();
+        }
+
+        assertTrue("The plan has no calendar", plan.isCalendar());
+        assertAmount("The evening run does not match", 18L, plan.rate(at(2018, 2, 14, 21), Duration.ofHours(3L)));
+    }
+
+    @Test
+    public void invalidWindowsAreRejected() {
+        logMethod("invalid", "Windows without days, ending before their start or in other currencies have to be rejected");
+
+        TarifBuilder[] builders = {
+                new TarifBuilder().copy(CALENDAR).withWindow(EnumSet.noneOf(DayOfWeek.class), LocalTime.MIDNIGHT,
+                                                             LocalTime.NOON, Money.of(BigDecimal.ONE, EUR)),
+                new TarifBuilder().copy(CALENDAR).withWindow(WEEKEND, LocalTime.NOON, LocalTime.of(6, 0),
+                                                             Money.of(BigDecimal.ONE, EUR)),
+                new TarifBuilder().copy(CALENDAR).withWindow(WEEKEND, LocalTime.MIDNIGHT, LocalTime.NOON,
+                                                             Money.of(BigDecimal.ONE, "USD")),
+                new TarifBuilder().copy(CALENDAR).withTier(BigDecimal.TEN, Money.of(BigDecimal.ONE, EUR))
+        };
+
+        for (TarifBuilder builder : builders) {
+            try {
+                builder.build();
+
+                fail("An invalid tarif has been built");
+            } catch (IllegalStateException e) {
+                LOG.debug("Caught expected exception: {}", e.getMessage());
+            }
+        }
+    }
+
+    @Test(timeout = 10000L)
+    public void runtimeTest() {
+        logMethod("runtime-verification", "checking that the rating does not depend on the duration ...");
+
+        RatePlan plan = new RatePlan(CALENDAR);
+        OffsetDateTime[] starts = new OffsetDateTime[1000];
+        Random random = new Random(SEED);
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = at(2018, 2, 1, 0).plusMinutes(random.nextInt(27 * 24 * 60));
+        }
+
+        Duration[] durations = {Duration.ofMinutes(15L), Duration.ofHours(3L), Duration.ofDays(3L)};
+        for (Duration duration : durations) {
+            for (OffsetDateTime start : starts) {
+                plan.rate(start, duration);
+            }
+
+            long begin = System.nanoTime();
+            for (int i = 0; i < 200000; i++) {
+                plan.rate(starts[i % starts.length], duration);
+            }
+            long time = System.nanoTime() - begin;
+
+            LOG.info("Rated 200000 periods of {} against the calendar: {} records/s",
+                     duration, 200000L * 1000000000L / Math.max(time, 1L));
+        }
+    }
+
+    private static BigDecimal walk(final OffsetDateTime start, final Duration duration) {
+        long[] minutes = new long[CALENDAR.getWindows().size() + 1];
+
+        for (long minute = 0; minute < duration.toMinutes(); minute++) {
+            ZonedDateTime time = start.plusMinutes(minute).atZoneSameInstant(BERLIN);
+            minutes[window(time)]++;
+        }
+
+        BigDecimal result = BigDecimal.ZERO;
+        for (int i = 0; i < minutes.length; i++) {
+            if (minutes[i] == 0L) {
+                continue;
+            }
+
+            MonetaryAmount rate = i == 0 ? CALENDAR.getRate() : CALENDAR.getWindows().get(i - 1).getRate();
+            result = result.add(
+                    BigDecimal.valueOf(minutes[i] * 60L)
+                              .divide(CALENDAR.getUnitDivisor(), 5, HALF_UP)
+                              .multiply(rate.getNumber().numberValue(BigDecimal.class))
+            );
+        }
+
+        return result;
+    }
+
+    private static int window(final ZonedDateTime time) {
+        List<? extends TarifWindow> windows = CALENDAR.getWindows();
+
+        for (int i = 0; i < windows.size(); i++) {
+            TarifWindow window = windows.get(i);
+            LocalTime local = time.toLocalTime();
+
+            if (window.getDays().contains(time.getDayOfWeek())
+                    && !local.isBefore(window.getStart())
+                    && (LocalTime.MIDNIGHT.equals(window.getEnd()) || local.isBefore(window.getEnd()))) {
+                return i + 1;
+            }
+        }
+
+        return 0;
+    }
+
+    private static OffsetDateTime at(final int year, final int month, final int day, final int hour) {
+        return LocalDateTime.of(year, month, day, hour, 0).atZone(BERLIN).toOffsetDateTime();
+    }
+
+    private static void assertAmount(final String message, final long expected, final MonetaryAmount amount) {
+        assertEquals(message, 0, BigDecimal.valueOf(expected).compareTo(amount.getNumber().numberValue(BigDecimal.class)));
+    }
+
+    private GuidedTimedRecord createRecord(final OffsetDateTime start, final Duration duration) {
+        return new GuidedRecordBuilder<GuidedTimedRecord>()
+                .setCustomer(CUSTOMER)
+                .setProductInfo(PRODUCT)
+                .setMeteredTimestamp(start)
+                .setValueDate(start.plus(duration))
+                .setMeteredDuration(duration)
+                .setTags(TAGS)
+                .build();
+    }
+
+    private void logMethod(final String method, final String message, final Object... paramater) {
+        MDC.put("id", method);
+
+        LOG.debug(message, paramater);
+    }
+
+    @After
+    public void tearDown() {
+        MDC.remove("id");
+    }
+}
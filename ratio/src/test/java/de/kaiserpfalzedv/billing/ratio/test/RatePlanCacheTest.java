@@ -0,0 +1,164 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package de.kaiserpfalzedv.billing.ratio.test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import de.kaiserpfalzedv.billing.api.rated.Tarif;
+import de.kaiserpfalzedv.billing.ratio.RatePlan;
+import de.kaiserpfalzedv.billing.ratio.RatePlanCache;
+import de.kaiserpfalzedv.billing.ratio.api.TarifBuilder;
+import org.javamoney.moneta.Money;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class RatePlanCacheTest {
+    private static final Logger LOG = LoggerFactory.getLogger(RatePlanCacheTest.class);
+
+    private static final UUID TARIF_ID = UUID.randomUUID();
+
+    private RatePlanCache service;
+
+
+    @BeforeClass
+    public static void setUpClass() {
+        MDC.put("test", RatePlanCache.class.getSimpleName());
+
+        if (!SLF4JBridgeHandler.isInstalled()) {
+            SLF4JBridgeHandler.install();
+        }
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        MDC.remove("test");
+        MDC.remove("id");
+
+        SLF4JBridgeHandler.uninstall();
+    }
+
+    @Test
+    public void sameVersionIsCached() {
+        logMethod("same-version", "The rate plan of the same tarif version has to be cached");
+
+        RatePlan first = service.getRatePlan(createTarif(1L, "0.10"));
+        RatePlan second = service.getRatePlan(createTarif(1L, "0.10"));
+
+        assertSame("The rate plan has not been cached", first, second);
+        assertEquals("The tarif id does not match", TARIF_ID, first.getTarifId());
+        assertEquals("The currency does not match", "EUR", first.getCurrency().getCurrencyCode());
+        assertEquals("The cache size does not match", 1, service.size());
+    }
+
+    @Test
+    public void newVersionIsCompiled() {
+        logMethod("new-version", "A new tarif version has to replace the cached rate plan");
+
+        RatePlan first = service.getRatePlan(createTarif(1L, "0.10"));
+        RatePlan second = service.getRatePlan(createTarif(2L, "0.20"));
+
+        assertNotSame("The outdated rate plan has been returned", first, second);
+        assertEquals("The version does not match", Long.valueOf(2L), second.getVersion());
+        assertEquals("The amount does not match", Money.of(new BigDecimal("2"), "EUR"), second.rate(BigDecimal.TEN));
+        assertSame("The new rate plan has not been cached", second, service.getRatePlan(createTarif(2L, "0.20")));
+        assertEquals("The cache size does not match", 1, service.size());
+    }
+
+    @Test
+    public void invalidatedPlanIsCompiled() {
+        logMethod("invalidate", "An invalidated rate plan has to be compiled again");
+
+        RatePlan first = service.getRatePlan(createTarif(1L, "0.10"));
+        service.invalidate(TARIF_ID);
+
+        assertEquals("The cache size does not match", 0, service.size());
+        assertNotSame("The invalidated rate plan has been returned", first, service.getRatePlan(createTarif(1L, "0.10")));
+    }
+
+    @Test
+    public void concurrentAccessReturnsOnePlan() throws InterruptedException, ExecutionException {
+        logMethod("concurrent", "Concurrent access has to return a single rate plan");
+
+        Tarif tarif = createTarif(1L, "0.10");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            ArrayList<Callable<RatePlan>> tasks = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                tasks.add(() -> service.getRatePlan(tarif));
+            }
+
+            List<Future<RatePlan>> results = executor.invokeAll(tasks);
+            RatePlan expected = service.getRatePlan(tarif);
+            for (Future<RatePlan> result : results) {
+                assertSame("The threads got different rate plans", expected, result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Tarif createTarif(final long version, final String rate) {
+        return new TarifBuilder()
+                .withId(TARIF_ID)
+                .withVersion(version)
+                .withName("tarif")
+                .withUnit("EUR/unit")
+                .withRate(Money.of(new BigDecimal(rate), "EUR"))
+                .build();
+    }
+
+    private void logMethod(final String method, final String message, final Object... paramater) {
+        MDC.put("id", method);
+
+        LOG.debug(message, paramater);
+    }
+
+    @Before
+    public void setUp() {
+        service = new RatePlanCache();
+    }
+
+    @After
+    public void tearDown() {
+        MDC.remove("id");
+    }
+}
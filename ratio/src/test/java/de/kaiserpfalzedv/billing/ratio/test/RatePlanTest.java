@@ -0,0 +1,250 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package de.kaiserpfalzedv.billing.ratio.test;
+
+import java.math.BigDecimal;
+import java.util.Random;
+
+import javax.money.CurrencyUnit;
+import javax.money.Monetary;
+import javax.money.MonetaryAmount;
+
+import de.kaiserpfalzedv.billing.api.rated.Tarif;
+import de.kaiserpfalzedv.billing.ratio.RatePlan;
+import de.kaiserpfalzedv.billing.ratio.api.TarifBuilder;
+import org.javamoney.moneta.FastMoney;
+import org.javamoney.moneta.Money;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+import static java.math.RoundingMode.HALF_UP;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the fixed point rating against the {@link BigDecimal} rating of the
+ * {@link de.kaiserpfalzedv.billing.ratio.RatedRecordBuilder} with randomly generated tarifs and values. The
+ * random generator is seeded, so failures can be reproduced.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class RatePlanTest {
+    private static final Logger LOG = LoggerFactory.getLogger(RatePlanTest.class);
+
+    private static final CurrencyUnit EUR = Monetary.getCurrency("EUR");
+
+    private static final long SEED = 20180218L;
+    private static final int TARIFS = 200;
+    private static final int VALUES_PER_TARIF = 250;
+
+    private static final BigDecimal[] DIVISORS = {
+            BigDecimal.ONE,
+            BigDecimal.valueOf(3L),
+            BigDecimal.valueOf(60L),
+            BigDecimal.valueOf(1000L),
+            BigDecimal.valueOf(3600L),
+            new BigDecimal("1024.00"),
+            new BigDecimal("0.5")
+    };
+
+
+    @BeforeClass
+    public static void setUpClass() {
+        MDC.put("test", RatePlan.class.getSimpleName());
+
+        if (!SLF4JBridgeHandler.isInstalled()) {
+            SLF4JBridgeHandler.install();
+        }
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        MDC.remove("test");
+        MDC.remove("id");
+
+        SLF4JBridgeHandler.uninstall();
+    }
+
+    @Test
+    public void meteredValuesAreRatedIdentically() {
+        logMethod("metered-values", "Comparing {} random tarifs with {} random values each", TARIFS, VALUES_PER_TARIF);
+
+        Random random = new Random(SEED);
+
+        for (int i = 0; i < TARIFS; i++) {
+            Tarif tarif = createTarif(random);
+            RatePlan service = new RatePlan(tarif);
+
+            assertTrue("The tarif has not been compiled: " + tarif, service.isCompiled());
+
+            for (int j = 0; j < VALUES_PER_TARIF; j++) {
+                BigDecimal value = BigDecimal.valueOf(
+                        random.nextLong() % 1000000000000L,
+                        random.nextInt(8)
+                );
+
+                assertIdentical(tarif, value, service.rate(value));
+            }
+        }
+    }
+
+    @Test
+    public void timedValuesAreRatedIdentically() {
+        logMethod("timed-values", "Comparing {} random tarifs with {} random durations each", TARIFS, VALUES_PER_TARIF);
+
+        Random random = new Random(SEED);
+
+        for (int i = 0; i < TARIFS; i++) {
+            Tarif tarif = createTarif(random);
+            RatePlan service = new RatePlan(tarif);
+
+            for (int j = 0; j < VALUES_PER_TARIF; j++) {
+                long seconds = (long) random.nextInt(Integer.MAX_VALUE);
+
+                assertIdentical(tarif, BigDecimal.valueOf(seconds), service.rate(seconds));
+            }
+        }
+    }
+
+    @Test
+    public void roundingBoundariesAreRatedIdentically() {
+        logMethod("rounding-boundaries", "Comparing values exactly at the rounding boundaries");
+
+        Tarif tarif = createTarif(Money.of(BigDecimal.TEN, EUR), BigDecimal.valueOf(2L));
+        RatePlan service = new RatePlan(tarif);
+
+        for (String value : new String[]{"0.00001", "0.00003", "-0.00003", "0.000015", "-0.000015", "0.000025", "1"}) {
+            assertIdentical(tarif, new BigDecimal(value), service.rate(new BigDecimal(value)));
+        }
+    }
+
+    @Test
+    public void overflowFallsBackToBigDecimal() {
+        logMethod("overflow", "Checking the fallback for values overflowing the long arithmetic");
+
+        Tarif tarif = createTarif(Money.of(new BigDecimal("12345678.1234"), EUR), BigDecimal.valueOf(3L));
+        RatePlan service = new RatePlan(tarif);
+
+        BigDecimal value = new BigDecimal("123456789012345678.1234567");
+
+        assertTrue("The tarif has not been compiled", service.isCompiled());
+        assertIdentical(tarif, value, service.rate(value));
+        assertIdentical(tarif, BigDecimal.valueOf(Long.MAX_VALUE), service.rate(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void otherAmountTypesAreNotCompiled() {
+        logMethod("fast-money", "FastMoney rates are rated by BigDecimal");
+
+        Tarif tarif = createTarif(FastMoney.of(BigDecimal.TEN, EUR), BigDecimal.valueOf(3L));
+        RatePlan service = new RatePlan(tarif);
+
+        assertFalse("The FastMoney tarif has been compiled", service.isCompiled());
+        assertIdentical(tarif, BigDecimal.ONE, service.rate(BigDecimal.ONE));
+    }
+
+    @Test(timeout = 10000L)
+    public void runtimeTest() {
+        logMethod("runtime-verification", "checking the runtime of the fixed point rating ...");
+
+        Tarif tarif = createTarif(Money.of(new BigDecimal("0.0125"), EUR), BigDecimal.valueOf(1000L));
+        RatePlan service = new RatePlan(tarif);
+
+        BigDecimal[] values = new BigDecimal[100000];
+        Random random = new Random(SEED);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = BigDecimal.valueOf(random.nextInt(1000000), 3);
+        }
+
+        for (int i = 0; i < values.length; i++) {
+            service.rate(values[i]);
+            rate(tarif, values[i]);
+        }
+
+        long start = System.nanoTime();
+        for (BigDecimal value : values) {
+            rate(tarif, value);
+        }
+        long bigDecimalTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (BigDecimal value : values) {
+            service.rate(value);
+        }
+        long fixedPointTime = System.nanoTime() - start;
+
+        LOG.info("Rated {} values: fixed point {} ms, BigDecimal {} ms",
+                 values.length, fixedPointTime / 1000000L, bigDecimalTime / 1000000L);
+    }
+
+
+    private static void assertIdentical(final Tarif tarif, final BigDecimal value, final MonetaryAmount result) {
+        MonetaryAmount expected = rate(tarif, value);
+
+        String message = "The amount for value " + value + " and tarif " + tarif.getRate() + "/" + tarif.getUnitDivisor()
+                + " does not match";
+        assertEquals(message, expected, result);
+        assertEquals(message, expected.getNumber().numberValue(BigDecimal.class),
+                     result.getNumber().numberValue(BigDecimal.class));
+    }
+
+    /**
+     * The reference calculation as done by the {@link de.kaiserpfalzedv.billing.ratio.RatedRecordBuilder}.
+     */
+    private static MonetaryAmount rate(final Tarif tarif, final BigDecimal value) {
+        return tarif.getRate().multiply(value.divide(tarif.getUnitDivisor(), 5, HALF_UP));
+    }
+
+    private static Tarif createTarif(final Random random) {
+        BigDecimal rate = BigDecimal.valueOf(random.nextInt(10000000), random.nextInt(6));
+        BigDecimal divisor = random.nextBoolean()
+                ? DIVISORS[random.nextInt(DIVISORS.length)]
+                : BigDecimal.valueOf(1 + random.nextInt(1000000), random.nextInt(3));
+
+        return createTarif(Money.of(rate, EUR), divisor);
+    }
+
+    private static Tarif createTarif(final MonetaryAmount rate, final BigDecimal divisor) {
+        return new TarifBuilder()
+                .withName("random tarif")
+                .withUnit("EUR/unit")
+                .withRate(rate)
+                .withUnitDivisor(divisor)
+                .build();
+    }
+
+    private void logMethod(final String method, final String message, final Object... paramater) {
+        MDC.put("id", method);
+
+        LOG.debug(message, paramater);
+    }
+
+    @After
+    public void tearDown() {
+        MDC.remove("id");
+    }
+}
@@ -0,0 +1,455 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package de.kaiserpfalzedv.billing.ratio.test;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.money.CurrencyUnit;
+import javax.money.Monetary;
+
+import de.kaiserpfalzedv.billing.api.guided.Customer;
+import de.kaiserpfalzedv.billing.api.guided.GuidedBaseRecord;
+import de.kaiserpfalzedv.billing.api.guided.GuidedMeteredRecord;
+import de.kaiserpfalzedv.billing.api.guided.GuidedTimedRecord;
+import de.kaiserpfalzedv.billing.api.guided.ProductInfo;
+import de.kaiserpfalzedv.billing.api.guided.ProductRecordInfo;
+import de.kaiserpfalzedv.billing.api.rated.RatedMeteredRecord;
+import de.kaiserpfalzedv.billing.api.rated.RatedTimedRecord;
+import de.kaiserpfalzedv.billing.api.rated.RatingBusinessExeption;
+import de.kaiserpfalzedv.billing.api.rated.RatingExecutor;
+import de.kaiserpfalzedv.billing.api.rated.Tarif;
+import de.kaiserpfalzedv.billing.api.rated.TarifingException;
+import de.kaiserpfalzedv.billing.api.rated.TarifingGuide;
+import de.kaiserpfalzedv.billing.princeps.GuidedRecordBuilder;
+import de.kaiserpfalzedv.billing.princeps.api.CustomerBuilder;
+import de.kaiserpfalzedv.billing.princeps.api.ProductInfoBuilder;
+import de.kaiserpfalzedv.billing.princeps.api.ProductRecordInfoBuilder;
+import de.kaiserpfalzedv.billing.ratio.RatedRecordBuilder;
+import de.kaiserpfalzedv.billing.ratio.RatingExecutorImpl;
+import de.kaiserpfalzedv.billing.ratio.api.TarifBuilder;
+import org.javamoney.moneta.internal.MoneyAmountBuilder;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class RatingExecutorTest {
+    private static final Logger LOG = LoggerFactory.getLogger(RatingExecutorTest.class);
+
+    private static final ZoneId UTC = ZoneId.of("UTC");
+    private static final CurrencyUnit EUR = Monetary.getCurrency("EUR");
+
+    private static final int BENCHMARK_RECORDS = 10000;
+
+    private static final OffsetDateTime VALUE_DATE = OffsetDateTime.now(UTC);
+    private static final Duration METERED_DURATION = Duration.ofMinutes(15L);
+
+    private static final Map<String, String> TAGS = new HashMap<>(4);
+    static {
+        TAGS.put("cluster", "abbot1");
+        TAGS.put("project", "billing");
+    }
+
+    private static final Customer[] CUSTOMERS = {
+            new CustomerBuilder().setName("customer-1").setCostReference("cost-1").build(),
+            new CustomerBuilder().setName("customer-2").setCostReference("cost-2").build(),
+            new CustomerBuilder().setName("customer-3").setCostReference("cost-3").build()
+    };
+
+    private static final ProductRecordInfo[] PRODUCTS = {
+            createProduct("Cluster CPU Usage"),
+            createProduct("Cluster Memory Usage")
+    };
+
+    private static final Tarif TARIF = new TarifBuilder()
+            .withName("CPU usage")
+            .withUnit("EUR/mCores h")
+            .withRate(
+                    new MoneyAmountBuilder()
+                            .setNumber(BigDecimal.TEN)
+                            .setCurrency(EUR)
+                            .create()
+            )
+            .withUnitDivisor(BigDecimal.valueOf(1000L))
+            .build();
+
+
+    private RatingExecutor service;
+    private CountingTarifingGuide tarifingGuide;
+
+    private static ProductRecordInfo createProduct(final String name) {
+        ProductInfo product = new ProductInfoBuilder()
+                .setName(name)
+                .build();
+
+        return new ProductRecordInfoBuilder()
+                .setProductInfo(product)
+                .setTags(TAGS)
+                .build();
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+        MDC.put("test", RatingExecutor.class.getSimpleName());
+
+        if (!SLF4JBridgeHandler.isInstalled()) {
+            SLF4JBridgeHandler.install();
+        }
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        MDC.remove("test");
+        MDC.remove("id");
+
+        SLF4JBridgeHandler.uninstall();
+    }
+
+    @Test
+    public void rateSingleMeteredRecord() throws RatingBusinessExeption {
+        logMethod("single-metered-record", "Rating a single metered record");
+
+        GuidedMeteredRecord record = createMeteredRecords(1).get(0);
+
+        RatedMeteredRecord result = service.executeMeteredRecord(record, tarifingGuide);
+        LOG.debug("result: {}", result);
+
+        RatedMeteredRecord expected = new RatedRecordBuilder<RatedMeteredRecord>()
+                .setCustomer(record.getCustomer())
+                .setProductInfo(record.getProductInfo())
+                .setMeteredValue(record.getMeteredValue())
+                .setTarif(TARIF)
+                .build();
+
+        assertEquals("The id does not match", record.getId(), result.getId());
+        assertEquals("The metering id does not match", record.getMeteringId(), result.getMeteringId());
+        assertEquals("The customer does not match", record.getCustomer(), result.getCustomer());
+        assertEquals("The product does not match", record.getProductInfo(), result.getProductInfo());
+        assertEquals("The value date does not match", record.getValueDate(), result.getValueDate());
+        assertEquals("The metered value does not match", record.getMeteredValue(), result.getMeteredValue());
+        assertEquals("The amount does not match", expected.getAmount(), result.getAmount());
+        assertSame("The tags have not been shared", record.getTags(), result.getTags());
+        assertSame("The tarif does not match", TARIF, result.getTarif());
+    }
+
+    @Test
+    public void rateMeteredBatchResolvesTarifOncePerCustomerAndProduct() throws RatingBusinessExeption {
+        logMethod("metered-batch", "Rating a batch of metered records");
+
+        List<GuidedMeteredRecord> records = createMeteredRecords(60);
+
+        List<RatedMeteredRecord> result = service.executeMeteredRecords(records, tarifingGuide);
+
+        assertEquals("The number of rated records does not match", records.size(), result.size());
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals("The order of the rated records does not match", records.get(i).getId(), result.get(i).getId());
+        }
+        assertEquals("The tarif has not been resolved once per customer and product",
+                     CUSTOMERS.length * PRODUCTS.length, tarifingGuide.calls.get());
+    }
+
+    @Test
+    public void rateMeteredStream() throws RatingBusinessExeption {
+        logMethod("metered-stream", "Rating a stream of metered records");
+
+        List<GuidedMeteredRecord> records = createMeteredRecords(60);
+
+        List<RatedMeteredRecord> result = service.executeMeteredRecords(records.stream(), tarifingGuide);
+
+        assertEquals("The number of rated records does not match", records.size(), result.size());
+        assertEquals("The tarif has not been resolved once per customer and product",
+                     CUSTOMERS.length * PRODUCTS.length, tarifingGuide.calls.get());
+    }
+
+    @Test
+    public void rateTimedBatch() throws RatingBusinessExeption {
+        logMethod("timed-batch", "Rating a batch of timed records");
+
+        List<GuidedTimedRecord> records = createTimedRecords(60);
+
+        List<RatedTimedRecord> result = service.executeTimedRecords(records, tarifingGuide);
+
+        assertEquals("The number of rated records does not match", records.size(), result.size());
+        assertEquals("The duration does not match", METERED_DURATION, result.get(0).getMeteredDuration());
+        assertEquals("The amount does not match",
+                     TARIF.getRate().multiply(new BigDecimal("0.9")), result.get(0).getAmount());
+        assertEquals("The tarif has not been resolved once per customer and product",
+                     CUSTOMERS.length * PRODUCTS.length, tarifingGuide.calls.get());
+    }
+
+    @Test
+    public void fixedPointRatingMatchesDefaultRating() throws RatingBusinessExeption {
+        logMethod("fixed-point-batch", "Rating a batch with fixed point arithmetic");
+
+        List<GuidedMeteredRecord> metered = createMeteredRecords(60);
+        List<GuidedTimedRecord> timed = createTimedRecords(60);
+        RatingExecutor fixedPoint = new RatingExecutorImpl(true);
+
+        List<RatedMeteredRecord> expectedMetered = service.executeMeteredRecords(metered, tarifingGuide);
+        List<RatedMeteredRecord> resultMetered = fixedPoint.executeMeteredRecords(metered, tarifingGuide);
+        List<RatedTimedRecord> expectedTimed = service.executeTimedRecords(timed, tarifingGuide);
+        List<RatedTimedRecord> resultTimed = fixedPoint.executeTimedRecords(timed, tarifingGuide);
+
+        for (int i = 0; i < metered.size(); i++) {
+            assertEquals("The metered amount does not match",
+                         expectedMetered.get(i).getAmount(), resultMetered.get(i).getAmount());
+            assertSame("The tarif does not match", TARIF, resultMetered.get(i).getTarif());
+        }
+        for (int i = 0; i < timed.size(); i++) {
+            assertEquals("The timed amount does not match",
+                         expectedTimed.get(i).getAmount(), resultTimed.get(i).getAmount());
+        }
+    }
+
+    @Test
+    public void failedTarifingIsReportedAsRatingException() {
+        logMethod("failed-tarifing", "Failing tarif resolution has to be reported");
+
+        GuidedMeteredRecord record = createMeteredRecords(1).get(0);
+
+        try {
+            service.executeMeteredRecords(createMeteredRecords(1), r -> {
+                throw new TarifingException(r, "no tarif");
+            });
+
+            fail("The tarifing exception has not been reported");
+        } catch (RatingBusinessExeption e) {
+            LOG.debug("Caught expected exception: {}", e.getMessage());
+
+            assertEquals("The exception message does not match", "no tarif", e.getMessage());
+        }
+
+        try {
+            service.executeMeteredRecord(record, r -> null);
+
+            fail("A missing tarif has not been reported");
+        } catch (RatingBusinessExeption e) {
+            LOG.debug("Caught expected exception: {}", e.getMessage());
+        }
+    }
+
+    @Test
+    public void rateBatchSpanningPriceChange() throws RatingBusinessExeption {
+        logMethod("price-change", "Rating a month spanning a price change with a single tarif lookup");
+
+        OffsetDateTime change = OffsetDateTime.of(2018, 2, 15, 0, 0, 0, 0, ZoneOffset.UTC);
+        Tarif old = createDatedTarif(null, change, BigDecimal.ONE);
+        Tarif current = createDatedTarif(change, null, BigDecimal.TEN);
+        AtomicInteger calls = new AtomicInteger();
+
+        TarifingGuide versionedGuide = new TarifingGuide() {
+            @Override
+            public Tarif getTarif(final GuidedBaseRecord record) {
+                throw new UnsupportedOperationException("The single tarif should not be retrieved");
+            }
+
+            @Override
+            public List<? extends Tarif> getTarifVersions(final GuidedBaseRecord record) {
+                calls.incrementAndGet();
+                return Arrays.asList(current, old);
+            }
+        };
+
+        List<GuidedMeteredRecord> records = createMonthOfMeteredRecords(change.withDayOfMonth(1));
+        List<RatedMeteredRecord> result = service.executeMeteredRecords(records, versionedGuide);
+
+        assertEquals("The tarif versions have been retrieved more than once", 1, calls.get());
+        for (int i = 0; i < records.size(); i++) {
+            Tarif expected = records.get(i).getValueDate().isBefore(change) ? old : current;
+
+            assertSame("The tarif valid at the value date has not been used",
+                       expected, result.get(i).getTarif());
+        }
+    }
+
+    @Test
+    public void guideWithoutVersionsIsAskedForEveryValidity() throws RatingBusinessExeption {
+        logMethod("price-change-unversioned", "Guides without versions are asked again outside the known validity");
+
+        OffsetDateTime change = OffsetDateTime.of(2018, 2, 15, 0, 0, 0, 0, ZoneOffset.UTC);
+        Tarif old = createDatedTarif(null, change, BigDecimal.ONE);
+        Tarif current = createDatedTarif(change, null, BigDecimal.TEN);
+        AtomicInteger calls = new AtomicInteger();
+
+        TarifingGuide datedGuide = record -> {
+            calls.incrementAndGet();
+            return record.getValueDate().isBefore(change) ? old : current;
+        };
+
+        List<GuidedMeteredRecord> records = createMonthOfMeteredRecords(change.withDayOfMonth(1));
+        List<RatedMeteredRecord> result = service.executeMeteredRecords(records, datedGuide);
+
+        assertEquals("The guide has not been asked once per validity", 2, calls.get());
+        assertSame("The old tarif has not been used", old, result.get(0).getTarif());
+        assertSame("The current tarif has not been used", current, result.get(records.size() - 1).getTarif());
+    }
+
+    @Test(timeout = 10000L)
+    public void runtimeTest() throws RatingBusinessExeption {
+        logMethod("runtime-verification", "checking the throughput of the rating executor ...");
+
+        List<GuidedMeteredRecord> records = createMeteredRecords(BENCHMARK_RECORDS);
+
+        service.executeMeteredRecords(records.subList(0, 1000), tarifingGuide);
+
+        long start = System.nanoTime();
+        List<RatedMeteredRecord> batched = service.executeMeteredRecords(records, tarifingGuide);
+        long batchedTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (GuidedMeteredRecord record : records) {
+            service.executeMeteredRecord(record, tarifingGuide);
+        }
+        long singleTime = System.nanoTime() - start;
+
+        LOG.info("Rated {} records: batched {} records/s, single {} records/s",
+                 batched.size(), recordsPerSecond(batched.size(), batchedTime),
+                 recordsPerSecond(records.size(), singleTime));
+    }
+
+    private static long recordsPerSecond(final int records, final long nanos) {
+        return records * 1000000000L / Math.max(nanos, 1L);
+    }
+
+    private void logMethod(final String method, final String message, final Object... paramater) {
+        MDC.put("id", method);
+
+        LOG.debug(message, paramater);
+    }
+
+    private List<GuidedMeteredRecord> createMeteredRecords(final int count) {
+        GuidedRecordBuilder<GuidedMeteredRecord> builder = new GuidedRecordBuilder<>();
+        ArrayList<GuidedMeteredRecord> result = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            result.add(
+                    builder
+                            .setCustomer(CUSTOMERS[i % CUSTOMERS.length])
+                            .setProductInfo(PRODUCTS[i % PRODUCTS.length])
+                            .setValueDate(VALUE_DATE)
+                            .setMeteredValue(BigDecimal.valueOf(i % 1000L))
+                            .setTags(TAGS)
+                            .build()
+            );
+        }
+
+        return result;
+    }
+
+    private List<GuidedMeteredRecord> createMonthOfMeteredRecords(final OffsetDateTime start) {
+        GuidedRecordBuilder<GuidedMeteredRecord> builder = new GuidedRecordBuilder<>();
+        ArrayList<GuidedMeteredRecord> result = new ArrayList<>();
+
+        for (OffsetDateTime date = start; date.isBefore(start.plusMonths(1L)); date = date.plusHours(6L)) {
+            result.add(
+                    builder
+                            .setCustomer(CUSTOMERS[0])
+                            .setProductInfo(PRODUCTS[0])
+                            .setValueDate(date)
+                            .setMeteredValue(BigDecimal.valueOf(500L))
+                            .setTags(TAGS)
+                            .build()
+            );
+        }
+
+        return result;
+    }
+
+    private static Tarif createDatedTarif(final OffsetDateTime validFrom, final OffsetDateTime validTo,
+                                          final BigDecimal rate) {
+        return new TarifBuilder()
+                .withName("CPU usage")
+                .withUnit("EUR/mCores h")
+                .withValidFrom(validFrom)
+                .withValidTo(validTo)
+                .withRate(
+                        new MoneyAmountBuilder()
+                                .setNumber(rate)
+                                .setCurrency(EUR)
+                                .create()
+                )
+                .withUnitDivisor(BigDecimal.valueOf(1000L))
+                .build();
+    }
+
+    private List<GuidedTimedRecord> createTimedRecords(final int count) {
+        GuidedRecordBuilder<GuidedTimedRecord> builder = new GuidedRecordBuilder<>();
+        ArrayList<GuidedTimedRecord> result = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            result.add(
+                    builder
+                            .setCustomer(CUSTOMERS[i % CUSTOMERS.length])
+                            .setProductInfo(PRODUCTS[i % PRODUCTS.length])
+                            .setValueDate(VALUE_DATE)
+                            .setMeteredDuration(METERED_DURATION)
+                            .setTags(TAGS)
+                            .build()
+            );
+        }
+
+        return result;
+    }
+
+    @Before
+    public void setUp() {
+        service = new RatingExecutorImpl();
+        tarifingGuide = new CountingTarifingGuide();
+    }
+
+    @After
+    public void tearDown() {
+        MDC.remove("id");
+    }
+
+
+    private static class CountingTarifingGuide implements TarifingGuide {
+        private final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public Tarif getTarif(final GuidedBaseRecord record) {
+            calls.incrementAndGet();
+
+            return TARIF;
+        }
+    }
+}
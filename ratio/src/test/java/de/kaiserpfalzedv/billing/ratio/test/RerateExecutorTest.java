@@ -0,0 +1,327 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.ratio.test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.money.CurrencyUnit;
+import javax.money.Monetary;
+
+import ch.qos.logback.classic.Level;
+import de.kaiserpfalzedv.billing.api.guided.Customer;
+import de.kaiserpfalzedv.billing.api.guided.ProductInfo;
+import de.kaiserpfalzedv.billing.api.guided.ProductRecordInfo;
+import de.kaiserpfalzedv.billing.api.rated.RatedBaseRecord;
+import de.kaiserpfalzedv.billing.api.rated.RatedMeteredRecord;
+import de.kaiserpfalzedv.billing.api.rated.Tarif;
+import de.kaiserpfalzedv.billing.princeps.api.CustomerBuilder;
+import de.kaiserpfalzedv.billing.princeps.api.ProductInfoBuilder;
+import de.kaiserpfalzedv.billing.princeps.api.ProductRecordInfoBuilder;
+import de.kaiserpfalzedv.billing.ratio.RatedRecordBuilder;
+import de.kaiserpfalzedv.billing.ratio.RatingCorrection;
+import de.kaiserpfalzedv.billing.ratio.RerateExecutor;
+import de.kaiserpfalzedv.billing.ratio.TarifDelta;
+import de.kaiserpfalzedv.billing.ratio.api.TarifBuilder;
+import org.javamoney.moneta.internal.MoneyAmountBuilder;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class RerateExecutorTest {
+    private static final Logger LOG = LoggerFactory.getLogger(RerateExecutorTest.class);
+
+    private static final CurrencyUnit EUR = Monetary.getCurrency("EUR");
+
+    private static final OffsetDateTime MONTH = OffsetDateTime.of(2018, 2, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+
+    private static final Map<String, String> TAGS = new HashMap<>(4);
+    static {
+        TAGS.put("cluster", "abbot1");
+        TAGS.put("project", "billing");
+    }
+
+    private static final Customer CUSTOMER = new CustomerBuilder()
+            .setName("customer-1")
+            .setCostReference("cost-1")
+            .build();
+
+    private static final ProductRecordInfo PRODUCT = createProduct("Cluster CPU Usage");
+
+    private static final Tarif CPU = createTarif(UUID.randomUUID(), 1L, null, BigDecimal.TEN);
+    private static final Tarif MEMORY = createTarif(UUID.randomUUID(), 1L, null, BigDecimal.ONE);
+
+
+    private RerateExecutor service;
+
+    private static ProductRecordInfo createProduct(final String name) {
+        ProductInfo product = new ProductInfoBuilder()
+                .setName(name)
+                .build();
+
+        return new ProductRecordInfoBuilder()
+                .setProductInfo(product)
+                .setTags(TAGS)
+                .build();
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+        MDC.put("test", RerateExecutor.class.getSimpleName());
+
+        if (!SLF4JBridgeHandler.isInstalled()) {
+            SLF4JBridgeHandler.install();
+        }
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        MDC.remove("test");
+        MDC.remove("id");
+
+        SLF4JBridgeHandler.uninstall();
+    }
+
+    @Test
+    public void onlyRecordsOfCorrectedTarifsAreRerated() {
+        logMethod("affected", "Only records rated with a corrected tarif have to be re-rated");
+
+        List<RatedMeteredRecord> records = createRecords(100);
+        Tarif correction = createTarif(CPU.getId(), 2L, null, BigDecimal.valueOf(12L));
+
+        List<RatingCorrection> result = service.execute(records.stream(), TarifDelta.of(correction));
+
+        assertEquals("The number of corrections does not match", 50, result.size());
+        for (int i = 0; i < result.size(); i++) {
+            RatingCorrection entry = result.get(i);
+
+            assertSame("The corrections are not in the order of the records", records.get(2 * i), entry.getRecord());
+            assertSame("The corrected tarif has not been used", correction, entry.getNewTarif());
+            assertEquals("The old amount does not match",
+                         0, entry.getOldAmount().getNumber().numberValue(BigDecimal.class).compareTo(rate(records.get(2 * i), CPU)));
+            assertEquals("The new amount does not match",
+                         0, entry.getNewAmount().getNumber().numberValue(BigDecimal.class).compareTo(rate(records.get(2 * i), correction)));
+        }
+    }
+
+    @Test
+    public void unchangedAmountsAreNotReported() {
+        logMethod("unchanged", "Records keeping their amount must not be reported");
+
+        Tarif correction = createTarif(CPU.getId(), 2L, null, BigDecimal.TEN);
+
+        List<RatingCorrection> result = service.execute(createRecords(100).stream(), TarifDelta.of(correction));
+
+        assertTrue("Unchanged amounts have been reported", result.isEmpty());
+    }
+
+    @Test
+    public void correctionWithUnchangedVersionIsApplied() {
+        logMethod("unchanged-version", "Corrections keeping the version of a former correction have to be applied");
+
+        List<RatedMeteredRecord> records = createRecords(100);
+        service.execute(records.stream(), TarifDelta.of(createTarif(CPU.getId(), 2L, null, BigDecimal.valueOf(12L))));
+
+        Tarif correction = createTarif(CPU.getId(), 2L, null, BigDecimal.valueOf(14L));
+        List<RatingCorrection> result = service.execute(records.stream(), TarifDelta.of(correction));
+
+        assertEquals("The number of corrections does not match", 50, result.size());
+        for (RatingCorrection entry : result) {
+            assertEquals("The new amount does not match",
+                         0, entry.getNewAmount().getNumber().numberValue(BigDecimal.class).compareTo(rate(entry.getRecord(), correction)));
+        }
+    }
+
+    @Test
+    public void correctionIsOnlyAppliedWithinItsValidity() {
+        logMethod("validity", "Corrections only apply to records valued within their validity");
+
+        OffsetDateTime change = MONTH.plusDays(14L);
+        List<RatedMeteredRecord> records = createRecords(112);
+        Tarif correction = createTarif(CPU.getId(), 2L, change, BigDecimal.valueOf(12L));
+
+        List<RatingCorrection> result = service.execute(records.stream(), TarifDelta.of(correction));
+
+        long expected = records.stream()
+                .filter(r -> r.getTarif() == CPU && !r.getValueDate().isBefore(change))
+                .count();
+        assertEquals("The number of corrections does not match", expected, result.size());
+        for (RatingCorrection entry : result) {
+            assertTrue("A record before the change has been re-rated", !entry.getRecord().getValueDate().isBefore(change));
+        }
+    }
+
+    @Test
+    public void parallelCorrectionsMatchRebuiltRecords() {
+        logMethod("parallel", "The parallel re-rating has to match rebuilding every record");
+
+        List<RatedMeteredRecord> records = createRecords(1000);
+        Tarif cpu = createTarif(CPU.getId(), 2L, null, new BigDecimal("10.37"));
+        Tarif memory = createTarif(MEMORY.getId(), 2L, MONTH.plusDays(10L), new BigDecimal("0.5"));
+        TarifDelta delta = TarifDelta.of(cpu, memory);
+
+        service = new RerateExecutor(new ForkJoinPool(4), 7);
+        List<RatingCorrection> result = service.execute(records.stream(), delta);
+
+        RatedRecordBuilder<RatedMeteredRecord> builder = new RatedRecordBuilder<>();
+        ArrayList<RatingCorrection> expected = new ArrayList<>();
+        for (RatedMeteredRecord record : records) {
+            Tarif correction = delta.getCorrection(record.getTarif().getId());
+            if (correction.getValidFrom() != null && record.getValueDate().isBefore(correction.getValidFrom())) {
+                continue;
+            }
+
+            RatedMeteredRecord rebuilt = builder.copy(record).setTarif(correction).build();
+            if (!rebuilt.getAmount().isEqualTo(record.getAmount())) {
+                expected.add(new RatingCorrection(record, correction, rebuilt.getAmount()));
+            }
+        }
+
+        assertEquals("The number of corrections does not match", expected.size(), result.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertSame("The corrected record does not match", expected.get(i).getRecord(), result.get(i).getRecord());
+            assertEquals("The new amount does not match",
+                         expected.get(i).getNewAmount(), result.get(i).getNewAmount());
+
+            RatedMeteredRecord rebuilt = result.get(i).rebuild(builder);
+            assertEquals("The rebuilt record has another id", result.get(i).getId(), rebuilt.getId());
+            assertEquals("The rebuilt amount does not match", result.get(i).getNewAmount(), rebuilt.getAmount());
+        }
+    }
+
+    @Test(timeout = 30000L)
+    public void runtimeTest() {
+        logMethod("runtime-verification", "checking the throughput of the re-rating ...");
+
+        List<RatedMeteredRecord> records = createRecords(200000);
+        Tarif correction = createTarif(CPU.getId(), 2L, null, new BigDecimal("10.37"));
+        TarifDelta delta = TarifDelta.of(correction);
+        service = new RerateExecutor(new ForkJoinPool(Runtime.getRuntime().availableProcessors()),
+                                     RerateExecutor.DEFAULT_PARTITION_SIZE);
+
+        ch.qos.logback.classic.Logger ratio = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger("de.kaiserpfalzedv.billing.ratio");
+        Level level = ratio.getLevel();
+        ratio.setLevel(Level.INFO);
+        try {
+            service.execute(records.subList(0, 10000).stream(), delta);
+
+            long start = System.nanoTime();
+            List<RatingCorrection> rerated = service.execute(records.stream(), delta);
+            long rerateTime = System.nanoTime() - start;
+
+            RatedRecordBuilder<RatedMeteredRecord> builder = new RatedRecordBuilder<>();
+            start = System.nanoTime();
+            for (RatedMeteredRecord record : records) {
+                builder.copy(record).setTarif(record.getTarif() == CPU ? correction : record.getTarif()).build();
+            }
+            long rebuildTime = System.nanoTime() - start;
+
+            LOG.info("Re-rated {} records ({} changed): delta {} records/s, rebuild {} records/s",
+                     records.size(), rerated.size(), recordsPerSecond(records.size(), rerateTime),
+                     recordsPerSecond(records.size(), rebuildTime));
+        } finally {
+            ratio.setLevel(level);
+        }
+    }
+
+    private static long recordsPerSecond(final int records, final long nanos) {
+        return records * 1000000000L / Math.max(nanos, 1L);
+    }
+
+    private void logMethod(final String method, final String message, final Object... paramater) {
+        MDC.put("id", method);
+
+        LOG.debug(message, paramater);
+    }
+
+    private List<RatedMeteredRecord> createRecords(final int count) {
+        RatedRecordBuilder<RatedMeteredRecord> builder = new RatedRecordBuilder<>();
+        ArrayList<RatedMeteredRecord> result = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            result.add(
+                    builder
+                            .setCustomer(CUSTOMER)
+                            .setProductInfo(PRODUCT)
+                            .setValueDate(MONTH.plusHours(6L * (i % 112)))
+                            .setMeteredValue(BigDecimal.valueOf(i % 1000L + 1L))
+                            .setTarif(i % 2 == 0 ? CPU : MEMORY)
+                            .setTags(TAGS)
+                            .build()
+            );
+        }
+
+        return result;
+    }
+
+    private static BigDecimal rate(final RatedBaseRecord record, final Tarif tarif) {
+        return ((RatedMeteredRecord) record).getMeteredValue()
+                .divide(tarif.getUnitDivisor(), 5, RoundingMode.HALF_UP)
+                .multiply(tarif.getRate().getNumber().numberValue(BigDecimal.class));
+    }
+
+    private static Tarif createTarif(final UUID id, final Long version, final OffsetDateTime validFrom,
+                                     final BigDecimal rate) {
+        return new TarifBuilder()
+                .withId(id)
+                .withVersion(version)
+                .withName("CPU usage")
+                .withUnit("EUR/mCores h")
+                .withValidFrom(validFrom)
+                .withRate(
+                        new MoneyAmountBuilder()
+                                .setNumber(rate)
+                                .setCurrency(EUR)
+                                .create()
+                )
+                .withUnitDivisor(BigDecimal.valueOf(1000L))
+                .build();
+    }
+
+    @Before
+    public void setUp() {
+        service = new RerateExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        MDC.remove("id");
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package de.kaiserpfalzedv.billing.ratio.test;
+
+import java.math.BigDecimal;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import javax.money.CurrencyUnit;
+import javax.money.Monetary;
+
+import de.kaiserpfalzedv.billing.api.rated.Tarif;
+import de.kaiserpfalzedv.billing.ratio.TarifVersions;
+import de.kaiserpfalzedv.billing.ratio.api.TarifBuilder;
+import org.javamoney.moneta.Money;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class TarifVersionsTest {
+    private static final Logger LOG = LoggerFactory.getLogger(TarifVersionsTest.class);
+
+    private static final CurrencyUnit EUR = Monetary.getCurrency("EUR");
+    private static final OffsetDateTime START = OffsetDateTime.of(2018, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+
+
+    @BeforeClass
+    public static void setUpClass() {
+        MDC.put("test", TarifVersions.class.getSimpleName());
+
+        if (!SLF4JBridgeHandler.isInstalled()) {
+            SLF4JBridgeHandler.install();
+        }
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        MDC.remove("test");
+        MDC.remove("id");
+
+        SLF4JBridgeHandler.uninstall();
+    }
+
+    @Test
+    public void shouldFindVersionValidAtDate() {
+        logMethod("consecutive", "Consecutive versions have to be found by their validity");
+
+        Tarif january = createTarif(START, START.plusMonths(1L), 0L);
+        Tarif february = createTarif(START.plusMonths(1L), START.plusMonths(2L), 1L);
+        Tarif march = createTarif(START.plusMonths(2L), null, 2L);
+
+        TarifVersions<Tarif> service = TarifVersions.of(Arrays.asList(march, january, february));
+
+        assertNull("A version before the first one has been found", service.find(START.minusNanos(1000000L)));
+        assertSame(january, service.find(START));
+        assertSame(january, service.find(START.plusMonths(1L).minusNanos(1000000L)));
+        assertSame(february, service.find(START.plusMonths(1L)));
+        assertSame(march, service.find(START.plusYears(10L)));
+        assertEquals("The versions are not ordered by start",
+                     Arrays.asList(january, february, march), service.getVersions());
+    }
+
+    @Test
+    public void shouldFindOverridingVersion() {
+        logMethod("overriding", "A version starting later overrides the versions it overlaps with");
+
+        Tarif base = createTarif(null, null, 0L);
+        Tarif offer = createTarif(START, START.plusDays(14L), 1L);
+
+        TarifVersions<Tarif> service = TarifVersions.of(Arrays.asList(offer, base));
+
+        assertSame(base, service.find(START.minusDays(1L)));
+        assertSame(offer, service.find(START.plusDays(1L)));
+        assertSame(base, service.find(START.plusDays(14L)));
+    }
+
+    @Test
+    public void shouldFindNothingWithoutVersions() {
+        logMethod("empty", "Without versions nothing is valid");
+
+        assertNull(TarifVersions.of(Collections.emptyList()).find(START));
+    }
+
+    @Test
+    public void shouldMatchLinearScanOfVersions() {
+        logMethod("linear-scan", "The tree has to find the same versions as a linear scan");
+
+        Random random = new Random(20180218L);
+
+        for (int run = 0; run < 100; run++) {
+            ArrayList<Tarif> tarifs = new ArrayList<>();
+
+            for (int i = 0; i < 1 + random.nextInt(30); i++) {
+                OffsetDateTime from = random.nextInt(10) == 0 ? null : START.plusDays(random.nextInt(365));
+                OffsetDateTime to = random.nextInt(10) == 0
+                        ? null
+                        : (from != null ? from : START).plusDays(1 + random.nextInt(60));
+
+                tarifs.add(createTarif(from, to, i));
+            }
+
+            TarifVersions<Tarif> service = TarifVersions.of(tarifs);
+
+            for (int i = 0; i < 200; i++) {
+                OffsetDateTime date = START.plusHours(random.nextInt(24 * 450) - 24 * 30);
+
+                assertSame("The tree does not match the linear scan at " + date,
+                           linearScan(tarifs, date), service.find(date));
+            }
+        }
+    }
+
+
+    /**
+     * @return the valid version starting last (the one with the highest version on ties).
+     */
+    private static Tarif linearScan(final List<Tarif> tarifs, final OffsetDateTime date) {
+        Tarif result = null;
+
+        for (Tarif tarif : tarifs) {
+            boolean started = tarif.getValidFrom() == null || !tarif.getValidFrom().isAfter(date);
+            boolean ended = tarif.getValidTo() != null && !tarif.getValidTo().isAfter(date);
+
+            if (started && !ended && (result == null || startsAfter(tarif, result))) {
+                result = tarif;
+            }
+        }
+
+        return result;
+    }
+
+    private static boolean startsAfter(final Tarif tarif, final Tarif other) {
+        if (tarif.getValidFrom() == null) {
+            return other.getValidFrom() == null && tarif.getVersion() > other.getVersion();
+        }
+
+        if (other.getValidFrom() == null || tarif.getValidFrom().isAfter(other.getValidFrom())) {
+            return true;
+        }
+
+        return tarif.getValidFrom().isEqual(other.getValidFrom()) && tarif.getVersion() > other.getVersion();
+    }
+
+    private static Tarif createTarif(final OffsetDateTime validFrom, final OffsetDateTime validTo, final long version) {
+        return new TarifBuilder()
+                .withVersion(version)
+                .withName("Storage")
+                .withUnit("GB")
+                .withValidFrom(validFrom)
+                .withValidTo(validTo)
+                .withRate(Money.of(BigDecimal.ONE, EUR))
+                .build();
+    }
+
+    private void logMethod(final String method, final String message, final Object... paramater) {
+        MDC.put("id", method);
+
+        LOG.debug(message, paramater);
+    }
+
+    @After
+    public void tearDown() {
+        MDC.remove("id");
+    }
+}
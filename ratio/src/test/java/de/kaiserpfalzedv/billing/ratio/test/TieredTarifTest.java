@@ -0,0 +1,416 @@
+/*
+ *    Copyright 2018 Kaiserpfalz EDV-Service, Roland T. Lichti
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package de.kaiserpfalzedv.billing.ratio.test;
+
+import java.math.BigDecimal;
+import java.time.OffsetDateTime;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.money.CurrencyUnit;
+import javax.money.Monetary;
+import javax.money.MonetaryAmount;
+
+import ch.qos.logback.classic.Level;
+import de.kaiserpfalzedv.billing.api.guided.Customer;
+import de.kaiserpfalzedv.billing.api.guided.GuidedBaseRecord;
+import de.kaiserpfalzedv.billing.api.guided.GuidedMeteredRecord;
+import de.kaiserpfalzedv.billing.api.guided.ProductInfo;
+import de.kaiserpfalzedv.billing.api.guided.ProductRecordInfo;
+import de.kaiserpfalzedv.billing.api.rated.RatedMeteredRecord;
+import de.kaiserpfalzedv.billing.api.rated.RatingBusinessExeption;
+import de.kaiserpfalzedv.billing.api.rated.Tarif;
+import de.kaiserpfalzedv.billing.api.rated.TarifingException;
+import de.kaiserpfalzedv.billing.api.rated.TarifingGuide;
+import de.kaiserpfalzedv.billing.princeps.GuidedRecordBuilder;
+import de.kaiserpfalzedv.billing.princeps.api.CustomerBuilder;
+import de.kaiserpfalzedv.billing.princeps.api.ProductInfoBuilder;
+import de.kaiserpfalzedv.billing.princeps.api.ProductRecordInfoBuilder;
+import de.kaiserpfalzedv.billing.ratio.RatePlan;
+import de.kaiserpfalzedv.billing.ratio.RatePlanCache;
+import de.kaiserpfalzedv.billing.ratio.RatedRecordBuilder;
+import de.kaiserpfalzedv.billing.ratio.RatingExecutorImpl;
+import de.kaiserpfalzedv.billing.ratio.UsageAccumulators;
+import de.kaiserpfalzedv.billing.ratio.api.TarifBuilder;
+import org.javamoney.moneta.Money;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tiered tarifs: 10 EUR per unit up to 1000 units, 5 EUR per unit up to 2000 units and 2 EUR per unit beyond. A unit
+ * is 1000 of the metered value.
+ *
+ * @author klenkes {@literal <rlichti@kaiserpfalz-edv.de>}
+ * @version 1.0.0
+ * @since 2018-02-18
+ */
+public class TieredTarifTest {
+    private static final Logger LOG = LoggerFactory.getLogger(TieredTarifTest.class);
+
+    private static final CurrencyUnit EUR = Monetary.getCurrency("EUR");
+
+    private static final OffsetDateTime MONTH = OffsetDateTime.of(2018, 2, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+
+    private static final Map<String, String> TAGS = new HashMap<>(4);
+    static {
+        TAGS.put("cluster", "abbot1");
+        TAGS.put("project", "billing");
+    }
+
+    private static final Customer[] CUSTOMERS = {
+            new CustomerBuilder().setName("customer-1").setCostReference("cost-1").build(),
+            new CustomerBuilder().setName("customer-2").setCostReference("cost-2").build()
+    };
+
+    private static final ProductRecordInfo PRODUCT = createProduct("Cluster CPU Usage");
+
+    private static final Tarif TIERED = new TarifBuilder()
+            .withName("CPU usage")
+            .withUnit("EUR/Cores h")
+            .withRate(Money.of(BigDecimal.TEN, EUR))
+            .withTier(BigDecimal.valueOf(2000L), Money.of(BigDecimal.valueOf(2L), EUR))
+            .withTier(BigDecimal.valueOf(1000L), Money.of(BigDecimal.valueOf(5L), EUR))
+            .withUnitDivisor(BigDecimal.valueOf(1000L))
+            .build();
+
+
+    private UsageAccumulators usage;
+    private RatingExecutorImpl service;
+    private TarifingGuide tarifingGuide;
+
+    private static ProductRecordInfo createProduct(final String name) {
+        ProductInfo product = new ProductInfoBuilder()
+                .setName(name)
+                .build();
+
+        return new ProductRecordInfoBuilder()
+                .setProductInfo(product)
+                .setTags(TAGS)
+                .build();
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+        MDC.put("test", TieredTarifTest.class.getSimpleName());
+
+        if (!SLF4JBridgeHandler.isInstalled()) {
+            SLF4JBridgeHandler.install();
+        }
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        MDC.remove("test");
+        MDC.remove("id");
+
+        SLF4JBridgeHandler.uninstall();
+    }
+
+    @Test
+    public void tiersAreOrderedByThreshold() {
+        logMethod("order", "The tiers have to be ordered by their thresholds");
+
+        assertEquals("The number of tiers does not match", 2, TIERED.getTiers().size());
+        assertEquals("The first tier does not match", 0, BigDecimal.valueOf(1000L).compareTo(TIERED.getTiers().get(0).getFrom()));
+        assertEquals("The second tier does not match", 0, BigDecimal.valueOf(2000L).compareTo(TIERED.getTiers().get(1).getFrom()));
+        assertEquals("The copied tiers do not match", TIERED.getTiers(), new TarifBuilder().copy(TIERED).build().getTiers());
+    }
+
+    @Test
+    public void quantityIsRatedAgainstTheTiersOfTheUsage() {
+        logMethod("plan", "The quantity has to be rated against the tiers of the usage before");
+
+        RatePlan plan = new RatePlan(TIERED);
+        long quantity = plan.quantity(BigDecimal.valueOf(500000L));
+
+        assertTrue("The plan is not tiered", plan.isTiered());
+        assertEquals("The quantity does not match", 500L * 100000L, quantity);
+        assertAmount("The amount within the first tier does not match", 5000L, plan.rate(quantity, 0L));
+        assertAmount("The amount spanning two tiers does not match", 3500L, plan.rate(quantity, 800L * 100000L));
+        assertAmount("The amount within the last tier does not match", 1000L, plan.rate(quantity, 5000L * 100000L));
+        assertAmount("The amount spanning all tiers does not match", 6200L,
+                     plan.rate(plan.quantity(BigDecimal.valueOf(1200000L)), 900L * 100000L));
+    }
+
+    @Test
+    public void flatTarifsIgnoreTheUsage() {
+        logMethod("flat", "Flat tarifs are rated with their rate regardless of the usage");
+
+        RatePlan plan = new RatePlan(new TarifBuilder().copy(TIERED).withTiers(new ArrayList<>()).build());
+        long quantity = plan.quantity(BigDecimal.valueOf(500000L));
+
+        assertFalse("The plan is tiered", plan.isTiered());
+        assertAmount("The amount does not match", 5000L, plan.rate(quantity, 5000L * 100000L));
+        assertEquals("The amount differs from the flat rating",
+                     plan.rate(BigDecimal.valueOf(500000L)), plan.rate(quantity, 0L));
+    }
+
+    @Test
+    public void invalidTiersAreRejected() {
+        logMethod("invalid", "Tiers starting at 0, in another currency or twice have to be rejected");
+
+        TarifBuilder[] builders = {
+                new TarifBuilder().copy(TIERED).withTier(BigDecimal.ZERO, Money.of(BigDecimal.ONE, EUR)),
+                new TarifBuilder().copy(TIERED).withTier(BigDecimal.TEN, Money.of(BigDecimal.ONE, "USD")),
+                new TarifBuilder().copy(TIERED).withTier(new BigDecimal("1000.0"), Money.of(BigDecimal.ONE, EUR))
+        };
+
+        for (TarifBuilder builder : builders) {
+            try {
+                builder.build();
+
+                fail("An invalid tarif has been built");
+            } catch (IllegalStateException e) {
+                LOG.debug("Caught expected exception: {}", e.getMessage());
+            }
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void tieredTarifsNeedAnAmountWhenBuilt() {
+        logMethod("builder", "Records of tiered tarifs can't be rated by the builder without usage");
+
+        new RatedRecordBuilder<RatedMeteredRecord>()
+                .setCustomer(CUSTOMERS[0])
+                .setProductInfo(PRODUCT)
+                .setValueDate(MONTH)
+                .setMeteredValue(BigDecimal.valueOf(100000L))
+                .setTarif(TIERED)
+                .build();
+    }
+
+    @Test
+    public void usageIsAccumulatedPerCustomerAndPeriod() throws RatingBusinessExeption {
+        logMethod("batch", "The usage has to be accumulated per customer, product and billing period");
+
+        List<RatedMeteredRecord> first = service.executeMeteredRecords(createRecords(CUSTOMERS[0], MONTH, 25), tarifingGuide);
+        List<RatedMeteredRecord> second = service.executeMeteredRecords(createRecords(CUSTOMERS[1], MONTH, 5), tarifingGuide);
+        List<RatedMeteredRecord> next = service.executeMeteredRecords(
+                createRecords(CUSTOMERS[0], MONTH.plusMonths(1L), 5), tarifingGuide);
+
+        assertAmount("The first record does not match", 1000L, first.get(0).getAmount());
+        assertAmount("The record of the second tier does not match", 500L, first.get(10).getAmount());
+        assertAmount("The record of the third tier does not match", 200L, first.get(24).getAmount());
+        assertAmount("The total of the first customer does not match", 16000L, total(first));
+        assertAmount("The total of the second customer does not match", 5000L, total(second));
+        assertAmount("The total of the next month does not match", 5000L, total(next));
+
+        YearMonth period = usage.getPeriod(MONTH);
+        assertEquals("The usage does not match",
+                     2500L * 100000L, usage.getUsage(CUSTOMERS[0].getId(), PRODUCT.getProductName(), period));
+        assertEquals("The number of accumulators does not match", 3, usage.size());
+
+        usage.removeBefore(period.plusMonths(1L));
+        assertEquals("The accumulators of the old period have not been removed", 1, usage.size());
+    }
+
+    @Test
+    public void usageIsKeptWhenTarifVersionChangesWithinPeriod() throws RatingBusinessExeption {
+        logMethod("version-change", "A new tarif version within the period has to keep the usage of the period");
+
+        Tarif changed = new TarifBuilder()
+                .copy(TIERED)
+                .withId(UUID.randomUUID())
+                .withVersion(2L)
+                .withValidFrom(MONTH.plusMinutes(10L))
+                .build();
+        tarifingGuide = new TarifingGuide() {
+            @Override
+            public Tarif getTarif(final GuidedBaseRecord record) {
+                return record.getValueDate().isBefore(changed.getValidFrom()) ? TIERED : changed;
+            }
+
+            @Override
+            public List<? extends Tarif> getTarifVersions(final GuidedBaseRecord record) {
+                return Arrays.asList(TIERED, changed);
+            }
+        };
+
+        List<RatedMeteredRecord> result = service.executeMeteredRecords(createRecords(CUSTOMERS[0], MONTH, 25), tarifingGuide);
+
+        assertEquals("The new version has not been used", changed, result.get(10).getTarif());
+        assertAmount("The first record of the new version does not match", 500L, result.get(10).getAmount());
+        assertAmount("The total does not match", 16000L, total(result));
+    }
+
+    @Test
+    public void usageOfFailedBatchIsRemoved() throws RatingBusinessExeption {
+        logMethod("rollback", "A failed batch must not leave its usage behind");
+
+        ArrayList<GuidedMeteredRecord> records = new ArrayList<>(createRecords(CUSTOMERS[0], MONTH, 20));
+        records.add(
+                new GuidedRecordBuilder<GuidedMeteredRecord>()
+                        .setCustomer(CUSTOMERS[0])
+                        .setProductInfo(createProduct("Unknown"))
+                        .setValueDate(MONTH)
+                        .setMeteredValue(BigDecimal.ONE)
+                        .setTags(TAGS)
+                        .build()
+        );
+        tarifingGuide = record -> {
+            if (record.getProductInfo() != PRODUCT) {
+                throw new TarifingException(record, "No tarif for " + record.getProductInfo().getProductName());
+            }
+
+            return TIERED;
+        };
+
+        try {
+            service.executeMeteredRecords(records, tarifingGuide);
+
+            fail("A record without tarif has been rated");
+        } catch (RatingBusinessExeption e) {
+            LOG.debug("Caught expected exception: {}", e.getMessage());
+        }
+
+        assertEquals("The usage of the failed batch has not been removed",
+                     0L, usage.getUsage(CUSTOMERS[0].getId(), PRODUCT.getProductName(), MONTH));
+
+        List<RatedMeteredRecord> retried = service.executeMeteredRecords(records.subList(0, 20), tarifingGuide);
+        assertAmount("The total of the retried batch does not match", 15000L, total(retried));
+    }
+
+    @Test
+    public void concurrentRatingKeepsTheTotal() throws Exception {
+        logMethod("concurrent", "Rating on many threads has to result in the same total");
+
+        int threads = 8;
+        List<GuidedMeteredRecord> records = createRecords(CUSTOMERS[0], MONTH, 50);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            ArrayList<Future<List<RatedMeteredRecord>>> results = new ArrayList<>(threads);
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(() -> service.executeMeteredRecords(records, tarifingGuide)));
+            }
+
+            ArrayList<RatedMeteredRecord> rated = new ArrayList<>();
+            for (Future<List<RatedMeteredRecord>> result : results) {
+                rated.addAll(result.get(10L, TimeUnit.SECONDS));
+            }
+
+            // 40000 units: 1000 * 10 + 1000 * 5 + 38000 * 2
+            assertAmount("The total does not match", 91000L, total(rated));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 10000L)
+    public void runtimeTest() throws RatingBusinessExeption {
+        logMethod("runtime-verification", "checking the throughput of the tiered rating ...");
+
+        List<GuidedMeteredRecord> records = new ArrayList<>(100000);
+        for (int i = 0; i < 100; i++) {
+            Customer customer = new CustomerBuilder().setName("customer-" + i).setCostReference("cost-" + i).build();
+
+            records.addAll(createRecords(customer, MONTH, 1000));
+        }
+
+        ch.qos.logback.classic.Logger ratio = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger("de.kaiserpfalzedv.billing.ratio");
+        Level level = ratio.getLevel();
+        ratio.setLevel(Level.INFO);
+        try {
+            service.executeMeteredRecords(records.subList(0, 10000), tarifingGuide);
+
+            long start = System.nanoTime();
+            List<RatedMeteredRecord> rated = service.executeMeteredRecords(records, tarifingGuide);
+            long duration = System.nanoTime() - start;
+
+            LOG.info("Rated {} records against tiers: {} records/s, {} accumulators",
+                     rated.size(), rated.size() * 1000000000L / Math.max(duration, 1L), usage.size());
+        } finally {
+            ratio.setLevel(level);
+        }
+    }
+
+    private static MonetaryAmount total(final List<RatedMeteredRecord> records) {
+        MonetaryAmount result = Money.zero(EUR);
+
+        for (RatedMeteredRecord record : records) {
+            result = result.add(record.getAmount());
+        }
+
+        return result;
+    }
+
+    private static void assertAmount(final String message, final long expected, final MonetaryAmount amount) {
+        assertEquals(message, 0, BigDecimal.valueOf(expected).compareTo(amount.getNumber().numberValue(BigDecimal.class)));
+    }
+
+    private void logMethod(final String method, final String message, final Object... paramater) {
+        MDC.put("id", method);
+
+        LOG.debug(message, paramater);
+    }
+
+    /**
+     * Creates records of 100 units each.
+     */
+    private List<GuidedMeteredRecord> createRecords(final Customer customer, final OffsetDateTime start, final int count) {
+        GuidedRecordBuilder<GuidedMeteredRecord> builder = new GuidedRecordBuilder<>();
+        ArrayList<GuidedMeteredRecord> result = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            result.add(
+                    builder
+                            .setCustomer(customer)
+                            .setProductInfo(PRODUCT)
+                            .setValueDate(start.plusMinutes(i))
+                            .setMeteredValue(BigDecimal.valueOf(100000L))
+                            .setTags(TAGS)
+                            .build()
+            );
+        }
+
+        return result;
+    }
+
+    @Before
+    public void setUp() {
+        usage = new UsageAccumulators();
+        service = new RatingExecutorImpl(true, new RatePlanCache(), usage);
+        tarifingGuide = record -> TIERED;
+    }
+
+    @After
+    public void tearDown() {
+        MDC.remove("id");
+    }
+}